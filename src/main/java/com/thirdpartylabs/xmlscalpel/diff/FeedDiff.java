@@ -0,0 +1,232 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.diff;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare two versions of a feed record by record, without hydrating either of them.
+ * <p>
+ * Both files are indexed with a hash of the raw bytes and a key for every record, see
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader#indexFile(File, List, boolean, String)
+ * indexFile}. Records are matched by key, and a matched pair whose hashes and lengths are equal is unchanged. Neither
+ * file is read again while comparing, the listener reads only the records reported to it. With 64 bit hashes the
+ * chance of a changed record going unnoticed is negligible.
+ * <p>
+ * Keys should be unique within a feed. If a key is repeated, the nth record with the key in the new feed is paired
+ * with the nth record with the key in the old feed, and any extras are reported as added or removed. Records without
+ * a key can not be matched, they are counted but not reported.
+ * <p>
+ * The keys of the old feed are held in a hash map while the new feed is compared, instances are thread-safe.
+ */
+public class FeedDiff
+{
+    private final StreamingXMLReader reader;
+    private final List<String> targetPaths;
+    private final String keyPath;
+
+    /**
+     * @param targetPaths {@link java.util.List List} of record paths, may be null. See
+     *                    {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+     * @param keyPath     Path of the key within each record, for example {@code sku} or {@code @id}
+     * @throws ParserConfigurationException
+     */
+    public FeedDiff(List<String> targetPaths, String keyPath) throws ParserConfigurationException
+    {
+        this.reader = new StreamingXMLReader();
+        this.targetPaths = targetPaths;
+        this.keyPath = keyPath;
+    }
+
+    /**
+     * Index both files and report the differences
+     *
+     * @param oldFile  Previous version of the feed
+     * @param newFile  Current version of the feed
+     * @param listener {@link FeedDiffListener} to report differences to
+     * @return {@link Summary} of the differences
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public Summary diff(File oldFile, File newFile, FeedDiffListener listener) throws IOException, XMLStreamException
+    {
+        LocationTable oldIndex = reader.indexFile(oldFile, targetPaths, true, keyPath);
+        LocationTable newIndex = reader.indexFile(newFile, targetPaths, true, keyPath);
+
+        return diff(oldIndex, newIndex, listener);
+    }
+
+    /**
+     * Report the differences between two files that have already been indexed with hashes and keys, for example in
+     * parallel. Only the indexes are needed, the files are not read.
+     *
+     * @param oldIndex Index of the previous version of the feed
+     * @param newIndex Index of the current version of the feed
+     * @param listener {@link FeedDiffListener} to report differences to
+     * @return {@link Summary} of the differences
+     */
+    public Summary diff(LocationIndex oldIndex, LocationIndex newIndex, FeedDiffListener listener)
+    {
+        if (!oldIndex.hasHashes() || !oldIndex.hasKeys() || !newIndex.hasHashes() || !newIndex.hasKeys())
+        {
+            throw new IllegalArgumentException("Both indexes must hold record hashes and keys");
+        }
+
+        Summary summary = new Summary();
+
+        // Map the old keys to the ordinal of their first unmatched record, later records with the same key wait in
+        // document order
+        Map<String, Integer> oldOrdinals = new HashMap<>(Math.max(16, oldIndex.size() * 4 / 3));
+        Map<String, Deque<Integer>> repeatedOrdinals = new HashMap<>();
+        for (int i = 0; i < oldIndex.size(); i++)
+        {
+            String key = oldIndex.getKey(i);
+            if (key == null)
+            {
+                summary.unkeyed++;
+            }
+            else if (oldOrdinals.putIfAbsent(key, i) != null)
+            {
+                repeatedOrdinals.computeIfAbsent(key, k -> new ArrayDeque<>()).add(i);
+            }
+        }
+
+        BitSet matched = new BitSet(oldIndex.size());
+
+        for (int i = 0; i < newIndex.size(); i++)
+        {
+            String key = newIndex.getKey(i);
+            if (key == null)
+            {
+                summary.unkeyed++;
+                continue;
+            }
+
+            Integer oldOrdinal = oldOrdinals.remove(key);
+            if (oldOrdinal == null)
+            {
+                summary.added++;
+                listener.added(key, newIndex.getLocation(i));
+                continue;
+            }
+
+            matched.set(oldOrdinal);
+
+            // The next record with this key pairs with the next one in the new feed
+            Deque<Integer> repeated = repeatedOrdinals.get(key);
+            if (repeated != null)
+            {
+                oldOrdinals.put(key, repeated.poll());
+                if (repeated.isEmpty())
+                {
+                    repeatedOrdinals.remove(key);
+                }
+            }
+
+            if (oldIndex.getLength(oldOrdinal) == newIndex.getLength(i)
+                    && oldIndex.getHash(oldOrdinal) == newIndex.getHash(i))
+            {
+                summary.unchanged++;
+            }
+            else
+            {
+                summary.changed++;
+                listener.changed(key, oldIndex.getLocation(oldOrdinal), newIndex.getLocation(i));
+            }
+        }
+
+        // Whatever was not matched has gone, including repeated keys
+        for (int i = 0; i < oldIndex.size(); i++)
+        {
+            String key = oldIndex.getKey(i);
+            if (key != null && !matched.get(i))
+            {
+                summary.removed++;
+                listener.removed(key, oldIndex.getLocation(i));
+            }
+        }
+
+        return summary;
+    }
+
+    /**
+     * Counts of the records in each category
+     */
+    public static class Summary
+    {
+        private long added;
+        private long removed;
+        private long changed;
+        private long unchanged;
+        private long unkeyed;
+
+        Summary()
+        {
+        }
+
+        public long getAdded()
+        {
+            return added;
+        }
+
+        public long getRemoved()
+        {
+            return removed;
+        }
+
+        public long getChanged()
+        {
+            return changed;
+        }
+
+        public long getUnchanged()
+        {
+            return unchanged;
+        }
+
+        /**
+         * @return Number of records in either file that had no key
+         */
+        public long getUnkeyed()
+        {
+            return unkeyed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Summary{" +
+                   "added=" + added +
+                   ", removed=" + removed +
+                   ", changed=" + changed +
+                   ", unchanged=" + unchanged +
+                   ", unkeyed=" + unkeyed +
+                   '}';
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.diff;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * Receives the differences found by {@link FeedDiff}. Locations in the old file are reported for removed records,
+ * locations in the new file for added ones and both for changed ones, so the records can be fetched with the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}.
+ * <p>
+ * All methods do nothing by default, override the ones of interest.
+ */
+public interface FeedDiffListener
+{
+    /**
+     * @param key         Key of the record
+     * @param newLocation Location of the record in the new file
+     */
+    default void added(String key, XMLByteLocation newLocation)
+    {
+    }
+
+    /**
+     * @param key         Key of the record
+     * @param oldLocation Location of the record in the old file
+     */
+    default void removed(String key, XMLByteLocation oldLocation)
+    {
+    }
+
+    /**
+     * @param key         Key of the record
+     * @param oldLocation Location of the record in the old file
+     * @param newLocation Location of the record in the new file
+     */
+    default void changed(String key, XMLByteLocation oldLocation, XMLByteLocation newLocation)
+    {
+    }
+}
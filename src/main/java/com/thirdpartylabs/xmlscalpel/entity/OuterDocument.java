@@ -15,9 +15,14 @@
 
 package com.thirdpartylabs.xmlscalpel.entity;
 
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
 import org.w3c.dom.*;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -28,11 +33,17 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 
 /**
  * Wrapper for the empty document read by the
@@ -45,10 +56,15 @@ import java.nio.charset.StandardCharsets;
  */
 public class OuterDocument
 {
+    private static final String REPLACEMENT_TOKEN = "<!--replace-->";
+
     private Document emptyDocument;
     private String characterEncoding = StandardCharsets.UTF_8.toString();
     private String emptyDocumentString;
 
+    // Encoded header and footer, cached with the document string
+    private volatile byte[][] wrapperBytes;
+
     /**
      * @param emptyDocument {@link org.w3c.dom.Document Document} containing an a document node
      */
@@ -84,6 +100,7 @@ public class OuterDocument
     {
         this.emptyDocument = emptyDocument;
         emptyDocumentString = null;
+        wrapperBytes = null;
     }
 
     /**
@@ -103,6 +120,143 @@ public class OuterDocument
      * @throws SAXException
      */
     public DocumentFragment getDocumentFragmentForXmlString(String xml) throws ParserConfigurationException, TransformerException, IOException, SAXException
+    {
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        long hydrationStart = metricsSink.isEnabled() ? System.nanoTime() : 0;
+
+        // Replace the token with the provided XML string
+        String newDocumentString = getEmptyDocumentString().replace(REPLACEMENT_TOKEN, xml);
+
+        // Set up everything we need to parse the XML, make sure we're namespace aware
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+
+        DocumentBuilder builder = dbf.newDocumentBuilder();
+        Document parsed = builder.parse(new InputSource(new StringReader(newDocumentString)));
+
+        // Create a DocumentFragment wrapper for our output
+        DocumentFragment fragment = parsed.createDocumentFragment();
+
+        // There is probably whitespace to go through before we get to our element...
+        NodeList children = parsed.getDocumentElement().getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node currNode = children.item(i);
+
+            // When we hit our element, se it in the output DocumentFragment and bail out
+            if (currNode.getNodeType() == Node.ELEMENT_NODE)
+            {
+                fragment.appendChild(currNode);
+                break;
+            }
+        }
+
+        if (metricsSink.isEnabled())
+        {
+            metricsSink.fragmentHydrated(xml.length(), System.nanoTime() - hydrationStart);
+        }
+
+        // Send it
+        return fragment;
+    }
+
+    /**
+     * Returns a {@link javax.xml.transform.sax.SAXSource SAXSource} that parses the raw bytes of a record retrieved
+     * from the original file with the namespaces from the original outer document bound, without building a DOM.
+     * Use it to stream a record into a {@link javax.xml.transform.Transformer Transformer} or a
+     * {@link javax.xml.validation.Validator Validator}.
+     * <p>
+     * The record is parsed inside the document element, but the events for the document element and the whitespace
+     * around the record are filtered out, so consumers see the record as the root element. Line and column numbers
+     * reported by the parser count from the start of the {@link #getDocumentHeader() header}.
+     *
+     * @param record Bytes of the record, in the {@link #getCharacterEncoding() character encoding} of the file
+     * @param parser Namespace aware parser to parse with, a parser can be reused but not shared between threads
+     * @return A new {@link javax.xml.transform.sax.SAXSource SAXSource} for the record
+     * @throws TransformerException
+     */
+    public SAXSource getSourceForRecordBytes(byte[] record, XMLReader parser) throws TransformerException
+    {
+        byte[][] wrapper = wrapperBytes;
+        if (wrapper == null)
+        {
+            Charset charset = Charset.forName(characterEncoding);
+            wrapper = new byte[][]{getDocumentHeader().getBytes(charset), getDocumentFooter().getBytes(charset)};
+            wrapperBytes = wrapper;
+        }
+
+        InputSource input = new InputSource(new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(wrapper[0]),
+                new ByteArrayInputStream(record),
+                new ByteArrayInputStream(wrapper[1])))));
+
+        DocumentElementFilter filter = new DocumentElementFilter();
+        filter.setParent(parser);
+
+        return new SAXSource(filter, input);
+    }
+
+    /**
+     * The character encoding of the original file, used when serializing the outer document
+     * @return Character encoding name
+     */
+    public String getCharacterEncoding()
+    {
+        return characterEncoding;
+    }
+
+    /**
+     * Everything in the serialized outer document that precedes the content of the document element: the XML
+     * declaration and the start tag of the document element, including namespace declarations and attributes.
+     * <p>
+     * Writing the header, any number of nodes retrieved from the original file, and the
+     * {@link #getDocumentFooter() footer} produces a well-formed document with the same bindings as the original.
+     *
+     * @return XML declaration and document element start tag
+     * @throws TransformerException
+     */
+    public String getDocumentHeader() throws TransformerException
+    {
+        String documentString = getEmptyDocumentString();
+        return documentString.substring(0, documentString.indexOf(REPLACEMENT_TOKEN));
+    }
+
+    /**
+     * Everything in the serialized outer document that follows the content of the document element
+     *
+     * @return Document element end tag
+     * @throws TransformerException
+     * @see #getDocumentHeader()
+     */
+    public String getDocumentFooter() throws TransformerException
+    {
+        String documentString = getEmptyDocumentString();
+        return documentString.substring(documentString.indexOf(REPLACEMENT_TOKEN) + REPLACEMENT_TOKEN.length());
+    }
+
+    /**
+     * Whitespace to write between nodes placed between the {@link #getDocumentHeader() header} and the
+     * {@link #getDocumentFooter() footer}, so they are separated the same way the first node is separated from the
+     * document element start tag
+     *
+     * @return Whitespace that follows the document element start tag in the header
+     * @throws TransformerException
+     */
+    public String getRecordSeparator() throws TransformerException
+    {
+        String header = getDocumentHeader();
+        return header.substring(header.lastIndexOf('>') + 1);
+    }
+
+    /**
+     * Serialize the empty document with a replacement token inside the document element, the result is cached
+     * until the bare document is replaced
+     *
+     * @return Serialized document with a replacement token as the only content of the document element
+     * @throws TransformerException
+     */
+    private String getEmptyDocumentString() throws TransformerException
     {
         // If we have not created a string representation of the document yet, do it now
         if (emptyDocumentString == null)
@@ -124,44 +278,81 @@ public class OuterDocument
 
             Source input = new DOMSource(emptyDocument);
 
-            transformer.transform(input, output);
+            try
+            {
+                transformer.transform(input, output);
+            }
+            finally
+            {
+                // Remember to remove the comment we added
+                emptyDocument.getDocumentElement().removeChild(replacementToken);
+            }
 
             writer.flush();
 
             emptyDocumentString = writer.toString();
-
-            // Remember to remove the comment we added
-            emptyDocument.getDocumentElement().removeChild(replacementToken);
         }
 
-        // Replace the token with the provided XML string
-        String newDocumentString = emptyDocumentString.replace("<!--replace-->", xml);
+        return emptyDocumentString;
+    }
 
-        // Set up everything we need to parse the XML, make sure we're namespace aware
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
+    /**
+     * Drops the document element and the whitespace around the record, keeping its namespace declarations
+     */
+    private static class DocumentElementFilter extends XMLFilterImpl
+    {
+        private int depth = 0;
 
-        DocumentBuilder builder = dbf.newDocumentBuilder();
-        Document parsed = builder.parse(new InputSource(new StringReader(newDocumentString)));
+        @Override
+        public void startDocument() throws SAXException
+        {
+            depth = 0;
+            super.startDocument();
+        }
 
-        // Create a DocumentFragment wrapper for our output
-        DocumentFragment fragment = parsed.createDocumentFragment();
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException
+        {
+            if (depth++ > 0)
+            {
+                super.startElement(uri, localName, qName, atts);
+            }
+        }
 
-        // There is probably whitespace to go through before we get to our element...
-        NodeList children = parsed.getDocumentElement().getChildNodes();
-        for (int i = 0; i < children.getLength(); i++)
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException
         {
-            Node currNode = children.item(i);
+            if (--depth > 0)
+            {
+                super.endElement(uri, localName, qName);
+            }
+        }
 
-            // When we hit our element, se it in the output DocumentFragment and bail out
-            if (currNode.getNodeType() == Node.ELEMENT_NODE)
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException
+        {
+            if (depth > 1)
             {
-                fragment.appendChild(currNode);
-                break;
+                super.characters(ch, start, length);
             }
         }
 
-        // Send it
-        return fragment;
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException
+        {
+            if (depth > 1)
+            {
+                super.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException
+        {
+            if (depth > 1)
+            {
+                super.processingInstruction(target, data);
+            }
+        }
     }
 }
@@ -0,0 +1,260 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Locations of records at several nested levels of a document, with each record linked to the record that contains
+ * it on the level above. For example purchase orders on one level and the items of each order on the next.
+ * <p>
+ * Each level is a {@link LocationTable} of its own, in document order. Records on every level but the first also
+ * hold the ordinal of their parent. Since the children of a parent are adjacent on their level, the children of any
+ * record are a range of ordinals that is found by binary search, and can be paged through without reading the
+ * parent.
+ * <pre>
+ * {@code
+ * // The third page of ten items of order 42
+ * LocationCursor items = index.children(0, 42, 20, 30);
+ * }
+ * </pre>
+ * <p>
+ * Indexes are built in a single pass by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}. Instances are not
+ * thread-safe while being populated.
+ */
+public class HierarchicalIndex
+{
+    private final List<String> paths;
+    private final LocationTable[] levels;
+
+    // Parent ordinals for each level, the first level has none
+    private final int[][] parents;
+
+    /**
+     * @param levelPaths Normalized paths of the levels, outermost first. Each path must be below the one before it.
+     */
+    public HierarchicalIndex(List<String> levelPaths)
+    {
+        if (levelPaths == null || levelPaths.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one level path is required");
+        }
+
+        for (int i = 1; i < levelPaths.size(); i++)
+        {
+            if (!levelPaths.get(i).startsWith(levelPaths.get(i - 1) + "/"))
+            {
+                throw new IllegalArgumentException(
+                        "Level path " + levelPaths.get(i) + " is not below " + levelPaths.get(i - 1));
+            }
+        }
+
+        paths = Collections.unmodifiableList(new ArrayList<>(levelPaths));
+        levels = new LocationTable[paths.size()];
+        parents = new int[paths.size()][];
+
+        for (int i = 0; i < levels.length; i++)
+        {
+            levels[i] = new LocationTable();
+            parents[i] = i == 0 ? null : new int[1024];
+        }
+    }
+
+    /**
+     * @return Number of levels
+     */
+    public int getLevelCount()
+    {
+        return levels.length;
+    }
+
+    /**
+     * @param level Level number, 0 for the outermost
+     * @return Normalized path of the records on the level
+     */
+    public String getLevelPath(int level)
+    {
+        return paths.get(level);
+    }
+
+    /**
+     * @param level Level number, 0 for the outermost
+     * @return {@link LocationIndex} of the records on the level
+     */
+    public LocationIndex getLevel(int level)
+    {
+        return levels[level];
+    }
+
+    /**
+     * Append a record to a level. Records must be added to each level in document order, and all children of a
+     * parent must be added before the next parent is opened.
+     *
+     * @param level  Level number, 0 for the outermost
+     * @param offset Byte offset of the first byte of the record
+     * @param length Number of bytes in the record
+     * @param parent Ordinal of the parent on the level above, ignored for level 0. The parent itself may not have
+     *               been added yet, as its length is only known once its children have been read.
+     * @return Ordinal of the new record on its level
+     */
+    public int add(int level, long offset, long length, int parent)
+    {
+        LocationTable table = levels[level];
+
+        if (level > 0)
+        {
+            int size = table.size();
+            if (parent < 0 || (size > 0 && parent < parents[level][size - 1]))
+            {
+                throw new IllegalArgumentException("Parent " + parent + " is out of order on level " + level);
+            }
+
+            if (size == parents[level].length)
+            {
+                parents[level] = Arrays.copyOf(parents[level], Math.max(size + (size >> 1), 16));
+            }
+
+            parents[level][size] = parent;
+        }
+
+        return table.add(offset, length);
+    }
+
+    /**
+     * @param level   Level number of the record
+     * @param ordinal Ordinal of the record on its level
+     * @return Ordinal of the parent on the level above, or -1 for records on level 0
+     */
+    public int getParent(int level, int ordinal)
+    {
+        if (level == 0)
+        {
+            return -1;
+        }
+
+        checkOrdinal(level, ordinal);
+
+        return parents[level][ordinal];
+    }
+
+    /**
+     * @param level   Level number of the parent
+     * @param ordinal Ordinal of the parent on its level
+     * @return Ordinal on the level below of the first child, or of where it would be if there are no children
+     */
+    public int getFirstChild(int level, int ordinal)
+    {
+        checkOrdinal(level, ordinal);
+
+        return level + 1 < levels.length ? lowerBound(level + 1, ordinal) : 0;
+    }
+
+    /**
+     * @param level   Level number of the parent
+     * @param ordinal Ordinal of the parent on its level
+     * @return Number of children on the level below
+     */
+    public int getChildCount(int level, int ordinal)
+    {
+        checkOrdinal(level, ordinal);
+
+        if (level + 1 == levels.length)
+        {
+            return 0;
+        }
+
+        return lowerBound(level + 1, ordinal + 1) - lowerBound(level + 1, ordinal);
+    }
+
+    /**
+     * Iterate a range of the children of a record, the ordinals reported by the cursor are on the level below
+     *
+     * @param level   Level number of the parent
+     * @param ordinal Ordinal of the parent on its level
+     * @param from    Position of the first child to visit among the children of the parent
+     * @param to      Position after the last child to visit, clamped to the number of children
+     * @return {@link LocationCursor} positioned before the first child in the range
+     */
+    public LocationCursor children(int level, int ordinal, int from, int to)
+    {
+        int first = getFirstChild(level, ordinal);
+        int count = getChildCount(level, ordinal);
+
+        if (from < 0 || from > to)
+        {
+            throw new IndexOutOfBoundsException("Range " + from + " to " + to);
+        }
+
+        int start = first + Math.min(from, count);
+        int end = first + Math.min(to, count);
+
+        return level + 1 < levels.length ? levels[level + 1].cursor(start, end) : levels[level].cursor(0, 0);
+    }
+
+    /**
+     * Release the unused capacity of every level
+     */
+    public void trimToSize()
+    {
+        for (int i = 0; i < levels.length; i++)
+        {
+            levels[i].trimToSize();
+
+            if (parents[i] != null)
+            {
+                parents[i] = Arrays.copyOf(parents[i], levels[i].size());
+            }
+        }
+    }
+
+    /**
+     * Parent ordinals are in ascending order on each level, find the first position holding at least the target
+     */
+    private int lowerBound(int level, int target)
+    {
+        int[] column = parents[level];
+        int low = 0;
+        int high = levels[level].size();
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (column[mid] < target)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private void checkOrdinal(int level, int ordinal)
+    {
+        int size = levels[level].size();
+        if (ordinal < 0 || ordinal >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + ordinal + " out of bounds for size " + size
+                    + " on level " + level);
+        }
+    }
+}
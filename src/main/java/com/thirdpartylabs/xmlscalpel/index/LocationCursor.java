@@ -0,0 +1,81 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * Flyweight view over the records of a {@link LocationIndex}. A single cursor moves through the records in order,
+ * exposing the coordinates of the current record without creating an object for it.
+ * <pre>
+ * {@code
+ * LocationCursor cursor = table.cursor();
+ * while (cursor.next())
+ * {
+ *     channel.transferTo(cursor.getOffset(), cursor.getLength(), target);
+ * }
+ * }
+ * </pre>
+ */
+public interface LocationCursor
+{
+    /**
+     * Advance to the next record
+     *
+     * @return false if there are no more records
+     */
+    boolean next();
+
+    /**
+     * @return Ordinal of the current record
+     */
+    int getIndex();
+
+    /**
+     * @return Byte offset of the current record
+     */
+    long getOffset();
+
+    /**
+     * @return Number of bytes in the current record
+     */
+    long getLength();
+
+    /**
+     * @return Content hash of the current record
+     * @throws UnsupportedOperationException If the index does not hold hashes
+     */
+    default long getHash()
+    {
+        throw new UnsupportedOperationException("Index does not hold record hashes");
+    }
+
+    /**
+     * @return Key of the current record, or null if it has none or the index does not hold keys
+     */
+    default String getKey()
+    {
+        return null;
+    }
+
+    /**
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} for the current
+     * record
+     */
+    default XMLByteLocation toLocation()
+    {
+        return new XMLByteLocation(getIndex(), getOffset(), getLength());
+    }
+}
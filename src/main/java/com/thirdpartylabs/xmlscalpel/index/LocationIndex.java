@@ -0,0 +1,155 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * Read access to the locations of the records extracted from a file, addressed by ordinal.
+ * <p>
+ * Implementations store the coordinates in primitive columns rather than as
+ * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects, so millions of records can
+ * be held without a per-record object. Use a {@link LocationCursor} to iterate without allocating.
+ */
+public interface LocationIndex
+{
+    /**
+     * @return Number of records in the index
+     */
+    int size();
+
+    /**
+     * @param index Ordinal of the record
+     * @return Byte offset of the first byte of the record
+     * @throws IndexOutOfBoundsException If there is no record with the ordinal
+     */
+    long getOffset(int index);
+
+    /**
+     * @param index Ordinal of the record
+     * @return Number of bytes in the record
+     * @throws IndexOutOfBoundsException If there is no record with the ordinal
+     */
+    long getLength(int index);
+
+    /**
+     * @return true if the index holds a content hash for every record
+     */
+    default boolean hasHashes()
+    {
+        return false;
+    }
+
+    /**
+     * @param index Ordinal of the record
+     * @return {@link XXHash64} hash of the raw bytes of the record
+     * @throws UnsupportedOperationException If the index does not hold hashes
+     * @throws IndexOutOfBoundsException     If there is no record with the ordinal
+     */
+    default long getHash(int index)
+    {
+        throw new UnsupportedOperationException("Index does not hold record hashes");
+    }
+
+    /**
+     * @return true if the index holds a key for every record
+     */
+    default boolean hasKeys()
+    {
+        return false;
+    }
+
+    /**
+     * @param index Ordinal of the record
+     * @return Key captured from the record, or null if the record had none or the index does not hold keys
+     * @throws IndexOutOfBoundsException If there is no record with the ordinal
+     */
+    default String getKey(int index)
+    {
+        return null;
+    }
+
+    /**
+     * Create an {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} for a single record,
+     * for use with the {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
+     *
+     * @param index Ordinal of the record
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}
+     * @throws IndexOutOfBoundsException If there is no record with the ordinal
+     */
+    default XMLByteLocation getLocation(int index)
+    {
+        return new XMLByteLocation(index, getOffset(index), getLength(index));
+    }
+
+    /**
+     * @return A {@link LocationCursor} positioned before the first record
+     */
+    LocationCursor cursor();
+
+    /**
+     * @param from Ordinal of the first record to visit
+     * @param to   Ordinal after the last record to visit
+     * @return A {@link LocationCursor} over a range of the records, positioned before the first of them
+     * @throws IndexOutOfBoundsException If the range is not within the index
+     */
+    default LocationCursor cursor(int from, int to)
+    {
+        return new RangeCursor(this, from, to);
+    }
+
+    /**
+     * Find the record that contains a byte offset, for example the position of an error reported by a validator
+     * that read the whole file.
+     * <p>
+     * Binary search over the record offsets, so it takes O(log n) lookups and works against any implementation,
+     * including a {@link MappedLocationIndex} that is never loaded onto the heap. Records must be in document order
+     * and must not overlap, as they are when produced by the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}.
+     *
+     * @param byteOffset Byte offset in the indexed file
+     * @return Ordinal of the record containing the offset, or -1 if the offset is outside of every record
+     */
+    default int findContaining(long byteOffset)
+    {
+        // Find the last record that starts at or before the offset
+        int low = 0;
+        int high = size() - 1;
+        int candidate = -1;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (getOffset(mid) <= byteOffset)
+            {
+                candidate = mid;
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+
+        // The offset may fall between records
+        if (candidate < 0 || byteOffset >= getOffset(candidate) + getLength(candidate))
+        {
+            return -1;
+        }
+
+        return candidate;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Growable, columnar store of record locations. Offsets and lengths are held in parallel primitive arrays indexed by
+ * ordinal, which costs 12 bytes per record against roughly 40 for an
+ * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} plus its list slot.
+ * <p>
+ * Records must be no longer than {@link Integer#MAX_VALUE} bytes. Call {@link #pack()} once the table is complete
+ * to delta encode it into a {@link PackedLocationTable} that typically needs two or three bytes per record.
+ * <p>
+ * A table can optionally hold a content hash and a key for each record, in two more columns. Both are filled in by
+ * the {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} when it is asked to hash
+ * records or capture keys while indexing.
+ * <p>
+ * Instances are not thread-safe while being populated.
+ */
+public class LocationTable implements LocationIndex
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // Some VMs reserve header words in arrays
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private long[] offsets;
+    private int[] lengths;
+
+    // Optional columns, null when not held
+    private long[] hashes;
+    private String[] keys;
+
+    private int size = 0;
+
+    public LocationTable()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity Number of records to allocate space for up front
+     */
+    public LocationTable(int initialCapacity)
+    {
+        this(initialCapacity, false, false);
+    }
+
+    /**
+     * @param initialCapacity Number of records to allocate space for up front
+     * @param withHashes      Hold a content hash for each record
+     * @param withKeys        Hold a key for each record
+     */
+    public LocationTable(int initialCapacity, boolean withHashes, boolean withKeys)
+    {
+        if (initialCapacity < 0)
+        {
+            throw new IllegalArgumentException("initialCapacity must not be negative");
+        }
+
+        offsets = new long[initialCapacity];
+        lengths = new int[initialCapacity];
+        hashes = withHashes ? new long[initialCapacity] : null;
+        keys = withKeys ? new String[initialCapacity] : null;
+    }
+
+    /**
+     * Copy the locations from a collection of
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects, in iteration order
+     *
+     * @param locations Locations to copy
+     * @return A new table
+     */
+    public static LocationTable of(Collection<XMLByteLocation> locations)
+    {
+        LocationTable table = new LocationTable(locations.size());
+        for (XMLByteLocation location : locations)
+        {
+            table.add(location.getOffset(), location.getLength());
+        }
+
+        return table;
+    }
+
+    /**
+     * Append a record
+     *
+     * @param offset Byte offset of the first byte of the record
+     * @param length Number of bytes in the record
+     * @return Ordinal of the new record
+     */
+    public int add(long offset, long length)
+    {
+        return add(offset, length, 0, null);
+    }
+
+    /**
+     * Append a record with its hash and key, each is ignored if the table does not hold that column
+     *
+     * @param offset Byte offset of the first byte of the record
+     * @param length Number of bytes in the record
+     * @param hash   {@link XXHash64} hash of the raw bytes of the record
+     * @param key    Key of the record, may be null
+     * @return Ordinal of the new record
+     */
+    public int add(long offset, long length, long hash, String key)
+    {
+        if (offset < 0 || length < 0 || length > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Invalid record location, offset " + offset + " length " + length);
+        }
+
+        if (size == offsets.length)
+        {
+            grow();
+        }
+
+        offsets[size] = offset;
+        lengths[size] = (int) length;
+
+        if (hashes != null)
+        {
+            hashes[size] = hash;
+        }
+
+        if (keys != null)
+        {
+            keys[size] = key;
+        }
+
+        return size++;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long getOffset(int index)
+    {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    @Override
+    public long getLength(int index)
+    {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    @Override
+    public boolean hasHashes()
+    {
+        return hashes != null;
+    }
+
+    @Override
+    public long getHash(int index)
+    {
+        checkIndex(index);
+        if (hashes == null)
+        {
+            throw new UnsupportedOperationException("Table does not hold record hashes");
+        }
+
+        return hashes[index];
+    }
+
+    @Override
+    public boolean hasKeys()
+    {
+        return keys != null;
+    }
+
+    @Override
+    public String getKey(int index)
+    {
+        checkIndex(index);
+        return keys == null ? null : keys[index];
+    }
+
+    @Override
+    public LocationCursor cursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * Release the unused capacity
+     */
+    public void trimToSize()
+    {
+        if (size < offsets.length)
+        {
+            resize(size);
+        }
+    }
+
+    /**
+     * Delta encode the table into a compact, immutable {@link PackedLocationTable}
+     *
+     * @return A new {@link PackedLocationTable} with the same records
+     */
+    public PackedLocationTable pack()
+    {
+        return new PackedLocationTable(this);
+    }
+
+    private void grow()
+    {
+        if (offsets.length == MAX_CAPACITY)
+        {
+            throw new IllegalStateException("LocationTable is full");
+        }
+
+        // Grow by half
+        long capacity = Math.max((long) offsets.length + (offsets.length >> 1), DEFAULT_CAPACITY);
+        capacity = Math.min(capacity, MAX_CAPACITY);
+
+        resize((int) capacity);
+    }
+
+    private void resize(int capacity)
+    {
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+
+        if (hashes != null)
+        {
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+
+        if (keys != null)
+        {
+            keys = Arrays.copyOf(keys, capacity);
+        }
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private class Cursor implements LocationCursor
+    {
+        private int index = -1;
+
+        @Override
+        public boolean next()
+        {
+            if (index + 1 >= size)
+            {
+                index = size;
+                return false;
+            }
+
+            index++;
+            return true;
+        }
+
+        @Override
+        public int getIndex()
+        {
+            return index;
+        }
+
+        @Override
+        public long getOffset()
+        {
+            return offsets[index];
+        }
+
+        @Override
+        public long getLength()
+        {
+            return lengths[index];
+        }
+
+        @Override
+        public long getHash()
+        {
+            return LocationTable.this.getHash(index);
+        }
+
+        @Override
+        public String getKey()
+        {
+            return keys == null ? null : keys[index];
+        }
+    }
+}
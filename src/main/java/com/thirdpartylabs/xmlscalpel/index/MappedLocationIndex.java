@@ -0,0 +1,299 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only {@link LocationIndex} backed by a memory-mapped index file written by
+ * {@link #write(LocationIndex, File) write}.
+ * <p>
+ * The records stay in the page cache rather than on the heap, so an index of hundreds of millions of records can be
+ * opened instantly and searched with {@link #findContaining(long) findContaining} at the cost of a few page reads.
+ * <p>
+ * The file is a 16 byte header (magic number, format version, record count and flags) followed by the offset column
+ * as 8 byte values, the length column as 4 byte values and, if the index holds hashes, the hash column as 8 byte
+ * values, all big-endian. Keys are not persisted. Large files are mapped in several segments, since a single mapping
+ * is limited to 2GB.
+ * <p>
+ * The mapping remains valid until the instance is garbage collected. Instances are thread-safe.
+ */
+public class MappedLocationIndex implements LocationIndex
+{
+    static final int MAGIC = 0x58534C49;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+
+    // Flag set when the hash column is present
+    static final int FLAG_HASHES = 1;
+
+    // Records per mapped segment, keeps each segment of the offset column under 2GB
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final int size;
+    private final ByteBuffer[] offsetSegments;
+    private final ByteBuffer[] lengthSegments;
+    private final ByteBuffer[] hashSegments;
+
+    /**
+     * Map an index file
+     *
+     * @param file Index file written by {@link #write(LocationIndex, File) write}
+     * @throws IOException If the file can not be read or is not an index file
+     */
+    public MappedLocationIndex(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining())
+            {
+                if (channel.read(header, header.position()) < 0)
+                {
+                    throw new IOException(file + " is not a location index file");
+                }
+            }
+            header.flip();
+
+            if (header.getInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a location index file");
+            }
+
+            int version = header.getInt();
+            if (version != VERSION)
+            {
+                throw new IOException(file + " has unsupported location index version " + version);
+            }
+
+            size = header.getInt();
+            int flags = header.getInt();
+            boolean withHashes = (flags & FLAG_HASHES) != 0;
+
+            if (size < 0 || channel.size() != HEADER_LENGTH + size * (withHashes ? 20L : 12L))
+            {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            ByteBuffer[][] columns = mapColumns(channel, HEADER_LENGTH, size, withHashes);
+            offsetSegments = columns[0];
+            lengthSegments = columns[1];
+            hashSegments = columns[2];
+        }
+    }
+
+    /**
+     * Map columns written by {@link #writeColumns(LocationIndex, DataOutputStream) writeColumns} at a position in
+     * another file
+     *
+     * @param channel    Channel of the file holding the columns
+     * @param position   Position of the first byte of the offset column
+     * @param size       Number of records
+     * @param withHashes The hash column is present
+     * @throws IOException
+     */
+    MappedLocationIndex(FileChannel channel, long position, int size, boolean withHashes) throws IOException
+    {
+        this.size = size;
+
+        ByteBuffer[][] columns = mapColumns(channel, position, size, withHashes);
+        offsetSegments = columns[0];
+        lengthSegments = columns[1];
+        hashSegments = columns[2];
+    }
+
+    /**
+     * @return The offset, length and hash segments, the hash segments are null if there are no hashes
+     */
+    private static ByteBuffer[][] mapColumns(FileChannel channel, long position, int size, boolean withHashes)
+            throws IOException
+    {
+        int segmentCount = (int) (((long) size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        ByteBuffer[] offsets = new ByteBuffer[segmentCount];
+        ByteBuffer[] lengths = new ByteBuffer[segmentCount];
+        ByteBuffer[] hashes = withHashes ? new ByteBuffer[segmentCount] : null;
+
+        long lengthColumn = position + size * 8L;
+        long hashColumn = lengthColumn + size * 4L;
+        for (int i = 0; i < segmentCount; i++)
+        {
+            long first = (long) i << SEGMENT_SHIFT;
+            long records = Math.min(size - first, 1L << SEGMENT_SHIFT);
+
+            offsets[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + first * 8, records * 8);
+            lengths[i] = channel.map(FileChannel.MapMode.READ_ONLY, lengthColumn + first * 4, records * 4);
+
+            if (withHashes)
+            {
+                hashes[i] = channel.map(FileChannel.MapMode.READ_ONLY, hashColumn + first * 8, records * 8);
+            }
+        }
+
+        return new ByteBuffer[][]{offsets, lengths, hashes};
+    }
+
+    /**
+     * Write an index to a file that can be opened with
+     * {@link #MappedLocationIndex(File) MappedLocationIndex}
+     *
+     * @param index {@link LocationIndex} to write
+     * @param file  File to write, it is replaced if it exists
+     * @throws IOException
+     */
+    public static void write(LocationIndex index, File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            out.writeInt(index.hasHashes() ? FLAG_HASHES : 0);
+
+            writeColumns(index, out);
+        }
+    }
+
+    /**
+     * Write the offset, length and, if the index holds them, hash columns of an index
+     *
+     * @param index {@link LocationIndex} to write
+     * @param out   Stream to write to
+     * @throws IOException
+     */
+    static void writeColumns(LocationIndex index, DataOutputStream out) throws IOException
+    {
+        // One pass per column keeps the file columnar
+        LocationCursor cursor = index.cursor();
+        while (cursor.next())
+        {
+            out.writeLong(cursor.getOffset());
+        }
+
+        cursor = index.cursor();
+        while (cursor.next())
+        {
+            out.writeInt((int) cursor.getLength());
+        }
+
+        if (index.hasHashes())
+        {
+            cursor = index.cursor();
+            while (cursor.next())
+            {
+                out.writeLong(cursor.getHash());
+            }
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long getOffset(int index)
+    {
+        checkIndex(index);
+        return offsetSegments[index >>> SEGMENT_SHIFT].getLong((index & SEGMENT_MASK) << 3);
+    }
+
+    @Override
+    public long getLength(int index)
+    {
+        checkIndex(index);
+        return lengthSegments[index >>> SEGMENT_SHIFT].getInt((index & SEGMENT_MASK) << 2);
+    }
+
+    @Override
+    public boolean hasHashes()
+    {
+        return hashSegments != null;
+    }
+
+    @Override
+    public long getHash(int index)
+    {
+        checkIndex(index);
+        if (hashSegments == null)
+        {
+            throw new UnsupportedOperationException("Index file does not hold record hashes");
+        }
+
+        return hashSegments[index >>> SEGMENT_SHIFT].getLong((index & SEGMENT_MASK) << 3);
+    }
+
+    @Override
+    public LocationCursor cursor()
+    {
+        return new LocationCursor()
+        {
+            private int index = -1;
+
+            @Override
+            public boolean next()
+            {
+                if (index + 1 >= size)
+                {
+                    index = size;
+                    return false;
+                }
+
+                index++;
+                return true;
+            }
+
+            @Override
+            public int getIndex()
+            {
+                return index;
+            }
+
+            @Override
+            public long getOffset()
+            {
+                return MappedLocationIndex.this.getOffset(index);
+            }
+
+            @Override
+            public long getLength()
+            {
+                return MappedLocationIndex.this.getLength(index);
+            }
+
+            @Override
+            public long getHash()
+            {
+                return MappedLocationIndex.this.getHash(index);
+            }
+        };
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+}
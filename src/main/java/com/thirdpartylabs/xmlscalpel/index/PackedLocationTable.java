@@ -0,0 +1,303 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, delta encoded store of record locations.
+ * <p>
+ * Records are usually laid out back to back, separated by a little whitespace, so each record is stored as the
+ * distance from the end of the previous record to its start, followed by its length, both as variable length
+ * integers. That typically takes two or three bytes per record. Every {@value #BLOCK_SIZE} records the byte position
+ * and the end of the preceding record are kept as a checkpoint, so access by ordinal decodes at most
+ * {@value #BLOCK_SIZE} records regardless of the size of the table. Iterating with a {@link LocationCursor} decodes
+ * each record exactly once.
+ * <p>
+ * Hashes and keys, if the source table holds them, are kept as they are, only the locations are encoded.
+ * <p>
+ * Records need not be in document order, gaps are zigzag encoded so overlapping and out of order records are stored
+ * correctly, if less compactly.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class PackedLocationTable implements LocationIndex
+{
+    static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_SHIFT = 6;
+
+    private final int size;
+
+    // Varint encoded gap and length pairs
+    private final byte[] data;
+
+    // For each block, the position of its first record in data, and the end of the record before it
+    private final int[] blockPositions;
+    private final long[] blockBases;
+
+    // Optional columns copied from the source, null when not held
+    private final long[] hashes;
+    private final String[] keys;
+
+    /**
+     * @param table Records to encode
+     */
+    PackedLocationTable(LocationIndex table)
+    {
+        size = table.size();
+
+        int blockCount = (size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        blockPositions = new int[blockCount];
+        blockBases = new long[blockCount];
+        hashes = table.hasHashes() ? new long[size] : null;
+        keys = table.hasKeys() ? new String[size] : null;
+
+        // Worst case is ten bytes for a gap and five for a length, start smaller and grow
+        byte[] buffer = new byte[Math.max(16, size * 3)];
+        int position = 0;
+        long previousEnd = 0;
+
+        LocationCursor cursor = table.cursor();
+        while (cursor.next())
+        {
+            int index = cursor.getIndex();
+            if ((index & (BLOCK_SIZE - 1)) == 0)
+            {
+                blockPositions[index >>> BLOCK_SHIFT] = position;
+                blockBases[index >>> BLOCK_SHIFT] = previousEnd;
+            }
+
+            if (buffer.length - position < 15)
+            {
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, Integer.MAX_VALUE - 8));
+            }
+
+            long offset = cursor.getOffset();
+            long length = cursor.getLength();
+
+            if (hashes != null)
+            {
+                hashes[index] = cursor.getHash();
+            }
+
+            if (keys != null)
+            {
+                keys[index] = cursor.getKey();
+            }
+
+            position = writeVarLong(buffer, position, zigzag(offset - previousEnd));
+            position = writeVarLong(buffer, position, length);
+
+            previousEnd = offset + length;
+        }
+
+        data = Arrays.copyOf(buffer, position);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long getOffset(int index)
+    {
+        Decoder decoder = seek(index);
+        return decoder.offset;
+    }
+
+    @Override
+    public long getLength(int index)
+    {
+        Decoder decoder = seek(index);
+        return decoder.length;
+    }
+
+    @Override
+    public boolean hasHashes()
+    {
+        return hashes != null;
+    }
+
+    @Override
+    public long getHash(int index)
+    {
+        checkIndex(index);
+        if (hashes == null)
+        {
+            throw new UnsupportedOperationException("Table does not hold record hashes");
+        }
+
+        return hashes[index];
+    }
+
+    @Override
+    public boolean hasKeys()
+    {
+        return keys != null;
+    }
+
+    @Override
+    public String getKey(int index)
+    {
+        checkIndex(index);
+        return keys == null ? null : keys[index];
+    }
+
+    @Override
+    public LocationCursor cursor()
+    {
+        return new Decoder();
+    }
+
+    /**
+     * @return Number of bytes used by the encoded records
+     */
+    public int getEncodedSize()
+    {
+        return data.length;
+    }
+
+    /**
+     * Decode from the checkpoint before a record up to the record itself
+     *
+     * @param index Ordinal of the record
+     * @return {@link Decoder} positioned on the record
+     */
+    private Decoder seek(int index)
+    {
+        checkIndex(index);
+
+        int block = index >>> BLOCK_SHIFT;
+
+        Decoder decoder = new Decoder();
+        decoder.index = (block << BLOCK_SHIFT) - 1;
+        decoder.position = blockPositions[block];
+        decoder.offset = blockBases[block];
+        decoder.length = 0;
+
+        while (decoder.index < index)
+        {
+            decoder.next();
+        }
+
+        return decoder;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarLong(byte[] buffer, int position, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+
+        return position;
+    }
+
+    /**
+     * Sequential decoder, doubles as the cursor implementation
+     */
+    private class Decoder implements LocationCursor
+    {
+        private int index = -1;
+        private int position = 0;
+        private long offset = 0;
+        private long length = 0;
+
+        @Override
+        public boolean next()
+        {
+            if (index + 1 >= size)
+            {
+                index = size;
+                return false;
+            }
+
+            long gap = unzigzag(readVarLong());
+            offset = offset + length + gap;
+            length = readVarLong();
+            index++;
+
+            return true;
+        }
+
+        @Override
+        public int getIndex()
+        {
+            return index;
+        }
+
+        @Override
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        @Override
+        public long getLength()
+        {
+            return length;
+        }
+
+        @Override
+        public long getHash()
+        {
+            return PackedLocationTable.this.getHash(index);
+        }
+
+        @Override
+        public String getKey()
+        {
+            return keys == null ? null : keys[index];
+        }
+
+        private long readVarLong()
+        {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while (b < 0);
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+/**
+ * {@link LocationCursor} over a range of the records of any {@link LocationIndex}, reading through its accessors
+ */
+class RangeCursor implements LocationCursor
+{
+    private final LocationIndex index;
+    private final int to;
+
+    private int current;
+
+    /**
+     * @param index Index to read
+     * @param from  Ordinal of the first record to visit
+     * @param to    Ordinal after the last record to visit
+     */
+    RangeCursor(LocationIndex index, int from, int to)
+    {
+        if (from < 0 || from > to || to > index.size())
+        {
+            throw new IndexOutOfBoundsException("Range " + from + " to " + to + " out of bounds for size "
+                    + index.size());
+        }
+
+        this.index = index;
+        this.to = to;
+        this.current = from - 1;
+    }
+
+    @Override
+    public boolean next()
+    {
+        if (current + 1 >= to)
+        {
+            current = to;
+            return false;
+        }
+
+        current++;
+        return true;
+    }
+
+    @Override
+    public int getIndex()
+    {
+        return current;
+    }
+
+    @Override
+    public long getOffset()
+    {
+        return index.getOffset(current);
+    }
+
+    @Override
+    public long getLength()
+    {
+        return index.getLength(current);
+    }
+
+    @Override
+    public long getHash()
+    {
+        return index.getHash(current);
+    }
+
+    @Override
+    public String getKey()
+    {
+        return index.getKey(current);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Read-only inverted index from the terms in the text of records to the records they occur in, backed by a
+ * memory-mapped file written by a {@link TermIndexWriter}.
+ * <p>
+ * Text is split into terms at every character that is not a letter or a digit, and terms are lower-cased, so
+ * {@code "Saint-Barthélemy 2"} holds the terms {@code saint}, {@code barthélemy} and {@code 2}. Terms longer than
+ * {@link #MAX_TERM_LENGTH} characters are not indexed. Queries are split the same way, and a record matches when it
+ * holds every term of the query.
+ * <p>
+ * The file holds a 32 byte header (magic number, format version, record count, term count, term data length and
+ * postings length), the record locations as {@link MappedLocationIndex} columns, a directory of fixed size entries
+ * for the sorted terms, the term text and the postings, the ordinals of the records each term occurs in as delta
+ * and varint encoded lists. Terms are found by binary search over the directory, so a lookup costs a few page reads
+ * and nothing is loaded onto the heap when the index is opened.
+ * <p>
+ * The mapping remains valid until the instance is garbage collected. Instances are thread-safe.
+ */
+public class TermIndex
+{
+    /**
+     * Longest term that is indexed, in chars
+     */
+    public static final int MAX_TERM_LENGTH = 64;
+
+    static final int MAGIC = 0x58535449;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 32;
+    static final int DIRECTORY_ENTRY_LENGTH = 16;
+
+    // Postings are mapped in segments of this many bytes, no list crosses a segment boundary
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final int termCount;
+    private final long termDataLength;
+    private final MappedLocationIndex locations;
+    private final ByteBuffer directory;
+    private final ByteBuffer termData;
+    private final ByteBuffer[] postingsSegments;
+
+    /**
+     * Map an index file
+     *
+     * @param file Index file written by {@link TermIndexWriter#write(File) TermIndexWriter}
+     * @throws IOException If the file can not be read or is not a term index file
+     */
+    public TermIndex(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining())
+            {
+                if (channel.read(header, header.position()) < 0)
+                {
+                    throw new IOException(file + " is not a term index file");
+                }
+            }
+            header.flip();
+
+            if (header.getInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a term index file");
+            }
+
+            int version = header.getInt();
+            if (version != VERSION)
+            {
+                throw new IOException(file + " has unsupported term index version " + version);
+            }
+
+            int size = header.getInt();
+            termCount = header.getInt();
+            termDataLength = header.getLong();
+            long postingsLength = header.getLong();
+
+            long directoryPosition = HEADER_LENGTH + size * 12L;
+            long termDataPosition = directoryPosition + (long) termCount * DIRECTORY_ENTRY_LENGTH;
+            long postingsPosition = termDataPosition + termDataLength;
+
+            if (size < 0 || termCount < 0 || termDataLength < 0 || termDataLength > Integer.MAX_VALUE
+                    || postingsLength < 0 || channel.size() != postingsPosition + postingsLength)
+            {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            locations = new MappedLocationIndex(channel, HEADER_LENGTH, size, false);
+            directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryPosition,
+                    (long) termCount * DIRECTORY_ENTRY_LENGTH);
+            termData = channel.map(FileChannel.MapMode.READ_ONLY, termDataPosition, termDataLength);
+
+            int segmentCount = (int) ((postingsLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            postingsSegments = new ByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++)
+            {
+                long start = (long) i * SEGMENT_SIZE;
+                postingsSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, postingsPosition + start,
+                        Math.min(SEGMENT_SIZE, postingsLength - start));
+            }
+        }
+    }
+
+    /**
+     * @return Number of records in the index
+     */
+    public int size()
+    {
+        return locations.size();
+    }
+
+    /**
+     * @return Number of distinct terms in the index
+     */
+    public int getTermCount()
+    {
+        return termCount;
+    }
+
+    /**
+     * @return The locations of the records, addressed by the ordinals the queries return
+     */
+    public LocationIndex getLocations()
+    {
+        return locations;
+    }
+
+    /**
+     * @param term A term, it is lower-cased
+     * @return Number of records the term occurs in
+     */
+    public int getDocumentFrequency(String term)
+    {
+        int entry = lookup(term.toLowerCase(Locale.ROOT));
+        return (entry < 0) ? 0 : directory.getInt(entry * DIRECTORY_ENTRY_LENGTH + 4);
+    }
+
+    /**
+     * Find the records that hold every term of a query
+     *
+     * @param query Text to split into terms
+     * @return Ordinals of the matching records in document order, empty if the query holds no terms
+     */
+    public int[] findOrdinals(String query)
+    {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        tokenize(query, queryTerms::add);
+
+        if (queryTerms.isEmpty())
+        {
+            return new int[0];
+        }
+
+        // Start with the rarest term, every other list can only narrow it down
+        List<Integer> entries = new ArrayList<>();
+        for (String term : queryTerms)
+        {
+            int entry = lookup(term);
+            if (entry < 0)
+            {
+                return new int[0];
+            }
+
+            entries.add(entry);
+        }
+        entries.sort((a, b) -> Integer.compare(directory.getInt(a * DIRECTORY_ENTRY_LENGTH + 4),
+                directory.getInt(b * DIRECTORY_ENTRY_LENGTH + 4)));
+
+        int[] result = decode(entries.get(0));
+        for (int i = 1; i < entries.size() && result.length > 0; i++)
+        {
+            result = intersect(result, decode(entries.get(i)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the records that hold every term of a query, as locations that can be read with the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
+     *
+     * @param query Text to split into terms
+     * @return {@link java.util.List List} of the locations of the matching records in document order
+     */
+    public List<XMLByteLocation> find(String query)
+    {
+        int[] ordinals = findOrdinals(query);
+        if (ordinals.length == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        List<XMLByteLocation> result = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals)
+        {
+            result.add(locations.getLocation(ordinal));
+        }
+
+        return result;
+    }
+
+    /**
+     * Split text into lower-cased terms
+     *
+     * @param text     Text to split
+     * @param consumer Receives each term, in order, including repeats
+     */
+    static void tokenize(CharSequence text, Consumer<String> consumer)
+    {
+        int length = text.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; )
+        {
+            int codePoint = (i < length) ? Character.codePointAt(text, i) : ' ';
+
+            if (Character.isLetterOrDigit(codePoint))
+            {
+                if (start < 0)
+                {
+                    start = i;
+                }
+            }
+            else if (start >= 0)
+            {
+                if (i - start <= MAX_TERM_LENGTH)
+                {
+                    consumer.accept(text.subSequence(start, i).toString().toLowerCase(Locale.ROOT));
+                }
+
+                start = -1;
+            }
+
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    static int writeVarInt(byte[] buffer, int position, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+
+        return position;
+    }
+
+    /**
+     * Binary search the directory for a term
+     *
+     * @return Directory entry of the term, or -1 if the term is not in the index
+     */
+    private int lookup(String term)
+    {
+        int low = 0;
+        int high = termCount - 1;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int comparison = getTerm(mid).compareTo(term);
+
+            if (comparison < 0)
+            {
+                low = mid + 1;
+            }
+            else if (comparison > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    private String getTerm(int entry)
+    {
+        int start = directory.getInt(entry * DIRECTORY_ENTRY_LENGTH);
+        int end = (entry + 1 < termCount) ? directory.getInt((entry + 1) * DIRECTORY_ENTRY_LENGTH)
+                : (int) termDataLength;
+
+        byte[] bytes = new byte[end - start];
+        termData.duplicate().position(start).get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The ordinals of the records the term of a directory entry occurs in
+     */
+    private int[] decode(int entry)
+    {
+        int count = directory.getInt(entry * DIRECTORY_ENTRY_LENGTH + 4);
+        long offset = directory.getLong(entry * DIRECTORY_ENTRY_LENGTH + 8);
+
+        ByteBuffer segment = postingsSegments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+
+        int[] ordinals = new int[count];
+        int ordinal = -1;
+        for (int i = 0; i < count; i++)
+        {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = segment.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+
+            ordinal += delta + 1;
+            ordinals[i] = ordinal;
+        }
+
+        return ordinals;
+    }
+
+    private static int[] intersect(int[] a, int[] b)
+    {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] < b[j])
+            {
+                i++;
+            }
+            else if (a[i] > b[j])
+            {
+                j++;
+            }
+            else
+            {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a {@link TermIndex} from the text of records as they are streamed, then writes it to a file that
+ * {@link TermIndex} maps.
+ * <p>
+ * Text is split into terms as described in {@link TermIndex}. Each term keeps the ordinals of the records it occurs
+ * in as a delta and varint encoded list, so the postings are held compressed while the index is built, typically a
+ * byte or two per term per record. The record locations are held in a {@link LocationTable}.
+ * <p>
+ * Records must be added in document order. Instances are not thread-safe.
+ */
+public class TermIndexWriter
+{
+    private final LocationTable locations = new LocationTable(1024);
+    private final Map<String, Postings> terms = new HashMap<>();
+
+    /**
+     * Create an empty writer
+     */
+    public TermIndexWriter()
+    {
+    }
+
+    /**
+     * Add the terms in a piece of the text of a record. Call it as many times as needed for each record, before or
+     * after the record is added with {@link #addRecord(long, long) addRecord}.
+     *
+     * @param ordinal Ordinal of the record the text belongs to
+     * @param text    Text to split into terms
+     * @throws IllegalArgumentException If text is added for a record before one that already has text
+     */
+    public void addText(int ordinal, CharSequence text)
+    {
+        TermIndex.tokenize(text, term -> terms.computeIfAbsent(term, t -> new Postings()).add(ordinal));
+    }
+
+    /**
+     * Add the location of the next record
+     *
+     * @param offset Byte offset of the record
+     * @param length Number of bytes in the record
+     * @return Ordinal of the record
+     */
+    public int addRecord(long offset, long length)
+    {
+        return locations.add(offset, length);
+    }
+
+    /**
+     * @return Number of records added
+     */
+    public int size()
+    {
+        return locations.size();
+    }
+
+    /**
+     * @return Number of distinct terms added
+     */
+    public int getTermCount()
+    {
+        return terms.size();
+    }
+
+    /**
+     * Write the index to a file that can be opened with {@link TermIndex#TermIndex(File) TermIndex}
+     *
+     * @param file File to write, it is replaced if it exists
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        List<String> sorted = new ArrayList<>(terms.keySet());
+        sorted.sort(null);
+
+        // Lay out the term bytes and the postings before writing, the header needs their lengths
+        byte[][] termBytes = new byte[sorted.size()][];
+        long[] postingsOffsets = new long[sorted.size()];
+        long termDataLength = 0;
+        long postingsLength = 0;
+
+        for (int i = 0; i < sorted.size(); i++)
+        {
+            termBytes[i] = sorted.get(i).getBytes(StandardCharsets.UTF_8);
+            termDataLength += termBytes[i].length;
+
+            // A list never crosses a segment boundary, so it can be read from a single mapping
+            int length = terms.get(sorted.get(i)).size;
+            if (length > TermIndex.SEGMENT_SIZE)
+            {
+                throw new IOException("Postings for term " + sorted.get(i) + " are too large to index");
+            }
+
+            long segmentEnd = (postingsLength / TermIndex.SEGMENT_SIZE + 1) * TermIndex.SEGMENT_SIZE;
+            if (postingsLength + length > segmentEnd)
+            {
+                postingsLength = segmentEnd;
+            }
+
+            postingsOffsets[i] = postingsLength;
+            postingsLength += length;
+        }
+
+        if (termDataLength > Integer.MAX_VALUE || (long) sorted.size() * TermIndex.DIRECTORY_ENTRY_LENGTH
+                > Integer.MAX_VALUE)
+        {
+            throw new IOException("Too many terms to index");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536)))
+        {
+            out.writeInt(TermIndex.MAGIC);
+            out.writeInt(TermIndex.VERSION);
+            out.writeInt(locations.size());
+            out.writeInt(sorted.size());
+            out.writeLong(termDataLength);
+            out.writeLong(postingsLength);
+
+            MappedLocationIndex.writeColumns(locations, out);
+
+            int termOffset = 0;
+            for (int i = 0; i < sorted.size(); i++)
+            {
+                out.writeInt(termOffset);
+                out.writeInt(terms.get(sorted.get(i)).count);
+                out.writeLong(postingsOffsets[i]);
+
+                termOffset += termBytes[i].length;
+            }
+
+            for (byte[] bytes : termBytes)
+            {
+                out.write(bytes);
+            }
+
+            long position = 0;
+            for (int i = 0; i < sorted.size(); i++)
+            {
+                while (position < postingsOffsets[i])
+                {
+                    out.write(0);
+                    position++;
+                }
+
+                Postings postings = terms.get(sorted.get(i));
+                out.write(postings.data, 0, postings.size);
+                position += postings.size;
+            }
+        }
+    }
+
+    /**
+     * Delta and varint encoded ordinals of the records a term occurs in
+     */
+    private static class Postings
+    {
+        private byte[] data = new byte[4];
+        private int size = 0;
+        private int count = 0;
+        private int last = -1;
+
+        void add(int ordinal)
+        {
+            if (ordinal == last)
+            {
+                return;
+            }
+
+            if (ordinal < last)
+            {
+                throw new IllegalArgumentException("Text must be added in record order, got record " + ordinal
+                        + " after record " + last);
+            }
+
+            if (size + 5 > data.length)
+            {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+
+            size = TermIndex.writeVarInt(data, size, ordinal - last - 1);
+            last = ordinal;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of the 64 bit xxHash algorithm, a fast non-cryptographic hash used to detect changed
+ * records without comparing their bytes.
+ * <p>
+ * Feed the bytes of a record with any number of {@link #update(byte[], int, int) update} calls and read the hash with
+ * {@link #getValue()}, the result is the same however the bytes are split. Instances are not thread-safe, but can be
+ * reused after {@link #reset()}.
+ */
+public class XXHash64
+{
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final long seed;
+
+    // Accumulators for the 32 byte stripes
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    // Bytes that did not fill a stripe yet
+    private final byte[] memory = new byte[32];
+    private int memorySize;
+
+    private long totalLength;
+
+    public XXHash64()
+    {
+        this(0);
+    }
+
+    /**
+     * @param seed Seed for the hash, hashes are only comparable when they use the same seed
+     */
+    public XXHash64(long seed)
+    {
+        this.seed = seed;
+        reset();
+    }
+
+    /**
+     * Hash a byte array in one call
+     *
+     * @param bytes  Bytes to hash
+     * @param offset Position of the first byte
+     * @param length Number of bytes
+     * @return The hash
+     */
+    public static long hash(byte[] bytes, int offset, int length)
+    {
+        XXHash64 hash = new XXHash64();
+        hash.update(bytes, offset, length);
+        return hash.getValue();
+    }
+
+    /**
+     * Start a new hash
+     */
+    public void reset()
+    {
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+        memorySize = 0;
+        totalLength = 0;
+    }
+
+    /**
+     * @param bytes  Bytes to add to the hash
+     * @param offset Position of the first byte
+     * @param length Number of bytes
+     */
+    public void update(byte[] bytes, int offset, int length)
+    {
+        totalLength += length;
+        int end = offset + length;
+
+        // Top up a partial stripe first
+        if (memorySize > 0)
+        {
+            int fill = Math.min(32 - memorySize, length);
+            System.arraycopy(bytes, offset, memory, memorySize, fill);
+            memorySize += fill;
+            offset += fill;
+
+            if (memorySize < 32)
+            {
+                return;
+            }
+
+            processStripe(memory, 0);
+            memorySize = 0;
+        }
+
+        while (offset <= end - 32)
+        {
+            processStripe(bytes, offset);
+            offset += 32;
+        }
+
+        if (offset < end)
+        {
+            System.arraycopy(bytes, offset, memory, 0, end - offset);
+            memorySize = end - offset;
+        }
+    }
+
+    /**
+     * @return The hash of the bytes added since the last reset
+     */
+    public long getValue()
+    {
+        long h;
+
+        if (totalLength >= 32)
+        {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        }
+        else
+        {
+            h = seed + PRIME5;
+        }
+
+        h += totalLength;
+
+        int position = 0;
+        while (position <= memorySize - 8)
+        {
+            h ^= round(0, (long) LONG_LE.get(memory, position));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            position += 8;
+        }
+
+        if (position <= memorySize - 4)
+        {
+            h ^= ((int) INT_LE.get(memory, position) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+
+        while (position < memorySize)
+        {
+            h ^= (memory[position] & 0xFFL) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            position++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+
+        return h;
+    }
+
+    private void processStripe(byte[] bytes, int offset)
+    {
+        v1 = round(v1, (long) LONG_LE.get(bytes, offset));
+        v2 = round(v2, (long) LONG_LE.get(bytes, offset + 8));
+        v3 = round(v3, (long) LONG_LE.get(bytes, offset + 16));
+        v4 = round(v4, (long) LONG_LE.get(bytes, offset + 24));
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value)
+    {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME1 + PRIME4;
+    }
+}
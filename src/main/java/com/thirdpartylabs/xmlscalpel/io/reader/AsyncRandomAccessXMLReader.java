@@ -0,0 +1,377 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterpart of the {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader
+ * RandomAccessXMLReader}, backed by an {@link java.nio.channels.AsynchronousFileChannel AsynchronousFileChannel}.
+ * <p>
+ * Retrieval methods return immediately with a {@link java.util.concurrent.CompletableFuture CompletableFuture}, so
+ * they can be called from an event loop. At most maxInFlight reads are issued to the channel at once, the rest wait
+ * in a queue without holding a thread or a buffer. Strings are decoded from pooled direct buffers, so small records
+ * cost no buffer allocation once the pool is warm.
+ * <p>
+ * Futures are completed on the channel's thread pool, keep dependent actions short or move them to an executor.
+ * Instances are thread-safe, open one per file and close it when done.
+ */
+public class AsyncRandomAccessXMLReader implements Closeable
+{
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    // Records up to this size are read into pooled buffers
+    private static final int POOLED_BUFFER_SIZE = 65536;
+
+    private final AsynchronousFileChannel channel;
+
+    // Reads waiting for a free slot
+    private final Queue<PendingRead> queue = new ConcurrentLinkedQueue<>();
+
+    // Free read slots
+    private final AtomicInteger permits;
+
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param file The {@link java.io.File File} to extract data from
+     * @throws IOException
+     */
+    public AsyncRandomAccessXMLReader(File file) throws IOException
+    {
+        this(file, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param file        The {@link java.io.File File} to extract data from
+     * @param maxInFlight Maximum number of reads issued to the file system at once
+     * @throws IOException
+     */
+    public AsyncRandomAccessXMLReader(File file, int maxInFlight) throws IOException
+    {
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+        permits = new AtomicInteger(maxInFlight);
+    }
+
+    /**
+     * Get the raw bytes at the location described by the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}
+     *
+     * @param xmlByteLocation Object containing the byte coordinates
+     * @return Future completed with a buffer holding the bytes, positioned at zero and owned by the caller
+     */
+    public CompletableFuture<ByteBuffer> readBytes(XMLByteLocation xmlByteLocation)
+    {
+        return submit(xmlByteLocation, ByteBuffer.allocate(checkedLength(xmlByteLocation)))
+                .thenApply(buffer -> {
+                    buffer.flip();
+                    return buffer;
+                });
+    }
+
+    /**
+     * Get a UTF-8 {@link java.lang.String String} from the location described by the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}
+     *
+     * @param xmlByteLocation Object containing the byte coordinates
+     * @return Future completed with the string representation of the requested bytes
+     */
+    public CompletableFuture<String> read(XMLByteLocation xmlByteLocation)
+    {
+        return read(xmlByteLocation, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a {@link java.lang.String String} from the location described by the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}, encoded with the provided charset
+     *
+     * @param xmlByteLocation Object containing the byte coordinates
+     * @param charset         Charset to be used when creating the String from extracted bytes
+     * @return Future completed with the string representation of the requested bytes
+     */
+    public CompletableFuture<String> read(XMLByteLocation xmlByteLocation, Charset charset)
+    {
+        ByteBuffer buffer = acquireBuffer(checkedLength(xmlByteLocation));
+
+        // A buffer from a failed read is left to the garbage collector
+        return submit(xmlByteLocation, buffer).thenApply(filled -> {
+            try
+            {
+                filled.flip();
+                return charset.decode(filled).toString();
+            }
+            finally
+            {
+                releaseBuffer(filled);
+            }
+        });
+    }
+
+    /**
+     * Get UTF-8 {@link java.lang.String String} objects for a batch of locations. The reads are issued in file
+     * order to help the operating system read ahead, the results are in the order of the provided list.
+     *
+     * @param xmlByteLocations Objects containing the byte coordinates
+     * @return Future completed with the strings once every read has finished, or exceptionally if any read fails
+     */
+    public CompletableFuture<List<String>> readAll(List<XMLByteLocation> xmlByteLocations)
+    {
+        return readAll(xmlByteLocations, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get {@link java.lang.String String} objects for a batch of locations, encoded with the provided charset. See
+     * {@link #readAll(List) readAll}.
+     *
+     * @param xmlByteLocations Objects containing the byte coordinates
+     * @param charset          Charset to be used when creating the Strings from extracted bytes
+     * @return Future completed with the strings once every read has finished, or exceptionally if any read fails
+     */
+    public CompletableFuture<List<String>> readAll(List<XMLByteLocation> xmlByteLocations, Charset charset)
+    {
+        int count = xmlByteLocations.size();
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> xmlByteLocations.get(i).getOffset()));
+
+        List<CompletableFuture<String>> futures = new ArrayList<>(Collections.nCopies(count, null));
+        for (Integer i : order)
+        {
+            futures.set(i, read(xmlByteLocations.get(i), charset));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<String> results = new ArrayList<>(count);
+            for (CompletableFuture<String> future : futures)
+            {
+                results.add(future.join());
+            }
+
+            return results;
+        });
+    }
+
+    /**
+     * Close the channel. Reads in progress fail with an
+     * {@link java.nio.channels.AsynchronousCloseException AsynchronousCloseException}, queued reads with a
+     * {@link java.nio.channels.ClosedChannelException ClosedChannelException}.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        channel.close();
+
+        PendingRead pending;
+        while ((pending = queue.poll()) != null)
+        {
+            pending.future.completeExceptionally(new ClosedChannelException());
+        }
+    }
+
+    private static int checkedLength(XMLByteLocation xmlByteLocation)
+    {
+        long length = xmlByteLocation.getLength();
+        if (length < 0 || length > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Invalid length for " + xmlByteLocation);
+        }
+
+        return (int) length;
+    }
+
+    private ByteBuffer acquireBuffer(int length)
+    {
+        if (length > POOLED_BUFFER_SIZE)
+        {
+            return ByteBuffer.allocate(length);
+        }
+
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+        }
+
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer)
+    {
+        if (buffer.isDirect())
+        {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private CompletableFuture<ByteBuffer> submit(XMLByteLocation xmlByteLocation, ByteBuffer buffer)
+    {
+        PendingRead pending = new PendingRead(xmlByteLocation, buffer);
+
+        if (closed)
+        {
+            pending.future.completeExceptionally(new ClosedChannelException());
+        }
+        else
+        {
+            queue.add(pending);
+            drain();
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Start queued reads while there are free slots
+     */
+    private void drain()
+    {
+        while (!queue.isEmpty())
+        {
+            int available = permits.get();
+            if (available == 0)
+            {
+                // A read in progress will drain the queue when it completes
+                return;
+            }
+
+            if (permits.compareAndSet(available, available - 1))
+            {
+                PendingRead pending = queue.poll();
+                if (pending == null)
+                {
+                    // Another thread took it
+                    permits.incrementAndGet();
+                }
+                else
+                {
+                    pending.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single read, issued in as many channel reads as it takes to fill the buffer
+     */
+    private class PendingRead implements CompletionHandler<Integer, Void>
+    {
+        private final XMLByteLocation xmlByteLocation;
+        private final ByteBuffer buffer;
+        private final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        private final MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        private long readStart;
+
+        private PendingRead(XMLByteLocation xmlByteLocation, ByteBuffer buffer)
+        {
+            this.xmlByteLocation = xmlByteLocation;
+            this.buffer = buffer;
+        }
+
+        private void start()
+        {
+            readStart = metricsSink.isEnabled() ? System.nanoTime() : 0;
+            readMore();
+        }
+
+        private void readMore()
+        {
+            try
+            {
+                channel.read(buffer, xmlByteLocation.getOffset() + buffer.position(), null, this);
+            }
+            catch (RuntimeException e)
+            {
+                failed(e, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer red, Void attachment)
+        {
+            if (red < 0)
+            {
+                failed(new EOFException("Location " + xmlByteLocation + " extends past the end of the file"), null);
+            }
+            else if (buffer.hasRemaining())
+            {
+                readMore();
+            }
+            else
+            {
+                if (metricsSink.isEnabled())
+                {
+                    metricsSink.randomRead(xmlByteLocation.getLength(), System.nanoTime() - readStart);
+                }
+
+                finish();
+                future.complete(buffer);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+            finish();
+            future.completeExceptionally(exc);
+        }
+
+        /**
+         * Hand our slot to the next queued read
+         */
+        private void finish()
+        {
+            permits.incrementAndGet();
+            drain();
+        }
+    }
+}
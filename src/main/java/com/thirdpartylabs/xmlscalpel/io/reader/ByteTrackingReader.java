@@ -15,17 +15,18 @@
 
 package com.thirdpartylabs.xmlscalpel.io.reader;
 
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.LinkedList;
 
 /**
  * {@link java.io.FilterReader FilterReader} that tracks byte progress as chars are read.
  * <p>
  * Char offsets are mapped to byte offsets, so that known char offsets can be used to
  * determine byte offsets. Only a certain number (set in charMemoryDepth, currently 8192)
- * of the most recent offsets are remembered. This reader is specifically intended to be used
+ * of the most recent offsets are remembered, in a ring buffer of primitive longs. This reader is specifically intended to be used
  * in conjunction with the {@link com.ctc.wstx.stax.WstxInputFactory Woodstox} streaming reader,
  * which seems to read 2048 chars ahead of the reported progress, so we need to account for that, and accommodate
  * potentially large tag names, since the end tag plus the read-ahead determine the length of memory we need.
@@ -39,8 +40,9 @@ public class ByteTrackingReader extends FilterReader
     private static final int CHAR_FIVE_BYTES_MASK = 0xFC000000;
     private static final int CHAR_SIX_BYTES_MASK = 0x80000000;
 
-    // Number char offset to byte offset records to keep
+    // Number char offset to byte offset records to keep, must be a power of two
     private static final int charMemoryDepth = 8192;
+    private static final int charMemoryMask = charMemoryDepth - 1;
 
     // Maximum skip-buffer size
     private static final int maxSkipBufferSize = 8192;
@@ -54,8 +56,11 @@ public class ByteTrackingReader extends FilterReader
     // Total chars read
     private long charProgress = 0;
 
-    // The memory buffer
-    private final LinkedList<Long> memory = new LinkedList<>();
+    // The memory buffer, the byte offset of char offset n is stored at n & charMemoryMask
+    private final long[] memory = new long[charMemoryDepth];
+
+    // Told about offsets that have fallen out of memory
+    private final MetricsSink metricsSink;
 
     /**
      * Creates a new byte tracking filtered reader.
@@ -64,8 +69,39 @@ public class ByteTrackingReader extends FilterReader
      * @throws NullPointerException if {@code in} is {@code null}
      */
     protected ByteTrackingReader(Reader in)
+    {
+        this(in, MetricsSink.NOOP);
+    }
+
+    /**
+     * Creates a new byte tracking filtered reader that reports lookup misses.
+     *
+     * @param in          a {@link java.io.Reader Reader} object providing the underlying stream.
+     * @param metricsSink {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} to report misses to
+     * @throws NullPointerException if {@code in} is {@code null}
+     */
+    protected ByteTrackingReader(Reader in, MetricsSink metricsSink)
     {
         super(in);
+        this.metricsSink = metricsSink;
+    }
+
+    /**
+     * Creates a new byte tracking filtered reader for a stream that does not start at the beginning of the file,
+     * so that the byte offsets reported are offsets in the file.
+     *
+     * @param in                a {@link java.io.Reader Reader} object providing the underlying stream.
+     * @param initialByteOffset Byte offset of the first char of the stream, negative if the stream starts with chars
+     *                          that are not in the file
+     * @param metricsSink       {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} to report
+     *                          misses to
+     * @throws NullPointerException if {@code in} is {@code null}
+     */
+    protected ByteTrackingReader(Reader in, long initialByteOffset, MetricsSink metricsSink)
+    {
+        this(in, metricsSink);
+        byteProgress = initialByteOffset;
+        memory[0] = initialByteOffset;
     }
 
     /**
@@ -78,23 +114,28 @@ public class ByteTrackingReader extends FilterReader
     @Override
     public long skip(long n) throws IOException
     {
-        long endBytes = byteProgress + n;
+        if (n < 0L)
+        {
+            throw new IllegalArgumentException("skip value is negative");
+        }
+
         long skipProgress = 0L;
 
-        while (byteProgress < endBytes)
+        while (skipProgress < n)
         {
-            int currSkipLength = (int) Math.min(endBytes - byteProgress, maxSkipBufferSize);
+            int currSkipLength = (int) Math.min(n - skipProgress, maxSkipBufferSize);
 
             if ((skipBuffer == null) || (skipBuffer.length < currSkipLength))
             {
                 skipBuffer = new char[currSkipLength];
             }
 
-            int currRead = super.read(skipBuffer, 0, skipBuffer.length);
+            // read() does the counting
+            int currRead = read(skipBuffer, 0, currSkipLength);
 
-            for (char currChar : skipBuffer)
+            if (currRead < 0)
             {
-                rememberCharOffset(currChar);
+                break;
             }
 
             skipProgress += currRead;
@@ -117,9 +158,10 @@ public class ByteTrackingReader extends FilterReader
     {
         int red = super.read(buffer, off, len);
 
-        for (char currChar : buffer)
+        // Only the chars that were actually read are counted
+        for (int i = off; i < off + red; i++)
         {
-            rememberCharOffset(currChar);
+            rememberCharOffset(buffer[i]);
         }
 
         return red;
@@ -135,7 +177,12 @@ public class ByteTrackingReader extends FilterReader
     public int read() throws IOException
     {
         int red = super.read();
-        rememberCharOffset((char) red);
+
+        if (red >= 0)
+        {
+            rememberCharOffset((char) red);
+        }
+
         return red;
     }
 
@@ -152,14 +199,15 @@ public class ByteTrackingReader extends FilterReader
             return -1;
         }
 
-        int rewindCount = (int) (charProgress - charOffset);
+        long rewindCount = charProgress - charOffset;
 
-        if (rewindCount < 0 || rewindCount >= memory.size())
+        if (rewindCount < 0 || rewindCount >= charMemoryDepth)
         {
+            metricsSink.offsetLookupMiss(charOffset);
             return -1;
         }
 
-        return memory.get(rewindCount);
+        return memory[(int) (charOffset & charMemoryMask)];
     }
 
     /**
@@ -171,12 +219,7 @@ public class ByteTrackingReader extends FilterReader
         charProgress++;
         byteProgress += countBytesForChar(red);
 
-        if (memory.size() >= charMemoryDepth)
-        {
-            memory.removeLast();
-        }
-
-        memory.push(byteProgress);
+        memory[(int) (charProgress & charMemoryMask)] = byteProgress;
     }
 
     /**
@@ -187,6 +230,12 @@ public class ByteTrackingReader extends FilterReader
      */
     private int countBytesForChar(char character)
     {
+        // A surrogate pair is a single four byte sequence, split it evenly between the two halves
+        if (Character.isSurrogate(character))
+        {
+            return 2;
+        }
+
         if ((character & CHAR_ONE_BYTE_MASK) == 0)
         {
             return 1;
@@ -0,0 +1,362 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only journal of an indexing run, from which an interrupted run can be resumed
+ * <p>
+ * The journal starts with a header that identifies the source file and the index parameters. Every record is
+ * appended as it is indexed, and every so often a commit entry marks a record boundary: the byte offset to resume
+ * parsing from, the ordinal of the next record and the start tags that reopen the elements that were open at that
+ * point. Commits are forced to disk. Records after the last commit are discarded on recovery, as is anything torn
+ * by a crash, so the journal only ever needs to be appended to.
+ */
+class CheckpointJournal implements Closeable
+{
+    private static final int MAGIC = 0x5853434A;
+    private static final int VERSION = 1;
+
+    private static final byte RECORD = 'R';
+    private static final byte COMMIT = 'C';
+
+    private final File file;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final boolean withHashes;
+    private final boolean withKeys;
+
+    // State at the last commit, nothing to resume if openTags is null
+    private long resumeOffset = 0;
+    private int nextOrdinal = 0;
+    private String openTags = null;
+
+    /**
+     * Open a journal, recovering the records up to its last commit into the table, or start a new journal if the
+     * file does not exist or was written for a different source file or different parameters
+     *
+     * @param file        The journal file
+     * @param source      The file being indexed
+     * @param targetPaths Resolved target paths
+     * @param withHashes  Records are hashed
+     * @param keyPath     Key path, or null
+     * @param table       Empty table to receive the recovered records
+     * @throws IOException
+     */
+    CheckpointJournal(File file, File source, Set<String> targetPaths, boolean withHashes, String keyPath,
+                      LocationTable table) throws IOException
+    {
+        this.file = file;
+        this.withHashes = withHashes;
+        this.withKeys = keyPath != null;
+
+        List<String> paths = new ArrayList<>(targetPaths);
+        paths.sort(null);
+        String identity = source.getCanonicalPath() + '\n' + source.length() + '\n' + source.lastModified() + '\n'
+                + withHashes + '\n' + keyPath + '\n' + String.join("\n", paths);
+        byte[] header = identity.getBytes(StandardCharsets.UTF_8);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try
+        {
+            long end = recover(header, table);
+            if (end < 0)
+            {
+                // Nothing usable, start again
+                channel.truncate(0);
+                channel.position(0);
+
+                DataOutputStream headerOut = new DataOutputStream(Channels.newOutputStream(channel));
+                headerOut.writeInt(MAGIC);
+                headerOut.writeInt(VERSION);
+                headerOut.writeInt(header.length);
+                headerOut.write(header);
+                headerOut.flush();
+            }
+            else
+            {
+                channel.truncate(end);
+                channel.position(end);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        // Not closed with the channel, see close()
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+    }
+
+    /**
+     * @return Byte offset to resume parsing from
+     */
+    long getResumeOffset()
+    {
+        return resumeOffset;
+    }
+
+    /**
+     * @return Ordinal of the first record after the resume offset
+     */
+    int getNextOrdinal()
+    {
+        return nextOrdinal;
+    }
+
+    /**
+     * @return Start tags that reopen the elements open at the resume offset, or null if there is nothing to resume
+     */
+    String getOpenTags()
+    {
+        return openTags;
+    }
+
+    /**
+     * Append a record, it is not durable until the next commit
+     */
+    void record(long offset, long length, long hash, String key) throws IOException
+    {
+        out.writeByte(RECORD);
+        out.writeLong(offset);
+        out.writeInt((int) length);
+
+        if (withHashes)
+        {
+            out.writeLong(hash);
+        }
+
+        if (withKeys)
+        {
+            writeString(key);
+        }
+    }
+
+    /**
+     * Append a commit for a record boundary and force the journal to disk
+     *
+     * @param offset   Byte offset just past the last record
+     * @param ordinal  Ordinal of the next record
+     * @param tags     Start tags of the open elements
+     * @throws IOException
+     */
+    void commit(long offset, int ordinal, String tags) throws IOException
+    {
+        out.writeByte(COMMIT);
+        out.writeLong(offset);
+        out.writeInt(ordinal);
+        writeString(tags);
+
+        // A commit only counts if it is whole
+        out.writeInt(MAGIC);
+        out.flush();
+
+        channel.force(false);
+    }
+
+    /**
+     * The run completed, the journal is no longer needed
+     *
+     * @throws IOException
+     */
+    void delete() throws IOException
+    {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel.isOpen())
+        {
+            try
+            {
+                out.flush();
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Read the journal up to its last complete commit
+     *
+     * @param header Expected header
+     * @param table  Table to receive the committed records
+     * @return Length of the journal up to the last commit, or -1 if the journal is empty or does not match
+     */
+    private long recover(byte[] header, LocationTable table) throws IOException
+    {
+        if (channel.size() == 0)
+        {
+            return -1;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+
+        long position;
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                return -1;
+            }
+
+            int headerLength = in.readInt();
+            if (headerLength != header.length)
+            {
+                return -1;
+            }
+
+            byte[] stored = new byte[headerLength];
+            in.readFully(stored);
+            if (!Arrays.equals(stored, header))
+            {
+                return -1;
+            }
+
+            position = 12 + headerLength;
+        }
+        catch (EOFException e)
+        {
+            return -1;
+        }
+
+        long committed = position;
+
+        // Records since the last commit
+        LocationTable pending = new LocationTable(1024, withHashes, withKeys);
+
+        try
+        {
+            while (true)
+            {
+                byte type = in.readByte();
+                if (type == RECORD)
+                {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    long hash = withHashes ? in.readLong() : 0;
+                    byte[] key = withKeys ? readBytes(in) : null;
+
+                    pending.add(offset, length, hash, toString(key));
+                    position += 13 + (withHashes ? 8 : 0) + (withKeys ? 4 + length(key) : 0);
+                }
+                else if (type == COMMIT)
+                {
+                    long offset = in.readLong();
+                    int ordinal = in.readInt();
+                    byte[] tags = readBytes(in);
+                    if (in.readInt() != MAGIC || ordinal != table.size() + pending.size() || tags == null)
+                    {
+                        break;
+                    }
+
+                    for (int i = 0; i < pending.size(); i++)
+                    {
+                        table.add(pending.getOffset(i), pending.getLength(i), withHashes ? pending.getHash(i) : 0,
+                                withKeys ? pending.getKey(i) : null);
+                    }
+                    pending = new LocationTable(1024, withHashes, withKeys);
+
+                    resumeOffset = offset;
+                    nextOrdinal = ordinal;
+                    openTags = toString(tags);
+
+                    position += 21 + tags.length;
+                    committed = position;
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch (EOFException | IllegalArgumentException e)
+        {
+            // A torn write at the end of the journal
+        }
+
+        return committed;
+    }
+
+    private void writeString(String value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private byte[] readBytes(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+
+        // A torn length could be anything
+        if (length > channel.size())
+        {
+            throw new EOFException();
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+    private static String toString(byte[] bytes)
+    {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes)
+    {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds likely document boundaries in a stream of concatenated documents, or of root-less records, so that the
+ * ranges between them can be parsed independently.
+ * <p>
+ * A boundary is a line that starts with an XML declaration or with the start tag of an element named like the first
+ * document element. This is a guess: the same text can appear inside a document, in which case the ranges on either
+ * side of it are not well-formed, and the caller must detect the parse failure and fall back to a single range.
+ */
+class DocumentBoundaryScanner
+{
+    private static final int BLOCK_SIZE = 65536;
+
+    private static final byte[] DECLARATION = "?xml".getBytes(StandardCharsets.UTF_8);
+
+    private final ByteSource source;
+    private final byte[] name;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+    /**
+     * @param source          The source to scan
+     * @param documentElement Qualified name of the first document element, as it appears in the start tag
+     */
+    DocumentBoundaryScanner(ByteSource source, String documentElement)
+    {
+        this.source = source;
+        this.name = documentElement.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Split the source into about the requested number of ranges
+     *
+     * @param parts Number of ranges wanted
+     * @return Offsets of the first byte of each range, followed by the size of the source. There may be fewer
+     * ranges than requested if no boundary is found near a split point.
+     * @throws IOException
+     */
+    long[] split(int parts) throws IOException
+    {
+        long size = source.size();
+
+        long[] starts = new long[parts + 1];
+        int count = 1;
+
+        for (int i = 1; i < parts; i++)
+        {
+            long boundary = find(Math.max(size / parts * i, starts[count - 1] + 1), size);
+            if (boundary < 0)
+            {
+                break;
+            }
+
+            if (boundary > starts[count - 1])
+            {
+                starts[count++] = boundary;
+            }
+        }
+
+        starts[count++] = size;
+
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * @param from Offset to start looking from
+     * @param size Size of the source
+     * @return Offset of the {@code <} that starts the first boundary at or after from, or -1 if there is none
+     * @throws IOException
+     */
+    private long find(long from, long size) throws IOException
+    {
+        // Keep enough of the previous block to match a boundary that straddles two blocks
+        int overlap = 2 + Math.max(DECLARATION.length, name.length + 1);
+
+        // Start on the byte before, which must be the line break
+        long position = from - 1;
+        while (position < size)
+        {
+            block.clear();
+            block.limit((int) Math.min(BLOCK_SIZE, size - position));
+            source.readFully(position, block);
+            block.flip();
+
+            byte[] bytes = block.array();
+            int limit = block.limit();
+
+            for (int i = 0; i + 1 < limit; i++)
+            {
+                if ((bytes[i] == '\n' || bytes[i] == '\r') && bytes[i + 1] == '<' && matches(bytes, i + 2, limit))
+                {
+                    return position + i + 1;
+                }
+            }
+
+            if (position + limit >= size)
+            {
+                break;
+            }
+
+            position += Math.max(1, limit - overlap);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return true if the bytes after a line break and {@code <} are an XML declaration or a document element
+     */
+    private boolean matches(byte[] bytes, int start, int limit)
+    {
+        if (startsWith(bytes, start, limit, DECLARATION))
+        {
+            return true;
+        }
+
+        if (!startsWith(bytes, start, limit, name) || start + name.length >= limit)
+        {
+            return false;
+        }
+
+        byte next = bytes[start + name.length];
+        return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int limit, byte[] prefix)
+    {
+        if (start + prefix.length > limit)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (bytes[start + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.metrics.Histogram;
+
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The structure of a feed, gathered in a single pass by
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader#profileFile(java.io.File) profileFile}
+ * <p>
+ * For every element path the profile counts the elements, records their sizes in bytes in a
+ * {@link com.thirdpartylabs.xmlscalpel.metrics.Histogram Histogram}, counts their attributes, and notes the largest
+ * number of times the element repeats within a single parent. Paths that repeat many times within one parent and
+ * account for most of the bytes are good target paths, and their size percentiles help choose batch sizes.
+ * <p>
+ * Memory use does not depend on the size of the feed: each path costs a few kilobytes, and at most
+ * {@link #MAX_PATHS} paths are tracked, elements below any further paths are only counted.
+ */
+public class FeedProfile
+{
+    public static final int MAX_PATHS = 4096;
+
+    // Attributes tracked per path, further attribute names are ignored
+    static final int MAX_ATTRIBUTES = 256;
+
+    private final Map<String, PathProfile> paths = new LinkedHashMap<>();
+    private final Map<String, PathProfile> roots = new HashMap<>(2);
+    private final Map<String, long[]> namespaceUsage = new LinkedHashMap<>();
+
+    // Open elements, null where the path is not tracked
+    private PathProfile[] openPaths = new PathProfile[32];
+    private long[] openOffsets = new long[32];
+    private long[] openSerials = new long[32];
+    private int depth = 0;
+
+    private int maxDepth = 0;
+    private long elementCount = 0;
+    private long untrackedCount = 0;
+    private long bytes = 0;
+
+    FeedProfile()
+    {
+    }
+
+    /**
+     * @return The profiles of all tracked paths, in the order they first occur in the document
+     */
+    public List<PathProfile> getPaths()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(paths.values()));
+    }
+
+    /**
+     * @param path Element path, in the same form as a target path
+     * @return The profile of the path, or null if it does not occur
+     */
+    public PathProfile getPath(String path)
+    {
+        return paths.get(StreamingXMLReader.normalizeTargetPath(path.trim()));
+    }
+
+    /**
+     * @return Depth of the most deeply nested element, the document element is at depth 1
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * @return Number of elements in the document, including the document element
+     */
+    public long getElementCount()
+    {
+        return elementCount;
+    }
+
+    /**
+     * @return Number of elements below paths that were not tracked because {@link #MAX_PATHS} was reached
+     */
+    public long getUntrackedElementCount()
+    {
+        return untrackedCount;
+    }
+
+    /**
+     * @return Size of the document in bytes
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return Number of element and attribute names in each namespace URI, in the order the URIs first occur
+     */
+    public Map<String, Long> getNamespaceUsage()
+    {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        namespaceUsage.forEach((uri, count) -> usage.put(uri, count[0]));
+
+        return usage;
+    }
+
+    void setBytes(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Count the element the reader is positioned on and open it
+     *
+     * @param reader Reader positioned on a start element
+     * @param offset Byte offset of the element, or -1 if it is not known
+     */
+    void startElement(XMLStreamReader reader, long offset)
+    {
+        if (depth == openPaths.length)
+        {
+            int capacity = depth * 2;
+            openPaths = Arrays.copyOf(openPaths, capacity);
+            openOffsets = Arrays.copyOf(openOffsets, capacity);
+            openSerials = Arrays.copyOf(openSerials, capacity);
+        }
+
+        elementCount++;
+        maxDepth = Math.max(maxDepth, depth + 1);
+
+        String prefix = reader.getPrefix();
+        String localName = reader.getLocalName();
+        String name = (prefix == null || prefix.isEmpty()) ? localName : prefix + ":" + localName;
+
+        PathProfile path;
+        if (depth == 0)
+        {
+            path = lookup(roots, null, name);
+        }
+        else
+        {
+            PathProfile parent = openPaths[depth - 1];
+            path = (parent == null) ? null : lookup(parent.children, parent, name);
+        }
+
+        countNamespace(reader.getNamespaceURI());
+
+        if (path == null)
+        {
+            untrackedCount++;
+        }
+        else
+        {
+            path.count++;
+
+            // Elements are numbered in document order, so a new parent always has a new serial
+            long parentSerial = (depth == 0) ? 0 : openSerials[depth - 1];
+            if (path.lastParentSerial == parentSerial)
+            {
+                path.run++;
+            }
+            else
+            {
+                path.lastParentSerial = parentSerial;
+                path.run = 1;
+            }
+            path.maxPerParent = Math.max(path.maxPerParent, path.run);
+
+            for (int i = 0; i < reader.getAttributeCount(); i++)
+            {
+                countNamespace(reader.getAttributeNamespace(i));
+                path.countAttribute(StreamingXMLReader.normalizeQname(reader.getAttributeName(i)));
+            }
+        }
+
+        openPaths[depth] = path;
+        openOffsets[depth] = offset;
+        openSerials[depth] = elementCount;
+        depth++;
+    }
+
+    /**
+     * Close the innermost open element and record its size
+     *
+     * @param endOffset Byte offset just past the end of the element, or -1 if it is not known
+     */
+    void endElement(long endOffset)
+    {
+        depth--;
+
+        PathProfile path = openPaths[depth];
+        long offset = openOffsets[depth];
+        openPaths[depth] = null;
+
+        if (path != null && offset >= 0 && endOffset >= offset)
+        {
+            path.sizes.record(endOffset - offset);
+        }
+    }
+
+    private PathProfile lookup(Map<String, PathProfile> siblings, PathProfile parent, String name)
+    {
+        PathProfile path = siblings.get(name);
+        if (path == null && paths.size() < MAX_PATHS)
+        {
+            String fullPath = (parent == null) ? "/" + name : parent.path + "/" + name;
+            path = new PathProfile(fullPath, depth + 1);
+
+            siblings.put(name, path);
+            paths.put(fullPath, path);
+        }
+
+        return path;
+    }
+
+    private void countNamespace(String uri)
+    {
+        if (uri != null && !uri.isEmpty())
+        {
+            namespaceUsage.computeIfAbsent(uri, key -> new long[1])[0]++;
+        }
+    }
+
+    /**
+     * Statistics for all elements at one path
+     */
+    public static class PathProfile
+    {
+        private final String path;
+        private final int depth;
+        private final Histogram sizes = new Histogram();
+        private final Map<String, long[]> attributes = new LinkedHashMap<>(4);
+        private final Map<String, PathProfile> children = new HashMap<>(4);
+
+        private long count = 0;
+        private int maxPerParent = 0;
+
+        // Serial number of the parent the current run of elements belongs to, and the length of the run
+        private long lastParentSerial = -1;
+        private int run = 0;
+
+        PathProfile(String path, int depth)
+        {
+            this.path = path;
+            this.depth = depth;
+        }
+
+        /**
+         * @return The path, in the same form as a target path
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return Depth of the elements, the document element is at depth 1
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /**
+         * @return Number of elements at the path
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return {@link com.thirdpartylabs.xmlscalpel.metrics.Histogram Histogram} of the sizes of the elements in
+         * bytes, from the start of the start tag to the end of the end tag
+         */
+        public Histogram getSizes()
+        {
+            return sizes;
+        }
+
+        /**
+         * @return The largest number of elements at the path within a single parent element
+         */
+        public int getMaxPerParent()
+        {
+            return maxPerParent;
+        }
+
+        /**
+         * @return Number of elements carrying each attribute, in the order the attributes first occur
+         */
+        public Map<String, Long> getAttributeCounts()
+        {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            attributes.forEach((name, count) -> counts.put(name, count[0]));
+
+            return counts;
+        }
+
+        private void countAttribute(String name)
+        {
+            long[] attributeCount = attributes.get(name);
+            if (attributeCount == null)
+            {
+                if (attributes.size() >= MAX_ATTRIBUTES)
+                {
+                    return;
+                }
+
+                attributeCount = new long[1];
+                attributes.put(name, attributeCount);
+            }
+
+            attributeCount[0]++;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "PathProfile{" +
+                   "path='" + path + '\'' +
+                   ", count=" + count +
+                   ", maxPerParent=" + maxPerParent +
+                   ", sizes=" + sizes +
+                   '}';
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A path to a value relative to a record element, as used by
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.Projection Projection} field paths and the text paths of
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.TextCapture TextCapture}.
+ * <p>
+ * The path is a list of element names below the record element, optionally followed by {@code @} and an attribute
+ * name, such as {@code info/aw:id}, {@code @id} or {@code info/@id}. A leading {@code /} is ignored. Names are
+ * compared with the names of the open elements as normalized by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}.
+ */
+class FieldPath
+{
+    private final String[] steps;
+    private final String attribute;
+
+    private FieldPath(String[] steps, String attribute)
+    {
+        this.steps = steps;
+        this.attribute = attribute;
+    }
+
+    /**
+     * @param path The path
+     * @param what Description of the path for error messages
+     * @return The parsed path
+     * @throws IllegalArgumentException If the path names neither an element nor an attribute
+     */
+    static FieldPath parse(String path, String what)
+    {
+        String remainder = path.trim();
+        if (remainder.startsWith("/"))
+        {
+            remainder = remainder.substring(1);
+        }
+
+        String attribute = null;
+        int at = remainder.lastIndexOf('@');
+        if (at >= 0)
+        {
+            attribute = remainder.substring(at + 1);
+            remainder = remainder.substring(0, at);
+        }
+
+        remainder = remainder.endsWith("/") ? remainder.substring(0, remainder.length() - 1) : remainder;
+        String[] steps = remainder.isEmpty() ? new String[0] : remainder.split("/");
+
+        if (attribute == null && steps.length == 0)
+        {
+            throw new IllegalArgumentException("Invalid " + what + " " + path);
+        }
+
+        return new FieldPath(steps, attribute);
+    }
+
+    /**
+     * @return Number of element names in the path, 0 for an attribute of the record element
+     */
+    int getDepth()
+    {
+        return steps.length;
+    }
+
+    /**
+     * @return Name of the attribute at the end of the path, or null if the path names element text
+     */
+    String getAttribute()
+    {
+        return attribute;
+    }
+
+    /**
+     * @param path  Names of the open elements below the record element
+     * @param depth Number of open elements
+     * @return true if the open elements are the element names of the path
+     */
+    boolean matches(String[] path, int depth)
+    {
+        if (depth != steps.length)
+        {
+            return false;
+        }
+
+        for (int i = steps.length - 1; i >= 0; i--)
+        {
+            if (!steps[i].equals(path[i]))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param reader Reader positioned on a start element
+     * @return Value of the attribute of the path on the element, or null if the element does not have it
+     */
+    String getAttributeValue(XMLStreamReader reader)
+    {
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            if (attribute.equals(StreamingXMLReader.normalizeQname(reader.getAttributeName(i))))
+            {
+                return reader.getAttributeValue(i);
+            }
+        }
+
+        return null;
+    }
+}
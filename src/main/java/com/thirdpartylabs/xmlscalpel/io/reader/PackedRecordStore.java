@@ -0,0 +1,390 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to the records of a feed that was packed by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.writer.RecordStorePacker RecordStorePacker}
+ * <p>
+ * Records are compressed in small blocks, so reading one record inflates only the block that holds it, and the
+ * bytes returned are identical to the bytes of the record in the original file. The directory of original locations
+ * is held on the heap as a {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}, and the outer
+ * document of the original file is available to wrap or hydrate the records.
+ * <p>
+ * The file starts with a 20 byte header (magic number, format version, record count, records per block and flags),
+ * followed by the character encoding, the document header and footer and the preset dictionary, each as a 4 byte
+ * length and its bytes. The compressed blocks come next, then the directory: the file offset of every block, and the
+ * original offset, length and optionally hash of every record. The file ends with the offset of the directory and the
+ * magic number. All numbers are big-endian, and blocks are raw deflate streams.
+ * <p>
+ * The most recently inflated block is cached, so records read in order cost one inflation per block. Instances are
+ * thread-safe.
+ */
+public class PackedRecordStore implements Closeable
+{
+    public static final int MAGIC = 0x58535053;
+    public static final int VERSION = 1;
+
+    // Flag set when the record hashes are present
+    public static final int FLAG_HASHES = 1;
+
+    private static final int HEADER_LENGTH = 20;
+    private static final int TRAILER_LENGTH = 12;
+
+    private final File file;
+    private final FileByteSource source;
+    private final int recordsPerBlock;
+    private final long[] blockOffsets;
+    private final LocationTable locations;
+    private final Charset charset;
+    private final String documentHeader;
+    private final String documentFooter;
+    private final byte[] dictionary;
+
+    private final Inflater inflater = new Inflater(true);
+    private int cachedBlock = -1;
+    private byte[] cachedBytes;
+
+    /**
+     * Open a record store
+     *
+     * @param file Record store written by the
+     *             {@link com.thirdpartylabs.xmlscalpel.io.writer.RecordStorePacker RecordStorePacker}
+     * @throws IOException If the file can not be read or is not a record store
+     */
+    public PackedRecordStore(File file) throws IOException
+    {
+        this.file = file;
+        source = new FileByteSource(file);
+
+        try
+        {
+            long fileSize = source.size();
+            if (fileSize < HEADER_LENGTH + TRAILER_LENGTH)
+            {
+                throw new IOException(file + " is not a record store");
+            }
+
+            ByteBuffer trailer = readAt(fileSize - TRAILER_LENGTH, TRAILER_LENGTH);
+            long directoryOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC)
+            {
+                throw new IOException(file + " is truncated or is not a record store");
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(source.openStream(0, directoryOffset),
+                    8192));
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a record store");
+            }
+
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(file + " has unsupported record store version " + version);
+            }
+
+            int size = in.readInt();
+            recordsPerBlock = in.readInt();
+            boolean withHashes = (in.readInt() & FLAG_HASHES) != 0;
+
+            if (size < 0 || recordsPerBlock < 1 || directoryOffset < HEADER_LENGTH || directoryOffset > fileSize)
+            {
+                throw new IOException(file + " is corrupt");
+            }
+
+            charset = Charset.forName(new String(readBlob(in), StandardCharsets.UTF_8));
+            documentHeader = new String(readBlob(in), charset);
+            documentFooter = new String(readBlob(in), charset);
+            dictionary = readBlob(in);
+
+            // The directory is small next to the blocks, so it is read onto the heap in one go
+            int blockCount = (int) (((long) size + recordsPerBlock - 1) / recordsPerBlock);
+            long directoryLength = blockCount * 8L + size * (withHashes ? 20L : 12L);
+            if (directoryOffset + directoryLength + TRAILER_LENGTH != fileSize)
+            {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            in = new DataInputStream(new BufferedInputStream(source.openStream(directoryOffset, directoryLength),
+                    65536));
+
+            blockOffsets = new long[blockCount + 1];
+            for (int i = 0; i < blockCount; i++)
+            {
+                blockOffsets[i] = in.readLong();
+            }
+            blockOffsets[blockCount] = directoryOffset;
+
+            long[] offsets = new long[size];
+            for (int i = 0; i < size; i++)
+            {
+                offsets[i] = in.readLong();
+            }
+
+            int[] lengths = new int[size];
+            for (int i = 0; i < size; i++)
+            {
+                lengths[i] = in.readInt();
+            }
+
+            locations = new LocationTable(Math.max(size, 1), withHashes, false);
+            for (int i = 0; i < size; i++)
+            {
+                locations.add(offsets[i], lengths[i], withHashes ? in.readLong() : 0, null);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of records in the store
+     */
+    public int size()
+    {
+        return locations.size();
+    }
+
+    /**
+     * The locations of the records in the original file, with their hashes if they were packed with them
+     *
+     * @return {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the original locations
+     */
+    public LocationIndex getIndex()
+    {
+        return locations;
+    }
+
+    /**
+     * @return Character encoding of the original file
+     */
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * @return XML declaration and document element start tag of the original file, see
+     * {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument#getDocumentHeader() getDocumentHeader}
+     */
+    public String getDocumentHeader()
+    {
+        return documentHeader;
+    }
+
+    /**
+     * @return Document element end tag of the original file, see
+     * {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument#getDocumentFooter() getDocumentFooter}
+     */
+    public String getDocumentFooter()
+    {
+        return documentFooter;
+    }
+
+    /**
+     * Rebuild the outer document of the original file, for hydrating records with their namespaces bound
+     *
+     * @return {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} of the original file
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public OuterDocument getOuterDocument() throws ParserConfigurationException, SAXException, IOException
+    {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+
+        Document document = dbf.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(documentHeader + documentFooter)));
+
+        return new OuterDocument(document, charset.name());
+    }
+
+    /**
+     * Read the bytes of a record, identical to its bytes in the original file
+     *
+     * @param ordinal Ordinal of the record
+     * @return The bytes of the record
+     * @throws IOException
+     */
+    public byte[] readBytes(int ordinal) throws IOException
+    {
+        if (ordinal < 0 || ordinal >= locations.size())
+        {
+            throw new IndexOutOfBoundsException("Index " + ordinal + " out of bounds for size " + locations.size());
+        }
+
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        long readStart = metricsSink.isEnabled() ? System.nanoTime() : 0;
+
+        int block = ordinal / recordsPerBlock;
+        int first = block * recordsPerBlock;
+
+        // Records are stored back to back within their block
+        int start = 0;
+        for (int i = first; i < ordinal; i++)
+        {
+            start += (int) locations.getLength(i);
+        }
+
+        int length = (int) locations.getLength(ordinal);
+        byte[] record = new byte[length];
+
+        synchronized (this)
+        {
+            System.arraycopy(inflate(block), start, record, 0, length);
+        }
+
+        if (metricsSink.isEnabled())
+        {
+            metricsSink.randomRead(length, System.nanoTime() - readStart);
+        }
+
+        return record;
+    }
+
+    /**
+     * Read a record as a string, decoded with the character encoding of the original file
+     *
+     * @param ordinal Ordinal of the record
+     * @return The XML of the record
+     * @throws IOException
+     */
+    public String read(int ordinal) throws IOException
+    {
+        return new String(readBytes(ordinal), charset);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        inflater.end();
+        cachedBytes = null;
+        source.close();
+    }
+
+    /**
+     * Inflate a block, or return it from the cache
+     *
+     * @param block Number of the block
+     * @return The uncompressed bytes of the records in the block
+     * @throws IOException
+     */
+    private byte[] inflate(int block) throws IOException
+    {
+        if (block == cachedBlock)
+        {
+            return cachedBytes;
+        }
+
+        int first = block * recordsPerBlock;
+        int last = Math.min(first + recordsPerBlock, locations.size());
+
+        long uncompressedLength = 0;
+        for (int i = first; i < last; i++)
+        {
+            uncompressedLength += locations.getLength(i);
+        }
+
+        long compressedLength = blockOffsets[block + 1] - blockOffsets[block];
+        ByteBuffer compressed = readAt(blockOffsets[block], (int) compressedLength);
+        byte[] bytes = new byte[(int) uncompressedLength];
+
+        inflater.reset();
+        if (dictionary.length > 0)
+        {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(compressed.array(), 0, compressed.limit());
+
+        try
+        {
+            int progress = 0;
+            while (progress < bytes.length)
+            {
+                int inflated = inflater.inflate(bytes, progress, bytes.length - progress);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                {
+                    throw new EOFException("Block " + block + " of " + file + " is truncated");
+                }
+
+                progress += inflated;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Block " + block + " of " + file + " is corrupt", e);
+        }
+
+        cachedBlock = block;
+        cachedBytes = bytes;
+
+        return bytes;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        source.readFully(position, buffer);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private static byte[] readBlob(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Negative length in record store header");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+}
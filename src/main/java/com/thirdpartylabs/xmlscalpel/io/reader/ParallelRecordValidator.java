@@ -0,0 +1,321 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationCursor;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerException;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Validate every record of an XML file against a compiled {@link javax.xml.validation.Schema Schema} on a pool of
+ * worker threads, using the {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} produced by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+ * <p>
+ * Each record is parsed with
+ * {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument#getSourceForRecordBytes(byte[], org.xml.sax.XMLReader)
+ * getSourceForRecordBytes}, so the namespace prefixes declared on the document element stay bound, and validated
+ * as the root element. The record element must therefore have a global declaration in the schema. The schema is
+ * shared, each worker thread keeps its own {@link javax.xml.validation.Validator Validator} and parser, so the
+ * work scales with the number of threads.
+ * <p>
+ * Errors are reported with the ordinal of the record and the absolute byte offset of the error in the file, in
+ * index order. At most maxInFlight records are in memory at once. A record that is not well-formed is reported as
+ * an error like any other.
+ * <p>
+ * Instances can be reused, but not by several threads at once.
+ */
+public class ParallelRecordValidator
+{
+    private final Schema schema;
+    private final OuterDocument outerDocument;
+    private final Charset charset;
+    private final int threads;
+    private final int maxInFlight;
+
+    // Line breaks in the header and chars on its last line, to map parser positions back into the record
+    private final int headerLines;
+    private final int headerLastLineLength;
+
+    /**
+     * Validate on one thread per processor, with four records in flight per thread
+     *
+     * @param schema        Compiled schema
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being validated
+     * @throws TransformerException
+     */
+    public ParallelRecordValidator(Schema schema, OuterDocument outerDocument) throws TransformerException
+    {
+        this(schema, outerDocument, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param schema        Compiled schema
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being validated
+     * @param threads       Number of worker threads
+     * @param maxInFlight   Maximum number of records held in memory at once
+     * @throws TransformerException
+     */
+    public ParallelRecordValidator(Schema schema, OuterDocument outerDocument, int threads, int maxInFlight)
+            throws TransformerException
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        if (maxInFlight < threads)
+        {
+            throw new IllegalArgumentException("maxInFlight must be at least the number of threads");
+        }
+
+        this.schema = schema;
+        this.outerDocument = outerDocument;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+
+        charset = Charset.forName(outerDocument.getCharacterEncoding());
+
+        String header = outerDocument.getDocumentHeader();
+        int[] lineStarts = lineStarts(header);
+        headerLines = lineStarts.length - 1;
+        headerLastLineLength = header.length() - lineStarts[headerLines];
+    }
+
+    /**
+     * Validate every record in the index
+     *
+     * @param source The XML file the index was built from
+     * @param index  Locations of the records to validate
+     * @return {@link java.util.List List} of the errors in index order, empty if every record is valid
+     * @throws IOException
+     */
+    public List<RecordValidationError> validate(File source, LocationIndex index) throws IOException
+    {
+        try (FileByteSource byteSource = new FileByteSource(source))
+        {
+            return validate(byteSource, index, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Validate the records in the index until maxErrors errors have been found
+     *
+     * @param source    The XML document the index was built from, it is not closed
+     * @param index     Locations of the records to validate
+     * @param maxErrors Stop once this many errors have been found
+     * @return {@link java.util.List List} of at most maxErrors errors in index order, empty if every record is valid
+     * @throws IOException
+     */
+    public List<RecordValidationError> validate(ByteSource source, LocationIndex index, int maxErrors)
+            throws IOException
+    {
+        if (maxErrors < 1)
+        {
+            throw new IllegalArgumentException("maxErrors must be at least 1");
+        }
+
+        List<RecordValidationError> errors = new ArrayList<>();
+
+        // One validator and parser per worker thread, for this run only
+        try (RecordWorkerPool<Worker, List<RecordValidationError>, IOException> pool = new RecordWorkerPool<>(
+                threads, maxInFlight, Worker::new, IOException.class))
+        {
+            LocationCursor cursor = index.cursor();
+            while (errors.size() < maxErrors && cursor.next())
+            {
+                XMLByteLocation location = cursor.toLocation();
+                if (location.getLength() > Integer.MAX_VALUE)
+                {
+                    throw new IOException("Record " + location.getIndex() + " is too large to validate");
+                }
+
+                if (pool.isFull())
+                {
+                    errors.addAll(pool.next());
+                }
+
+                pool.submit(worker -> worker.validate(source, location));
+            }
+
+            while (errors.size() < maxErrors && pool.hasPending())
+            {
+                errors.addAll(pool.next());
+            }
+        }
+
+        return errors.size() > maxErrors ? new ArrayList<>(errors.subList(0, maxErrors)) : errors;
+    }
+
+    /**
+     * @return Index of the first char of each line, counting \r\n, \r and \n as line breaks like the parser does
+     */
+    private static int[] lineStarts(CharSequence text)
+    {
+        int[] starts = new int[16];
+        int count = 1;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r')
+            {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                {
+                    i++;
+                }
+
+                if (count == starts.length)
+                {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * The validator and parser of a single worker thread
+     */
+    private class Worker implements ErrorHandler
+    {
+        private final Validator validator;
+        private final XMLReader parser;
+        private final List<SAXParseException> exceptions = new ArrayList<>();
+
+        private Worker() throws ParserConfigurationException, SAXException
+        {
+            validator = schema.newValidator();
+            validator.setErrorHandler(this);
+
+            // Factories are not thread-safe, so each worker makes its own
+            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+            parserFactory.setNamespaceAware(true);
+            parser = parserFactory.newSAXParser().getXMLReader();
+        }
+
+        private List<RecordValidationError> validate(ByteSource source, XMLByteLocation location)
+                throws IOException, TransformerException
+        {
+            ByteBuffer record = ByteBuffer.allocate((int) location.getLength());
+            source.readFully(location.getOffset(), record);
+
+            exceptions.clear();
+            try
+            {
+                validator.validate(outerDocument.getSourceForRecordBytes(record.array(), parser));
+            }
+            catch (SAXParseException e)
+            {
+                // Already passed to fatalError
+            }
+            catch (SAXException e)
+            {
+                exceptions.add(new SAXParseException(e.getMessage(), null, e));
+            }
+            finally
+            {
+                validator.reset();
+                validator.setErrorHandler(this);
+            }
+
+            if (exceptions.isEmpty())
+            {
+                return Collections.emptyList();
+            }
+
+            String text = new String(record.array(), charset);
+            int[] lineStarts = lineStarts(text);
+
+            List<RecordValidationError> errors = new ArrayList<>(exceptions.size());
+            for (SAXParseException exception : exceptions)
+            {
+                int charIndex = toCharIndex(exception, text, lineStarts);
+                long byteIndex = charset.encode(CharBuffer.wrap(text, 0, charIndex)).remaining();
+
+                errors.add(new RecordValidationError(location, location.getOffset() + byteIndex,
+                        exception.getMessage()));
+            }
+
+            return errors;
+        }
+
+        /**
+         * @return Position in the record text of the line and column the parser reported, clamped to the record
+         */
+        private int toCharIndex(SAXParseException exception, String text, int[] lineStarts)
+        {
+            int line = exception.getLineNumber() - 1 - headerLines;
+            int column = exception.getColumnNumber() - 1;
+
+            if (exception.getLineNumber() < 1 || line < 0)
+            {
+                return 0;
+            }
+
+            if (line >= lineStarts.length)
+            {
+                return text.length();
+            }
+
+            int index = lineStarts[line] + Math.max(column, 0) - (line == 0 ? headerLastLineLength : 0);
+            return Math.max(0, Math.min(index, text.length()));
+        }
+
+        @Override
+        public void warning(SAXParseException exception)
+        {
+        }
+
+        @Override
+        public void error(SAXParseException exception)
+        {
+            exceptions.add(exception);
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException
+        {
+            exceptions.add(exception);
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import org.codehaus.stax2.XMLStreamReader2;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mutable state for a single parse of a single file by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+ * <p>
+ * A new context is created for every read operation, so one reader instance can serve any number of concurrent
+ * reads. Instances are confined to the thread that performs the read.
+ */
+class ParseContext
+{
+    // Paths selected for extraction, already normalized. Empty means all top level elements.
+    private final Set<String> targetPaths;
+
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
+    // Full paths of the open elements, the head of the deque is the current path
+    private final Deque<String> pathStack = new ArrayDeque<>();
+
+    // Attributes needed to reopen each open element, as name value pairs, only kept for resumable reads
+    private Deque<String[]> attributeStack = null;
+
+    // The input is a sequence of documents, or of root-less top level elements
+    private boolean multiDocument = false;
+
+    private ByteTrackingReader byteTrackingReader;
+    private XMLStreamReader2 xmlStreamReader;
+
+    private final Map<String, String> documentElementAttributes = new HashMap<>();
+    private final Map<String, String> documentElementAttributeNamespaces = new HashMap<>();
+    private String documentElementTagName = null;
+    private String documentElementPrefix = null;
+    private String encoding = null;
+    private String xmlVersion = null;
+    private String characterEncodingScheme = null;
+
+    /**
+     * @param targetPaths Normalized target paths, must not be modified while the context is in use
+     */
+    ParseContext(Set<String> targetPaths)
+    {
+        this.targetPaths = targetPaths;
+    }
+
+    /**
+     * Attach the readers that were opened for this parse
+     *
+     * @param byteTrackingReader Reader that maps char offsets to byte offsets
+     * @param xmlStreamReader    Woodstox stream reader reading from the byteTrackingReader
+     */
+    void attach(ByteTrackingReader byteTrackingReader, XMLStreamReader2 xmlStreamReader)
+    {
+        this.byteTrackingReader = byteTrackingReader;
+        this.xmlStreamReader = xmlStreamReader;
+    }
+
+    /**
+     * Close the readers and drop references to them, the document metadata remains available
+     * <p>
+     * The file is only ever read, so failures while closing it are of no interest to the caller.
+     */
+    void release()
+    {
+        try
+        {
+            if (xmlStreamReader != null)
+            {
+                xmlStreamReader.close();
+            }
+
+            if (byteTrackingReader != null)
+            {
+                byteTrackingReader.close();
+            }
+        }
+        catch (XMLStreamException | IOException e)
+        {
+            // Nothing useful to do, the read itself either succeeded or is already failing
+        }
+        finally
+        {
+            xmlStreamReader = null;
+            byteTrackingReader = null;
+            pathStack.clear();
+
+            if (attributeStack != null)
+            {
+                attributeStack.clear();
+            }
+        }
+    }
+
+    ByteTrackingReader getByteTrackingReader()
+    {
+        return byteTrackingReader;
+    }
+
+    XMLStreamReader2 getXmlStreamReader()
+    {
+        return xmlStreamReader;
+    }
+
+    /**
+     * Push an element onto the tag stack and update the current path
+     *
+     * @param qName Name of the element being entered
+     */
+    void pushTag(QName qName)
+    {
+        pathStack.push(pathFor(qName));
+
+        if (attributeStack != null)
+        {
+            attributeStack.push(NO_ATTRIBUTES);
+        }
+    }
+
+    private String pathFor(QName qName)
+    {
+        String parentPath = pathStack.peek();
+        String name = StreamingXMLReader.normalizeQname(qName);
+
+        return parentPath == null ? "/" + name : parentPath + "/" + name;
+    }
+
+    /**
+     * @param reader            Reader positioned on a start element
+     * @param includeAttributes Keep the ordinary attributes as well as the namespace declarations
+     * @return Name value pairs
+     */
+    private static String[] captureAttributes(XMLStreamReader reader, boolean includeAttributes)
+    {
+        int namespaceCount = reader.getNamespaceCount();
+        int attributeCount = includeAttributes ? reader.getAttributeCount() : 0;
+        if (namespaceCount == 0 && attributeCount == 0)
+        {
+            return NO_ATTRIBUTES;
+        }
+
+        String[] pairs = new String[(namespaceCount + attributeCount) * 2];
+        int next = 0;
+        for (int i = 0; i < namespaceCount; i++)
+        {
+            String prefix = reader.getNamespacePrefix(i);
+            String uri = reader.getNamespaceURI(i);
+
+            pairs[next++] = (prefix == null || prefix.isEmpty()) ? "xmlns" : "xmlns:" + prefix;
+            pairs[next++] = uri == null ? "" : uri;
+        }
+
+        for (int i = 0; i < attributeCount; i++)
+        {
+            pairs[next++] = StreamingXMLReader.normalizeQname(reader.getAttributeName(i));
+            pairs[next++] = reader.getAttributeValue(i);
+        }
+
+        return pairs;
+    }
+
+    private static void escapeAttribute(String value, StringBuilder target)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '&':
+                    target.append("&amp;");
+                    break;
+                case '<':
+                    target.append("&lt;");
+                    break;
+                case '"':
+                    target.append("&quot;");
+                    break;
+                case '\t':
+                    target.append("&#9;");
+                    break;
+                case '\n':
+                    target.append("&#10;");
+                    break;
+                case '\r':
+                    target.append("&#13;");
+                    break;
+                default:
+                    target.append(c);
+            }
+        }
+    }
+
+    /**
+     * Push the element the reader is positioned on onto the tag stack, along with the attributes needed to reopen
+     * it if open tags are tracked
+     *
+     * @param reader Reader positioned on a start element
+     */
+    void pushTag(XMLStreamReader reader)
+    {
+        pathStack.push(pathFor(reader.getName()));
+
+        if (attributeStack != null)
+        {
+            attributeStack.push(captureAttributes(reader, pathStack.size() == 1));
+        }
+    }
+
+    /**
+     * Pop the current element off of the tag stack
+     */
+    void popTag()
+    {
+        pathStack.pop();
+
+        if (attributeStack != null)
+        {
+            attributeStack.pop();
+        }
+    }
+
+    /**
+     * Parse the input as a sequence of documents rather than a single one. Each document element is a top level
+     * element, and target paths are matched from the document element of each document.
+     */
+    void setMultiDocument()
+    {
+        multiDocument = true;
+    }
+
+    boolean isMultiDocument()
+    {
+        return multiDocument;
+    }
+
+    /**
+     * Keep what is needed to reopen the open elements, see {@link #getOpenTags()}
+     */
+    void trackOpenTags()
+    {
+        attributeStack = new ArrayDeque<>();
+    }
+
+    /**
+     * Start tags that reopen the open elements, outermost first. Parsing these followed by the rest of the file from
+     * the current position puts a parser in the same state as this one: the same elements are open with the same
+     * namespace bindings. The attributes of the document element are included, other attributes are not.
+     *
+     * @return The start tags
+     */
+    String getOpenTags()
+    {
+        if (attributeStack == null)
+        {
+            throw new IllegalStateException("Open tags are not tracked");
+        }
+
+        StringBuilder tags = new StringBuilder();
+
+        Iterator<String> paths = pathStack.descendingIterator();
+        Iterator<String[]> attributes = attributeStack.descendingIterator();
+        while (paths.hasNext())
+        {
+            String path = paths.next();
+            tags.append('<').append(path, path.lastIndexOf('/') + 1, path.length());
+
+            String[] pairs = attributes.next();
+            for (int i = 0; i < pairs.length; i += 2)
+            {
+                tags.append(' ').append(pairs[i]).append("=\"");
+                escapeAttribute(pairs[i + 1], tags);
+                tags.append('"');
+            }
+
+            tags.append('>');
+        }
+
+        return tags.toString();
+    }
+
+    /**
+     * @return The normalized path of the current element
+     */
+    String getCurrentPath()
+    {
+        String path = pathStack.peek();
+        return path == null ? "/" : path;
+    }
+
+    /**
+     * @return Number of open elements, including the document element
+     */
+    int getDepth()
+    {
+        return pathStack.size();
+    }
+
+    /**
+     * Use the current path to determine whether or not to process the current element
+     *
+     * @return boolean
+     */
+    boolean elementIsEligibleForProcessing()
+    {
+        // If there are no path specs, always handle the opening element events
+        if (targetPaths.isEmpty())
+        {
+            return true;
+        }
+
+        // Only handle the event if the current path matches a user path
+        return targetPaths.contains(getCurrentPath());
+    }
+
+    Map<String, String> getDocumentElementAttributes()
+    {
+        return documentElementAttributes;
+    }
+
+    Map<String, String> getDocumentElementAttributeNamespaces()
+    {
+        return documentElementAttributeNamespaces;
+    }
+
+    String getDocumentElementTagName()
+    {
+        return documentElementTagName;
+    }
+
+    void setDocumentElementTagName(String documentElementTagName)
+    {
+        this.documentElementTagName = documentElementTagName;
+    }
+
+    String getDocumentElementPrefix()
+    {
+        return documentElementPrefix;
+    }
+
+    void setDocumentElementPrefix(String documentElementPrefix)
+    {
+        this.documentElementPrefix = documentElementPrefix;
+    }
+
+    String getEncoding()
+    {
+        return encoding;
+    }
+
+    void setEncoding(String encoding)
+    {
+        this.encoding = encoding;
+    }
+
+    String getXmlVersion()
+    {
+        return xmlVersion;
+    }
+
+    void setXmlVersion(String xmlVersion)
+    {
+        this.xmlVersion = xmlVersion;
+    }
+
+    String getCharacterEncodingScheme()
+    {
+        return characterEncodingScheme;
+    }
+
+    void setCharacterEncodingScheme(String characterEncodingScheme)
+    {
+        this.characterEncodingScheme = characterEncodingScheme;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Captures a handful of fields from each record while streaming through it, without building a DOM, and binds them
+ * to a {@link java.lang.String String} row in the order of the field paths.
+ * <p>
+ * Pass a projection to
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader#bindFile(java.io.File, XMLRecordBinder,
+ * com.thirdpartylabs.xmlscalpel.processor.XMLRecordProcessor, List) bindFile} to receive each row along with the
+ * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of its record. This is the fast path
+ * for listing and search views that only need a few fields of every record.
+ * <p>
+ * Field paths are relative to the record element, using the same names as target paths:
+ * <ul>
+ * <li>{@code sku} the text of the first {@code sku} child</li>
+ * <li>{@code info/aw:id} the text of a nested element</li>
+ * <li>{@code @id} an attribute of the record element</li>
+ * <li>{@code info/@id} an attribute of a nested element</li>
+ * </ul>
+ * Text is trimmed, and only the text directly inside the element is captured. The first match in document order is
+ * used, fields that do not match are null. Instances are immutable and can be shared between threads.
+ */
+public class Projection implements XMLRecordBinder<String[]>
+{
+    private final List<String> fieldPaths;
+
+    private final FieldPath[] fields;
+
+    // Depth of the deepest element named by any field
+    private final int maxDepth;
+
+    /**
+     * @param fieldPaths Field paths, see the class description
+     */
+    public Projection(String... fieldPaths)
+    {
+        this(Arrays.asList(fieldPaths));
+    }
+
+    /**
+     * @param fieldPaths {@link java.util.List List} of field paths, see the class description
+     */
+    public Projection(List<String> fieldPaths)
+    {
+        if (fieldPaths.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one field path is required");
+        }
+
+        this.fieldPaths = Collections.unmodifiableList(Arrays.asList(fieldPaths.toArray(new String[0])));
+        fields = new FieldPath[fieldPaths.size()];
+
+        int deepest = 0;
+        for (int i = 0; i < fields.length; i++)
+        {
+            fields[i] = FieldPath.parse(fieldPaths.get(i), "field path");
+            deepest = Math.max(deepest, fields[i].getDepth());
+        }
+
+        maxDepth = deepest;
+    }
+
+    /**
+     * @return The field paths, in row order
+     */
+    public List<String> getFieldPaths()
+    {
+        return fieldPaths;
+    }
+
+    /**
+     * @param fieldPath A field path as it was passed to the constructor
+     * @return Position of the field in the row, or -1 if it is not part of the projection
+     */
+    public int indexOf(String fieldPath)
+    {
+        return fieldPaths.indexOf(fieldPath);
+    }
+
+    @Override
+    public String[] bind(XMLStreamReader reader, XMLByteLocation location) throws XMLStreamException
+    {
+        return capture(reader);
+    }
+
+    /**
+     * Stream through the record the reader is positioned on and capture its fields
+     *
+     * @param reader Reader positioned on the start element of the record, it is left on the matching end element
+     * @return The row of field values, in the order of the field paths
+     * @throws XMLStreamException
+     */
+    public String[] capture(XMLStreamReader reader) throws XMLStreamException
+    {
+        String[] row = new String[fields.length];
+        int remaining = fields.length;
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (fields[i].getDepth() == 0)
+            {
+                // Attributes of the record element are settled here, whether they are present or not
+                row[i] = fields[i].getAttributeValue(reader);
+                remaining--;
+            }
+        }
+
+        // Names of the open elements below the record element, up to the deepest one any field can match
+        String[] path = new String[maxDepth];
+        int depth = 0;
+
+        // Text of the fields whose element is open
+        StringBuilder[] texts = new StringBuilder[fields.length];
+
+        while (true)
+        {
+            int eventType = reader.next();
+
+            if (eventType == XMLStreamConstants.START_ELEMENT)
+            {
+                depth++;
+
+                // Once every field has been seen the rest of the record only needs to be walked past
+                if (remaining > 0 && depth <= maxDepth)
+                {
+                    path[depth - 1] = StreamingXMLReader.normalizeQname(reader.getName());
+
+                    for (int i = 0; i < fields.length; i++)
+                    {
+                        if (row[i] == null && texts[i] == null && fields[i].matches(path, depth))
+                        {
+                            if (fields[i].getAttribute() == null)
+                            {
+                                texts[i] = new StringBuilder();
+                            }
+                            else
+                            {
+                                // Without the attribute a later element can still fill the field
+                                row[i] = fields[i].getAttributeValue(reader);
+                                if (row[i] != null)
+                                {
+                                    remaining--;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            else if (eventType == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == 0)
+                {
+                    return row;
+                }
+
+                for (int i = 0; i < fields.length; i++)
+                {
+                    if (texts[i] != null && fields[i].getDepth() == depth)
+                    {
+                        row[i] = texts[i].toString().trim();
+                        texts[i] = null;
+                        remaining--;
+                    }
+                }
+
+                depth--;
+            }
+            else if (depth > 0 && depth <= maxDepth && (eventType == XMLStreamConstants.CHARACTERS
+                    || eventType == XMLStreamConstants.CDATA || eventType == XMLStreamConstants.SPACE))
+            {
+                for (int i = 0; i < fields.length; i++)
+                {
+                    if (texts[i] != null && fields[i].getDepth() == depth)
+                    {
+                        texts[i].append(reader.getText());
+                    }
+                }
+            }
+        }
+    }
+}
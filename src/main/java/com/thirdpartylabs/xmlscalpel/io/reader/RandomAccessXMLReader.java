@@ -16,12 +16,20 @@
 package com.thirdpartylabs.xmlscalpel.io.reader;
 
 import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * Fast retrieval of strings from a file by byte offset and length as defined by an
@@ -29,6 +37,12 @@ import java.nio.charset.StandardCharsets;
  */
 public class RandomAccessXMLReader
 {
+    // Records closer together than this are fetched from a ByteSource in one request
+    private static final long COALESCE_GAP = 65536;
+
+    // Spans are not grown past this, so a prefetched span fits well within the cache of a remote source
+    private static final long MAX_SPAN = 4L << 20;
+
     /**
      * Get a {@link java.lang.String String} from the provided {@link java.io.File File} using the offset and
      * length from the {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}, encoded with the
@@ -73,35 +87,158 @@ public class RandomAccessXMLReader
         long byteOffset = xmlByteLocation.getOffset();
         long length = xmlByteLocation.getLength();
 
-        // Open the file for reading as a RandomAccessFile
-        RandomAccessFile ram = new RandomAccessFile(file, "r");
-
-        // Keep track of how many bytes we've read
-        int progress = 0;
-
-        // Set the pointer to our offset
-        ram.seek(byteOffset);
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        long readStart = metricsSink.isEnabled() ? System.nanoTime() : 0;
 
         // Set up a byte buffer with the appropriate length
         byte[] buffer = new byte[(int) length];
 
-        // Read in 8K chunks
-        int maxReadLength = (int) Math.min(length, 8192);
-        while (progress < length)
+        // Open the file for reading as a RandomAccessFile
+        try (RandomAccessFile ram = new RandomAccessFile(file, "r"))
         {
-            /*
-                Once we're within the range of the final chunk,
-                change the length to the number of remaining bytes
-             */
-            int currLength = Math.min((int) length - progress, maxReadLength);
+            // Keep track of how many bytes we've read
+            int progress = 0;
+
+            // Set the pointer to our offset
+            ram.seek(byteOffset);
 
-            // Get the current chunk
-            int currRead = ram.read(buffer, progress, currLength);
+            // Read in 8K chunks
+            int maxReadLength = (int) Math.min(length, 8192);
+            while (progress < length)
+            {
+                /*
+                    Once we're within the range of the final chunk,
+                    change the length to the number of remaining bytes
+                 */
+                int currLength = Math.min((int) length - progress, maxReadLength);
 
-            // Update our progress
-            progress += currRead;
+                // Get the current chunk
+                int currRead = ram.read(buffer, progress, currLength);
+                if (currRead < 0)
+                {
+                    throw new EOFException("Location " + xmlByteLocation + " extends past the end of the file");
+                }
+
+                // Update our progress
+                progress += currRead;
+            }
+        }
+
+        if (metricsSink.isEnabled())
+        {
+            metricsSink.randomRead(length, System.nanoTime() - readStart);
         }
 
         return new String(buffer, charset);
     }
+
+    /**
+     * Get a {@link java.lang.String String} from a
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} using the offset and length from the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}, decoded as UTF-8
+     * @param source The {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} to extract data from
+     * @param xmlByteLocation Object containing the byte coordinates
+     * @return String representation of the requested bytes
+     * @throws IOException
+     */
+    public static String read(ByteSource source, XMLByteLocation xmlByteLocation) throws IOException
+    {
+        return read(source, xmlByteLocation, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a {@link java.lang.String String} from a
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} using the offset and length from the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation}, decoded with the provided charset
+     * <p>
+     * The whole record is requested from the source at once, so a remote source fetches it in one round trip.
+     * @param source The {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} to extract data from
+     * @param xmlByteLocation Object containing the byte coordinates
+     * @param charset Charset to be used when creating the String from extracted bytes
+     * @return String representation of the requested bytes
+     * @throws IOException
+     */
+    public static String read(ByteSource source, XMLByteLocation xmlByteLocation, Charset charset) throws IOException
+    {
+        source.prefetch(xmlByteLocation.getOffset(), xmlByteLocation.getLength());
+
+        return new String(readBytes(source, xmlByteLocation), charset);
+    }
+
+    /**
+     * Get the {@link java.lang.String String} for each of a list of locations from a
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}
+     * <p>
+     * Locations that are close together in the document are coalesced into spans of up to 4 MB, and each span is
+     * prefetched from the source in one request, so a page of neighbouring records from a remote source costs one
+     * round trip.
+     * @param source The {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} to extract data from
+     * @param locations {@link java.util.List List} of locations to read, in any order
+     * @param charset Charset to be used when creating the Strings from extracted bytes
+     * @return {@link java.util.List List} of Strings in the order of the locations
+     * @throws IOException
+     */
+    public static List<String> readAll(ByteSource source, List<XMLByteLocation> locations, Charset charset)
+            throws IOException
+    {
+        // Positions in the list, in document order
+        Integer[] order = new Integer[locations.size()];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> locations.get(i).getOffset()));
+
+        String[] output = new String[order.length];
+
+        int from = 0;
+        while (from < order.length)
+        {
+            long spanStart = locations.get(order[from]).getOffset();
+            long spanEnd = spanStart + locations.get(order[from]).getLength();
+
+            int to = from + 1;
+            while (to < order.length && locations.get(order[to]).getOffset() - spanEnd <= COALESCE_GAP)
+            {
+                XMLByteLocation location = locations.get(order[to]);
+                long end = Math.max(spanEnd, location.getOffset() + location.getLength());
+                if (end - spanStart > MAX_SPAN)
+                {
+                    break;
+                }
+
+                spanEnd = end;
+                to++;
+            }
+
+            // Read the span while it is fresh in the source's cache
+            source.prefetch(spanStart, spanEnd - spanStart);
+            for (int i = from; i < to; i++)
+            {
+                output[order[i]] = new String(readBytes(source, locations.get(order[i])), charset);
+            }
+
+            from = to;
+        }
+
+        return Arrays.asList(output);
+    }
+
+    private static byte[] readBytes(ByteSource source, XMLByteLocation xmlByteLocation) throws IOException
+    {
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        long readStart = metricsSink.isEnabled() ? System.nanoTime() : 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) xmlByteLocation.getLength());
+        source.readFully(xmlByteLocation.getOffset(), buffer);
+
+        if (metricsSink.isEnabled())
+        {
+            metricsSink.randomRead(xmlByteLocation.getLength(), System.nanoTime() - readStart);
+        }
+
+        return buffer.array();
+    }
 }
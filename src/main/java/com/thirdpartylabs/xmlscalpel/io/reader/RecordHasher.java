@@ -0,0 +1,98 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.XXHash64;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Hashes the raw bytes of records as they are indexed.
+ * <p>
+ * Records arrive in file order just behind the parser, so the bytes are read through a window that only moves
+ * forward, one large read per window, from pages the parser has just pulled into the cache.
+ */
+class RecordHasher
+{
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    private final ByteSource source;
+    private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+    private final XXHash64 hash = new XXHash64();
+
+    // File position of the first byte in the window
+    private long windowStart = 0;
+
+    /**
+     * @param source The source being indexed, it is not closed by the hasher
+     */
+    RecordHasher(ByteSource source)
+    {
+        this.source = source;
+        window.limit(0);
+    }
+
+    /**
+     * @param offset Byte offset of the record
+     * @param length Number of bytes in the record
+     * @return {@link XXHash64} hash of the bytes
+     * @throws IOException
+     */
+    long hash(long offset, long length) throws IOException
+    {
+        hash.reset();
+
+        long position = offset;
+        long end = offset + length;
+        while (position < end)
+        {
+            if (position < windowStart || position >= windowStart + window.limit())
+            {
+                fill(position);
+            }
+
+            int start = (int) (position - windowStart);
+            int count = (int) Math.min(end - position, window.limit() - start);
+
+            hash.update(window.array(), start, count);
+            position += count;
+        }
+
+        return hash.getValue();
+    }
+
+    private void fill(long position) throws IOException
+    {
+        window.clear();
+        windowStart = position;
+
+        while (window.hasRemaining())
+        {
+            if (source.read(position + window.position(), window) < 0)
+            {
+                break;
+            }
+        }
+
+        window.flip();
+        if (!window.hasRemaining())
+        {
+            throw new EOFException("Record at byte " + position + " extends past the end of the file");
+        }
+    }
+}
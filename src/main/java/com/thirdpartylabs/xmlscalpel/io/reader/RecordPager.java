@@ -0,0 +1,269 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Pages and reproducible samples of the records in a file, located by ordinal in a
+ * {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex}
+ * <p>
+ * Locating a record costs one lookup in the index whatever its ordinal, and the records of a page or sample are
+ * read in one batch with
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader#readAll(ByteSource, List, Charset) readAll},
+ * so records that are close together in the file are fetched together. Samples are drawn from
+ * {@link java.util.Random Random}, whose sequence is fixed for a seed, so the same seed draws the same ordinals
+ * from the same index on any JVM.
+ * <p>
+ * For files that have not been indexed see
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader#pageFile(java.io.File, long, int, List) pageFile}
+ * and
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader#sampleFile(java.io.File, int, long, List)
+ * sampleFile}.
+ */
+public class RecordPager
+{
+    // Above this fraction of the records a sample is drawn in one pass over the ordinals rather than by lookups
+    private static final int DENSE_SAMPLE_DIVISOR = 32;
+
+    private final ByteSource source;
+    private final LocationIndex index;
+    private final Charset charset;
+
+    /**
+     * Records are decoded as UTF-8
+     *
+     * @param source The {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} the index was built
+     *               from, it is not closed by the pager
+     * @param index  {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the records
+     */
+    public RecordPager(ByteSource source, LocationIndex index)
+    {
+        this(source, index, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param source  The {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} the index was built
+     *                from, it is not closed by the pager
+     * @param index   {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the records
+     * @param charset Charset to be used when creating the Strings from the records
+     */
+    public RecordPager(ByteSource source, LocationIndex index, Charset charset)
+    {
+        this.source = source;
+        this.index = index;
+        this.charset = charset;
+    }
+
+    /**
+     * @return Number of records in the index
+     */
+    public int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Read consecutive records
+     *
+     * @param offset Ordinal of the first record
+     * @param limit  Maximum number of records to read
+     * @return {@link java.util.List List} of the records, empty if offset is past the last record
+     * @throws IOException
+     */
+    public List<String> page(int offset, int limit) throws IOException
+    {
+        if (offset < 0 || limit < 0)
+        {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+
+        int to = (int) Math.min((long) offset + limit, index.size());
+
+        List<XMLByteLocation> locations = new ArrayList<>(Math.max(0, to - offset));
+        for (int i = offset; i < to; i++)
+        {
+            locations.add(index.getLocation(i));
+        }
+
+        return RandomAccessXMLReader.readAll(source, locations, charset);
+    }
+
+    /**
+     * Read a simple random sample of the records
+     *
+     * @param fraction Fraction of the records to read, between 0 and 1
+     * @param seed     Seed for the sample
+     * @return {@link java.util.List List} of the records, in ordinal order
+     * @throws IOException
+     * @see #sampleOrdinals(int, int, long)
+     */
+    public List<String> sample(double fraction, long seed) throws IOException
+    {
+        return read(sampleOrdinals(index.size(), getCount(fraction), seed));
+    }
+
+    /**
+     * Read a stratified sample of the records, one from each of a number of equal runs of ordinals, so the sample
+     * is spread evenly over the file
+     *
+     * @param fraction Fraction of the records to read, between 0 and 1
+     * @param seed     Seed for the sample
+     * @return {@link java.util.List List} of the records, in ordinal order
+     * @throws IOException
+     * @see #stratifiedOrdinals(int, int, long)
+     */
+    public List<String> sampleStratified(double fraction, long seed) throws IOException
+    {
+        return read(stratifiedOrdinals(index.size(), getCount(fraction), seed));
+    }
+
+    /**
+     * Read the records with the provided ordinals
+     *
+     * @param ordinals Ordinals of the records, in any order
+     * @return {@link java.util.List List} of the records, in the order of the ordinals
+     * @throws IOException
+     */
+    public List<String> read(int[] ordinals) throws IOException
+    {
+        return RandomAccessXMLReader.readAll(source, getLocations(ordinals), charset);
+    }
+
+    /**
+     * @param ordinals Ordinals of the records, in any order
+     * @return {@link java.util.List List} of the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects for the records, in the
+     * order of the ordinals
+     */
+    public List<XMLByteLocation> getLocations(int[] ordinals)
+    {
+        List<XMLByteLocation> locations = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals)
+        {
+            locations.add(index.getLocation(ordinal));
+        }
+
+        return locations;
+    }
+
+    /**
+     * Draw a simple random sample of ordinals without replacement. Small samples are drawn with Floyd's algorithm,
+     * in time and memory proportional to the sample, large ones by selection sampling in a single pass over the
+     * ordinals.
+     *
+     * @param size  Number of records to draw from
+     * @param count Number of ordinals to draw, at most size
+     * @param seed  Seed for the sample
+     * @return The ordinals, in ascending order
+     */
+    public static int[] sampleOrdinals(int size, int count, long seed)
+    {
+        checkCount(size, count);
+
+        Random random = new Random(seed);
+        int[] ordinals = new int[count];
+
+        if (count > size / DENSE_SAMPLE_DIVISOR)
+        {
+            // Take each ordinal with the probability of it being one of those still needed
+            int taken = 0;
+            for (int i = 0; taken < count; i++)
+            {
+                if (random.nextInt(size - i) < count - taken)
+                {
+                    ordinals[taken++] = i;
+                }
+            }
+
+            return ordinals;
+        }
+
+        Set<Integer> drawn = new HashSet<>(count * 2);
+        int taken = 0;
+        for (int j = size - count; j < size; j++)
+        {
+            int ordinal = random.nextInt(j + 1);
+            if (!drawn.add(ordinal))
+            {
+                // j can not have been drawn yet
+                ordinal = j;
+                drawn.add(j);
+            }
+
+            ordinals[taken++] = ordinal;
+        }
+
+        Arrays.sort(ordinals);
+        return ordinals;
+    }
+
+    /**
+     * Draw a stratified sample of ordinals. The ordinals are divided into count runs of equal length, give or take
+     * one, and one ordinal is drawn from each run.
+     *
+     * @param size  Number of records to draw from
+     * @param count Number of ordinals to draw, at most size
+     * @param seed  Seed for the sample
+     * @return The ordinals, in ascending order
+     */
+    public static int[] stratifiedOrdinals(int size, int count, long seed)
+    {
+        checkCount(size, count);
+
+        Random random = new Random(seed);
+        int[] ordinals = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            int start = (int) ((long) size * i / count);
+            int end = (int) ((long) size * (i + 1) / count);
+
+            ordinals[i] = start + random.nextInt(end - start);
+        }
+
+        return ordinals;
+    }
+
+    private int getCount(double fraction)
+    {
+        if (fraction < 0 || fraction > 1)
+        {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+
+        return (int) Math.round(index.size() * fraction);
+    }
+
+    private static void checkCount(int size, int count)
+    {
+        if (count < 0 || count > size)
+        {
+            throw new IllegalArgumentException("count must be between 0 and the number of records");
+        }
+    }
+}
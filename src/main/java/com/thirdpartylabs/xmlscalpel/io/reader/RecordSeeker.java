@@ -0,0 +1,567 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Finds records near arbitrary byte positions in a file that has not been indexed, by seeking and scanning forward
+ * to the next record start tag.
+ * <p>
+ * A start tag with the name of a record element is only taken for a record if the element that follows it is
+ * another record, or the end tag of a record's parent, and if the record does not close a comment, CDATA section or
+ * processing instruction that the seek landed in. That rejects start tags of other depths in most documents, but a
+ * feed that nests elements with the same name as its records inside them, followed by siblings of the same name,
+ * can still be resynced onto one of those. The records that follow a verified record are found without scanning
+ * again.
+ * <p>
+ * A {@code -->} or {@code ?>} is legal in character data, so it only counts as the end of a comment or processing
+ * instruction if one is open in front of the start tag. Finding out means looking back through the document, which
+ * is only done for records that contain such a sequence.
+ * <p>
+ * Like the {@link TagScanner} the seeker works on UTF-8, US-ASCII and ISO-8859-1 documents and reports exact byte
+ * offsets. Instances read a single {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} and are not
+ * thread-safe.
+ */
+class RecordSeeker
+{
+    // Scans from a seek are short, a large buffer would mostly be read for nothing
+    private static final int BUFFER_SIZE = 16384;
+
+    // Positions sampled, and records read at each, when estimating the average distance between records
+    private static final int PROBES = 16;
+    private static final int PROBE_RECORDS = 16;
+
+    // Returned by follow when the next tag is not a record
+    private static final long PARENT_END = -1;
+    private static final long UNRELATED = -2;
+
+    private static final String COMMENT_START = "<!--";
+    private static final String COMMENT_END = "-->";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+    private static final String PI_START = "<?";
+    private static final String PI_END = "?>";
+
+    private final ByteSource source;
+    private final long size;
+
+    // Record element names, and the names of their parents, as they appear in tags
+    private final Set<String> names = new HashSet<>();
+    private final Set<String> parents = new HashSet<>();
+
+    // Offset of the first record, found on demand
+    private long firstRecord = -1;
+
+    /**
+     * @param source      Source of the document, only positional reads are used
+     * @param targetPaths Normalized target paths, if empty the records are taken to be elements with the name of
+     *                    the first child of the document element
+     * @throws IOException
+     * @throws XMLParseException If the document has no records to take the name from
+     */
+    RecordSeeker(ByteSource source, Set<String> targetPaths) throws IOException, XMLParseException
+    {
+        this.source = source;
+        this.size = source.size();
+
+        if (targetPaths.isEmpty())
+        {
+            addFirstChildName();
+        }
+
+        for (String targetPath : targetPaths)
+        {
+            String[] steps = targetPath.substring(1).split("/");
+
+            names.add(steps[steps.length - 1]);
+            if (steps.length > 1)
+            {
+                parents.add(steps[steps.length - 2]);
+            }
+        }
+    }
+
+    /**
+     * Find records starting at or after a byte offset
+     *
+     * @param position Offset to start looking from, it need not be at a tag
+     * @param count    Maximum number of records to find
+     * @return {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of the records, in document
+     * order
+     * @throws IOException
+     * @throws XMLParseException If an element that looks like a record is not terminated
+     */
+    LocationTable read(long position, int count) throws IOException, XMLParseException
+    {
+        LocationTable table = new LocationTable(Math.min(count, 1024));
+
+        long from = position;
+        while (table.size() < count)
+        {
+            TagScanner scanner = open(from);
+            long start = nextCandidate(scanner);
+            if (start < 0)
+            {
+                break;
+            }
+
+            long end = skipRecord(scanner);
+            long next = follow(scanner);
+            if (next == UNRELATED || !isElement(start, end))
+            {
+                // Not a record, look again from the byte after its start tag
+                from = start + 1;
+                continue;
+            }
+
+            table.add(start, end - start);
+
+            // Siblings of a record are records too
+            while (next >= 0 && table.size() < count)
+            {
+                start = next;
+                end = skipRecord(scanner);
+                next = follow(scanner);
+
+                table.add(start, end - start);
+            }
+
+            // Records may continue under another parent
+            from = scanner.position();
+        }
+
+        return table;
+    }
+
+    /**
+     * Estimate the offset of a record from its ordinal, on the assumption that the records are spread evenly
+     * through the file. The average distance between records is measured at a few positions spread over the file.
+     *
+     * @param ordinal Position of the record in document order
+     * @return Estimated byte offset of the record, may be past the end of the file
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    long estimateOffset(long ordinal) throws IOException, XMLParseException
+    {
+        long first = getFirstRecord();
+        if (ordinal == 0 || first >= size)
+        {
+            return first;
+        }
+
+        long span = 0;
+        long gaps = 0;
+        for (int i = 0; i < PROBES; i++)
+        {
+            LocationTable probe = read(first + (size - first) / PROBES * i, PROBE_RECORDS);
+            if (probe.size() > 1)
+            {
+                span += probe.getOffset(probe.size() - 1) - probe.getOffset(0);
+                gaps += probe.size() - 1;
+            }
+        }
+
+        if (gaps == 0)
+        {
+            // At most a handful of records
+            return (ordinal < PROBE_RECORDS) ? first : size;
+        }
+
+        return first + (long) (ordinal * ((double) span / gaps));
+    }
+
+    /**
+     * Pick one record from each of a number of equal byte ranges between the first record and the end of the file.
+     * A record is picked by a random position in the range, and is the first record that starts after it, so long
+     * records, and records after long stretches of other content, are more likely to be picked.
+     *
+     * @param count Number of ranges
+     * @param seed  Seed for the random positions, the same seed picks the same records from the same file
+     * @return {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most count records, in
+     * document order
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    LocationTable sample(int count, long seed) throws IOException, XMLParseException
+    {
+        LocationTable table = new LocationTable(Math.min(count, 1024));
+
+        long first = getFirstRecord();
+        double width = (double) (size - first) / count;
+        Random random = new Random(seed);
+
+        for (int i = 0; i < count; i++)
+        {
+            long position = first + (long) ((i + random.nextDouble()) * width);
+
+            // A record that starts in a later range can be found from several positions
+            if (table.size() > 0 && position <= table.getOffset(table.size() - 1))
+            {
+                continue;
+            }
+
+            LocationTable found = read(position, 1);
+            if (found.size() == 0)
+            {
+                break;
+            }
+
+            if (table.size() == 0 || found.getOffset(0) != table.getOffset(table.size() - 1))
+            {
+                table.add(found.getOffset(0), found.getLength(0));
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * @return Offset of the first record, or the size of the file if there are none
+     */
+    private long getFirstRecord() throws IOException, XMLParseException
+    {
+        if (firstRecord < 0)
+        {
+            LocationTable first = read(0, 1);
+            firstRecord = (first.size() == 0) ? size : first.getOffset(0);
+        }
+
+        return firstRecord;
+    }
+
+    /**
+     * Take the record name from the first child of the document element, and the parent name from the document
+     * element
+     */
+    private void addFirstChildName() throws IOException, XMLParseException
+    {
+        TagScanner scanner = open(0);
+
+        String parent = null;
+        while (scanner.skipPast('<'))
+        {
+            int next = scanner.read();
+            if (next == '/' || scanner.skipMarkup(next))
+            {
+                continue;
+            }
+
+            String name = scanner.readName(next);
+            if (parent != null)
+            {
+                parents.add(parent);
+                names.add(name);
+                return;
+            }
+
+            if (scanner.skipAttributes())
+            {
+                break;
+            }
+            parent = name;
+        }
+
+        throw new XMLParseException("The document element has no children to take the record name from");
+    }
+
+    /**
+     * Find the next start tag with the name of a record, stepping over comments, CDATA sections and processing
+     * instructions
+     *
+     * @return Offset of the start tag, the scanner is left just after its name, or -1 at the end of the file
+     */
+    private long nextCandidate(TagScanner scanner) throws IOException, XMLParseException
+    {
+        while (scanner.skipPast('<'))
+        {
+            long tagStart = scanner.position() - 1;
+
+            int next = scanner.read();
+            if (next < 0)
+            {
+                break;
+            }
+
+            if (next == '/' || scanner.skipMarkup(next))
+            {
+                continue;
+            }
+
+            if (names.contains(scanner.readName(next)))
+            {
+                return tagStart;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Skip the attributes, content and end tag of a record whose name has been consumed
+     *
+     * @return Offset just after the record
+     */
+    private static long skipRecord(TagScanner scanner) throws IOException, XMLParseException
+    {
+        if (!scanner.skipAttributes())
+        {
+            scanner.skipElement();
+        }
+
+        return scanner.position();
+    }
+
+    /**
+     * Find what follows a record, stepping over other elements and markup
+     *
+     * @return Offset of the next record, the scanner is left just after its name, {@link #PARENT_END} at the end
+     * of the parent or of the file, or {@link #UNRELATED} at any other end tag
+     */
+    private long follow(TagScanner scanner) throws IOException, XMLParseException
+    {
+        while (scanner.skipPast('<'))
+        {
+            long tagStart = scanner.position() - 1;
+
+            int next = scanner.read();
+            if (next == '/')
+            {
+                return parents.contains(scanner.readName(scanner.read())) ? PARENT_END : UNRELATED;
+            }
+
+            if (next < 0)
+            {
+                break;
+            }
+
+            if (scanner.skipMarkup(next))
+            {
+                continue;
+            }
+
+            if (names.contains(scanner.readName(next)))
+            {
+                return tagStart;
+            }
+
+            // Some other element between records
+            skipRecord(scanner);
+        }
+
+        return PARENT_END;
+    }
+
+    /**
+     * Check that a range does not close any comment, CDATA section or processing instruction that it does not open,
+     * which happens when a seek lands inside one that holds a start tag
+     *
+     * @param start Offset of the start tag
+     * @param end   Offset just after the element
+     * @return false if the start tag is inside other markup
+     */
+    private boolean isElement(long start, long end) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        source.readFully(start, buffer);
+
+        String xml = new String(buffer.array(), StandardCharsets.ISO_8859_1);
+
+        // Set once a closing sequence in character data has turned out to be text
+        boolean commentEndIsText = false;
+        boolean piEndIsText = false;
+
+        int i = 0;
+        while (true)
+        {
+            int open = xml.indexOf('<', i);
+            int to = (open < 0) ? xml.length() : open;
+
+            for (int closer = firstCloser(xml, i, to); closer >= 0; closer = firstCloser(xml, closer + 1, to))
+            {
+                if (xml.startsWith(CDATA_END, closer))
+                {
+                    // Not allowed in character data
+                    return false;
+                }
+
+                if (xml.startsWith(COMMENT_END, closer) && !commentEndIsText)
+                {
+                    if (isInside(start, COMMENT_START, COMMENT_END))
+                    {
+                        return false;
+                    }
+                    commentEndIsText = true;
+                }
+
+                if (xml.startsWith(PI_END, closer) && !piEndIsText)
+                {
+                    if (isInside(start, PI_START, PI_END))
+                    {
+                        return false;
+                    }
+                    piEndIsText = true;
+                }
+            }
+
+            if (open < 0)
+            {
+                return true;
+            }
+
+            // Step over whatever the markup opened here holds
+            if (xml.startsWith(COMMENT_START, open))
+            {
+                i = skipPast(xml, COMMENT_END, open + COMMENT_START.length());
+            }
+            else if (xml.startsWith(CDATA_START, open))
+            {
+                i = skipPast(xml, CDATA_END, open + CDATA_START.length());
+            }
+            else if (xml.startsWith(PI_START, open))
+            {
+                i = skipPast(xml, PI_END, open + PI_START.length());
+            }
+            else
+            {
+                i = open + 1;
+            }
+
+            if (i < 0)
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Look back from a position for the nearest opening or closing sequence of a kind of markup. Neither can appear
+     * in the content of that markup, so the position is inside it if the nearest one opens it.
+     *
+     * @param position Offset to look back from
+     * @param opening  Sequence that opens the markup
+     * @param closing  Sequence that closes the markup
+     * @return true if the markup is open at the position
+     */
+    private boolean isInside(long position, String opening, String closing) throws IOException
+    {
+        // Blocks overlap, so a sequence that straddles two of them is found whole
+        int overlap = Math.max(opening.length(), closing.length()) - 1;
+
+        long end = position;
+        while (end > overlap)
+        {
+            long blockStart = Math.max(0, end - BUFFER_SIZE);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - blockStart));
+            source.readFully(blockStart, buffer);
+            String text = new String(buffer.array(), StandardCharsets.ISO_8859_1);
+
+            int opened = text.lastIndexOf(opening);
+            int closed = text.lastIndexOf(closing);
+            if (opened >= 0 || closed >= 0)
+            {
+                return opened > closed;
+            }
+
+            if (blockStart == 0)
+            {
+                break;
+            }
+            end = blockStart + overlap;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Offset of the first closing sequence between from and to, or -1 if there is none
+     */
+    private static int firstCloser(String xml, int from, int to)
+    {
+        int first = -1;
+        for (String closer : new String[]{COMMENT_END, CDATA_END, PI_END})
+        {
+            int found = xml.indexOf(closer, from);
+            if (found >= 0 && found < to && (first < 0 || found < first))
+            {
+                first = found;
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * @return Offset just after the sequence, or -1 if there is none
+     */
+    private static int skipPast(String xml, String sequence, int from)
+    {
+        int found = xml.indexOf(sequence, from);
+
+        return (found < 0) ? -1 : found + sequence.length();
+    }
+
+    private TagScanner open(long position)
+    {
+        return new TagScanner(new SourceChannel(position), position, BUFFER_SIZE);
+    }
+
+    /**
+     * Sequential view of the source from a position, for the {@link TagScanner}
+     */
+    private class SourceChannel implements ReadableByteChannel
+    {
+        private long position;
+
+        SourceChannel(long position)
+        {
+            this.position = position;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException
+        {
+            int read = source.read(position, target);
+            if (read > 0)
+            {
+                position += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * {@link javax.xml.stream.XMLStreamReader XMLStreamReader} that is confined to a single element.
+ * <p>
+ * Handed to {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder XMLRecordBinder} instances so that they
+ * cannot read past the end of the element they were given, which would corrupt the tag stack and byte offsets of
+ * the {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}.
+ */
+class RecordStreamReader extends StreamReaderDelegate
+{
+    // Number of open elements within the record, zero once the end element of the record has been reached
+    private int depth = 1;
+
+    /**
+     * @param reader {@link javax.xml.stream.XMLStreamReader XMLStreamReader} positioned on the start element of the
+     *               record
+     */
+    RecordStreamReader(XMLStreamReader reader)
+    {
+        super(reader);
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException
+    {
+        return depth > 0 && super.hasNext();
+    }
+
+    @Override
+    public int next() throws XMLStreamException
+    {
+        if (depth == 0)
+        {
+            throw new XMLStreamException("End of record has been reached");
+        }
+
+        int eventType = super.next();
+        if (eventType == XMLStreamConstants.START_ELEMENT)
+        {
+            depth++;
+        }
+        else if (eventType == XMLStreamConstants.END_ELEMENT)
+        {
+            depth--;
+        }
+
+        return eventType;
+    }
+
+    /**
+     * Implemented with {@link #next()} so that the depth stays accurate
+     */
+    @Override
+    public int nextTag() throws XMLStreamException
+    {
+        int eventType = next();
+        while ((eventType == XMLStreamConstants.CHARACTERS && isWhiteSpace())
+                || (eventType == XMLStreamConstants.CDATA && isWhiteSpace())
+                || eventType == XMLStreamConstants.SPACE
+                || eventType == XMLStreamConstants.PROCESSING_INSTRUCTION
+                || eventType == XMLStreamConstants.COMMENT)
+        {
+            eventType = next();
+        }
+
+        if (eventType != XMLStreamConstants.START_ELEMENT && eventType != XMLStreamConstants.END_ELEMENT)
+        {
+            throw new XMLStreamException("Expected start or end tag", getLocation());
+        }
+
+        return eventType;
+    }
+
+    /**
+     * The underlying reader moves from the start element to the end element
+     */
+    @Override
+    public String getElementText() throws XMLStreamException
+    {
+        String text = super.getElementText();
+        depth--;
+
+        return text;
+    }
+
+    /**
+     * Advance to the end element of the record, skipping anything that has not been read
+     *
+     * @throws XMLStreamException
+     */
+    void skipToEnd() throws XMLStreamException
+    {
+        while (depth > 0)
+        {
+            next();
+        }
+    }
+}
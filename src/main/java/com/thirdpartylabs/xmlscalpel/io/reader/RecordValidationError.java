@@ -0,0 +1,82 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * A schema validation error in a single record, reported by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.ParallelRecordValidator ParallelRecordValidator}
+ * <p>
+ * The position is the absolute byte offset in the validated file of the point the parser had reached when it
+ * reported the error, typically just past the start or end tag of the offending element, so it can be passed
+ * straight to random access readers or matched against an index.
+ */
+public class RecordValidationError
+{
+    private final XMLByteLocation location;
+    private final long byteOffset;
+    private final String message;
+
+    /**
+     * @param location   Location of the record
+     * @param byteOffset Absolute byte offset of the error in the file
+     * @param message    Message from the validator
+     */
+    public RecordValidationError(XMLByteLocation location, long byteOffset, String message)
+    {
+        this.location = location;
+        this.byteOffset = byteOffset;
+        this.message = message;
+    }
+
+    /**
+     * @return Ordinal of the record in the index
+     */
+    public int getOrdinal()
+    {
+        return location.getIndex();
+    }
+
+    /**
+     * @return {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of the record
+     */
+    public XMLByteLocation getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @return Absolute byte offset of the error in the file, within the record
+     */
+    public long getByteOffset()
+    {
+        return byteOffset;
+    }
+
+    /**
+     * @return Message from the validator
+     */
+    public String getMessage()
+    {
+        return message;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Record " + location.getIndex() + " at byte " + byteOffset + ": " + message;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed pool of worker threads that processes records in parallel and hands the results back in the order the
+ * records were submitted, used by the parallel readers and writers
+ * <p>
+ * Each thread creates its own worker state, such as a parser or a transformer, the first time it runs a task, and
+ * keeps it until the pool is closed. At most maxInFlight results are pending at once: submit while the pool
+ * {@link #isFull() is full} only after taking the {@link #next() next} result, so memory use does not depend on the
+ * number of records.
+ * <p>
+ * A task that fails with an {@link java.io.IOException IOException}, a
+ * {@link java.lang.RuntimeException RuntimeException} or an exception of the failure type has that exception
+ * rethrown by {@link #next() next}, any other exception is wrapped in an IOException. Closing the pool cancels the
+ * tasks that have not started and waits for the running ones, without interrupting them. Interrupting a thread that
+ * is reading a {@link java.nio.channels.FileChannel FileChannel} closes the channel, and the caller may still want
+ * to read from it.
+ * <p>
+ * Instances are used by a single thread.
+ *
+ * @param <W> Type of the per-thread worker state
+ * @param <T> Type of the results
+ * @param <E> Checked exception the tasks fail with, besides IOException
+ */
+public class RecordWorkerPool<W, T, E extends Exception> implements Closeable
+{
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final WorkerFactory<W> workerFactory;
+    private final Class<E> failureType;
+
+    // Workers are created on the pool's threads, so every thread gets its own
+    private final ThreadLocal<W> workers = new ThreadLocal<>();
+
+    private final Deque<Future<T>> inFlight = new ArrayDeque<>();
+
+    /**
+     * @param threads       Number of worker threads
+     * @param maxInFlight   Maximum number of pending results
+     * @param workerFactory Creates the worker state of a thread
+     * @param failureType   Checked exception the tasks fail with, besides IOException
+     */
+    public RecordWorkerPool(int threads, int maxInFlight, WorkerFactory<W> workerFactory, Class<E> failureType)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        if (maxInFlight < threads)
+        {
+            throw new IllegalArgumentException("maxInFlight must be at least the number of threads");
+        }
+
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxInFlight = maxInFlight;
+        this.workerFactory = workerFactory;
+        this.failureType = failureType;
+    }
+
+    /**
+     * Queue a task behind the ones already submitted
+     *
+     * @param task Task to run with the worker state of the thread it runs on
+     * @throws IllegalStateException If the pool is full
+     */
+    public void submit(Task<W, T> task)
+    {
+        if (isFull())
+        {
+            throw new IllegalStateException("Take the next result before submitting more than maxInFlight tasks");
+        }
+
+        inFlight.add(executor.submit(() -> {
+            W worker = workers.get();
+            if (worker == null)
+            {
+                worker = workerFactory.create();
+                workers.set(worker);
+            }
+
+            return task.run(worker);
+        }));
+    }
+
+    /**
+     * @return true if maxInFlight results are pending
+     */
+    public boolean isFull()
+    {
+        return inFlight.size() >= maxInFlight;
+    }
+
+    /**
+     * @return true if there are results that have not been taken yet
+     */
+    public boolean hasPending()
+    {
+        return !inFlight.isEmpty();
+    }
+
+    /**
+     * Wait for the result of the oldest pending task
+     *
+     * @return The result
+     * @throws IOException If the task failed with an IOException or an unexpected checked exception, or if the
+     *                     calling thread is interrupted
+     * @throws E           If the task failed with an exception of the failure type
+     */
+    public T next() throws IOException, E
+    {
+        Future<T> future = inFlight.poll();
+        if (future == null)
+        {
+            throw new IllegalStateException("No pending results");
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a worker", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (failureType.isInstance(cause))
+            {
+                throw failureType.cast(cause);
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Cancel the tasks that have not started and wait for the running ones to finish
+     */
+    @Override
+    public void close()
+    {
+        for (Future<T> future : inFlight)
+        {
+            future.cancel(false);
+        }
+        inFlight.clear();
+
+        executor.shutdown();
+
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                if (executor.awaitTermination(1, TimeUnit.DAYS))
+                {
+                    break;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Keep waiting, the workers may still be using resources the caller is about to close
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the worker state of a thread
+     *
+     * @param <W> Type of the worker state
+     */
+    public interface WorkerFactory<W>
+    {
+        W create() throws Exception;
+    }
+
+    /**
+     * A unit of work, run on one of the pool's threads
+     *
+     * @param <W> Type of the worker state
+     * @param <T> Type of the result
+     */
+    public interface Task<W, T>
+    {
+        T run(W worker) throws Exception;
+    }
+}
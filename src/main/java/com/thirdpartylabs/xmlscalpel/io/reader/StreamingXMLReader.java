@@ -15,28 +15,46 @@
 
 package com.thirdpartylabs.xmlscalpel.io.reader;
 
+import com.ctc.wstx.api.WstxInputProperties;
 import com.ctc.wstx.stax.WstxInputFactory;
-import com.ctc.wstx.stax.WstxOutputFactory;
 import com.thirdpartylabs.xmlscalpel.entity.Fragment;
 import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
 import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.HierarchicalIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.index.TermIndex;
+import com.thirdpartylabs.xmlscalpel.index.TermIndexWriter;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
+import com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder;
+import com.thirdpartylabs.xmlscalpel.processor.XMLRecordProcessor;
 import com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor;
+import org.codehaus.stax2.XMLStreamReader2;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.*;
-import javax.xml.stream.events.*;
-import javax.xml.transform.dom.DOMResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -46,200 +64,1333 @@ import java.util.*;
  * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor}.
  * <p>
  * Using the streaming reader allows large files to be processed without significant overhead.
+ * <p>
+ * Instances are thread-safe. The stream factory and default target paths are set up once when the reader is
+ * constructed, the DOM factory when it is first needed, and all state for a read lives in a context created for that
+ * read, so a single shared reader can process any number of files concurrently. The document metadata getters report
+ * on the last file read by the calling thread.
  */
 public class StreamingXMLReader
 {
-    private ByteTrackingReader byteTrackingReader;
-    private XMLEventReader reader;
     private final XMLInputFactory xif;
-    private final XMLOutputFactory xof;
-    private final DocumentBuilder builder;
 
-    private final Map<String, String> documentElementAttributes = new HashMap<>();
-    private final Map<String, String> documentElementAttributeNamespaces = new HashMap<>();
-    private String documentElementTagName = null;
-    private String documentElementPrefix = null;
-    private String encoding = null;
-    private String xmlVersion = null;
-    private String characterEncodingScheme = null;
+    // Reads a sequence of documents, or of root-less top level elements, from one stream
+    private final XMLInputFactory multiDocumentXif;
+
+    // Created on first use, so reads that never build a DOM never pay for the JAXP factory lookup
+    private volatile DocumentBuilderFactory dbf;
+
+    // DocumentBuilder instances are not thread-safe, each thread gets its own
+    private final ThreadLocal<DocumentBuilder> builder;
+
+    // Normalized target paths used when none are provided to a read operation
+    private final Set<String> defaultTargetPaths;
 
-    private final Stack<String> tagStack = new Stack<>();
-    private final List<String> targetPaths = new ArrayList<>();
-    private String currentPath = "/";
+    // The context for the last file read by each thread, used by the document metadata getters
+    private final ThreadLocal<ParseContext> lastContext = new ThreadLocal<>();
 
     public StreamingXMLReader() throws ParserConfigurationException
     {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        builder = dbf.newDocumentBuilder();
+        this(null);
+    }
+
+    /**
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction when no paths are
+     *                    provided to a read operation. See
+     *                    {@link #readFile(File, XMLStreamProcessor, List) readFile} for the path format.
+     * @throws ParserConfigurationException
+     */
+    public StreamingXMLReader(List<String> targetPaths) throws ParserConfigurationException
+    {
+        builder = ThreadLocal.withInitial(this::newDocumentBuilder);
+
+        // Instantiate Woodstox directly, XMLInputFactory.newInstance() would search the class path for a provider
+        xif = new WstxInputFactory();
+
+        multiDocumentXif = new WstxInputFactory();
+        multiDocumentXif.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE,
+                WstxInputProperties.PARSING_MODE_DOCUMENTS);
+
+        defaultTargetPaths = compileTargetPaths(targetPaths);
+    }
+
+    /**
+     * Read an XML file using the {@link com.ctc.wstx.stax.WstxInputFactory Woodstox} streaming API and supply the
+     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} with
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects.
+     * <p>
+     * All (and only) top level elements are returned. For example, given an XML file with a structure like
+     * <pre>
+     * {@code
+     * <feed>
+     *  <product></product>
+     *  <product></product>
+     *  <product></product>
+     * </feed>
+     * }
+     * </pre>
+     * <p>
+     * All {@code product} nodes will be returned.
+     * <p>
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects wrap the dom node as a
+     * {@link org.w3c.dom.DocumentFragment DocumentFragment} and an
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} object that describes the
+     * node's location in the XML file. This allows efficient retrieval of the nodes later using the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
+     * <p>
+     *
+     * @param file      The XML file to process
+     * @param processor {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
+     *
+     * @throws FileNotFoundException
+     * @throws XMLStreamException
+     */
+    public void readFile(File file, XMLStreamProcessor processor) throws IOException, XMLStreamException
+    {
+        readFile(file, processor, null);
+    }
+
+    /**
+     * Read an XML file using the {@link com.ctc.wstx.stax.WstxInputFactory Woodstox} streaming API and supply the
+     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} with
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects.
+     * Specify a {@link java.util.List List} of node paths to extract. Example:
+     * <pre>
+     * {@code
+     * <xml>
+     * <Feed>
+     *     <Category>
+     *         <Name>Bolts</Name>
+     *         <Product>Large</Product>
+     *         <Product>Small</Product>
+     *         <Services>
+     *             <Service>Tightening</Service>
+     *             <Service>Loosening</Service>
+     *         </Services>
+     *     </Category>
+     *     <Category>
+     *         <Name>Hammers</Name>
+     *         <Product>Framing</Product>
+     *         <Product>Dead Blow</Product>
+     *         <Services>
+     *             <Service>Banging</Service>
+     *         </Services>
+     *     </Category>
+     * </Feed>
+     * }
+     * </pre>
+     * <p>
+     * You can extract all {@code product} and {@code service} elements in the same read operation by
+     * passing in these paths:<br>
+     * {@code /feed/category/Product}<br>
+     * {@code /feed/category/Services/Service}
+     * <p>
+     * Namespace prefixes may be specified as they appear in the XML:
+     * {@code /aw:PurchaseOrders/aw:PurchaseOrder/aw:Address}
+     * <p>
+     * Paths are absolute with respect to the document root, they will be normalized to always have a leading slash
+     * and never have a trailing slash. Overlapping paths are not supported, the least specific path will be used in
+     * such a case.
+     * <p>
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects wrap the dom node as a
+     * {@link org.w3c.dom.DocumentFragment DocumentFragment} and an
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} object that describes the
+     * node's location in the XML file. This allows efficient retrieval of the nodes later using the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
+     * <p>
+     *
+     * @param file        The XML file to process
+     * @param processor   {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction
+     *
+     * @throws FileNotFoundException
+     * @throws XMLStreamException
+     */
+    public void readFile(File file, XMLStreamProcessor processor, List<String> targetPaths) throws IOException, XMLStreamException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            readFile(source, processor, targetPaths);
+        }
+    }
+
+    /**
+     * Read an XML document from any {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}, such as an
+     * in-memory buffer or a remote object. See {@link #readFile(File, XMLStreamProcessor, List) readFile}.
+     * <p>
+     * The document is read once from start to finish through
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource#openStream() openStream}, and the byte locations
+     * reported can be used to read the elements back from the same source with the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}.
+     *
+     * @param source      The XML document to process, it is not closed
+     * @param processor   {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void readFile(ByteSource source, XMLStreamProcessor processor, List<String> targetPaths)
+            throws IOException, XMLStreamException
+    {
+        // Tell the processor how many bytes are in the document
+        processor.setBytesTotal(source.size());
+
+        traverse(source, targetPaths, new RecordHandler<DocumentFragment>()
+        {
+            @Override
+            public DocumentFragment read(XMLStreamReader2 reader, int index, long offset) throws XMLStreamException
+            {
+                // Populate a DocumentFragment for this node
+                return elementToFragment(reader);
+            }
+
+            @Override
+            public void complete(DocumentFragment documentFragment, int index, long offset, long length)
+            {
+                // Wrap the DocumentFragment and XMLByteLocation in a Fragment object and send it to the processor
+                processor.process(new Fragment(documentFragment, new XMLByteLocation(index, offset, length)));
+            }
+        });
+    }
+
+    /**
+     * Read an XML file and unmarshall the target elements directly from the stream, without building a DOM.
+     * <p>
+     * The {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder XMLRecordBinder} receives the stream reader
+     * positioned on the start element of each target element. The reader it receives is scoped to that element, so
+     * the binder can consume as much or as little of the element as it needs, and whatever is left is skipped once
+     * it returns. The bound objects are then passed to the
+     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordProcessor XMLRecordProcessor} along with the
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of the element.
+     * <p>
+     * Target paths work exactly as they do for {@link #readFile(File, XMLStreamProcessor, List) readFile}.
+     *
+     * @param file        The XML file to process
+     * @param binder      {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder XMLRecordBinder} that
+     *                    creates an object for each target element
+     * @param processor   {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordProcessor XMLRecordProcessor}
+     *                    instance that receives the objects
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param <T>         Type of the bound objects
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public <T> void bindFile(File file, XMLRecordBinder<T> binder, XMLRecordProcessor<? super T> processor,
+                             List<String> targetPaths) throws IOException, XMLStreamException
+    {
+        // Tell the processor how many bytes are in the file
+        processor.setBytesTotal(file.length());
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            traverse(source, targetPaths, new RecordHandler<T>()
+            {
+                // The binder sees the location before its length is known
+                private XMLByteLocation location;
+
+                @Override
+                public T read(XMLStreamReader2 reader, int index, long offset) throws XMLStreamException
+                {
+                    location = new XMLByteLocation(index, offset, 0);
+
+                    // Keep the binder inside the element, and skip whatever it leaves unread
+                    RecordStreamReader recordReader = new RecordStreamReader(reader);
+                    T record = binder.bind(recordReader, location);
+                    recordReader.skipToEnd();
+
+                    return record;
+                }
+
+                @Override
+                public void complete(T record, int index, long offset, long length)
+                {
+                    location.setByte(length);
+                    processor.process(record, location);
+                }
+            });
+        }
+    }
+
+    /**
+     * Read an XML file and record the location of every target element in a
+     * {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}, without building a DOM.
+     * <p>
+     * Target elements are skipped rather than materialized and their locations go straight into the table's
+     * primitive columns, so no object is created per element. The ordinal of each element in the table matches the
+     * index that {@link #readFile(File, XMLStreamProcessor, List) readFile} would assign to it.
+     * <p>
+     * Target paths work exactly as they do for {@link #readFile(File, XMLStreamProcessor, List) readFile}.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexFile(File file, List<String> targetPaths) throws IOException, XMLStreamException
+    {
+        return indexFile(file, targetPaths, false, null);
+    }
+
+    /**
+     * Read an XML file and record the location of every target element in a
+     * {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}, optionally along with a hash of its
+     * raw bytes and a key captured from its content. See {@link #indexFile(File, List) indexFile}.
+     * <p>
+     * Hashes are computed with {@link com.thirdpartylabs.xmlscalpel.index.XXHash64 XXHash64} over the bytes of each
+     * element as they appear in the file, read just behind the parser. Keys are captured while streaming through
+     * the element, the key path is relative to the element:
+     * {@code sku} for the text of a child element, {@code info/id} for a nested element, {@code @id} for an attribute
+     * of the element itself or {@code info/@id} for an attribute of a nested element. Text keys are trimmed, and the
+     * first match is used.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param hashRecords Hash the raw bytes of each element
+     * @param keyPath     Path of the key within each element, or null to capture no keys
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexFile(File file, List<String> targetPaths, boolean hashRecords, String keyPath)
+            throws IOException, XMLStreamException
+    {
+        LocationTable table = new LocationTable(1024, hashRecords, keyPath != null);
+        indexFile(file, targetPaths, table, hashRecords, keyPath);
+        table.trimToSize();
+
+        return table;
+    }
+
+    /**
+     * Index an XML document from any {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See
+     * {@link #indexFile(File, List, boolean, String) indexFile}.
+     *
+     * @param source      The XML document to index, it is not closed
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param hashRecords Hash the raw bytes of each element
+     * @param keyPath     Path of the key within each element, or null to capture no keys
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexFile(ByteSource source, List<String> targetPaths, boolean hashRecords, String keyPath)
+            throws IOException, XMLStreamException
+    {
+        LocationTable table = new LocationTable(1024, hashRecords, keyPath != null);
+        indexFile(source, targetPaths, table, hashRecords, keyPath);
+        table.trimToSize();
+
+        return table;
+    }
+
+    /**
+     * Read an XML file and append the location of every target element to an existing
+     * {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}. See
+     * {@link #indexFile(File, List) indexFile}.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param table       {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} to populate
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void indexFile(File file, List<String> targetPaths, LocationTable table)
+            throws IOException, XMLStreamException
+    {
+        indexFile(file, targetPaths, table, false, null);
+    }
+
+    /**
+     * Read an XML file and append the location, hash and key of every target element to an existing
+     * {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}. See
+     * {@link #indexFile(File, List, boolean, String) indexFile}.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param table       {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} to populate, it
+     *                    must hold the hash and key columns that are requested
+     * @param hashRecords Hash the raw bytes of each element
+     * @param keyPath     Path of the key within each element, or null to capture no keys
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void indexFile(File file, List<String> targetPaths, LocationTable table, boolean hashRecords,
+                          String keyPath) throws IOException, XMLStreamException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            indexFile(source, targetPaths, table, hashRecords, keyPath);
+        }
+    }
+
+    /**
+     * Index an XML document from any {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} into an
+     * existing {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}. See
+     * {@link #indexFile(File, List, LocationTable, boolean, String) indexFile}.
+     * <p>
+     * Hashing reads each element back from the source just behind the parser, so for a remote source it is best
+     * combined with a source that caches what it has fetched.
+     *
+     * @param source      The XML document to index, it is not closed
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param table       {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} to populate, it
+     *                    must hold the hash and key columns that are requested
+     * @param hashRecords Hash the raw bytes of each element
+     * @param keyPath     Path of the key within each element, or null to capture no keys
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void indexFile(ByteSource source, List<String> targetPaths, LocationTable table, boolean hashRecords,
+                          String keyPath) throws IOException, XMLStreamException
+    {
+        if ((hashRecords && !table.hasHashes()) || (keyPath != null && !table.hasKeys()))
+        {
+            throw new IllegalArgumentException("The table does not hold the requested hash or key columns");
+        }
+
+        traverse(source, targetPaths, new IndexingHandler(table, source, hashRecords, keyPath, null, 0));
+    }
+
+    /**
+     * Index an XML file as {@link #indexFile(File, List, boolean, String) indexFile} does, writing checkpoints as it
+     * goes so that an interrupted run can be resumed rather than started again.
+     * <p>
+     * Every checkpointInterval bytes, at the end of a target element, the records indexed so far and the state of the
+     * parse are committed to the checkpoint file: the byte offset, the ordinal of the next record and the start tags
+     * with the namespace declarations of the open elements. If the checkpoint file already holds a checkpoint for the
+     * same file and parameters, the records up to its last commit are taken from it, and parsing resumes at its byte
+     * offset with the parser primed by the saved start tags. The resulting table is identical to the one an
+     * uninterrupted run would produce. The checkpoint file is deleted once the index is complete.
+     * <p>
+     * A checkpoint is only used if the length and modification time of the file are unchanged. Documents that rely
+     * on entities declared in a DTD can not be resumed, as the DTD is not replayed.
+     *
+     * @param file               The XML file to index
+     * @param targetPaths        {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param hashRecords        Hash the raw bytes of each element
+     * @param keyPath            Path of the key within each element, or null to capture no keys
+     * @param checkpointFile     File to write checkpoints to, and to resume from if it exists
+     * @param checkpointInterval Minimum number of bytes parsed between checkpoints
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexFile(File file, List<String> targetPaths, boolean hashRecords, String keyPath,
+                                   File checkpointFile, long checkpointInterval) throws IOException, XMLStreamException
+    {
+        if (checkpointInterval < 1)
+        {
+            throw new IllegalArgumentException("checkpointInterval must be at least 1");
+        }
+
+        Set<String> paths = resolveTargetPaths(targetPaths);
+        LocationTable table = new LocationTable(1024, hashRecords, keyPath != null);
+
+        try (FileByteSource source = new FileByteSource(file);
+             CheckpointJournal journal = new CheckpointJournal(checkpointFile, file, paths, hashRecords, keyPath,
+                     table))
+        {
+            ParseContext context = new ParseContext(paths);
+            context.trackOpenTags();
+
+            InputStream input;
+            long startOffset = 0;
+
+            String openTags = journal.getOpenTags();
+            if (openTags == null)
+            {
+                input = source.openStream();
+            }
+            else
+            {
+                // Reopen the elements that were open at the checkpoint, then carry on from the checkpoint
+                byte[] prefix = openTags.getBytes(StandardCharsets.UTF_8);
+                long resumeOffset = journal.getResumeOffset();
+
+                input = new SequenceInputStream(new ByteArrayInputStream(prefix),
+                        source.openStream(resumeOffset, source.size() - resumeOffset));
+                startOffset = resumeOffset - prefix.length;
+            }
+
+            traverse(source, context, input, startOffset, journal.getNextOrdinal(),
+                    new IndexingHandler(table, source, hashRecords, keyPath, journal, checkpointInterval));
+
+            journal.delete();
+        }
+
+        table.trimToSize();
+
+        return table;
+    }
+
+    /**
+     * Index a file that holds a sequence of XML documents rather than a single one: concatenated documents, each
+     * with or without an XML declaration, or root-less top level elements, one after the other like lines of JSON.
+     * <p>
+     * With no target paths every document element is indexed. Target paths are matched from the document element of
+     * each document, so {@code /order/item} indexes the items of every order document.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param threads     Number of threads to index with, see
+     *                    {@link #indexDocuments(File, List, boolean, String, int) indexDocuments}
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexDocuments(File file, List<String> targetPaths, int threads)
+            throws IOException, XMLStreamException
+    {
+        return indexDocuments(file, targetPaths, false, null, threads);
+    }
+
+    /**
+     * Index a file that holds a sequence of XML documents, hashing each element and capturing a key, as
+     * {@link #indexFile(File, List, boolean, String) indexFile} does for a single document. See
+     * {@link #indexDocuments(File, List, int) indexDocuments}.
+     * <p>
+     * Documents are independent of each other, so with more than one thread the file is split into ranges that are
+     * indexed in parallel. Ranges start on a line that begins with an XML declaration or with a start tag named like
+     * the first document element. If such a line turns up inside a document, the ranges around it can not be
+     * parsed, and the file is indexed again on the calling thread. The result is the same either way.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param hashRecords Hash the raw bytes of each element
+     * @param keyPath     Path of the key within each element, or null to capture no keys
+     * @param threads     Number of threads to index with
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public LocationTable indexDocuments(File file, List<String> targetPaths, boolean hashRecords, String keyPath,
+                                        int threads) throws IOException, XMLStreamException
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        Set<String> paths = resolveTargetPaths(targetPaths);
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            long[] starts = (threads == 1) ? new long[]{0, source.size()}
+                    : new DocumentBoundaryScanner(source, getFirstDocumentElement(source)).split(threads);
+
+            if (starts.length > 2)
+            {
+                List<LocationTable> parts = indexDocumentRanges(source, paths, hashRecords, keyPath, starts);
+                if (parts != null)
+                {
+                    LocationTable table = new LocationTable(1024, hashRecords, keyPath != null);
+                    for (LocationTable part : parts)
+                    {
+                        for (int i = 0; i < part.size(); i++)
+                        {
+                            table.add(part.getOffset(i), part.getLength(i), hashRecords ? part.getHash(i) : 0,
+                                    part.getKey(i));
+                        }
+                    }
+
+                    table.trimToSize();
+                    return table;
+                }
+            }
+
+            LocationTable table = indexDocumentRange(source, paths, hashRecords, keyPath, 0, source.size());
+            table.trimToSize();
+
+            return table;
+        }
+    }
+
+    /**
+     * Index the ranges of a multi-document file on a thread each
+     *
+     * @return The table for each range, or null if a range could not be parsed on its own
+     */
+    private List<LocationTable> indexDocumentRanges(ByteSource source, Set<String> paths, boolean hashRecords,
+                                                    String keyPath, long[] starts) throws IOException
+    {
+        int ranges = starts.length - 1;
+
+        // The ranges share nothing but the source, so there is no worker state
+        try (RecordWorkerPool<Void, LocationTable, XMLStreamException> pool = new RecordWorkerPool<>(ranges, ranges,
+                () -> null, XMLStreamException.class))
+        {
+            for (int i = 0; i < ranges; i++)
+            {
+                long start = starts[i];
+                long end = starts[i + 1];
+
+                pool.submit(worker -> indexDocumentRange(source, paths, hashRecords, keyPath, start, end));
+            }
+
+            List<LocationTable> parts = new ArrayList<>();
+            while (pool.hasPending())
+            {
+                parts.add(pool.next());
+            }
+
+            return parts;
+        }
+        catch (XMLStreamException e)
+        {
+            // A boundary was inside a document
+            return null;
+        }
+    }
+
+    /**
+     * Index the documents in a range of a multi-document file
+     */
+    private LocationTable indexDocumentRange(ByteSource source, Set<String> paths, boolean hashRecords,
+                                             String keyPath, long start, long end)
+            throws IOException, XMLStreamException
+    {
+        LocationTable table = new LocationTable(1024, hashRecords, keyPath != null);
+
+        ParseContext context = new ParseContext(paths);
+        context.setMultiDocument();
+
+        traverse(source, context, source.openStream(start, end - start), start, 0,
+                new IndexingHandler(table, source, hashRecords, keyPath, null, 0));
+
+        return table;
+    }
+
+    /**
+     * @return Qualified name of the first document element of a multi-document file, as it appears in its start tag
+     */
+    private String getFirstDocumentElement(ByteSource source) throws IOException, XMLStreamException
+    {
+        XMLStreamReader2 reader = (XMLStreamReader2) multiDocumentXif.createXMLStreamReader(
+                new InputStreamReader(source.openStream(), StandardCharsets.UTF_8));
+
+        try
+        {
+            while (reader.next() != XMLStreamConstants.START_ELEMENT)
+            {
+                // Skip the prolog
+            }
+
+            return reader.getPrefixedName();
+        }
+        finally
+        {
+            reader.closeCompletely();
+        }
+    }
+
+    /**
+     * Build an inverted index from the terms in the text of the target elements to the elements they occur in, in
+     * a single pass, and write it to a file. Query the returned
+     * {@link com.thirdpartylabs.xmlscalpel.index.TermIndex TermIndex} to find the locations of the elements that
+     * hold some words, then read only those elements with the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}.
+     * <p>
+     * Text paths are relative to the target element and restrict the text that is indexed: {@code description}
+     * indexes the text of the description element and everything in it, {@code @id} or {@code info/@id} index an
+     * attribute value. With no text paths all of the text in the element is indexed, but not its attribute values.
+     *
+     * @param file        The XML file to index
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param textPaths   {@link java.util.List List} of text paths to index, may be null to index all text
+     * @param indexFile   File to write the index to, it is replaced if it exists
+     * @return The {@link com.thirdpartylabs.xmlscalpel.index.TermIndex TermIndex}, mapped from the index file
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public TermIndex indexTerms(File file, List<String> targetPaths, List<String> textPaths, File indexFile)
+            throws IOException, XMLStreamException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            return indexTerms(source, targetPaths, textPaths, indexFile);
+        }
+    }
+
+    /**
+     * Build an inverted index of an XML document from any
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See
+     * {@link #indexTerms(File, List, List, File) indexTerms}.
+     *
+     * @param source      The XML document to index, it is not closed
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param textPaths   {@link java.util.List List} of text paths to index, may be null to index all text
+     * @param indexFile   File to write the index to, it is replaced if it exists
+     * @return The {@link com.thirdpartylabs.xmlscalpel.index.TermIndex TermIndex}, mapped from the index file
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public TermIndex indexTerms(ByteSource source, List<String> targetPaths, List<String> textPaths, File indexFile)
+            throws IOException, XMLStreamException
+    {
+        TextCapture textCapture = new TextCapture(textPaths);
+        TermIndexWriter writer = new TermIndexWriter();
+        StringBuilder text = new StringBuilder();
+
+        traverse(source, targetPaths, new RecordHandler<Void>()
+        {
+            @Override
+            public Void read(XMLStreamReader2 reader, int index, long offset) throws XMLStreamException
+            {
+                text.setLength(0);
+                textCapture.capture(reader, text);
+                writer.addText(index, text);
+
+                return null;
+            }
+
+            @Override
+            public void complete(Void result, int index, long offset, long length)
+            {
+                writer.addRecord(offset, length);
+            }
+        });
+
+        writer.write(indexFile);
+
+        return new TermIndex(indexFile);
+    }
+
+    /**
+     * Fast path for extracting a small subset of a document. Supplies the
+     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} with the same
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects as
+     * {@link #readFile(File, XMLStreamProcessor, List) readFile}.
+     * <p>
+     * Instead of tokenizing the entire document, a byte level scanner tracks tag depth and jumps over every element
+     * that is not on the way to a target path, along with comments, CDATA sections and processing instructions.
+     * Only the target elements themselves are handed to the Woodstox parser, with the namespace declarations of
+     * their ancestors in scope. The more selective the target paths, the bigger the gain.
+     * <p>
+     * The file must be UTF-8 or another ASCII compatible single byte encoding, and target elements must not rely on
+     * entities declared in a DTD.
+     *
+     * @param file        The XML file to process
+     * @param processor   {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws XMLParseException If the file is not well-formed
+     */
+    public void scanFile(File file, XMLStreamProcessor processor, List<String> targetPaths)
+            throws IOException, XMLStreamException, XMLParseException
+    {
+        Set<String> paths = resolveTargetPaths(targetPaths);
+
+        // Tell the processor how many bytes are in the file
+        processor.setBytesTotal(file.length());
+
+        // Pick up the document element metadata, so the outer document is available as it is after readFile
+        initializeMetadata(file);
+
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        boolean measure = metricsSink.isEnabled();
+        long readStart = measure ? System.nanoTime() : 0;
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            TagScanner scanner = new TagScanner(source.getChannel(), 0);
+            int[] nodeCount = {0};
+
+            scanner.scan(paths, (offset, length, namespaces) -> {
+                long extractionStart = measure ? System.nanoTime() : 0;
+
+                // Positional reads leave the scanner's channel position alone
+                ByteBuffer buffer = ByteBuffer.allocate((int) length);
+                source.readFully(offset, buffer);
+
+                String xml = new String(buffer.array(), StandardCharsets.UTF_8);
+                XMLByteLocation xmlByteLocation = new XMLByteLocation(nodeCount[0]++, offset, length);
+                DocumentFragment documentFragment = xmlToFragment(xml, namespaces);
+
+                if (measure)
+                {
+                    metricsSink.fragmentExtracted(xmlByteLocation, System.nanoTime() - extractionStart);
+                }
+
+                processor.process(new Fragment(documentFragment, xmlByteLocation));
+            });
+
+            if (measure)
+            {
+                metricsSink.fileIndexed(file.getPath(), file.length(), nodeCount[0], System.nanoTime() - readStart);
+            }
+        }
+    }
+
+    /**
+     * Read an XML file and index records at several nested levels in a single pass, linking each record to the
+     * record that contains it on the level above. For example, with the level paths
+     * {@code /orders/order} and {@code /orders/order/items/item} every order and every item is indexed, and each
+     * item knows which order it belongs to.
+     * <p>
+     * Unlike {@link #readFile(File, XMLStreamProcessor, List) readFile}, which only reports the outermost of nested
+     * target elements, every element on every level is recorded. Each level path must be below the one before it,
+     * otherwise an {@link IllegalArgumentException} is thrown before anything is read.
+     *
+     * @param file       The XML file to index
+     * @param levelPaths {@link java.util.List List} of node paths of the levels, outermost first
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.HierarchicalIndex HierarchicalIndex}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public HierarchicalIndex indexHierarchy(File file, List<String> levelPaths) throws IOException, XMLStreamException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            return indexHierarchy(source, levelPaths);
+        }
+    }
+
+    /**
+     * Index records at several nested levels of an XML document from any
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See
+     * {@link #indexHierarchy(File, List) indexHierarchy}.
+     *
+     * @param source     The XML document to index, it is not closed
+     * @param levelPaths {@link java.util.List List} of node paths of the levels, outermost first
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.HierarchicalIndex HierarchicalIndex}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public HierarchicalIndex indexHierarchy(ByteSource source, List<String> levelPaths)
+            throws IOException, XMLStreamException
+    {
+        if (levelPaths == null || levelPaths.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one level path is required");
+        }
+
+        List<String> paths = new ArrayList<>(levelPaths.size());
+        Map<String, Integer> levels = new HashMap<>();
+        for (String levelPath : levelPaths)
+        {
+            String path = normalizeTargetPath(levelPath);
+            levels.put(path, paths.size());
+            paths.add(path);
+        }
+
+        HierarchicalIndex index = new HierarchicalIndex(paths);
+
+        // Elements on one level can not contain each other, so each level has at most one open element
+        long[] openOffsets = new long[paths.size()];
+
+        ParseContext context = new ParseContext(levels.keySet());
+
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        boolean measure = metricsSink.isEnabled();
+        long readStart = measure ? System.nanoTime() : 0;
+
+        int nodeCount = 0;
+
+        try
+        {
+            initializeDocument(context, source.openStream(), metricsSink);
+
+            XMLStreamReader2 reader = context.getXmlStreamReader();
+            ByteTrackingReader byteTrackingReader = context.getByteTrackingReader();
+
+            while (reader.hasNext())
+            {
+                int eventType = reader.next();
+                if (eventType == XMLStreamConstants.START_ELEMENT)
+                {
+                    context.pushTag(reader.getName());
+
+                    Integer level = levels.get(context.getCurrentPath());
+                    if (level != null)
+                    {
+                        long startCharOffset = reader.getLocationInfo().getStartingCharOffset();
+                        openOffsets[level] = byteTrackingReader.getByteOffsetForCharOffset(startCharOffset);
+                    }
+                }
+                else if (eventType == XMLStreamConstants.END_ELEMENT)
+                {
+                    Integer level = levels.get(context.getCurrentPath());
+                    if (level != null)
+                    {
+                        long endCharOffset = reader.getLocationInfo().getEndingCharOffset();
+                        long endByteOffset = byteTrackingReader.getByteOffsetForCharOffset(endCharOffset);
+
+                        /*
+                            The parent is still open, so it will be the next record added to the level above,
+                            and its ordinal is the current size of that level
+                         */
+                        int parent = level == 0 ? -1 : index.getLevel(level - 1).size();
+
+                        index.add(level, openOffsets[level], endByteOffset - openOffsets[level], parent);
+                        nodeCount++;
+                    }
+
+                    context.popTag();
+                }
+            }
+
+            if (measure)
+            {
+                metricsSink.fileIndexed(source.getIdentity(), source.size(), nodeCount, System.nanoTime() - readStart);
+            }
+        }
+        finally
+        {
+            context.release();
+        }
+
+        index.trimToSize();
+
+        return index;
+    }
+
+    /**
+     * Profile the structure of an XML file in a single pass: the paths that occur, how often, the sizes of their
+     * elements, attribute and namespace usage, and the maximum depth. This is a pre-flight step for choosing target
+     * paths and batch sizes for a feed that has not been seen before.
+     * <p>
+     * No DOM is built and memory use does not depend on the size of the file, see
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.FeedProfile FeedProfile}.
+     *
+     * @param file The XML file to profile
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.io.reader.FeedProfile FeedProfile}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public FeedProfile profileFile(File file) throws IOException, XMLStreamException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            return profileFile(source);
+        }
+    }
+
+    /**
+     * Profile the structure of an XML document from any
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See {@link #profileFile(File) profileFile}.
+     *
+     * @param source The XML document to profile, it is not closed
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.io.reader.FeedProfile FeedProfile}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public FeedProfile profileFile(ByteSource source) throws IOException, XMLStreamException
+    {
+        FeedProfile profile = new FeedProfile();
+        ParseContext context = new ParseContext(defaultTargetPaths);
+
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        boolean measure = metricsSink.isEnabled();
+        long readStart = measure ? System.nanoTime() : 0;
+
+        try
+        {
+            initializeDocument(context, source.openStream(), metricsSink);
+
+            XMLStreamReader2 reader = context.getXmlStreamReader();
+            ByteTrackingReader byteTrackingReader = context.getByteTrackingReader();
+
+            // The reader is left on the document element
+            profile.startElement(reader,
+                    byteTrackingReader.getByteOffsetForCharOffset(reader.getLocationInfo().getStartingCharOffset()));
+
+            while (reader.hasNext())
+            {
+                int eventType = reader.next();
+                if (eventType == XMLStreamConstants.START_ELEMENT)
+                {
+                    long startCharOffset = reader.getLocationInfo().getStartingCharOffset();
+                    profile.startElement(reader, byteTrackingReader.getByteOffsetForCharOffset(startCharOffset));
+                }
+                else if (eventType == XMLStreamConstants.END_ELEMENT)
+                {
+                    long endCharOffset = reader.getLocationInfo().getEndingCharOffset();
+                    profile.endElement(byteTrackingReader.getByteOffsetForCharOffset(endCharOffset));
+                }
+            }
+
+            profile.setBytes(source.size());
+
+            if (measure)
+            {
+                metricsSink.fileIndexed(source.getIdentity(), source.size(), profile.getElementCount(),
+                        System.nanoTime() - readStart);
+            }
+        }
+        finally
+        {
+            context.release();
+        }
+
+        return profile;
+    }
+
+    /**
+     * Find the locations of the last target elements in a file, working backwards from the end so that only the tail
+     * of the file is read. This suits append-style feeds where the newest records are at the end.
+     * <p>
+     * The cost is proportional to the number of bytes from the first element returned to the end of the file, not
+     * to the size of the file. Target paths work as they do for
+     * {@link #readFile(File, XMLStreamProcessor, List) readFile}, but nested target elements are all reported.
+     * <p>
+     * Ordinals in the returned table count from the first element returned, as the number of elements in front of it
+     * is not known. The same restrictions on encoding apply as for
+     * {@link #scanFile(File, XMLStreamProcessor, List) scanFile}.
+     *
+     * @param file        The XML file to read
+     * @param count       Maximum number of elements to find
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most count
+     * elements, in document order
+     * @throws IOException
+     * @throws XMLParseException If the end of the file is not well-formed
+     */
+    public LocationTable indexTail(File file, int count, List<String> targetPaths) throws IOException, XMLParseException
+    {
+        if (count < 0)
+        {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+
+        Set<String> paths = resolveTargetPaths(targetPaths);
+
+        try (ByteSource source = new FileByteSource(file))
+        {
+            return new TailScanner(source).scan(paths, count);
+        }
+    }
+
+    /**
+     * Read the last target elements in a file without scanning it from the start, see
+     * {@link #indexTail(File, int, List) indexTail}
+     * <p>
+     * Each element is parsed with the namespaces declared on the document element in scope. The index of each
+     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} is its position in the returned
+     * list.
+     *
+     * @param file        The XML file to read
+     * @param count       Maximum number of elements to return
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return {@link java.util.List List} of at most count
+     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects, in document order
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws XMLParseException If the end of the file is not well-formed
+     */
+    public List<Fragment> tailFile(File file, int count, List<String> targetPaths)
+            throws IOException, XMLStreamException, XMLParseException
+    {
+        LocationTable table = indexTail(file, count, targetPaths);
+
+        // Namespaces declared on the document element are the ones records rely on
+        Map<String, String> namespaces = initializeMetadata(file).getDocumentElementAttributeNamespaces();
+
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        boolean measure = metricsSink.isEnabled();
+
+        List<Fragment> fragments = new ArrayList<>(table.size());
+        try (ByteSource source = new FileByteSource(file))
+        {
+            for (int i = 0; i < table.size(); i++)
+            {
+                long extractionStart = measure ? System.nanoTime() : 0;
+
+                XMLByteLocation xmlByteLocation = table.getLocation(i);
+                ByteBuffer buffer = ByteBuffer.allocate((int) xmlByteLocation.getLength());
+                source.readFully(xmlByteLocation.getOffset(), buffer);
+
+                String xml = new String(buffer.array(), StandardCharsets.UTF_8);
+                DocumentFragment documentFragment = xmlToFragment(xml, namespaces);
+
+                if (measure)
+                {
+                    metricsSink.fragmentExtracted(xmlByteLocation, System.nanoTime() - extractionStart);
+                }
+
+                fragments.add(new Fragment(documentFragment, xmlByteLocation));
+            }
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Find an approximate page of target elements in a file that has not been indexed, without scanning it from the
+     * start. The average distance between elements is measured at a few positions spread over the file, the
+     * estimated offset of the first element of the page is computed from it, and the scan picks up from the next
+     * element that starts after that offset.
+     * <p>
+     * The page is only exact when the elements are spread evenly through the file, use a
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RecordPager RecordPager} over an index for exact pages.
+     * Elements are recognized by name, and if there are no target paths the elements with the name of the first
+     * child of the document element are targets. The same restrictions on encoding apply as for
+     * {@link #scanFile(File, XMLStreamProcessor, List) scanFile}.
+     *
+     * @param file        The XML file to read
+     * @param offset      Estimated ordinal of the first element of the page
+     * @param limit       Maximum number of elements to find
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most limit
+     * consecutive elements, in document order
+     * @throws IOException
+     * @throws XMLParseException If an element that looks like a target is not terminated
+     */
+    public LocationTable pageFile(File file, long offset, int limit, List<String> targetPaths)
+            throws IOException, XMLParseException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            return pageFile(source, offset, limit, targetPaths);
+        }
+    }
+
+    /**
+     * Find an approximate page of target elements in a document from any
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See
+     * {@link #pageFile(File, long, int, List) pageFile}.
+     *
+     * @param source      The XML document to read, it is not closed
+     * @param offset      Estimated ordinal of the first element of the page
+     * @param limit       Maximum number of elements to find
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most limit
+     * consecutive elements, in document order
+     * @throws IOException
+     * @throws XMLParseException If an element that looks like a target is not terminated
+     */
+    public LocationTable pageFile(ByteSource source, long offset, int limit, List<String> targetPaths)
+            throws IOException, XMLParseException
+    {
+        if (offset < 0 || limit < 0)
+        {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+
+        RecordSeeker seeker = new RecordSeeker(source, resolveTargetPaths(targetPaths));
+
+        return seeker.read(seeker.estimateOffset(offset), limit);
+    }
+
+    /**
+     * Take a reproducible sample of the target elements in a file that has not been indexed, without scanning it.
+     * The file is divided into count equal byte ranges, and from each range the first element that starts after a
+     * random position in it is taken.
+     * <p>
+     * Elements are picked by position, so long elements are more likely to be picked than short ones. For a uniform
+     * sample by ordinal use a {@link com.thirdpartylabs.xmlscalpel.io.reader.RecordPager RecordPager} over an
+     * index. Elements are recognized as for {@link #pageFile(File, long, int, List) pageFile}.
+     *
+     * @param file        The XML file to read
+     * @param count       Maximum number of elements to take
+     * @param seed        Seed for the random positions, the same seed takes the same elements from the same file
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most count
+     * elements, in document order
+     * @throws IOException
+     * @throws XMLParseException If an element that looks like a target is not terminated
+     */
+    public LocationTable sampleFile(File file, int count, long seed, List<String> targetPaths)
+            throws IOException, XMLParseException
+    {
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            return sampleFile(source, count, seed, targetPaths);
+        }
+    }
+
+    /**
+     * Take a reproducible sample of the target elements in a document from any
+     * {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}. See
+     * {@link #sampleFile(File, int, long, List) sampleFile}.
+     *
+     * @param source      The XML document to read, it is not closed
+     * @param count       Maximum number of elements to take
+     * @param seed        Seed for the random positions, the same seed takes the same elements from the same document
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @return A new {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of at most count
+     * elements, in document order
+     * @throws IOException
+     * @throws XMLParseException If an element that looks like a target is not terminated
+     */
+    public LocationTable sampleFile(ByteSource source, int count, long seed, List<String> targetPaths)
+            throws IOException, XMLParseException
+    {
+        if (count < 0)
+        {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+
+        return new RecordSeeker(source, resolveTargetPaths(targetPaths)).sample(count, seed);
+    }
+
+    /**
+     * Parse an element extracted from a file into a {@link DocumentFragment}
+     * @param xml        The XML for the element
+     * @param namespaces Namespace declarations in scope for the element, prefix to URI
+     * @return {@link DocumentFragment} representing the element
+     * @throws XMLStreamException
+     */
+    private DocumentFragment xmlToFragment(String xml, Map<String, String> namespaces) throws XMLStreamException
+    {
+        // Wrap the element in a throwaway element that declares the namespaces it inherits
+        StringBuilder wrapped = new StringBuilder(xml.length() + 256).append("<scalpel");
+        for (Map.Entry<String, String> namespace : namespaces.entrySet())
+        {
+            wrapped.append(' ').append(XMLConstants.XMLNS_ATTRIBUTE);
+            if (!namespace.getKey().isEmpty())
+            {
+                wrapped.append(':').append(namespace.getKey());
+            }
+            wrapped.append("=\"").append(escapeAttributeValue(namespace.getValue())).append('"');
+        }
+        wrapped.append('>').append(xml).append("</scalpel>");
+
+        XMLStreamReader2 reader = (XMLStreamReader2) xif.createXMLStreamReader(new StringReader(wrapped.toString()));
+        try
+        {
+            // Step into the wrapper, then onto our element
+            reader.nextTag();
+            reader.nextTag();
 
-        xif = WstxInputFactory.newInstance();
-        xof = WstxOutputFactory.newInstance();
+            return elementToFragment(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
     }
 
     /**
-     * Read an XML file using the {@link com.ctc.wstx.stax.WstxInputFactory Woodstox} streaming API and supply the
-     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} with
-     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects.
-     * <p>
-     * All (and only) top level elements are returned. For example, given an XML file with a structure like
-     * <pre>
-     * {@code
-     * <feed>
-     *  <product></product>
-     *  <product></product>
-     *  <product></product>
-     * </feed>
-     * }
-     * </pre>
-     * <p>
-     * All {@code product} nodes will be returned.
-     * <p>
-     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects wrap the dom node as a
-     * {@link org.w3c.dom.DocumentFragment DocumentFragment} and an
-     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} object that describes the
-     * node's location in the XML file. This allows efficient retrieval of the nodes later using the
-     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
-     * <p>
-     *
-     * @param file      The XML file to process
-     * @param processor {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
+     * Stream through a document and hand every target element to the handler along with its location
      *
-     * @throws FileNotFoundException
+     * @param source      The XML document to process
+     * @param targetPaths {@link java.util.List List} of node paths to target for extraction, may be null
+     * @param handler     {@link RecordHandler} for the target elements
+     * @param <S>         Type of the objects produced by the handler
+     * @throws IOException
      * @throws XMLStreamException
      */
-    public void readFile(File file, XMLStreamProcessor processor) throws IOException, XMLStreamException
+    private <S> void traverse(ByteSource source, List<String> targetPaths, RecordHandler<S> handler)
+            throws IOException, XMLStreamException
     {
-        readFile(file, processor, null);
+        // Set up a fresh context with the target paths for this read
+        ParseContext context = new ParseContext(resolveTargetPaths(targetPaths));
+
+        traverse(source, context, source.openStream(), 0, 0, handler);
     }
 
     /**
-     * Read an XML file using the {@link com.ctc.wstx.stax.WstxInputFactory Woodstox} streaming API and supply the
-     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} with
-     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects.
-     * Specify a {@link java.util.List List} of node paths to extract. Example:
-     * <pre>
-     * {@code
-     * <xml>
-     * <Feed>
-     *     <Category>
-     *         <Name>Bolts</Name>
-     *         <Product>Large</Product>
-     *         <Product>Small</Product>
-     *         <Services>
-     *             <Service>Tightening</Service>
-     *             <Service>Loosening</Service>
-     *         </Services>
-     *     </Category>
-     *     <Category>
-     *         <Name>Hammers</Name>
-     *         <Product>Framing</Product>
-     *         <Product>Dead Blow</Product>
-     *         <Services>
-     *             <Service>Banging</Service>
-     *         </Services>
-     *     </Category>
-     * </Feed>
-     * }
-     * </pre>
-     * <p>
-     * You can extract all {@code product} and {@code service} elements in the same read operation by
-     * passing in these paths:<br>
-     * {@code /feed/category/Product}<br>
-     * {@code /feed/category/Services/Service}
-     * <p>
-     * Namespace prefixes may be specified as they appear in the XML:
-     * {@code /aw:PurchaseOrders/aw:PurchaseOrder/aw:Address}
-     * <p>
-     * Paths are absolute with respect to the document root, they will be normalized to always have a leading slash
-     * and never have a trailing slash. Overlapping paths are not supported, the least specific path will be used in
-     * such a case.
-     * <p>
-     * {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects wrap the dom node as a
-     * {@link org.w3c.dom.DocumentFragment DocumentFragment} and an
-     * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} object that describes the
-     * node's location in the XML file. This allows efficient retrieval of the nodes later using the
-     * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader}
-     * <p>
-     *
-     * @param file        The XML file to process
-     * @param processor   {@link com.thirdpartylabs.xmlscalpel.processor.XMLStreamProcessor XMLStreamProcessor} instance
-     * @param targetPaths {@link java.util.List List} of node paths to target for extraction
+     * Stream through a document, or the rest of a document, and hand every target element to the handler along with
+     * its location
      *
-     * @throws FileNotFoundException
+     * @param source       The XML document, for metrics
+     * @param context      The {@link ParseContext} for this read operation
+     * @param input        Stream over the document, possibly resuming part way through it behind synthetic start tags
+     * @param startOffset  Byte offset of the first byte of the stream in the document
+     * @param firstOrdinal Ordinal of the first target element in the stream
+     * @param handler      {@link RecordHandler} for the target elements
+     * @param <S>          Type of the objects produced by the handler
+     * @throws IOException
      * @throws XMLStreamException
      */
-    public void readFile(File file, XMLStreamProcessor processor, List<String> targetPaths) throws IOException, XMLStreamException
+    private <S> void traverse(ByteSource source, ParseContext context, InputStream input, long startOffset,
+                              int firstOrdinal, RecordHandler<S> handler) throws IOException, XMLStreamException
     {
-        // Set up the target paths and clear the tag stack
-        setTargetPaths(targetPaths);
-        tagStack.clear();
+        // Only take measurements if someone is listening
+        MetricsSink metricsSink = XMLScalpelMetrics.getSink();
+        boolean measure = metricsSink.isEnabled();
+        long readStart = measure ? System.nanoTime() : 0;
 
-        // Tell the processor how many bytes are in the file
-        processor.setBytesTotal(file.length());
+        int nodeCount = firstOrdinal;
 
-        int nodeCount = 0;
+        try
+        {
+            // Set set up the reader and populate metadata
+            initializeDocument(context, input, startOffset, metricsSink);
 
-        // Set set up the reader and populate metadata
-        initializeDocument(file);
+            XMLStreamReader2 reader = context.getXmlStreamReader();
+            ByteTrackingReader byteTrackingReader = context.getByteTrackingReader();
 
-        // Loop through events until we have traversed the entire document
-        XMLEvent event;
-        do
-        {
-            event = reader.nextEvent();
-            if (event.isStartElement())
+            // Loop through events until we have traversed the entire document
+            while (reader.hasNext())
             {
-                // Keep track of our location
-                pushTag(event.asStartElement().getName());
-
-                // Should we extract this element?
-                if (elementIsEligibleForProcessing())
+                int eventType = reader.next();
+                if (eventType == XMLStreamConstants.START_ELEMENT)
                 {
-                    StartElement element = event.asStartElement();
+                    // Keep track of our location
+                    context.pushTag(reader);
 
-                    // Get our offset for the beginning of this node
-                    int startCharOffset = element.getLocation().getCharacterOffset();
-                    long startByteOffset = byteTrackingReader.getByteOffsetForCharOffset(startCharOffset);
+                    // Should we extract this element?
+                    if (context.elementIsEligibleForProcessing())
+                    {
+                        // Get our offset for the beginning of this node
+                        long startCharOffset = reader.getLocationInfo().getStartingCharOffset();
+                        long startByteOffset = byteTrackingReader.getByteOffsetForCharOffset(startCharOffset);
 
-                    // Populate a DocumentFragment for this node
-                    DocumentFragment outputFragment = startEventToFragment(reader, event);
+                        // The handler consumes the element, leaving the reader on its end element
+                        long extractionStart = measure ? System.nanoTime() : 0;
+                        S result = handler.read(reader, nodeCount, startByteOffset);
+                        long extractionNanos = measure ? System.nanoTime() - extractionStart : 0;
 
-                    /*
-                    Get the char offset from the Woodstox reader and use it to get a byte offset
-                    from our underlying ByteTrackingReader
+                        /*
+                        Get the char offset from the Woodstox reader and use it to get a byte offset
+                        from our underlying ByteTrackingReader
 
-                    This will be the exact offset for the end of the closing tag of this node
-                    */
-                    XMLEvent endEvent = reader.peek();
-                    int endCharOffset = endEvent.getLocation().getCharacterOffset();
-                    long endByteOffset = byteTrackingReader.getByteOffsetForCharOffset(endCharOffset);
+                        This will be the exact offset for the end of the closing tag of this node
+                        */
+                        long endCharOffset = reader.getLocationInfo().getEndingCharOffset();
+                        long endByteOffset = byteTrackingReader.getByteOffsetForCharOffset(endCharOffset);
 
-                    // Calculate the number of bytes in our element
-                    int byteLength = (int) (endByteOffset - startByteOffset);
+                        // Calculate the number of bytes in our element
+                        long length = endByteOffset - startByteOffset;
 
-                    // Instantiate an XMLByteLocation with the current index and byte  offsets
-                    XMLByteLocation xmlByteLocation = new XMLByteLocation(nodeCount, startByteOffset, byteLength);
+                        if (measure)
+                        {
+                            metricsSink.fragmentExtracted(new XMLByteLocation(nodeCount, startByteOffset, length),
+                                    extractionNanos);
+                        }
 
-                    // Wrap the DocumentFragment and XMLByteLocation in a Fragment object
-                    Fragment fragment = new Fragment(outputFragment, xmlByteLocation);
+                        handler.complete(result, nodeCount, startByteOffset, length);
 
-                    // Send the Fragment object to the XMLStreamProcessor
-                    processor.process(fragment);
+                        // Bump the index
+                        nodeCount++;
 
-                    // Bump the index
-                    nodeCount++;
+                        // Pop our tag off the stack
+                        context.popTag();
 
-                    // Pop our tag off the stack
-                    popTag();
+                        handler.boundary(context, nodeCount, endByteOffset);
+                    }
+                }
+                else if (eventType == XMLStreamConstants.END_ELEMENT)
+                {
+                    // Pop this tag off the stack
+                    context.popTag();
                 }
             }
-            if(event.isEndElement())
+
+            if (measure)
             {
-                // Pop this tag off the stack
-                popTag();
+                metricsSink.fileIndexed(source.getIdentity(), source.size(), nodeCount,
+                        System.nanoTime() - readStart);
             }
-        } while (!event.isEndDocument());
+        }
+        finally
+        {
+            context.release();
+        }
     }
 
     /**
@@ -249,7 +1400,8 @@ public class StreamingXMLReader
      */
     public Map<String, String> getDocumentElementAttributes()
     {
-        return documentElementAttributes;
+        ParseContext context = lastContext.get();
+        return (context == null) ? Collections.emptyMap() : context.getDocumentElementAttributes();
     }
 
     /**
@@ -259,7 +1411,8 @@ public class StreamingXMLReader
      */
     public Map<String, String> getDocumentElementAttributeNamespaces()
     {
-        return documentElementAttributeNamespaces;
+        ParseContext context = lastContext.get();
+        return (context == null) ? Collections.emptyMap() : context.getDocumentElementAttributeNamespaces();
     }
 
     /**
@@ -269,12 +1422,8 @@ public class StreamingXMLReader
      */
     public String getDocumentElementTagName()
     {
-        if (documentElementTagName.isEmpty())
-        {
-            return null;
-        }
-
-        return documentElementTagName;
+        ParseContext context = lastContext.get();
+        return (context == null) ? null : emptyToNull(context.getDocumentElementTagName());
     }
 
     /**
@@ -284,12 +1433,8 @@ public class StreamingXMLReader
      */
     public String getPrefix()
     {
-        if (documentElementPrefix.isEmpty())
-        {
-            return null;
-        }
-
-        return documentElementPrefix;
+        ParseContext context = lastContext.get();
+        return (context == null) ? null : emptyToNull(context.getDocumentElementPrefix());
     }
 
     /**
@@ -301,12 +1446,8 @@ public class StreamingXMLReader
      */
     public String getCharacterEncodingScheme()
     {
-        if (characterEncodingScheme.isEmpty())
-        {
-            return null;
-        }
-
-        return characterEncodingScheme;
+        ParseContext context = lastContext.get();
+        return (context == null) ? null : emptyToNull(context.getCharacterEncodingScheme());
     }
 
     /**
@@ -317,12 +1458,8 @@ public class StreamingXMLReader
      */
     public String getEncoding()
     {
-        if (encoding.isEmpty())
-        {
-            return null;
-        }
-
-        return encoding;
+        ParseContext context = lastContext.get();
+        return (context == null) ? null : emptyToNull(context.getEncoding());
     }
 
     /**
@@ -334,28 +1471,46 @@ public class StreamingXMLReader
      */
     public String getVersion()
     {
-        if (xmlVersion.isEmpty())
-        {
-            return null;
-        }
+        ParseContext context = lastContext.get();
+        return (context == null) ? null : emptyToNull(context.getXmlVersion());
+    }
 
-        return xmlVersion;
+    /**
+     * Open an XML document, extract relevant metadata, and prepare for reading
+     *
+     * @param context     The {@link ParseContext} for this read operation
+     * @param input       Stream over the XML document, it is closed when the context is released
+     * @param metricsSink {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} for offset lookup misses
+     * @throws XMLStreamException
+     */
+    private void initializeDocument(ParseContext context, InputStream input, MetricsSink metricsSink)
+            throws XMLStreamException
+    {
+        initializeDocument(context, input, 0, metricsSink);
     }
 
     /**
-     * Open an XML file, extract relevant metadata, sn prepare for reading
+     * Open an XML document, or the rest of one, extract relevant metadata, and prepare for reading
      *
-     * @param file The XML file to initialize
-     * @throws FileNotFoundException
+     * @param context     The {@link ParseContext} for this read operation
+     * @param input       Stream over the XML document, it is closed when the context is released
+     * @param startOffset Byte offset of the first byte of the stream in the document
+     * @param metricsSink {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} for offset lookup misses
      * @throws XMLStreamException
      */
-    private void initializeDocument(File file) throws FileNotFoundException, XMLStreamException
+    private void initializeDocument(ParseContext context, InputStream input, long startOffset,
+                                    MetricsSink metricsSink) throws XMLStreamException
     {
-        // We need to use a Reader so we can get char offsets
-        FileReader fileReader = new FileReader(file);
+        /*
+            We need to use a Reader so we can get char offsets.
+
+            The ByteTrackingReader counts UTF-8 bytes, so decode as UTF-8 explicitly rather than with the
+            platform default charset.
+         */
+        InputStreamReader fileReader = new InputStreamReader(input, StandardCharsets.UTF_8);
 
         // Our ByteTrackingReader will map byte offsets to char offsets
-        byteTrackingReader = new ByteTrackingReader(fileReader);
+        ByteTrackingReader byteTrackingReader = new ByteTrackingReader(fileReader, startOffset, metricsSink);
 
         /*
             We use woodstox for speed and char offset accuracy.
@@ -367,64 +1522,87 @@ public class StreamingXMLReader
             The char offsets returned by most XMLStreamReaders are inaccurate and will not allow us to
             pull out specific elements by byte offset later.
 
-            We need to create the intermediate XMLStreamReader manually and pass it in, we need a reference to it
-            in order to get the XML version, encoding, and character encoding scheme.
+            We use the Stax2 cursor API rather than events, both for speed and so that the exact starting and
+            ending char offsets of each element are available.
          */
-        XMLStreamReader xmlStreamReader = xif.createXMLStreamReader(byteTrackingReader);
-        reader = xif.createXMLEventReader(xmlStreamReader);
+        XMLStreamReader2 reader = (XMLStreamReader2) (context.isMultiDocument() ? multiDocumentXif : xif)
+                .createXMLStreamReader(byteTrackingReader);
 
-        // The StartDocument event
-        reader.nextEvent();
+        context.attach(byteTrackingReader, reader);
 
-        //Advance to the document element
-        XMLEvent event = reader.nextEvent();
-        StartElement element = event.asStartElement();
+        // Metadata getters on this thread now refer to this file
+        lastContext.set(context);
 
-        // Push the document element onto the stack
-        pushTag(element.getName());
+        // Extract XML metadata from the declaration, of the first document if there are several
+        context.setEncoding(reader.getEncoding());
+
+        String xmlVersion = reader.getVersion();
+        context.setXmlVersion(xmlVersion == null ? "1.0" : xmlVersion);
 
-        // Extract XML metadata
-        encoding = xmlStreamReader.getEncoding();
-        xmlVersion = xmlStreamReader.getVersion();
-        if (xmlVersion == null)
+        String characterEncodingScheme = reader.getCharacterEncodingScheme();
+        context.setCharacterEncodingScheme(
+                characterEncodingScheme == null ? StandardCharsets.UTF_8.toString() : characterEncodingScheme);
+
+        if (context.isMultiDocument())
         {
-            xmlVersion = "1.0";
+            // Every document element is a top level element, leave the reader before the first one
+            return;
         }
 
-        characterEncodingScheme = xmlStreamReader.getCharacterEncodingScheme();
-        if (characterEncodingScheme == null)
+        // Advance past the prolog to the document element
+        while (reader.next() != XMLStreamConstants.START_ELEMENT)
         {
-            characterEncodingScheme = StandardCharsets.UTF_8.toString();
+            // Comments, processing instructions and the DTD are of no interest
         }
 
+        // Push the document element onto the stack
+        context.pushTag(reader);
+
         /*
             Extract namespace attributes, and standard attributes from the document node
          */
-        documentElementTagName = element.getName().getLocalPart();
-        documentElementPrefix = element.getName().getPrefix();
+        context.setDocumentElementTagName(reader.getLocalName());
+        context.setDocumentElementPrefix(nullToEmpty(reader.getPrefix()));
 
+        Map<String, String> documentElementAttributeNamespaces = context.getDocumentElementAttributeNamespaces();
         documentElementAttributeNamespaces.clear();
 
-        Iterator<Namespace> namespaceIterator = element.getNamespaces();
-        while (namespaceIterator.hasNext())
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
         {
-            Namespace currNamespace = namespaceIterator.next();
-            documentElementAttributeNamespaces.put(currNamespace.getPrefix(), currNamespace.getNamespaceURI());
+            documentElementAttributeNamespaces.put(nullToEmpty(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
         }
 
+        Map<String, String> documentElementAttributes = context.getDocumentElementAttributes();
         documentElementAttributes.clear();
 
-        Iterator<Attribute> attributeIterator = element.getAttributes();
-        while (attributeIterator.hasNext())
+        for (int i = 0; i < reader.getAttributeCount(); i++)
         {
-            Attribute currAttribute = attributeIterator.next();
-            QName aName = currAttribute.getName();
+            documentElementAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
 
-            String currAttributeName = aName.getLocalPart();
-            String currAttributeValue = currAttribute.getValue();
+    /**
+     * Open an XML file, extract the document element metadata and close the file again
+     *
+     * @param file The XML file to initialize
+     * @return The {@link ParseContext} holding the metadata
+     * @throws FileNotFoundException
+     * @throws XMLStreamException
+     */
+    private ParseContext initializeMetadata(File file) throws FileNotFoundException, XMLStreamException
+    {
+        ParseContext context = new ParseContext(defaultTargetPaths);
 
-            documentElementAttributes.put(currAttributeName, currAttributeValue);
+        try
+        {
+            initializeDocument(context, new FileInputStream(file), MetricsSink.NOOP);
         }
+        finally
+        {
+            context.release();
+        }
+
+        return context;
     }
 
     /**
@@ -436,25 +1614,43 @@ public class StreamingXMLReader
      */
     public Document getEmptyDocument(File file) throws FileNotFoundException, XMLStreamException, XMLParseException
     {
-        initializeDocument(file);
-
-        return getEmptyDocument();
+        return getEmptyDocument(initializeMetadata(file));
     }
 
     /**
-     * @return {@link org.w3c.dom.Document Document} containing only the document element from the last file provided to this instance of
-     * StreamingXMLReader
+     * @return {@link org.w3c.dom.Document Document} containing only the document element from the last file provided
+     * to this instance of StreamingXMLReader by the calling thread
      * @throws XMLParseException
      */
     public Document getEmptyDocument() throws XMLParseException
     {
+        ParseContext context = lastContext.get();
+        if (context == null)
+        {
+            return null;
+        }
+
+        return getEmptyDocument(context);
+    }
+
+    /**
+     * @param context {@link ParseContext} holding the document element metadata
+     * @return {@link org.w3c.dom.Document Document} containing only the document element described by the context
+     * @throws XMLParseException
+     */
+    private Document getEmptyDocument(ParseContext context) throws XMLParseException
+    {
+        String documentElementTagName = context.getDocumentElementTagName();
+        String documentElementPrefix = context.getDocumentElementPrefix();
+        Map<String, String> documentElementAttributeNamespaces = context.getDocumentElementAttributeNamespaces();
+
         if (documentElementTagName == null)
         {
             return null;
         }
 
-        Document output = builder.newDocument();
-        output.setXmlVersion(xmlVersion);
+        Document output = builder.get().newDocument();
+        output.setXmlVersion(context.getXmlVersion());
         output.setXmlStandalone(true);
 
         Element documentElement;
@@ -485,7 +1681,7 @@ public class StreamingXMLReader
             output.getDocumentElement().setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, currAttrName, currURI);
         }
 
-        for (Map.Entry<String, String> currNamespace : documentElementAttributes.entrySet())
+        for (Map.Entry<String, String> currNamespace : context.getDocumentElementAttributes().entrySet())
         {
             String currAttrName = currNamespace.getKey();
             String currValue = currNamespace.getValue();
@@ -505,132 +1701,216 @@ public class StreamingXMLReader
      */
     public OuterDocument getOuterDocument(File file) throws Exception
     {
-        initializeDocument(file);
+        ParseContext context = initializeMetadata(file);
 
-        Document emptyDocument = getEmptyDocument();
-        return new OuterDocument(emptyDocument, characterEncodingScheme);
+        Document emptyDocument = getEmptyDocument(context);
+        return new OuterDocument(emptyDocument, context.getCharacterEncodingScheme());
     }
 
     /**
      * @return  {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} wrapper containing the empty
      * {@link org.w3c.dom.Document Document} containing only the document element from the last file provided to this
-     * instance of {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+     * instance of {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} by the
+     * calling thread
      * @throws Exception
      */
     public OuterDocument getOuterDocument() throws Exception
     {
-        Document emptyDocument = getEmptyDocument();
-        return new OuterDocument(emptyDocument, characterEncodingScheme);
+        ParseContext context = lastContext.get();
+        if (context == null)
+        {
+            return null;
+        }
+
+        Document emptyDocument = getEmptyDocument(context);
+        return new OuterDocument(emptyDocument, context.getCharacterEncodingScheme());
     }
 
     /**
-     * Normalize and set the paths
-     * @param targetPathInput The list of path Strings
+     * Normalize a list of target paths into an immutable set
+     * @param targetPathInput The list of path Strings, may be null
+     * @return Immutable {@link java.util.Set Set} of normalized paths
      */
-    private void setTargetPaths(List<String> targetPathInput)
+    private static Set<String> compileTargetPaths(List<String> targetPathInput)
     {
-        if (targetPathInput == null)
+        if (targetPathInput == null || targetPathInput.isEmpty())
         {
-            targetPaths.clear();
-            return;
+            return Collections.emptySet();
         }
 
-        // Normalize the paths and set them as the targetPath list
-        targetPaths.clear();
-        for(String currPath:targetPathInput)
+        // Normalize the paths
+        Set<String> targetPaths = new HashSet<>();
+        for (String currPath : targetPathInput)
         {
-            String currNormalizedPath = normalizeTargetPath(currPath);
-            targetPaths.add(currNormalizedPath);
+            targetPaths.add(normalizeTargetPath(currPath));
         }
+
+        return Collections.unmodifiableSet(targetPaths);
     }
 
-    private void pushTag(QName qName)
+    /**
+     * Use the provided target paths if there are any, otherwise fall back to the defaults set on construction
+     * @param targetPathInput The list of path Strings, may be null
+     * @return Immutable {@link java.util.Set Set} of normalized paths
+     */
+    private Set<String> resolveTargetPaths(List<String> targetPathInput)
     {
-        tagStack.push(normalizeQname(qName));
-        currentPath = getCurrentTagPath();
+        if (targetPathInput == null)
+        {
+            return defaultTargetPaths;
+        }
+
+        return compileTargetPaths(targetPathInput);
     }
 
-    private void popTag()
+    /**
+     * Create a namespace aware {@link javax.xml.parsers.DocumentBuilder DocumentBuilder} for the calling thread
+     * @return {@link javax.xml.parsers.DocumentBuilder DocumentBuilder}
+     */
+    private DocumentBuilder newDocumentBuilder()
     {
-        tagStack.pop();
-        currentPath = getCurrentTagPath();
+        DocumentBuilderFactory factory = dbf;
+        if (factory == null)
+        {
+            synchronized (this)
+            {
+                factory = dbf;
+                if (factory == null)
+                {
+                    factory = DocumentBuilderFactory.newInstance();
+                    factory.setNamespaceAware(true);
+                    dbf = factory;
+                }
+            }
+        }
+
+        try
+        {
+            return factory.newDocumentBuilder();
+        }
+        catch (ParserConfigurationException e)
+        {
+            // A namespace aware builder is supported by every JAXP implementation
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
-     * Take over the XMLEvent stream and pipe the events for the current Element into a {@link DocumentFragment}
-     * @param reader {@link XMLEventReader}
-     * @param startEvent {@link XMLEvent}
-     * @return {@link DocumentFragment} representing the node defined by the start event
+     * Take over the stream reader and copy the events for the current Element into a {@link DocumentFragment}
+     * @param reader {@link XMLStreamReader2} positioned on the start element, it is left on the matching end element
+     * @return {@link DocumentFragment} representing the node defined by the start element
      * @throws XMLStreamException
      */
-    private DocumentFragment startEventToFragment(XMLEventReader reader, XMLEvent startEvent) throws XMLStreamException
+    private DocumentFragment elementToFragment(XMLStreamReader2 reader) throws XMLStreamException
     {
-        StartElement element = startEvent.asStartElement();
-        QName name = element.getName();
-        int stack = 1;
+        Document document = builder.get().newDocument();
+        DocumentFragment fragment = document.createDocumentFragment();
 
-        // Create a DOMResult and pass it to an XMLEventWriter that we can pipe the events into
-        DOMResult domResult = new DOMResult(builder.newDocument());
-        XMLEventWriter writer = xof.createXMLEventWriter(domResult);
+        Node current = fragment;
+        int depth = 0;
 
         // Spin through events until we reach the end of our Element
-        writer.add(element);
+        int eventType = reader.getEventType();
         while (true)
         {
-            XMLEvent event = reader.nextEvent();
-            if (event.isStartElement() && event.asStartElement().getName().equals(name))
+            switch (eventType)
             {
-                stack++;
+                case XMLStreamConstants.START_ELEMENT:
+                    Element element = createElement(document, reader);
+                    current.appendChild(element);
+                    current = element;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = current.getParentNode();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    current.appendChild(document.createTextNode(reader.getText()));
+                    break;
+                case XMLStreamConstants.CDATA:
+                    current.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    current.appendChild(document.createComment(reader.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    current.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    current.appendChild(document.createEntityReference(reader.getLocalName()));
+                    break;
+                default:
+                    break;
             }
-            if (event.isEndElement())
+
+            if (depth == 0)
             {
-                EndElement end = event.asEndElement();
-                if (end.getName().equals(name))
-                {
-                    stack--;
-                    if (stack == 0)
-                    {
-                        writer.add(event);
-                        break;
-                    }
-                }
+                break;
             }
-            writer.add(event);
-        }
-        writer.close();
 
-        // Create a DocumentFragment and return it
-        Document document = (Document) domResult.getNode();
-        DocumentFragment fragment = document.createDocumentFragment();
-        fragment.appendChild(document.getDocumentElement());
+            eventType = reader.next();
+        }
 
         return fragment;
     }
 
     /**
-     * Use the current path to determine whether or not to process the current element
-     * @return boolean
+     * Create a DOM {@link org.w3c.dom.Element Element} for the start element the reader is positioned on, with its
+     * namespace declarations and attributes
+     * @param document {@link org.w3c.dom.Document Document} that will own the element
+     * @param reader   {@link XMLStreamReader2} positioned on a start element
+     * @return {@link org.w3c.dom.Element Element}
      */
-    private boolean elementIsEligibleForProcessing()
+    private static Element createElement(Document document, XMLStreamReader2 reader)
     {
-        // If there are no path specs, always handle the opening element events
-        if (targetPaths.isEmpty())
+        Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()),
+                normalizeQname(reader.getName()));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+        {
+            String prefix = reader.getNamespacePrefix(i);
+            String attrName = (prefix == null || prefix.isEmpty())
+                    ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attrName, reader.getNamespaceURI(i));
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++)
         {
-            return true;
+            element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+                    normalizeQname(reader.getAttributeName(i)), reader.getAttributeValue(i));
         }
 
-        // Only handle the event if the current path matches a user path
-        return targetPaths.contains(currentPath);
+        return element;
+    }
+
+    /**
+     * @param value Attribute value
+     * @return The value, escaped for use in a double quoted attribute
+     */
+    private static String escapeAttributeValue(String value)
+    {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
     }
 
     /**
-     * Get the current path based upon the tag stack
+     * @param value String that may be null
+     * @return The value, or an empty string if it is null
      */
-    private String getCurrentTagPath()
+    private static String nullToEmpty(String value)
     {
-        String path = String.join("/", tagStack);
+        return (value == null) ? "" : value;
+    }
 
-        return normalizeTargetPath(path);
+    /**
+     * @param value String that may be empty
+     * @return The value, or null if it is null or empty
+     */
+    private static String emptyToNull(String value)
+    {
+        return (value == null || value.isEmpty()) ? null : value;
     }
 
     /**
@@ -638,7 +1918,7 @@ public class StreamingXMLReader
      * @param qName {@link javax.xml.namespace.QName QName} to normalize
      * @return prefix:localName
      */
-    private String normalizeQname(QName qName)
+    static String normalizeQname(QName qName)
     {
         String prefix = qName.getPrefix();
         String tagName = qName.getLocalPart();
@@ -656,8 +1936,109 @@ public class StreamingXMLReader
      * @param path Path to normalize
      * @return Normalized path
      */
-    private String normalizeTargetPath(String path)
+    static String normalizeTargetPath(String path)
     {
         return path.replaceAll("^/?(.*[^/$])/?", "\\/$1");
     }
+
+    /**
+     * Records the location, hash and key of every target element in a table, committing checkpoints to a journal if
+     * one is given
+     */
+    private static class IndexingHandler implements RecordHandler<String>
+    {
+        private final LocationTable table;
+        private final RecordHasher hasher;
+        private final Projection keyCapture;
+        private final CheckpointJournal journal;
+        private final long checkpointInterval;
+
+        // Byte offset of the last checkpoint, or where this run started
+        private long lastCheckpoint;
+
+        IndexingHandler(LocationTable table, ByteSource source, boolean hashRecords, String keyPath,
+                        CheckpointJournal journal, long checkpointInterval)
+        {
+            this.table = table;
+            this.hasher = hashRecords ? new RecordHasher(source) : null;
+            this.keyCapture = (keyPath == null) ? null : new Projection(keyPath);
+            this.journal = journal;
+            this.checkpointInterval = checkpointInterval;
+            this.lastCheckpoint = (journal == null) ? 0 : journal.getResumeOffset();
+        }
+
+        @Override
+        public String read(XMLStreamReader2 reader, int index, long offset) throws XMLStreamException
+        {
+            if (keyCapture == null)
+            {
+                reader.skipElement();
+                return null;
+            }
+
+            return keyCapture.capture(reader)[0];
+        }
+
+        @Override
+        public void complete(String key, int index, long offset, long length) throws IOException
+        {
+            long hash = (hasher == null) ? 0 : hasher.hash(offset, length);
+            table.add(offset, length, hash, key);
+
+            if (journal != null)
+            {
+                journal.record(offset, length, hash, key);
+            }
+        }
+
+        @Override
+        public void boundary(ParseContext context, int nextIndex, long offset) throws IOException
+        {
+            if (journal != null && offset - lastCheckpoint >= checkpointInterval)
+            {
+                journal.commit(offset, nextIndex, context.getOpenTags());
+                lastCheckpoint = offset;
+            }
+        }
+    }
+
+    /**
+     * Receives the target elements found by {@link #traverse(ByteSource, List, RecordHandler) traverse}
+     * @param <S> Type of the object produced for each element
+     */
+    private interface RecordHandler<S>
+    {
+        /**
+         * Consume the element the reader is positioned on, leaving the reader on its end element
+         * <p>
+         * The location is passed as primitives, so handlers that only record it never create an object for it.
+         * @param reader {@link XMLStreamReader2} positioned on the start element
+         * @param index  Sequence of the element within the document
+         * @param offset Byte offset of the element, the length is not known until the element has been consumed
+         * @return Object produced for the element
+         * @throws XMLStreamException
+         */
+        S read(XMLStreamReader2 reader, int index, long offset) throws XMLStreamException;
+
+        /**
+         * Called once the element has been consumed and its length is known
+         * @param result Object produced by {@link #read(XMLStreamReader2, int, long) read}
+         * @param index  Sequence of the element within the document
+         * @param offset Byte offset of the element
+         * @param length Number of bytes in the element
+         * @throws IOException
+         */
+        void complete(S result, int index, long offset, long length) throws IOException;
+
+        /**
+         * Called after each target element, when the parse is at a record boundary
+         * @param context   {@link ParseContext} holding the elements that are still open
+         * @param nextIndex Sequence of the next target element
+         * @param offset    Byte offset just past the end of the element
+         * @throws IOException
+         */
+        default void boundary(ParseContext context, int nextIndex, long offset) throws IOException
+        {
+        }
+    }
 }
@@ -0,0 +1,589 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Byte level XML tag scanner used to jump over elements that can not contain any target elements.
+ * <p>
+ * The scanner does not decode characters or tokenize content. It only recognizes tags, tracking element depth,
+ * and steps over comments, CDATA sections, processing instructions, the DOCTYPE and quoted attribute values, using
+ * bulk searches for the next {@code <} in between. Element names are only decoded for elements whose path is a
+ * prefix of a target path, everything below any other element is skipped by depth alone.
+ * <p>
+ * All markup characters are ASCII, and in UTF-8 the bytes of multi-byte characters are all above 0x7F, so the
+ * scanner works on UTF-8, US-ASCII and ISO-8859-1 documents. The offsets it reports are exact byte offsets.
+ * <p>
+ * Instances read a single channel once and are not thread-safe.
+ */
+class TagScanner
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_START = "CDATA[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+    private final ReadableByteChannel channel;
+    private final byte[] buffer;
+    private final ByteBuffer byteBuffer;
+
+    // Absolute offset of buffer[0]
+    private long bufferStart;
+    private int pos = 0;
+    private int limit = 0;
+
+    // Reused while decoding names and attribute values
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    /**
+     * @param channel   Channel positioned at the first byte to scan
+     * @param position  Absolute offset of the channel position, reported offsets are relative to this
+     */
+    TagScanner(ReadableByteChannel channel, long position)
+    {
+        this(channel, position, BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel    Channel positioned at the first byte to scan
+     * @param position   Absolute offset of the channel position, reported offsets are relative to this
+     * @param bufferSize Number of bytes to read at a time, small buffers suit short scans from many positions
+     */
+    TagScanner(ReadableByteChannel channel, long position, int bufferSize)
+    {
+        this.channel = channel;
+        this.bufferStart = position;
+        this.buffer = new byte[bufferSize];
+        this.byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Receives the target elements found by {@link #scan(Set, ScanHandler) scan}
+     */
+    interface ScanHandler
+    {
+        /**
+         * @param offset     Byte offset of the start tag of the element
+         * @param length     Number of bytes up to and including the end tag
+         * @param namespaces Namespace declarations in scope from ancestor elements, prefix to URI, with an empty
+         *                   prefix for the default namespace
+         * @throws IOException
+         * @throws XMLStreamException
+         */
+        void element(long offset, long length, Map<String, String> namespaces) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Scan the whole document and report each target element
+     *
+     * @param targetPaths Normalized target paths, if empty all children of the document element are targets
+     * @param handler     {@link ScanHandler} for the target elements
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws XMLParseException If the markup is not well-formed enough to track element depth
+     */
+    void scan(Set<String> targetPaths, ScanHandler handler) throws IOException, XMLStreamException, XMLParseException
+    {
+        Set<String> candidatePaths = getCandidatePaths(targetPaths);
+
+        // Paths and in-scope namespaces of the open candidate elements
+        Deque<String> pathStack = new ArrayDeque<>();
+        Deque<Map<String, String>> namespaceStack = new ArrayDeque<>();
+        namespaceStack.push(Collections.emptyMap());
+
+        while (skipPast('<'))
+        {
+            long tagStart = position() - 1;
+
+            int next = read();
+            if (next == '/')
+            {
+                // End of a candidate element, everything else is consumed by skipElement
+                if (!skipPast('>') || pathStack.isEmpty())
+                {
+                    throw new XMLParseException("Unexpected end tag at byte " + tagStart);
+                }
+
+                pathStack.pop();
+                namespaceStack.pop();
+                continue;
+            }
+
+            if (skipMarkup(next))
+            {
+                continue;
+            }
+
+            // A start tag
+            String parentPath = pathStack.peek();
+            String path = ((parentPath == null) ? "/" : parentPath + "/") + readName(next);
+
+            boolean isTarget = targetPaths.isEmpty() ? pathStack.size() == 1 : targetPaths.contains(path);
+            boolean isCandidate = !isTarget && (targetPaths.isEmpty() ? pathStack.isEmpty() : candidatePaths.contains(path));
+
+            if (isCandidate)
+            {
+                // We are going to descend, keep track of any namespaces declared here
+                Map<String, String> namespaces = new HashMap<>(namespaceStack.peek());
+                boolean selfClosing = readAttributes(namespaces);
+
+                if (!selfClosing)
+                {
+                    pathStack.push(path);
+                    namespaceStack.push(namespaces);
+                }
+                continue;
+            }
+
+            boolean selfClosing = skipAttributes();
+            if (!selfClosing)
+            {
+                skipElement();
+            }
+
+            if (isTarget)
+            {
+                handler.element(tagStart, position() - tagStart, namespaceStack.peek());
+            }
+        }
+
+        if (!pathStack.isEmpty())
+        {
+            throw new XMLParseException("Unexpected end of document inside " + pathStack.peek());
+        }
+    }
+
+    /**
+     * @param targetPaths Normalized target paths
+     * @return All proper prefixes of the target paths
+     */
+    private static Set<String> getCandidatePaths(Set<String> targetPaths)
+    {
+        Set<String> candidatePaths = new HashSet<>();
+        for (String targetPath : targetPaths)
+        {
+            int slash = targetPath.lastIndexOf('/');
+            while (slash > 0)
+            {
+                candidatePaths.add(targetPath.substring(0, slash));
+                slash = targetPath.lastIndexOf('/', slash - 1);
+            }
+        }
+
+        return candidatePaths;
+    }
+
+    /**
+     * Skip the content and end tag of an element whose start tag has been consumed, by depth alone
+     *
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    void skipElement() throws IOException, XMLParseException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            if (!skipPast('<'))
+            {
+                throw new XMLParseException("Unexpected end of document");
+            }
+
+            int next = read();
+            if (next == '/')
+            {
+                depth--;
+                skipPast('>');
+            }
+            else if (!skipMarkup(next) && !skipAttributes())
+            {
+                depth++;
+            }
+        }
+    }
+
+    /**
+     * Skip comments, CDATA sections, processing instructions and the DOCTYPE
+     *
+     * @param next The byte following the {@code <}
+     * @return false if the {@code <} starts an element
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    boolean skipMarkup(int next) throws IOException, XMLParseException
+    {
+        if (next == '?')
+        {
+            skipPastSequence(PI_END);
+            return true;
+        }
+
+        if (next != '!')
+        {
+            if (next < 0)
+            {
+                throw new XMLParseException("Unexpected end of document");
+            }
+
+            return false;
+        }
+
+        next = read();
+        if (next == '-')
+        {
+            read();
+            skipPastSequence(COMMENT_END);
+        }
+        else if (next == '[')
+        {
+            for (byte b : CDATA_START)
+            {
+                if (read() != b)
+                {
+                    throw new XMLParseException("Malformed CDATA section at byte " + position());
+                }
+            }
+            skipPastSequence(CDATA_END);
+        }
+        else
+        {
+            skipDoctype();
+        }
+
+        return true;
+    }
+
+    /**
+     * Skip the remainder of a DOCTYPE declaration, including any internal subset
+     *
+     * @throws IOException
+     */
+    private void skipDoctype() throws IOException
+    {
+        int bracketDepth = 0;
+        int b;
+        while ((b = read()) >= 0)
+        {
+            if (b == '"' || b == '\'')
+            {
+                skipPast((byte) b);
+            }
+            else if (b == '[')
+            {
+                bracketDepth++;
+            }
+            else if (b == ']')
+            {
+                bracketDepth--;
+            }
+            else if (b == '>' && bracketDepth == 0)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read an element name, the first byte of which has already been consumed
+     *
+     * @param first First byte of the name
+     * @return The name as it appears in the document
+     * @throws IOException
+     */
+    String readName(int first) throws IOException
+    {
+        scratchLength = 0;
+        appendScratch(first);
+
+        int b;
+        while ((b = peek()) >= 0 && b != '>' && b != '/' && !isWhitespace(b))
+        {
+            appendScratch(read());
+        }
+
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Consume the attributes of a start tag without decoding them
+     *
+     * @return true if the tag is self closing
+     * @throws IOException
+     */
+    boolean skipAttributes() throws IOException
+    {
+        int previous = -1;
+        int b;
+        while ((b = read()) >= 0)
+        {
+            if (b == '"' || b == '\'')
+            {
+                skipPast((byte) b);
+            }
+            else if (b == '>')
+            {
+                return previous == '/';
+            }
+
+            previous = b;
+        }
+
+        return false;
+    }
+
+    /**
+     * Consume the attributes of a start tag, collecting namespace declarations
+     *
+     * @param namespaces Map to add namespace declarations to, prefix to URI
+     * @return true if the tag is self closing
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    private boolean readAttributes(Map<String, String> namespaces) throws IOException, XMLParseException
+    {
+        while (true)
+        {
+            int b = read();
+            while (isWhitespace(b))
+            {
+                b = read();
+            }
+
+            if (b == '>')
+            {
+                return false;
+            }
+
+            if (b == '/')
+            {
+                skipPast('>');
+                return true;
+            }
+
+            if (b < 0)
+            {
+                throw new XMLParseException("Unexpected end of document in start tag");
+            }
+
+            // Attribute name
+            scratchLength = 0;
+            while (b >= 0 && b != '=' && !isWhitespace(b))
+            {
+                appendScratch(b);
+                b = read();
+            }
+            String name = new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+
+            while (b >= 0 && b != '"' && b != '\'')
+            {
+                b = read();
+            }
+            int quote = b;
+
+            // Attribute value
+            scratchLength = 0;
+            while ((b = read()) >= 0 && b != quote)
+            {
+                appendScratch(b);
+            }
+
+            if (name.equals("xmlns"))
+            {
+                namespaces.put("", decodeAttributeValue());
+            }
+            else if (name.startsWith("xmlns:"))
+            {
+                namespaces.put(name.substring(6), decodeAttributeValue());
+            }
+        }
+    }
+
+    /**
+     * @return The attribute value in the scratch buffer with the predefined entities replaced
+     */
+    private String decodeAttributeValue()
+    {
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8)
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    /**
+     * @return Absolute offset of the next byte to be read
+     */
+    long position()
+    {
+        return bufferStart + pos;
+    }
+
+    /**
+     * Bulk search for a byte, positioning the scanner just past it
+     *
+     * @param target The byte to find
+     * @return false if the end of the input was reached first
+     * @throws IOException
+     */
+    boolean skipPast(char target) throws IOException
+    {
+        return skipPast((byte) target);
+    }
+
+    private boolean skipPast(byte target) throws IOException
+    {
+        while (true)
+        {
+            for (int i = pos; i < limit; i++)
+            {
+                if (buffer[i] == target)
+                {
+                    pos = i + 1;
+                    return true;
+                }
+            }
+
+            pos = limit;
+            if (!fill())
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Position the scanner just past the next occurrence of a byte sequence
+     *
+     * @param sequence The sequence to find, its first byte must not occur elsewhere in it
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    private void skipPastSequence(byte[] sequence) throws IOException, XMLParseException
+    {
+        int matched = 0;
+        while (matched < sequence.length)
+        {
+            int b = read();
+            if (b < 0)
+            {
+                throw new XMLParseException("Unexpected end of document");
+            }
+
+            if (b == sequence[matched])
+            {
+                matched++;
+            }
+            else if (b == sequence[0])
+            {
+                /*
+                    Runs of the first byte, e.g. "--->" or "]]]>", keep the longest match that ends here,
+                    which is as many leading repeats as the sequence has
+                 */
+                int repeats = 1;
+                while (repeats < sequence.length && sequence[repeats] == sequence[0])
+                {
+                    repeats++;
+                }
+                matched = Math.min(matched, repeats);
+            }
+            else
+            {
+                matched = 0;
+            }
+        }
+    }
+
+    int read() throws IOException
+    {
+        if (pos >= limit && !fill())
+        {
+            return -1;
+        }
+
+        return buffer[pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException
+    {
+        if (pos >= limit && !fill())
+        {
+            return -1;
+        }
+
+        return buffer[pos] & 0xFF;
+    }
+
+    /**
+     * Replace the consumed buffer with the next chunk of the input
+     *
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    private boolean fill() throws IOException
+    {
+        bufferStart += limit;
+        pos = 0;
+        limit = 0;
+
+        byteBuffer.clear();
+        int read;
+        do
+        {
+            read = channel.read(byteBuffer);
+        } while (read == 0);
+
+        if (read < 0)
+        {
+            return false;
+        }
+
+        limit = byteBuffer.position();
+        return true;
+    }
+
+    private void appendScratch(int b)
+    {
+        if (scratchLength == scratch.length)
+        {
+            byte[] grown = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, scratchLength);
+            scratch = grown;
+        }
+
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    static boolean isWhitespace(int b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+
+/**
+ * Byte level XML tag scanner that works backwards from the end of a file, used to find the last records without
+ * reading everything in front of them.
+ * <p>
+ * Going backwards, every end tag opens an element and the matching start tag closes it again, so the paths of the
+ * elements are known from the end tags alone. The scanner finds each {@code <} in turn, and reads forward from it
+ * just far enough to classify the tag and read its name. Comments, CDATA sections and processing instructions are
+ * recognized by their closing sequence and stepped over as a whole, so markup inside them is ignored. A {@code -->}
+ * or {@code ?>} is only taken as the end of a comment or processing instruction if a matching start is found in front
+ * of it, since both sequences may also appear in character data.
+ * <p>
+ * Like the {@link TagScanner}, the scanner works on UTF-8, US-ASCII and ISO-8859-1 documents and reports exact byte
+ * offsets. Instances read a single {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource} and are not
+ * thread-safe.
+ */
+class TailScanner
+{
+    private static final int BLOCK_SIZE = 65536;
+
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteSource source;
+    private final long size;
+
+    // Window onto the file, normally the block that ends at the last byte looked at
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long blockStart;
+
+    // Reused while reading names
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param source Source of the document
+     * @throws IOException
+     */
+    TailScanner(ByteSource source) throws IOException
+    {
+        this.source = source;
+        this.size = source.size();
+
+        // Nothing loaded yet, the first read is from the end
+        blockStart = size;
+        block.limit(0);
+    }
+
+    /**
+     * Find the last target elements in the file
+     *
+     * @param targetPaths Normalized target paths, if empty all children of the document element are targets
+     * @param count       Maximum number of elements to find
+     * @return {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of the elements, in document
+     * order
+     * @throws IOException
+     * @throws XMLParseException If the markup is not well-formed enough to track element paths
+     */
+    LocationTable scan(Set<String> targetPaths, int count) throws IOException, XMLParseException
+    {
+        // Found last to first
+        long[] offsets = new long[Math.min(count, 1024)];
+        long[] lengths = new long[offsets.length];
+        int found = 0;
+
+        // Paths of the elements whose end tags have been passed, and the offsets just after those end tags
+        Deque<String> paths = new ArrayDeque<>();
+        Deque<Long> ends = new ArrayDeque<>();
+
+        long position = size;
+        while (found < count)
+        {
+            long tagStart = previousTag(position);
+            if (tagStart < 0)
+            {
+                if (!paths.isEmpty())
+                {
+                    throw new XMLParseException("Unexpected start of document inside " + paths.peek());
+                }
+                break;
+            }
+            position = tagStart;
+
+            int next = byteAt(tagStart + 1);
+            if (next == '!' || next == '?')
+            {
+                // DOCTYPE, or a processing instruction at the very start of the file
+                continue;
+            }
+
+            String parentPath = paths.isEmpty() ? "" : paths.peek();
+            long tagEnd = tagEnd(tagStart);
+
+            if (next == '/')
+            {
+                paths.push(parentPath + "/" + readName(tagStart + 2));
+                ends.push(tagEnd);
+                continue;
+            }
+
+            String name = readName(tagStart + 1);
+            String path;
+            long end;
+
+            if (byteAt(tagEnd - 2) == '/')
+            {
+                path = parentPath + "/" + name;
+                end = tagEnd;
+            }
+            else
+            {
+                if (paths.isEmpty() || !parentPath.endsWith("/" + name))
+                {
+                    throw new XMLParseException("Start tag at byte " + tagStart + " does not match "
+                            + (paths.isEmpty() ? "any end tag" : parentPath));
+                }
+
+                path = paths.pop();
+                end = ends.pop();
+            }
+
+            boolean isTarget = targetPaths.isEmpty() ? paths.size() == 1 : targetPaths.contains(path);
+            if (isTarget)
+            {
+                if (found == offsets.length)
+                {
+                    int capacity = (int) Math.min(count, offsets.length * 2L);
+                    offsets = Arrays.copyOf(offsets, capacity);
+                    lengths = Arrays.copyOf(lengths, capacity);
+                }
+
+                offsets[found] = tagStart;
+                lengths[found] = end - tagStart;
+                found++;
+            }
+
+            if (paths.isEmpty())
+            {
+                // That was the document element
+                break;
+            }
+        }
+
+        LocationTable table = new LocationTable(found);
+        for (int i = found - 1; i >= 0; i--)
+        {
+            table.add(offsets[i], lengths[i]);
+        }
+
+        return table;
+    }
+
+    /**
+     * Find the start of the last tag before an offset, stepping over comments, CDATA sections and processing
+     * instructions
+     *
+     * @param before Offset to search back from
+     * @return Offset of the {@code <}, or -1 if there are no more tags
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    private long previousTag(long before) throws IOException, XMLParseException
+    {
+        long i = before - 1;
+        while (i >= 0)
+        {
+            int b = byteAt(i);
+            if (b == '<')
+            {
+                return i;
+            }
+
+            if (b == '>' && i >= 2)
+            {
+                int previous = byteAt(i - 1);
+                if (previous == '-' && byteAt(i - 2) == '-')
+                {
+                    long start = commentStart(i - 2);
+                    if (start >= 0)
+                    {
+                        i = start - 1;
+                        continue;
+                    }
+                }
+
+                if (previous == ']' && byteAt(i - 2) == ']')
+                {
+                    i = lastIndexOf(CDATA_START, i - 2, "CDATA section") - 1;
+                    continue;
+                }
+
+                if (previous == '?')
+                {
+                    long start = processingInstructionStart(i - 1);
+                    if (start >= 0)
+                    {
+                        i = start - 1;
+                        continue;
+                    }
+                }
+            }
+
+            i--;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the start of the comment that a {@code -->} would close. Comments cannot contain {@code --}, so the first
+     * {@code --} in front of it has to be the one that opens the comment. If it is not, the {@code -->} is character
+     * data or part of an attribute value.
+     *
+     * @param close Offset of the {@code --} in front of the {@code >}
+     * @return Offset of the {@code <!--}, or -1 if the {@code -->} does not close a comment
+     * @throws IOException
+     */
+    private long commentStart(long close) throws IOException
+    {
+        for (long i = close - 2; i >= 0; i--)
+        {
+            if (byteAt(i) == '-' && byteAt(i + 1) == '-')
+            {
+                return i >= 2 && byteAt(i - 1) == '!' && byteAt(i - 2) == '<' ? i - 2 : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the start of the processing instruction that a {@code ?>} would close. Processing instructions cannot
+     * contain {@code ?>}, so if another one turns up before a {@code <?}, this one is character data or part of an
+     * attribute value.
+     *
+     * @param close Offset of the {@code ?} in front of the {@code >}
+     * @return Offset of the {@code <?}, or -1 if the {@code ?>} does not close a processing instruction
+     * @throws IOException
+     */
+    private long processingInstructionStart(long close) throws IOException
+    {
+        for (long i = close - 1; i >= 0; i--)
+        {
+            int b = byteAt(i);
+            if (b == '?' && byteAt(i - 1) == '<')
+            {
+                return i - 1;
+            }
+
+            if (b == '>' && byteAt(i - 1) == '?')
+            {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the last occurrence of a byte sequence that ends at or before an offset
+     *
+     * @param sequence The sequence to find
+     * @param end      Offset the sequence must end at or before
+     * @param what     Description of the markup for error messages
+     * @return Offset of the sequence
+     * @throws IOException
+     * @throws XMLParseException If it is not found
+     */
+    private long lastIndexOf(byte[] sequence, long end, String what) throws IOException, XMLParseException
+    {
+        for (long i = end - sequence.length; i >= 0; i--)
+        {
+            if (byteAt(i) != sequence[0])
+            {
+                continue;
+            }
+
+            int matched = 1;
+            while (matched < sequence.length && byteAt(i + matched) == sequence[matched])
+            {
+                matched++;
+            }
+
+            if (matched == sequence.length)
+            {
+                return i;
+            }
+        }
+
+        throw new XMLParseException("Unterminated " + what + " ending at byte " + end);
+    }
+
+    /**
+     * @param tagStart Offset of the {@code <} of a tag
+     * @return Offset just after the {@code >} that closes the tag, skipping over quoted attribute values
+     * @throws IOException
+     * @throws XMLParseException
+     */
+    private long tagEnd(long tagStart) throws IOException, XMLParseException
+    {
+        int quote = -1;
+        for (long i = tagStart + 1; ; i++)
+        {
+            int b = byteAt(i);
+            if (b < 0)
+            {
+                throw new XMLParseException("Unexpected end of document in tag at byte " + tagStart);
+            }
+
+            if (quote >= 0)
+            {
+                if (b == quote)
+                {
+                    quote = -1;
+                }
+            }
+            else if (b == '"' || b == '\'')
+            {
+                quote = b;
+            }
+            else if (b == '>')
+            {
+                return i + 1;
+            }
+        }
+    }
+
+    /**
+     * @param offset Offset of the first byte of an element name
+     * @return The name as it appears in the document
+     * @throws IOException
+     */
+    private String readName(long offset) throws IOException
+    {
+        int length = 0;
+        int b;
+        while ((b = byteAt(offset + length)) >= 0 && b != '>' && b != '/' && !TagScanner.isWhitespace(b))
+        {
+            if (length == scratch.length)
+            {
+                scratch = Arrays.copyOf(scratch, length * 2);
+            }
+            scratch[length++] = (byte) b;
+        }
+
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param position Offset of the byte
+     * @return The byte, or -1 outside of the file
+     * @throws IOException
+     */
+    private int byteAt(long position) throws IOException
+    {
+        if (position < 0 || position >= size)
+        {
+            return -1;
+        }
+
+        if (position < blockStart || position >= blockStart + block.limit())
+        {
+            // Scanning runs backwards, so load the block that ends here, unless this is a look ahead
+            load(position < blockStart ? Math.max(0, position + 1 - BLOCK_SIZE) : position);
+        }
+
+        return block.get((int) (position - blockStart)) & 0xFF;
+    }
+
+    private void load(long start) throws IOException
+    {
+        block.clear().limit((int) Math.min(BLOCK_SIZE, size - start));
+        source.readFully(start, block);
+
+        blockStart = start;
+        block.flip();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.List;
+
+/**
+ * Collects the searchable text of a record while streaming through it, for the
+ * {@link com.thirdpartylabs.xmlscalpel.index.TermIndexWriter TermIndexWriter}.
+ * <p>
+ * Text paths are relative to the record element and use the same syntax as
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.Projection Projection} field paths, but an element path collects
+ * the text of every matching element and all of its descendants. With no text paths all of the text in the record
+ * is collected. A space is added wherever markup separates two pieces of text, so that words in neighbouring
+ * elements and attributes stay apart.
+ */
+class TextCapture
+{
+    private final FieldPath[] textPaths;
+
+    // Depth of the deepest element named by any path
+    private final int maxDepth;
+
+    /**
+     * @param textPaths Text paths, or null to collect all of the text
+     */
+    TextCapture(List<String> textPaths)
+    {
+        int count = (textPaths == null) ? 0 : textPaths.size();
+        this.textPaths = new FieldPath[count];
+
+        int deepest = 0;
+        for (int i = 0; i < count; i++)
+        {
+            this.textPaths[i] = FieldPath.parse(textPaths.get(i), "text path");
+            deepest = Math.max(deepest, this.textPaths[i].getDepth());
+        }
+
+        maxDepth = deepest;
+    }
+
+    /**
+     * Stream through the record the reader is positioned on and append its text
+     *
+     * @param reader Reader positioned on the start element of the record, it is left on the matching end element
+     * @param text   Receives the text
+     * @throws XMLStreamException
+     */
+    void capture(XMLStreamReader reader, StringBuilder text) throws XMLStreamException
+    {
+        // Everything is collected when there are no paths
+        int capturingFrom = (textPaths.length == 0) ? 0 : -1;
+
+        String[] path = new String[maxDepth];
+        int depth = 0;
+
+        appendAttributes(reader, depth, path, text);
+
+        // The parser can split a run of text into several events, only markup separates words
+        boolean separate = true;
+
+        while (true)
+        {
+            int eventType = reader.next();
+
+            if (eventType == XMLStreamConstants.START_ELEMENT)
+            {
+                depth++;
+                separate = true;
+
+                if (depth <= maxDepth)
+                {
+                    path[depth - 1] = StreamingXMLReader.normalizeQname(reader.getName());
+                    appendAttributes(reader, depth, path, text);
+
+                    if (capturingFrom < 0 && matchesElement(depth, path))
+                    {
+                        capturingFrom = depth;
+                    }
+                }
+            }
+            else if (eventType == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == 0)
+                {
+                    return;
+                }
+
+                if (depth == capturingFrom)
+                {
+                    capturingFrom = -1;
+                }
+
+                depth--;
+                separate = true;
+            }
+            else if (capturingFrom >= 0 && (eventType == XMLStreamConstants.CHARACTERS
+                    || eventType == XMLStreamConstants.CDATA))
+            {
+                if (separate)
+                {
+                    text.append(' ');
+                    separate = false;
+                }
+
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+    }
+
+    /**
+     * @return true if an element path names the element at the top of the path
+     */
+    private boolean matchesElement(int depth, String[] path)
+    {
+        for (FieldPath textPath : textPaths)
+        {
+            if (textPath.getAttribute() == null && textPath.matches(path, depth))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void appendAttributes(XMLStreamReader reader, int depth, String[] path, StringBuilder text)
+    {
+        for (FieldPath textPath : textPaths)
+        {
+            if (textPath.getAttribute() != null && textPath.matches(path, depth))
+            {
+                String value = textPath.getAttributeValue(reader);
+                if (value != null)
+                {
+                    text.append(' ').append(value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ByteSource} for a document held in memory. The array is not copied and must not be modified while the
+ * source is in use.
+ */
+public class ArrayByteSource implements ByteSource
+{
+    private final byte[] bytes;
+    private final String identity;
+
+    /**
+     * @param bytes The document
+     */
+    public ArrayByteSource(byte[] bytes)
+    {
+        this(bytes, "memory");
+    }
+
+    /**
+     * @param bytes    The document
+     * @param identity Name for the document in messages
+     */
+    public ArrayByteSource(byte[] bytes, String identity)
+    {
+        this.bytes = bytes;
+        this.identity = identity;
+    }
+
+    @Override
+    public String getIdentity()
+    {
+        return identity;
+    }
+
+    /**
+     * @return null, there is nothing to compare an array against
+     */
+    @Override
+    public String getVersion()
+    {
+        return null;
+    }
+
+    @Override
+    public long size()
+    {
+        return bytes.length;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target)
+    {
+        if (position >= bytes.length)
+        {
+            return -1;
+        }
+
+        int count = (int) Math.min(target.remaining(), bytes.length - position);
+        target.put(bytes, (int) position, count);
+
+        return count;
+    }
+
+    @Override
+    public InputStream openStream()
+    {
+        return new ByteArrayInputStream(bytes);
+    }
+}
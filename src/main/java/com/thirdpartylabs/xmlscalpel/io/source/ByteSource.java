@@ -0,0 +1,132 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the bytes of a document, wherever they are kept
+ * <p>
+ * The readers accept a ByteSource wherever they accept a {@link java.io.File File}, so documents can be indexed and
+ * records retrieved from memory or a remote object store in the same way as from a local file. Implementations must
+ * allow positional reads from several threads at once.
+ * <p>
+ * Sources that pay per request, such as {@link HttpRangeByteSource}, can use {@link #prefetch(long, long) prefetch}
+ * hints to fetch a span of records in one go.
+ */
+public interface ByteSource extends Closeable
+{
+    /**
+     * @return Name that identifies the document, such as a path or URL
+     */
+    String getIdentity();
+
+    /**
+     * @return Token that changes whenever the content of the document changes, such as a modification time or an
+     * HTTP entity tag, or null if the source can not tell
+     * @throws IOException
+     */
+    String getVersion() throws IOException;
+
+    /**
+     * @return Number of bytes in the document
+     * @throws IOException
+     */
+    long size() throws IOException;
+
+    /**
+     * Read bytes starting at a position, without affecting any other read
+     *
+     * @param position Offset of the first byte to read
+     * @param target   Buffer to read into, up to its remaining capacity
+     * @return Number of bytes read, which may be fewer than requested, or -1 at the end of the document
+     * @throws IOException
+     */
+    int read(long position, ByteBuffer target) throws IOException;
+
+    /**
+     * Read bytes starting at a position until the buffer is full
+     *
+     * @param position Offset of the first byte to read
+     * @param target   Buffer to fill
+     * @throws EOFException If the document ends first
+     * @throws IOException
+     */
+    default void readFully(long position, ByteBuffer target) throws IOException
+    {
+        long current = position;
+        while (target.hasRemaining())
+        {
+            int read = read(current, target);
+            if (read < 0)
+            {
+                throw new EOFException("Unexpected end of " + getIdentity() + " at byte " + current);
+            }
+
+            current += read;
+        }
+    }
+
+    /**
+     * Hint that a span of bytes is about to be read. Sources with a high cost per request fetch the whole span at
+     * once, others ignore the hint.
+     *
+     * @param position Offset of the first byte of the span
+     * @param length   Number of bytes in the span
+     * @throws IOException
+     */
+    default void prefetch(long position, long length) throws IOException
+    {
+    }
+
+    /**
+     * Open a stream over the whole document, for the streaming readers
+     *
+     * @return {@link java.io.InputStream InputStream} positioned at the first byte
+     * @throws IOException
+     */
+    default InputStream openStream() throws IOException
+    {
+        return new ByteSourceInputStream(this);
+    }
+
+    /**
+     * Open a stream over a range of the document, for streaming readers that work on part of it
+     *
+     * @param position Offset of the first byte of the range
+     * @param length   Number of bytes in the range
+     * @return {@link java.io.InputStream InputStream} positioned at the first byte of the range, it ends at the end
+     * of the range or of the document
+     * @throws IOException
+     */
+    default InputStream openStream(long position, long length) throws IOException
+    {
+        return new ByteSourceInputStream(this, position, position + length);
+    }
+
+    /**
+     * Release any resources held by the source
+     *
+     * @throws IOException
+     */
+    @Override
+    default void close() throws IOException
+    {
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential {@link java.io.InputStream InputStream} over a {@link ByteSource}, or a range of one, reading it in
+ * large blocks
+ */
+class ByteSourceInputStream extends InputStream
+{
+    private static final int BLOCK_SIZE = 65536;
+
+    private final ByteSource source;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+    // Offset of the next block to read from the source
+    private long position;
+
+    // Offset after the last byte to read
+    private final long end;
+    private boolean ended = false;
+
+    ByteSourceInputStream(ByteSource source)
+    {
+        this(source, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param source   The source to read
+     * @param position Offset of the first byte to read
+     * @param end      Offset after the last byte to read
+     */
+    ByteSourceInputStream(ByteSource source, long position, long end)
+    {
+        this.source = source;
+        this.position = position;
+        this.end = end;
+        block.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!block.hasRemaining() && !fill())
+        {
+            return -1;
+        }
+
+        return block.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (!block.hasRemaining() && !fill())
+        {
+            return -1;
+        }
+
+        int count = Math.min(len, block.remaining());
+        block.get(b, off, count);
+
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return block.remaining();
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (ended)
+        {
+            return false;
+        }
+
+        block.clear();
+        if (end - position < block.capacity())
+        {
+            block.limit((int) Math.max(0, end - position));
+        }
+
+        if (!block.hasRemaining())
+        {
+            ended = true;
+            block.limit(0);
+            return false;
+        }
+
+        int read;
+        do
+        {
+            read = source.read(position, block);
+        } while (read == 0);
+
+        if (read < 0)
+        {
+            ended = true;
+            block.limit(0);
+            return false;
+        }
+
+        position += read;
+        block.flip();
+
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link ByteSource} for a local file, read through a {@link java.nio.channels.FileChannel FileChannel} that is
+ * opened on first use
+ * <p>
+ * The version is made up of the modification time and the length of the file.
+ */
+public class FileByteSource implements ByteSource
+{
+    private final File file;
+    private volatile FileChannel channel;
+
+    /**
+     * @param file The file to read
+     */
+    public FileByteSource(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @return The file being read
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The channel the file is read through, for callers that copy ranges with
+     * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo}.
+     * It is closed with the source.
+     * @throws IOException
+     */
+    public FileChannel getChannel() throws IOException
+    {
+        return channel();
+    }
+
+    @Override
+    public String getIdentity()
+    {
+        return file.getPath();
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return file.lastModified() + "-" + file.length();
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel().size();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException
+    {
+        return channel().read(target, position);
+    }
+
+    /**
+     * Stream the file directly rather than through positional reads
+     */
+    @Override
+    public InputStream openStream() throws IOException
+    {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException
+    {
+        FileChannel current = channel;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = channel;
+                if (current == null)
+                {
+                    current = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    channel = current;
+                }
+            }
+        }
+
+        return current;
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ByteSource} for a document in an object store or on a web server that supports HTTP range requests
+ * <p>
+ * Every request costs a round trip, so reads fetch at least a minimum number of bytes and keep the spans they fetch
+ * in a small cache. A {@link #prefetch(long, long) prefetch} of a span of records fetches the whole span in one
+ * request, and the records are then read from the cache. {@link #openStream() openStream} makes a single request for
+ * the whole document. If the server ignores the range and sends the whole document, the response is read only as far
+ * as the end of the range, and only the range is kept.
+ * <p>
+ * The version is the entity tag of the document, or its modification time if the server sends no tag. Once it is
+ * known, range requests are conditional on it, and a change of version between requests fails the read rather than
+ * mixing bytes from two versions of the document.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class HttpRangeByteSource implements ByteSource
+{
+    /**
+     * Default for the least number of bytes fetched by a read
+     */
+    public static final int DEFAULT_MINIMUM_FETCH = 65536;
+
+    /**
+     * Default for the number of bytes of fetched spans to keep
+     */
+    public static final long DEFAULT_CACHE_SIZE = 16L << 20;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    private final URL url;
+    private final int minimumFetch;
+    private final long cacheSize;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    // Fetched spans by offset, with the order they were fetched in for eviction, guarded by this
+    private final TreeMap<Long, byte[]> spans = new TreeMap<>();
+    private final Deque<Long> fetchOrder = new ArrayDeque<>();
+    private long cachedBytes = 0;
+
+    // Learned from the responses, guarded by this
+    private String version;
+    private boolean strongTag;
+    private long size = -1;
+
+    /**
+     * @param url Location of the document
+     */
+    public HttpRangeByteSource(URL url)
+    {
+        this(url, DEFAULT_MINIMUM_FETCH, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param url          Location of the document
+     * @param minimumFetch Least number of bytes to fetch when a read misses the cache
+     * @param cacheSize    Number of bytes of fetched spans to keep, the most recent span is always kept
+     */
+    public HttpRangeByteSource(URL url, int minimumFetch, long cacheSize)
+    {
+        if (minimumFetch < 1)
+        {
+            throw new IllegalArgumentException("minimumFetch must be at least 1");
+        }
+
+        this.url = url;
+        this.minimumFetch = minimumFetch;
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public String getIdentity()
+    {
+        return url.toString();
+    }
+
+    @Override
+    public String getVersion() throws IOException
+    {
+        synchronized (this)
+        {
+            if (version != null || size >= 0)
+            {
+                return version;
+            }
+        }
+
+        head();
+
+        synchronized (this)
+        {
+            return version;
+        }
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        synchronized (this)
+        {
+            if (size >= 0)
+            {
+                return size;
+            }
+        }
+
+        head();
+
+        synchronized (this)
+        {
+            return size;
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException
+    {
+        if (!target.hasRemaining())
+        {
+            return 0;
+        }
+
+        int count = readCached(position, target);
+        if (count != 0)
+        {
+            return count;
+        }
+
+        if (!fetch(position, Math.max(target.remaining(), minimumFetch)))
+        {
+            return -1;
+        }
+
+        count = readCached(position, target);
+
+        // A server can send back less than asked for, but never nothing for a range that exists
+        if (count == 0)
+        {
+            throw new IOException("No bytes returned for byte " + position + " of " + url);
+        }
+
+        return count;
+    }
+
+    /**
+     * Fetch the span in a single request, unless it is already cached
+     */
+    @Override
+    public void prefetch(long position, long length) throws IOException
+    {
+        synchronized (this)
+        {
+            Map.Entry<Long, byte[]> span = spans.floorEntry(position);
+            if (span != null && span.getKey() + span.getValue().length >= position + length)
+            {
+                return;
+            }
+        }
+
+        fetch(position, length);
+    }
+
+    /**
+     * Request the whole document in one response
+     */
+    @Override
+    public InputStream openStream() throws IOException
+    {
+        HttpURLConnection connection = open("GET");
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK)
+        {
+            connection.disconnect();
+            throw failure(status);
+        }
+
+        checkVersion(connection);
+
+        return connection.getInputStream();
+    }
+
+    /**
+     * @return Number of HTTP requests made so far
+     */
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * Copy from a cached span that contains the position
+     *
+     * @return Number of bytes copied, 0 if the position is not cached or -1 if it is past the end of the document
+     */
+    private synchronized int readCached(long position, ByteBuffer target)
+    {
+        if (size >= 0 && position >= size)
+        {
+            return -1;
+        }
+
+        Map.Entry<Long, byte[]> span = spans.floorEntry(position);
+        if (span == null)
+        {
+            return 0;
+        }
+
+        byte[] bytes = span.getValue();
+        long start = position - span.getKey();
+        if (start >= bytes.length)
+        {
+            return 0;
+        }
+
+        int count = (int) Math.min(target.remaining(), bytes.length - start);
+        target.put(bytes, (int) start, count);
+
+        return count;
+    }
+
+    /**
+     * Fetch a range of bytes into the cache
+     *
+     * @return false if the range starts past the end of the document
+     * @throws IOException
+     */
+    private boolean fetch(long position, long length) throws IOException
+    {
+        HttpURLConnection connection = open("GET");
+        connection.setRequestProperty("Range", "bytes=" + position + "-" + (position + length - 1));
+
+        synchronized (this)
+        {
+            if (version != null && strongTag)
+            {
+                connection.setRequestProperty("If-Match", version);
+            }
+        }
+
+        try
+        {
+            int status = connection.getResponseCode();
+            if (status == 416)
+            {
+                // Range Not Satisfiable, the response says how big the document is
+                learnSize(connection.getHeaderField("Content-Range"));
+                return false;
+            }
+
+            if (status != HttpURLConnection.HTTP_PARTIAL && status != HttpURLConnection.HTTP_OK)
+            {
+                throw failure(status);
+            }
+
+            checkVersion(connection);
+
+            long start;
+            byte[] body;
+            if (status == HttpURLConnection.HTTP_PARTIAL)
+            {
+                start = learnSize(connection.getHeaderField("Content-Range"));
+                try (InputStream input = connection.getInputStream())
+                {
+                    body = input.readAllBytes();
+                }
+            }
+            else
+            {
+                // The server ignored the range and is sending the whole document, keep only the range
+                long contentLength = connection.getContentLengthLong();
+                if (contentLength >= 0)
+                {
+                    synchronized (this)
+                    {
+                        size = contentLength;
+                    }
+                    if (position >= contentLength)
+                    {
+                        return false;
+                    }
+                    length = Math.min(length, contentLength - position);
+                }
+
+                start = position;
+                try (InputStream input = connection.getInputStream())
+                {
+                    body = readRange(input, position, length);
+                }
+
+                if (body == null)
+                {
+                    return false;
+                }
+            }
+
+            cache(start, body);
+            return true;
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read a range from a response that holds the whole document
+     *
+     * @param input    Body of the response
+     * @param position Offset of the first byte to keep
+     * @param length   Number of bytes to keep
+     * @return The bytes of the range, short if the document ends first, or null if it ends before the position
+     * @throws IOException
+     */
+    private byte[] readRange(InputStream input, long position, long length) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < position)
+        {
+            long count = input.skip(position - skipped);
+            if (count <= 0)
+            {
+                // skip() can return 0 before the end, read() tells them apart
+                if (input.read() < 0)
+                {
+                    synchronized (this)
+                    {
+                        size = skipped;
+                    }
+                    return null;
+                }
+                count = 1;
+            }
+            skipped += count;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(length, Integer.MAX_VALUE - 8)];
+        int count = input.readNBytes(buffer, 0, buffer.length);
+        if (count < length)
+        {
+            synchronized (this)
+            {
+                size = position + count;
+            }
+        }
+
+        if (count == 0)
+        {
+            return null;
+        }
+
+        return count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+    }
+
+    private void head() throws IOException
+    {
+        HttpURLConnection connection = open("HEAD");
+        try
+        {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+            {
+                throw failure(status);
+            }
+
+            checkVersion(connection);
+
+            long length = connection.getContentLengthLong();
+            if (length < 0)
+            {
+                throw new IOException("No Content-Length for " + url);
+            }
+
+            synchronized (this)
+            {
+                size = length;
+            }
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String method) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+        // Ranges of compressed bodies are ranges of the compressed bytes
+        connection.setRequestProperty("Accept-Encoding", "identity");
+
+        requestCount.incrementAndGet();
+
+        return connection;
+    }
+
+    /**
+     * Record the version of the document from the first response, and make sure later responses match it
+     */
+    private void checkVersion(HttpURLConnection connection) throws IOException
+    {
+        String tag = connection.getHeaderField("ETag");
+        String responseVersion = tag != null ? tag : connection.getHeaderField("Last-Modified");
+        if (responseVersion == null)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (version == null)
+            {
+                version = responseVersion;
+                strongTag = tag != null && !tag.startsWith("W/");
+            }
+            else if (!version.equals(responseVersion))
+            {
+                throw new IOException(url + " has changed since it was first read, version " + version + " is now "
+                        + responseVersion);
+            }
+        }
+    }
+
+    /**
+     * Parse a Content-Range header of the form {@code bytes start-end/size} or {@code bytes *}{@code /size}
+     *
+     * @return The start of the range, or -1 if there is none
+     * @throws IOException
+     */
+    private long learnSize(String contentRange) throws IOException
+    {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+        {
+            throw new IOException("Missing or invalid Content-Range from " + url + ": " + contentRange);
+        }
+
+        int slash = contentRange.indexOf('/');
+        String range = contentRange.substring(6, slash);
+        String total = contentRange.substring(slash + 1);
+
+        try
+        {
+            if (!total.equals("*"))
+            {
+                synchronized (this)
+                {
+                    size = Long.parseLong(total);
+                }
+            }
+
+            return range.equals("*") ? -1 : Long.parseLong(range.substring(0, range.indexOf('-')));
+        }
+        catch (NumberFormatException | StringIndexOutOfBoundsException e)
+        {
+            throw new IOException("Invalid Content-Range from " + url + ": " + contentRange, e);
+        }
+    }
+
+    private synchronized void cache(long start, byte[] body)
+    {
+        byte[] previous = spans.put(start, body);
+        if (previous != null)
+        {
+            cachedBytes -= previous.length;
+            fetchOrder.remove(start);
+        }
+
+        fetchOrder.addLast(start);
+        cachedBytes += body.length;
+
+        while (cachedBytes > cacheSize && fetchOrder.size() > 1)
+        {
+            cachedBytes -= spans.remove(fetchOrder.removeFirst()).length;
+        }
+    }
+
+    private IOException failure(int status)
+    {
+        if (status == HttpURLConnection.HTTP_PRECON_FAILED)
+        {
+            return new IOException(url + " has changed since it was first read");
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_FOUND)
+        {
+            return new FileNotFoundException(url.toString());
+        }
+
+        return new IOException("HTTP " + status + " from " + url);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link ByteSource} for a local file mapped into memory, so reads are copies from the page cache without a system
+ * call. Files larger than a single mapping are mapped in segments.
+ * <p>
+ * The file is mapped when the source is created and must not be truncated while it is in use. The version is made
+ * up of the modification time and the length of the file at that point.
+ */
+public class MappedByteSource implements ByteSource
+{
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final File file;
+    private final String version;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * @param file The file to map
+     * @throws IOException
+     */
+    public MappedByteSource(File file) throws IOException
+    {
+        this.file = file;
+        this.version = file.lastModified() + "-" + file.length();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+
+            for (int i = 0; i < segments.length; i++)
+            {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+    }
+
+    @Override
+    public String getIdentity()
+    {
+        return file.getPath();
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return version;
+    }
+
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Reads stop at the end of a segment, {@link #readFully(long, ByteBuffer) readFully} carries on into the next
+     */
+    @Override
+    public int read(long position, ByteBuffer target)
+    {
+        if (position >= size)
+        {
+            return -1;
+        }
+
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int start = (int) (position & (SEGMENT_SIZE - 1));
+        int count = Math.min(target.remaining(), segment.limit() - start);
+
+        // Absolute view so concurrent reads do not share a position
+        ByteBuffer view = segment.duplicate();
+        view.position(start).limit(start + count);
+        target.put(view);
+
+        return count;
+    }
+}
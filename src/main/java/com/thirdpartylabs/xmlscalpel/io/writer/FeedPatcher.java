@@ -0,0 +1,461 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.index.XXHash64;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Produce a corrected copy of an indexed XML file by replacing, deleting and inserting individual records
+ * <p>
+ * Changes are collected against the ordinals, or keys, of the records in the
+ * {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the original file. When the patch is
+ * written the unchanged byte ranges between the affected records are copied with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo} and
+ * the replacement records are encoded in their place, so nothing is parsed. The
+ * {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} for the new file is built as it is written.
+ * <p>
+ * Inserted records are separated from their neighbours by the whitespace found between the first two records of the
+ * original file, and a deleted record takes that whitespace with it when it is found in front of the record.
+ * Replacement and inserted records are written as given, they are not checked for well-formedness.
+ * <p>
+ * If the index holds hashes, hashes are computed for the new records. If it holds keys, a replaced record keeps the
+ * key of the record it replaces and inserted records have no key. Instances are not thread-safe.
+ */
+public class FeedPatcher
+{
+    // Longest run of whitespace between records that is reused as a separator
+    private static final int MAX_SEPARATOR_LENGTH = 256;
+
+    private final Charset charset;
+
+    private final Map<Integer, String> replacements = new HashMap<>();
+    private final Set<Integer> deletions = new HashSet<>();
+    private final Map<String, String> keyedReplacements = new LinkedHashMap<>();
+    private final Set<String> keyedDeletions = new HashSet<>();
+    private final Map<Integer, List<String>> insertions = new HashMap<>();
+
+    /**
+     * Patch a UTF-8 encoded file
+     */
+    public FeedPatcher()
+    {
+        this(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param charset Encoding of the file being patched, replacement records are written in the same encoding
+     */
+    public FeedPatcher(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    /**
+     * Replace a record
+     *
+     * @param ordinal Ordinal of the record in the index
+     * @param xml     Replacement record
+     * @return this
+     */
+    public FeedPatcher replace(int ordinal, String xml)
+    {
+        replacements.put(ordinal, xml);
+        return this;
+    }
+
+    /**
+     * Replace the record with the given key, the index must hold keys
+     *
+     * @param key Key of the record
+     * @param xml Replacement record
+     * @return this
+     */
+    public FeedPatcher replace(String key, String xml)
+    {
+        keyedReplacements.put(key, xml);
+        return this;
+    }
+
+    /**
+     * Delete a record
+     *
+     * @param ordinal Ordinal of the record in the index
+     * @return this
+     */
+    public FeedPatcher delete(int ordinal)
+    {
+        deletions.add(ordinal);
+        return this;
+    }
+
+    /**
+     * Delete the record with the given key, the index must hold keys
+     *
+     * @param key Key of the record
+     * @return this
+     */
+    public FeedPatcher delete(String key)
+    {
+        keyedDeletions.add(key);
+        return this;
+    }
+
+    /**
+     * Insert a record in front of an existing record. Records inserted before the same ordinal are written in the
+     * order they were added.
+     *
+     * @param ordinal Ordinal of the record to insert in front of, or the size of the index to append after the last
+     *                record
+     * @param xml     Record to insert
+     * @return this
+     */
+    public FeedPatcher insertBefore(int ordinal, String xml)
+    {
+        insertions.computeIfAbsent(ordinal, k -> new ArrayList<>()).add(xml);
+        return this;
+    }
+
+    /**
+     * Write the patched file
+     *
+     * @param source Original file
+     * @param index  {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the original file
+     * @param target File to write, it is replaced if it exists. Must not be the source file.
+     * @return {@link com.thirdpartylabs.xmlscalpel.index.LocationTable LocationTable} of the records in the new file
+     * @throws IOException
+     */
+    public LocationTable write(File source, LocationIndex index, File target) throws IOException
+    {
+        int size = index.size();
+
+        // Resolve keys to ordinals, the keyed and numbered changes can then be treated alike
+        Map<Integer, String> replaced = new HashMap<>();
+        Set<Integer> deleted = new HashSet<>();
+        resolve(index, replaced, deleted);
+
+        TreeSet<Integer> touched = new TreeSet<>(replaced.keySet());
+        touched.addAll(deleted);
+
+        int insertionCount = 0;
+        for (Map.Entry<Integer, List<String>> insertion : insertions.entrySet())
+        {
+            int ordinal = insertion.getKey();
+            if (ordinal < 0 || ordinal > size)
+            {
+                throw new IllegalArgumentException("Can not insert before record " + ordinal + " of " + size);
+            }
+
+            if (size == 0)
+            {
+                throw new IllegalArgumentException("Can not insert into a file without records");
+            }
+
+            touched.add(ordinal);
+            insertionCount += insertion.getValue().size();
+        }
+
+        LocationTable table = new LocationTable(size + insertionCount, index.hasHashes(), index.hasKeys());
+
+        try (FileByteSource input = new FileByteSource(source);
+             FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            Splicer splicer = new Splicer(input.getChannel(), targetChannel, index, table);
+            byte[] separator = findSeparator(input, index);
+
+            int ordinal = 0;
+            for (int changed : touched)
+            {
+                // Records up to the change keep their bytes, only their offsets shift
+                for (; ordinal < changed; ordinal++)
+                {
+                    splicer.keep(ordinal);
+                }
+
+                List<String> inserted = insertions.getOrDefault(changed, List.of());
+
+                if (changed == size)
+                {
+                    // Append after the last record
+                    splicer.copyTo(index.getOffset(size - 1) + index.getLength(size - 1));
+                    for (String xml : inserted)
+                    {
+                        splicer.write(separator);
+                        splicer.add(xml, null);
+                    }
+                    break;
+                }
+
+                long offset = index.getOffset(changed);
+
+                if (deleted.contains(changed))
+                {
+                    // Take the separator in front of the record along with it when it is there to take
+                    long previousEnd = changed == 0 ? 0 : index.getOffset(changed - 1) + index.getLength(changed - 1);
+                    long cut = offset - separator.length;
+                    boolean trim = separator.length > 0 && cut >= Math.max(splicer.sourcePosition, previousEnd)
+                            && Arrays.equals(read(input, cut, separator.length), separator);
+
+                    splicer.copyTo(trim ? cut : offset);
+                    for (String xml : inserted)
+                    {
+                        if (trim)
+                        {
+                            splicer.write(separator);
+                            splicer.add(xml, null);
+                        }
+                        else
+                        {
+                            splicer.add(xml, null);
+                            splicer.write(separator);
+                        }
+                    }
+                    splicer.skipTo(offset + index.getLength(changed));
+                }
+                else
+                {
+                    splicer.copyTo(offset);
+                    for (String xml : inserted)
+                    {
+                        splicer.add(xml, null);
+                        splicer.write(separator);
+                    }
+
+                    String replacement = replaced.get(changed);
+                    if (replacement == null)
+                    {
+                        splicer.keep(changed);
+                    }
+                    else
+                    {
+                        splicer.add(replacement, index.hasKeys() ? index.getKey(changed) : null);
+                        splicer.skipTo(offset + index.getLength(changed));
+                    }
+                }
+
+                ordinal = changed + 1;
+            }
+
+            for (; ordinal < size; ordinal++)
+            {
+                splicer.keep(ordinal);
+            }
+
+            splicer.copyTo(input.size());
+        }
+
+        table.trimToSize();
+
+        return table;
+    }
+
+    /**
+     * Collect the replacements and deletions by ordinal, checking that each record is changed only once
+     */
+    private void resolve(LocationIndex index, Map<Integer, String> replaced, Set<Integer> deleted)
+    {
+        int size = index.size();
+
+        Map<String, Integer> ordinals = new HashMap<>();
+        if (!keyedReplacements.isEmpty() || !keyedDeletions.isEmpty())
+        {
+            if (!index.hasKeys())
+            {
+                throw new IllegalArgumentException("Records can only be patched by key when the index holds keys");
+            }
+
+            for (int i = 0; i < size; i++)
+            {
+                String key = index.getKey(i);
+                if (key != null && (keyedReplacements.containsKey(key) || keyedDeletions.contains(key)))
+                {
+                    ordinals.putIfAbsent(key, i);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, String> replacement : replacements.entrySet())
+        {
+            replaced.put(checkOrdinal(replacement.getKey(), size), replacement.getValue());
+        }
+
+        for (Map.Entry<String, String> replacement : keyedReplacements.entrySet())
+        {
+            int ordinal = ordinalOf(ordinals, replacement.getKey());
+            if (replaced.put(ordinal, replacement.getValue()) != null)
+            {
+                throw new IllegalArgumentException("Record " + ordinal + " is replaced more than once");
+            }
+        }
+
+        for (int ordinal : deletions)
+        {
+            deleted.add(checkOrdinal(ordinal, size));
+        }
+
+        for (String key : keyedDeletions)
+        {
+            deleted.add(ordinalOf(ordinals, key));
+        }
+
+        for (int ordinal : deleted)
+        {
+            if (replaced.containsKey(ordinal))
+            {
+                throw new IllegalArgumentException("Record " + ordinal + " is both replaced and deleted");
+            }
+        }
+    }
+
+    private static int checkOrdinal(int ordinal, int size)
+    {
+        if (ordinal < 0 || ordinal >= size)
+        {
+            throw new IndexOutOfBoundsException("Record " + ordinal + " of " + size);
+        }
+
+        return ordinal;
+    }
+
+    private static int ordinalOf(Map<String, Integer> ordinals, String key)
+    {
+        Integer ordinal = ordinals.get(key);
+        if (ordinal == null)
+        {
+            throw new IllegalArgumentException("No record with key " + key);
+        }
+
+        return ordinal;
+    }
+
+    /**
+     * Use the whitespace between the first two records as the separator, if they are separated only by whitespace
+     */
+    private byte[] findSeparator(ByteSource input, LocationIndex index) throws IOException
+    {
+        if (index.size() < 2)
+        {
+            return new byte[0];
+        }
+
+        long end = index.getOffset(0) + index.getLength(0);
+        long gap = index.getOffset(1) - end;
+        if (gap <= 0 || gap > MAX_SEPARATOR_LENGTH)
+        {
+            return new byte[0];
+        }
+
+        byte[] bytes = read(input, end, (int) gap);
+        return new String(bytes, charset).trim().isEmpty() ? bytes : new byte[0];
+    }
+
+    private static byte[] read(ByteSource input, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        input.readFully(position, buffer);
+
+        return buffer.array();
+    }
+
+    /**
+     * Tracks the positions in the source and target files and adds records to the new table as they are written
+     */
+    private class Splicer
+    {
+        private final FileChannel source;
+        private final FileChannel target;
+        private final LocationIndex index;
+        private final LocationTable table;
+
+        // Source bytes before sourcePosition have been dealt with, targetPosition bytes have been written
+        private long sourcePosition = 0;
+        private long targetPosition = 0;
+
+        Splicer(FileChannel source, FileChannel target, LocationIndex index, LocationTable table)
+        {
+            this.source = source;
+            this.target = target;
+            this.index = index;
+            this.table = table;
+        }
+
+        /**
+         * Add an unchanged record, which moves by however much the output has grown or shrunk so far
+         */
+        void keep(int ordinal)
+        {
+            long offset = targetPosition + index.getOffset(ordinal) - sourcePosition;
+            table.add(offset, index.getLength(ordinal), index.hasHashes() ? index.getHash(ordinal) : 0,
+                      index.hasKeys() ? index.getKey(ordinal) : null);
+        }
+
+        /**
+         * Copy the source up to the given offset
+         */
+        void copyTo(long offset) throws IOException
+        {
+            FragmentFileSplitter.transferFully(source, sourcePosition, offset - sourcePosition, target);
+            targetPosition += offset - sourcePosition;
+            sourcePosition = offset;
+        }
+
+        /**
+         * Leave out the source up to the given offset
+         */
+        void skipTo(long offset)
+        {
+            sourcePosition = offset;
+        }
+
+        void write(byte[] bytes) throws IOException
+        {
+            FragmentFileSplitter.writeFully(ByteBuffer.wrap(bytes), target);
+            targetPosition += bytes.length;
+        }
+
+        /**
+         * Write a new record and add it to the table
+         */
+        void add(String xml, String key) throws IOException
+        {
+            byte[] bytes = xml.getBytes(charset);
+            long hash = table.hasHashes() ? XXHash64.hash(bytes, 0, bytes.length) : 0;
+
+            table.add(targetPosition, bytes.length, hash, key);
+            write(bytes);
+        }
+    }
+}
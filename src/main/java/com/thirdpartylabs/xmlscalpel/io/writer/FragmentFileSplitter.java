@@ -0,0 +1,203 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Split an XML file into smaller, well-formed XML files using the
+ * {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects produced by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+ * <p>
+ * Each output file wraps the selected byte ranges in the XML declaration and document element of the original file,
+ * taken from its {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument}. The node bytes are copied
+ * with {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo},
+ * so the data is moved by the operating system and never decoded or copied onto the heap.
+ */
+public class FragmentFileSplitter
+{
+    private final byte[] header;
+    private final byte[] footer;
+    private final ByteBuffer separator;
+
+    /**
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being split
+     * @throws TransformerException
+     */
+    public FragmentFileSplitter(OuterDocument outerDocument) throws TransformerException
+    {
+        Charset charset = Charset.forName(outerDocument.getCharacterEncoding());
+        header = outerDocument.getDocumentHeader().getBytes(charset);
+        footer = outerDocument.getDocumentFooter().getBytes(charset);
+        separator = ByteBuffer.wrap(outerDocument.getRecordSeparator().getBytes(charset));
+    }
+
+    /**
+     * Write the nodes at the provided locations to a series of files in the output directory, with at most
+     * recordsPerFile nodes in each file. Files are named baseName-000000.xml, baseName-000001.xml, etc.
+     * <p>
+     * Nodes are written in the order of the provided list.
+     *
+     * @param source          The XML file the locations were extracted from
+     * @param locations       {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects
+     *                        for the nodes to write
+     * @param recordsPerFile  Maximum number of nodes to write to each file
+     * @param outputDirectory Directory the files are written to
+     * @param baseName        Prefix for the file names
+     * @return The {@link java.util.List List} of files written
+     * @throws IOException
+     */
+    public List<File> split(File source, List<XMLByteLocation> locations, int recordsPerFile, File outputDirectory,
+                            String baseName) throws IOException
+    {
+        if (recordsPerFile < 1)
+        {
+            throw new IllegalArgumentException("recordsPerFile must be at least 1");
+        }
+
+        List<File> output = new ArrayList<>();
+
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+        {
+            int fileNumber = 0;
+            for (int from = 0; from < locations.size(); from += recordsPerFile)
+            {
+                int to = Math.min(from + recordsPerFile, locations.size());
+
+                File target = new File(outputDirectory, String.format("%s-%06d.xml", baseName, fileNumber++));
+                write(sourceChannel, locations.subList(from, to), target);
+
+                output.add(target);
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Write the nodes at the provided locations to a single file
+     *
+     * @param source    The XML file the locations were extracted from
+     * @param locations {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} objects for the
+     *                  nodes to write
+     * @param target    File to write, it is replaced if it exists
+     * @throws IOException
+     */
+    public void write(File source, List<XMLByteLocation> locations, File target) throws IOException
+    {
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+        {
+            write(sourceChannel, locations, target);
+        }
+    }
+
+    /**
+     * Write the header, the node byte ranges and the footer to the target file
+     *
+     * @param sourceChannel Open channel for the source file
+     * @param locations     Locations of the nodes to write
+     * @param target        File to write
+     * @throws IOException
+     */
+    private void write(FileChannel sourceChannel, List<XMLByteLocation> locations, File target) throws IOException
+    {
+        try (FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            writeFully(ByteBuffer.wrap(header), targetChannel);
+
+            int i = 0;
+            while (i < locations.size())
+            {
+                long rangeStart = locations.get(i).getOffset();
+                long rangeEnd = rangeStart + locations.get(i).getLength();
+                i++;
+
+                // Nodes that are back to back in the source can be copied in one go
+                while (i < locations.size() && locations.get(i).getOffset() == rangeEnd)
+                {
+                    rangeEnd += locations.get(i).getLength();
+                    i++;
+                }
+
+                transferFully(sourceChannel, rangeStart, rangeEnd - rangeStart, targetChannel);
+
+                if (i < locations.size())
+                {
+                    writeFully(separator.duplicate(), targetChannel);
+                }
+            }
+
+            writeFully(ByteBuffer.wrap(footer), targetChannel);
+        }
+    }
+
+    /**
+     * Copy a byte range of a file to a channel. transferTo may move fewer bytes than requested, so keep going until
+     * the whole range is copied.
+     *
+     * @param source   Channel to copy from
+     * @param position Offset of the first byte to copy
+     * @param count    Number of bytes to copy
+     * @param target   Channel to copy to
+     * @throws IOException
+     */
+    public static void transferFully(FileChannel source, long position, long count, WritableByteChannel target)
+            throws IOException
+    {
+        long progress = 0;
+        while (progress < count)
+        {
+            long transferred = source.transferTo(position + progress, count - progress, target);
+
+            if (transferred <= 0)
+            {
+                throw new IOException("Unable to read bytes " + (position + progress) + " to " + (position + count)
+                        + " from source file");
+            }
+
+            progress += transferred;
+        }
+    }
+
+    /**
+     * Write the remaining bytes of a buffer to a channel
+     *
+     * @param buffer Bytes to write
+     * @param target Channel to write to
+     * @throws IOException
+     */
+    public static void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            target.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.index.LocationCursor;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.reader.RecordWorkerPool;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Apply a compiled stylesheet to every record of an XML file on a pool of worker threads, using the
+ * {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} produced by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+ * <p>
+ * Each worker reads the bytes of a record and parses them with
+ * {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument#getSourceForRecordBytes(byte[], org.xml.sax.XMLReader)
+ * getSourceForRecordBytes}, so the namespace prefixes declared on the document element stay bound and the stylesheet
+ * sees the record as the root element of its own document. Each worker thread keeps its own
+ * {@link javax.xml.transform.Transformer Transformer} and parser for the whole run.
+ * <p>
+ * Output is written in index order. At most maxInFlight records are read, transformed or waiting to be written at
+ * once, so memory use does not depend on the number of records. By default the output of each record takes the
+ * place of the record inside the original document element, set {@link #setWrapped(boolean) setWrapped} to false to
+ * write the outputs back to back, one per line, for stylesheets that produce text.
+ * <p>
+ * Instances can be reused, but not by several threads at once.
+ */
+public class ParallelRecordTransformer
+{
+    private final Templates templates;
+    private final OuterDocument outerDocument;
+    private final Charset charset;
+    private final byte[] header;
+    private final byte[] footer;
+    private final byte[] separator;
+    private final int threads;
+    private final int maxInFlight;
+
+    private boolean wrapped = true;
+
+    /**
+     * Transform on one thread per processor, with four records in flight per thread
+     *
+     * @param templates     Compiled stylesheet
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being transformed
+     * @throws TransformerException
+     */
+    public ParallelRecordTransformer(Templates templates, OuterDocument outerDocument) throws TransformerException
+    {
+        this(templates, outerDocument, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param templates     Compiled stylesheet
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being transformed
+     * @param threads       Number of worker threads
+     * @param maxInFlight   Maximum number of records held in memory at once
+     * @throws TransformerException
+     */
+    public ParallelRecordTransformer(Templates templates, OuterDocument outerDocument, int threads, int maxInFlight)
+            throws TransformerException
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        if (maxInFlight < threads)
+        {
+            throw new IllegalArgumentException("maxInFlight must be at least the number of threads");
+        }
+
+        this.templates = templates;
+        this.outerDocument = outerDocument;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+
+        charset = Charset.forName(outerDocument.getCharacterEncoding());
+        header = outerDocument.getDocumentHeader().getBytes(charset);
+        footer = outerDocument.getDocumentFooter().getBytes(charset);
+        separator = outerDocument.getRecordSeparator().getBytes(charset);
+    }
+
+    /**
+     * @param wrapped true to write the outputs inside the original document element, false to write them back to
+     *                back, one per line
+     */
+    public void setWrapped(boolean wrapped)
+    {
+        this.wrapped = wrapped;
+    }
+
+    /**
+     * Transform every record in the index and write the outputs to a single file
+     *
+     * @param source The XML file the index was built from
+     * @param index  Locations of the records to transform
+     * @param target File to write, it is replaced if it exists
+     * @throws IOException
+     * @throws TransformerException If the stylesheet fails for any record
+     */
+    public void transform(File source, LocationIndex index, File target) throws IOException, TransformerException
+    {
+        try (FileByteSource byteSource = new FileByteSource(source);
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(target), 65536))
+        {
+            transform(byteSource, index, output);
+        }
+    }
+
+    /**
+     * Transform every record in the index and write the outputs to a stream
+     *
+     * @param source The XML document the index was built from, it is not closed
+     * @param index  Locations of the records to transform
+     * @param output Stream to write to, it is not closed
+     * @throws IOException
+     * @throws TransformerException If the stylesheet fails for any record
+     */
+    public void transform(ByteSource source, LocationIndex index, OutputStream output)
+            throws IOException, TransformerException
+    {
+        writeStart(output);
+
+        run(source, index, (ordinal, bytes) -> {
+            if (ordinal > 0)
+            {
+                writeSeparator(output);
+            }
+            output.write(bytes);
+        });
+
+        writeEnd(output);
+    }
+
+    /**
+     * Transform every record in the index and write the outputs to a series of files in the output directory, with
+     * at most recordsPerFile outputs in each file. Files are named baseName-000000.xml, baseName-000001.xml, etc.
+     *
+     * @param source          The XML file the index was built from
+     * @param index           Locations of the records to transform
+     * @param recordsPerFile  Maximum number of outputs to write to each file
+     * @param outputDirectory Directory the files are written to
+     * @param baseName        Prefix for the file names
+     * @return The {@link java.util.List List} of files written
+     * @throws IOException
+     * @throws TransformerException If the stylesheet fails for any record
+     */
+    public List<File> transform(File source, LocationIndex index, int recordsPerFile, File outputDirectory,
+                                String baseName) throws IOException, TransformerException
+    {
+        if (recordsPerFile < 1)
+        {
+            throw new IllegalArgumentException("recordsPerFile must be at least 1");
+        }
+
+        List<File> files = new ArrayList<>();
+        OutputStream[] current = new OutputStream[1];
+
+        try (FileByteSource byteSource = new FileByteSource(source))
+        {
+            run(byteSource, index, (ordinal, bytes) -> {
+                if (ordinal % recordsPerFile == 0)
+                {
+                    if (current[0] != null)
+                    {
+                        writeEnd(current[0]);
+                        current[0].close();
+                    }
+
+                    File target = new File(outputDirectory, String.format("%s-%06d.xml", baseName, files.size()));
+                    current[0] = new BufferedOutputStream(new FileOutputStream(target), 65536);
+                    files.add(target);
+
+                    writeStart(current[0]);
+                }
+                else
+                {
+                    writeSeparator(current[0]);
+                }
+
+                current[0].write(bytes);
+            });
+
+            if (current[0] != null)
+            {
+                writeEnd(current[0]);
+            }
+        }
+        finally
+        {
+            if (current[0] != null)
+            {
+                current[0].close();
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Fan the records out to the workers and hand the outputs to the consumer in index order
+     */
+    private void run(ByteSource source, LocationIndex index, OutputConsumer consumer)
+            throws IOException, TransformerException
+    {
+        // One transformer and parser per worker thread, for this run only
+        try (RecordWorkerPool<Worker, byte[], TransformerException> pool = new RecordWorkerPool<>(threads,
+                maxInFlight, Worker::new, TransformerException.class))
+        {
+            int written = 0;
+
+            LocationCursor cursor = index.cursor();
+            while (cursor.next())
+            {
+                long offset = cursor.getOffset();
+                long length = cursor.getLength();
+                if (length > Integer.MAX_VALUE)
+                {
+                    throw new IOException("Record " + cursor.getIndex() + " is too large to transform");
+                }
+
+                if (pool.isFull())
+                {
+                    consumer.accept(written++, pool.next());
+                }
+
+                pool.submit(worker -> worker.transform(source, offset, (int) length));
+            }
+
+            while (pool.hasPending())
+            {
+                consumer.accept(written++, pool.next());
+            }
+        }
+    }
+
+    private void writeStart(OutputStream output) throws IOException
+    {
+        if (wrapped)
+        {
+            output.write(header);
+        }
+    }
+
+    private void writeSeparator(OutputStream output) throws IOException
+    {
+        output.write(wrapped ? separator : System.lineSeparator().getBytes(charset));
+    }
+
+    private void writeEnd(OutputStream output) throws IOException
+    {
+        output.write(wrapped ? footer : System.lineSeparator().getBytes(charset));
+    }
+
+    /**
+     * Receives the output of each record, in index order
+     */
+    private interface OutputConsumer
+    {
+        void accept(int ordinal, byte[] bytes) throws IOException;
+    }
+
+    /**
+     * The transformer and parser of a single worker thread
+     */
+    private class Worker
+    {
+        private final Transformer transformer;
+        private final XMLReader parser;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        private Worker() throws TransformerException, ParserConfigurationException, SAXException
+        {
+            transformer = templates.newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, charset.name());
+
+            // Factories are not thread-safe, so each worker makes its own
+            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+            parserFactory.setNamespaceAware(true);
+            parser = parserFactory.newSAXParser().getXMLReader();
+        }
+
+        private byte[] transform(ByteSource source, long offset, int length) throws IOException, TransformerException
+        {
+            ByteBuffer record = ByteBuffer.allocate(length);
+            source.readFully(offset, record);
+
+            output.reset();
+            try
+            {
+                transformer.transform(outerDocument.getSourceForRecordBytes(record.array(), parser),
+                        new StreamResult(output));
+            }
+            finally
+            {
+                transformer.reset();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                transformer.setOutputProperty(OutputKeys.ENCODING, charset.name());
+            }
+
+            return output.toByteArray();
+        }
+    }
+}
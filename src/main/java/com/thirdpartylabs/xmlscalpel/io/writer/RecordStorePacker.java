@@ -0,0 +1,276 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.index.LocationCursor;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.reader.PackedRecordStore;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+
+import javax.xml.transform.TransformerException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Repack a feed into a compressed record store that can be read at random with the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.PackedRecordStore PackedRecordStore}
+ * <p>
+ * The records at the locations in an index are copied from the source file into blocks of a few records each, and
+ * every block is deflated on its own, so any record can be read back by inflating a single small block. Small blocks
+ * compress poorly on their own, as each starts without any history to match against. A preset dictionary of sample
+ * records, from {@link #buildDictionary(File, LocationIndex, int) buildDictionary}, gives every block that history
+ * up front, which recovers most of the ratio of compressing the whole file in one stream.
+ * <p>
+ * Whitespace between records is not kept, only the records themselves and the outer document of the source file.
+ */
+public class RecordStorePacker
+{
+    public static final int DEFAULT_RECORDS_PER_BLOCK = 16;
+
+    // Deflate can only look back 32KB, a longer dictionary is wasted
+    public static final int MAX_DICTIONARY_SIZE = 32768;
+
+    private final OuterDocument outerDocument;
+    private final int recordsPerBlock;
+    private final byte[] dictionary;
+
+    /**
+     * Pack {@link #DEFAULT_RECORDS_PER_BLOCK} records per block without a dictionary
+     *
+     * @param outerDocument {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                      being packed
+     */
+    public RecordStorePacker(OuterDocument outerDocument)
+    {
+        this(outerDocument, DEFAULT_RECORDS_PER_BLOCK, null);
+    }
+
+    /**
+     * @param outerDocument   {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument} for the file
+     *                        being packed
+     * @param recordsPerBlock Number of records compressed together, larger blocks compress better but cost more to
+     *                        read a single record from
+     * @param dictionary      Preset dictionary shared by all blocks, may be null
+     */
+    public RecordStorePacker(OuterDocument outerDocument, int recordsPerBlock, byte[] dictionary)
+    {
+        if (recordsPerBlock < 1)
+        {
+            throw new IllegalArgumentException("recordsPerBlock must be at least 1");
+        }
+
+        if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE)
+        {
+            throw new IllegalArgumentException("The dictionary must not be longer than " + MAX_DICTIONARY_SIZE
+                    + " bytes");
+        }
+
+        this.outerDocument = outerDocument;
+        this.recordsPerBlock = recordsPerBlock;
+        this.dictionary = dictionary == null ? new byte[0] : dictionary;
+    }
+
+    /**
+     * Build a preset dictionary from records sampled evenly across the file
+     * <p>
+     * Deflate prefers matches at short distances, so the samples are concatenated in file order and the last sample
+     * ends up closest to the data being compressed.
+     *
+     * @param source The XML file the index was built from
+     * @param index  {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the records
+     * @param size   Maximum size of the dictionary, at most {@link #MAX_DICTIONARY_SIZE}
+     * @return The dictionary, empty if the index is empty
+     * @throws IOException
+     */
+    public static byte[] buildDictionary(File source, LocationIndex index, int size) throws IOException
+    {
+        size = Math.min(size, MAX_DICTIONARY_SIZE);
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        if (index.size() == 0 || size <= 0)
+        {
+            return dictionary.toByteArray();
+        }
+
+        // Enough samples to fill the dictionary with records of average length, but never more than there are
+        long averageLength = Math.max(1, index.getLength(index.size() / 2));
+        int samples = (int) Math.min(index.size(), Math.max(1, size / averageLength));
+        double step = (double) index.size() / samples;
+
+        try (ByteSource input = new FileByteSource(source))
+        {
+            for (int i = 0; i < samples && dictionary.size() < size; i++)
+            {
+                int ordinal = (int) (i * step);
+                int length = (int) Math.min(index.getLength(ordinal), size - dictionary.size());
+
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                input.readFully(index.getOffset(ordinal), buffer);
+                dictionary.write(buffer.array(), 0, length);
+            }
+        }
+
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Pack the records at the locations in the index into a record store
+     *
+     * @param source The XML file the index was built from
+     * @param index  {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} of the records to pack,
+     *               hashes are carried over if it holds them
+     * @param target File to write, it is replaced if it exists
+     * @throws IOException
+     * @throws TransformerException If the outer document can not be serialized
+     */
+    public void pack(File source, LocationIndex index, File target) throws IOException, TransformerException
+    {
+        Charset charset = Charset.forName(outerDocument.getCharacterEncoding());
+        int size = index.size();
+        int blockCount = (int) (((long) size + recordsPerBlock - 1) / recordsPerBlock);
+        long[] blockOffsets = new long[blockCount];
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+
+        try (ByteSource input = new FileByteSource(source);
+             FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteArrayOutputStream prolog = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(prolog);
+            out.writeInt(PackedRecordStore.MAGIC);
+            out.writeInt(PackedRecordStore.VERSION);
+            out.writeInt(size);
+            out.writeInt(recordsPerBlock);
+            out.writeInt(index.hasHashes() ? PackedRecordStore.FLAG_HASHES : 0);
+            writeBlob(out, charset.name().getBytes(StandardCharsets.UTF_8));
+            writeBlob(out, outerDocument.getDocumentHeader().getBytes(charset));
+            writeBlob(out, outerDocument.getDocumentFooter().getBytes(charset));
+            writeBlob(out, dictionary);
+
+            FragmentFileSplitter.writeFully(ByteBuffer.wrap(prolog.toByteArray()), targetChannel);
+
+            byte[] compressed = new byte[65536];
+            for (int block = 0; block < blockCount; block++)
+            {
+                blockOffsets[block] = targetChannel.position();
+
+                ByteBuffer records = readBlock(input, index, block);
+
+                deflater.reset();
+                if (dictionary.length > 0)
+                {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(records.array(), 0, records.limit());
+                deflater.finish();
+
+                while (!deflater.finished())
+                {
+                    int count = deflater.deflate(compressed);
+                    FragmentFileSplitter.writeFully(ByteBuffer.wrap(compressed, 0, count), targetChannel);
+                }
+            }
+
+            long directoryOffset = targetChannel.position();
+
+            // Not closed, closing the stream would close the channel under the try block
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(targetChannel), 65536));
+
+            for (long blockOffset : blockOffsets)
+            {
+                out.writeLong(blockOffset);
+            }
+
+            // One pass per column, as in the location index file
+            LocationCursor cursor = index.cursor();
+            while (cursor.next())
+            {
+                out.writeLong(cursor.getOffset());
+            }
+
+            cursor = index.cursor();
+            while (cursor.next())
+            {
+                out.writeInt((int) cursor.getLength());
+            }
+
+            if (index.hasHashes())
+            {
+                cursor = index.cursor();
+                while (cursor.next())
+                {
+                    out.writeLong(cursor.getHash());
+                }
+            }
+
+            out.writeLong(directoryOffset);
+            out.writeInt(PackedRecordStore.MAGIC);
+            out.flush();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read the records of a block from the source, back to back
+     */
+    private ByteBuffer readBlock(ByteSource input, LocationIndex index, int block) throws IOException
+    {
+        int first = block * recordsPerBlock;
+        int last = (int) Math.min((long) first + recordsPerBlock, index.size());
+
+        long length = 0;
+        for (int i = first; i < last; i++)
+        {
+            length += index.getLength(i);
+        }
+
+        if (length > Integer.MAX_VALUE - 8)
+        {
+            throw new IllegalArgumentException("Block " + block + " holds more than 2GB, pack fewer records per block");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        for (int i = first; i < last; i++)
+        {
+            buffer.limit(buffer.position() + (int) index.getLength(i));
+            input.readFully(index.getOffset(i), buffer);
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private static void writeBlob(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size, thread-safe histogram of non-negative long values, such as latencies in nanoseconds or sizes in bytes.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two range is split into 8 linear sub-buckets, so any
+ * reported percentile is within 12.5% of the true value, and the whole histogram occupies about 4KB no matter how
+ * many values are recorded.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Create an empty histogram
+     */
+    public Histogram()
+    {
+    }
+
+    /**
+     * @param value Value to record, negative values are recorded as zero
+     */
+    public void record(long value)
+    {
+        long clamped = Math.max(0, value);
+
+        counts.incrementAndGet(bucketIndex(clamped));
+        count.increment();
+        sum.add(clamped);
+        max.accumulateAndGet(clamped, Math::max);
+    }
+
+    /**
+     * @return Number of values recorded
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return Largest value recorded, zero if nothing has been recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return Mean of the recorded values, zero if nothing has been recorded
+     */
+    public double getMean()
+    {
+        long currentCount = count.sum();
+        return (currentCount == 0) ? 0 : (double) sum.sum() / currentCount;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return The upper bound of the bucket containing the value at the percentile, zero if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long currentCount = count.sum();
+        if (currentCount == 0)
+        {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(currentCount * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        threshold = Math.max(1, threshold);
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= threshold)
+            {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * @param value Non-negative value
+     * @return Index of the bucket that counts the value
+     */
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index Bucket index
+     * @return Largest value counted by the bucket
+     */
+    static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        long lower = ((long) (SUB_BUCKETS + subBucket)) << (magnitude - SUB_BUCKET_BITS);
+
+        return lower + width - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Histogram{" +
+               "count=" + getCount() +
+               ", mean=" + getMean() +
+               ", p50=" + getValueAtPercentile(50) +
+               ", p99=" + getValueAtPercentile(99) +
+               ", max=" + getMax() +
+               '}';
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} that emits JDK Flight Recorder events.
+ * <p>
+ * Events are only filled in when they are enabled in the running recording, so the sink costs next to nothing
+ * when no recording is active. The JFR event API first shipped in Java 11 and the library targets Java 9, so the
+ * event types are defined at runtime with {@code jdk.jfr.EventFactory}, looked up by reflection. The rest of the
+ * library has no dependency on the {@code jdk.jfr} module. Applications on the module path must resolve it, with
+ * {@code --add-modules jdk.jfr} if nothing else requires it.
+ */
+public class JfrMetricsSink implements MetricsSink
+{
+    private static final String CATEGORY = "XMLScalpel";
+
+    private final EventType fileIndexed;
+    private final EventType fragmentExtracted;
+    private final EventType randomRead;
+    private final EventType fragmentHydrated;
+    private final EventType offsetLookupMiss;
+
+    /**
+     * @throws UnsupportedOperationException If JDK Flight Recorder is not available in the running JVM
+     */
+    public JfrMetricsSink()
+    {
+        try
+        {
+            Jfr jfr = new Jfr();
+
+            fileIndexed = new EventType(jfr, "FileIndexed", "File Indexed",
+                    "A document was read from start to finish by the StreamingXMLReader", false,
+                    jfr.field(String.class, "source", "Source"),
+                    jfr.dataAmount("bytes", "Bytes"),
+                    jfr.field(long.class, "records", "Records"),
+                    jfr.timespan("elapsed", "Elapsed"));
+
+            fragmentExtracted = new EventType(jfr, "FragmentExtracted", "Fragment Extracted",
+                    "An element was extracted by the StreamingXMLReader", false,
+                    jfr.field(int.class, "index", "Index"),
+                    jfr.field(long.class, "offset", "Offset"),
+                    jfr.dataAmount("bytes", "Bytes"),
+                    jfr.timespan("elapsed", "Elapsed"));
+
+            randomRead = new EventType(jfr, "RandomRead", "Random Read", "A byte range was read by offset", false,
+                    jfr.dataAmount("bytes", "Bytes"),
+                    jfr.timespan("elapsed", "Elapsed"));
+
+            fragmentHydrated = new EventType(jfr, "FragmentHydrated", "Fragment Hydrated",
+                    "A retrieved XML string was hydrated with the bindings of its outer document", false,
+                    jfr.field(long.class, "chars", "Chars"),
+                    jfr.timespan("elapsed", "Elapsed"));
+
+            offsetLookupMiss = new EventType(jfr, "OffsetLookupMiss", "Offset Lookup Miss",
+                    "A char offset fell outside of the window remembered by the ByteTrackingReader", true,
+                    jfr.field(long.class, "charOffset", "Char Offset"));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("JDK Flight Recorder is not available, it requires Java 11 or "
+                    + "later and the jdk.jfr module", e);
+        }
+    }
+
+    @Override
+    public void fileIndexed(String source, long bytes, long records, long nanos)
+    {
+        Object event = fileIndexed.newEvent();
+        if (event != null)
+        {
+            fileIndexed.commit(event, source, bytes, records, nanos);
+        }
+    }
+
+    @Override
+    public void fragmentExtracted(XMLByteLocation location, long nanos)
+    {
+        Object event = fragmentExtracted.newEvent();
+        if (event != null)
+        {
+            fragmentExtracted.commit(event, location.getIndex(), location.getOffset(), location.getLength(), nanos);
+        }
+    }
+
+    @Override
+    public void randomRead(long bytes, long nanos)
+    {
+        Object event = randomRead.newEvent();
+        if (event != null)
+        {
+            randomRead.commit(event, bytes, nanos);
+        }
+    }
+
+    @Override
+    public void fragmentHydrated(long chars, long nanos)
+    {
+        Object event = fragmentHydrated.newEvent();
+        if (event != null)
+        {
+            fragmentHydrated.commit(event, chars, nanos);
+        }
+    }
+
+    @Override
+    public void offsetLookupMiss(long charOffset)
+    {
+        Object event = offsetLookupMiss.newEvent();
+        if (event != null)
+        {
+            offsetLookupMiss.commit(event, charOffset);
+        }
+    }
+
+    /**
+     * The parts of the {@code jdk.jfr} API used to define event types
+     */
+    private static class Jfr
+    {
+        private final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+        private final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+        private final MethodHandle newAnnotationElement = MethodHandles.publicLookup().findConstructor(
+                annotationElementClass, MethodType.methodType(void.class, Class.class, Object.class));
+        private final MethodHandle newValueDescriptor = MethodHandles.publicLookup().findConstructor(
+                valueDescriptorClass, MethodType.methodType(void.class, Class.class, String.class, List.class));
+        private final MethodHandle createFactory = MethodHandles.publicLookup().findStatic(
+                Class.forName("jdk.jfr.EventFactory"), "create",
+                MethodType.methodType(Class.forName("jdk.jfr.EventFactory"), List.class, List.class));
+
+        private final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+
+        Jfr() throws ReflectiveOperationException
+        {
+        }
+
+        Object annotation(String type, Object value) throws ReflectiveOperationException
+        {
+            Class<? extends Annotation> annotationType = Class.forName("jdk.jfr." + type).asSubclass(Annotation.class);
+
+            return invoke(newAnnotationElement, annotationType, value);
+        }
+
+        Object field(Class<?> type, String name, String label, Object... annotations)
+                throws ReflectiveOperationException
+        {
+            List<Object> elements = new ArrayList<>(Arrays.asList(annotations));
+            elements.add(annotation("Label", label));
+
+            return invoke(newValueDescriptor, type, name, elements);
+        }
+
+        Object dataAmount(String name, String label) throws ReflectiveOperationException
+        {
+            return field(long.class, name, label, annotation("DataAmount", "BYTES"));
+        }
+
+        Object timespan(String name, String label) throws ReflectiveOperationException
+        {
+            return field(long.class, name, label, annotation("Timespan", "NANOSECONDS"));
+        }
+
+        private static Object invoke(MethodHandle handle, Object... arguments) throws ReflectiveOperationException
+        {
+            try
+            {
+                return handle.invokeWithArguments(arguments);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new ReflectiveOperationException(e);
+            }
+        }
+    }
+
+    /**
+     * An event type defined with {@code jdk.jfr.EventFactory}, with handles for the methods of its events
+     */
+    private static class EventType
+    {
+        private final Object factory;
+        private final MethodHandle newEvent;
+        private final MethodHandle isEnabled;
+        private final MethodHandle set;
+        private final MethodHandle commit;
+
+        EventType(Jfr jfr, String name, String label, String description, boolean stackTrace, Object... fields)
+                throws ReflectiveOperationException
+        {
+            List<Object> annotations = Arrays.asList(
+                    jfr.annotation("Name", "com.thirdpartylabs.xmlscalpel." + name),
+                    jfr.annotation("Label", label),
+                    jfr.annotation("Description", description),
+                    jfr.annotation("Category", new String[]{CATEGORY}),
+                    jfr.annotation("StackTrace", stackTrace));
+
+            factory = Jfr.invoke(jfr.createFactory, annotations, Arrays.asList(fields));
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newEvent = lookup.findVirtual(factory.getClass(), "newEvent", MethodType.methodType(jfr.eventClass))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            isEnabled = lookup.findVirtual(jfr.eventClass, "isEnabled", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            set = lookup.findVirtual(jfr.eventClass, "set", MethodType.methodType(void.class, int.class,
+                    Object.class)).asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.findVirtual(jfr.eventClass, "commit", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        }
+
+        /**
+         * @return A new event, or null if the event type is not enabled in any running recording
+         */
+        Object newEvent()
+        {
+            try
+            {
+                Object event = (Object) newEvent.invokeExact(factory);
+
+                return (boolean) isEnabled.invokeExact(event) ? event : null;
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException("Unable to create JFR event", e);
+            }
+        }
+
+        /**
+         * @param event  Event from {@link #newEvent()}
+         * @param values Field values, in the order the fields were defined
+         */
+        void commit(Object event, Object... values)
+        {
+            try
+            {
+                for (int i = 0; i < values.length; i++)
+                {
+                    set.invokeExact(event, i, values[i]);
+                }
+
+                commit.invokeExact(event);
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException("Unable to commit JFR event", e);
+            }
+        }
+    }
+}
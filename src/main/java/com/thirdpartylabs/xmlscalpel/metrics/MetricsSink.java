@@ -0,0 +1,104 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * Receives measurements from the {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader},
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader RandomAccessXMLReader} and
+ * {@link com.thirdpartylabs.xmlscalpel.entity.OuterDocument OuterDocument}.
+ * <p>
+ * Implementations must be thread-safe, the readers report from whatever thread they run on. All methods have empty
+ * default implementations so a sink only needs to override the measurements it is interested in.
+ */
+public interface MetricsSink
+{
+    /**
+     * Sink that discards everything. The readers check {@link #isEnabled()} and skip taking measurements entirely
+     * when this sink is installed.
+     */
+    MetricsSink NOOP = new MetricsSink()
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return false;
+        }
+    };
+
+    /**
+     * @return false if measurements should not be taken at all
+     */
+    default boolean isEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * A document has been read from start to finish
+     *
+     * @param source  Path of the file, or identity of the
+     *                {@link com.thirdpartylabs.xmlscalpel.io.source.ByteSource ByteSource}, that was read
+     * @param bytes   Number of bytes in the document
+     * @param records Number of elements extracted
+     * @param nanos   Time taken to read the file
+     */
+    default void fileIndexed(String source, long bytes, long records, long nanos)
+    {
+    }
+
+    /**
+     * An element has been extracted from a file
+     *
+     * @param location {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of the element
+     * @param nanos    Time spent turning the element into an object, such as a DOM fragment
+     */
+    default void fragmentExtracted(XMLByteLocation location, long nanos)
+    {
+    }
+
+    /**
+     * A byte range has been read from a file by offset
+     *
+     * @param bytes Number of bytes read
+     * @param nanos Time taken to read them
+     */
+    default void randomRead(long bytes, long nanos)
+    {
+    }
+
+    /**
+     * A retrieved XML string has been hydrated into a DOM fragment with the bindings of its outer document
+     *
+     * @param chars Number of chars in the XML string
+     * @param nanos Time taken to hydrate it
+     */
+    default void fragmentHydrated(long chars, long nanos)
+    {
+    }
+
+    /**
+     * A char offset could not be mapped to a byte offset because it was outside of the window remembered by the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.ByteTrackingReader ByteTrackingReader}. The location reported
+     * for the element will be wrong.
+     *
+     * @param charOffset The char offset that was requested
+     */
+    default void offsetLookupMiss(long charOffset)
+    {
+    }
+}
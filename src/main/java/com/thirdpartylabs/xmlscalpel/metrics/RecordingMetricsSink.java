@@ -0,0 +1,170 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} that accumulates counters and latency
+ * {@link com.thirdpartylabs.xmlscalpel.metrics.Histogram histograms} in memory, for services that export their own
+ * metrics.
+ */
+public class RecordingMetricsSink implements MetricsSink
+{
+    private final LongAdder filesIndexed = new LongAdder();
+    private final LongAdder bytesIndexed = new LongAdder();
+    private final LongAdder recordsIndexed = new LongAdder();
+    private final LongAdder indexingNanos = new LongAdder();
+
+    private final Histogram extractionLatency = new Histogram();
+
+    private final LongAdder randomReadBytes = new LongAdder();
+    private final Histogram randomReadLatency = new Histogram();
+
+    private final Histogram hydrationLatency = new Histogram();
+
+    private final LongAdder offsetLookupMisses = new LongAdder();
+
+    /**
+     * Create a sink with all counters at zero
+     */
+    public RecordingMetricsSink()
+    {
+    }
+
+    @Override
+    public void fileIndexed(String source, long bytes, long records, long nanos)
+    {
+        filesIndexed.increment();
+        bytesIndexed.add(bytes);
+        recordsIndexed.add(records);
+        indexingNanos.add(nanos);
+    }
+
+    @Override
+    public void fragmentExtracted(XMLByteLocation location, long nanos)
+    {
+        extractionLatency.record(nanos);
+    }
+
+    @Override
+    public void randomRead(long bytes, long nanos)
+    {
+        randomReadBytes.add(bytes);
+        randomReadLatency.record(nanos);
+    }
+
+    @Override
+    public void fragmentHydrated(long chars, long nanos)
+    {
+        hydrationLatency.record(nanos);
+    }
+
+    @Override
+    public void offsetLookupMiss(long charOffset)
+    {
+        offsetLookupMisses.increment();
+    }
+
+    /**
+     * @return Number of files read from start to finish
+     */
+    public long getFilesIndexed()
+    {
+        return filesIndexed.sum();
+    }
+
+    /**
+     * @return Total bytes in the files read from start to finish
+     */
+    public long getBytesIndexed()
+    {
+        return bytesIndexed.sum();
+    }
+
+    /**
+     * @return Total elements extracted from the files read from start to finish
+     */
+    public long getRecordsIndexed()
+    {
+        return recordsIndexed.sum();
+    }
+
+    /**
+     * @return Bytes per second over all completed file reads
+     */
+    public double getBytesPerSecond()
+    {
+        return perSecond(bytesIndexed.sum());
+    }
+
+    /**
+     * @return Elements per second over all completed file reads
+     */
+    public double getRecordsPerSecond()
+    {
+        return perSecond(recordsIndexed.sum());
+    }
+
+    /**
+     * @return Latency of turning extracted elements into objects, in nanoseconds
+     */
+    public Histogram getExtractionLatency()
+    {
+        return extractionLatency;
+    }
+
+    /**
+     * @return Total bytes read by offset
+     */
+    public long getRandomReadBytes()
+    {
+        return randomReadBytes.sum();
+    }
+
+    /**
+     * @return Latency of reads by offset, in nanoseconds
+     */
+    public Histogram getRandomReadLatency()
+    {
+        return randomReadLatency;
+    }
+
+    /**
+     * @return Latency of hydrating retrieved XML strings with the bindings of their outer document, in nanoseconds
+     */
+    public Histogram getHydrationLatency()
+    {
+        return hydrationLatency;
+    }
+
+    /**
+     * @return Number of char offsets that could not be mapped to byte offsets
+     */
+    public long getOffsetLookupMisses()
+    {
+        return offsetLookupMisses.sum();
+    }
+
+    private double perSecond(long amount)
+    {
+        long nanos = indexingNanos.sum();
+        return (nanos == 0) ? 0 : amount / ((double) nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+}
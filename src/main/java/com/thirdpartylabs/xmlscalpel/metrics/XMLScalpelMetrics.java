@@ -0,0 +1,49 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+/**
+ * Holds the {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} that all readers report into.
+ * <p>
+ * The default is {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink#NOOP MetricsSink.NOOP}, with which no
+ * measurements are taken. The sink is looked up at the start of each operation, so a new sink applies to
+ * operations started after it is installed.
+ */
+public final class XMLScalpelMetrics
+{
+    private static volatile MetricsSink sink = MetricsSink.NOOP;
+
+    private XMLScalpelMetrics()
+    {
+    }
+
+    /**
+     * @return The installed {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink}
+     */
+    public static MetricsSink getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * @param metricsSink {@link com.thirdpartylabs.xmlscalpel.metrics.MetricsSink MetricsSink} to install, null
+     *                    restores the no-op sink
+     */
+    public static void setSink(MetricsSink metricsSink)
+    {
+        sink = (metricsSink == null) ? MetricsSink.NOOP : metricsSink;
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.processor;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collect the {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} objects generated by the
+ * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} within a heap budget
+ * <p>
+ * Fragments are held on the heap until their estimated size reaches the budget. Every fragment after that is
+ * serialized and written, with its location, to temporary segment files, and the DOM is released. Iterating the
+ * processor returns the fragments in the order they were processed, those on the heap first and then the spilled
+ * ones, read back one segment at a time. The estimate allows {@value #HEAP_BYTES_PER_SOURCE_BYTE} bytes of heap for
+ * every byte of the element in the file, for the DOM nodes and the UTF-16 text.
+ * <p>
+ * Like the {@link CollectionPopulatingXMLStreamProcessor}, the processor tracks progress through the file. Fragments
+ * may be processed from several threads, and progress may be read from any thread while the file is being read.
+ * Iterate once reading is complete, and {@link #close() close} the processor to delete the segment files.
+ */
+public class SpillingXMLStreamProcessor implements XMLStreamProcessor, Iterable<Fragment>, Closeable
+{
+    /**
+     * Estimated bytes of heap used by a hydrated fragment, per byte of the element in the file
+     */
+    public static final int HEAP_BYTES_PER_SOURCE_BYTE = 8;
+
+    // Roll over to a new segment file after this many bytes
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    // Spilled fragments are parsed inside a wrapper, so a fragment with several top level nodes reads back whole
+    private static final byte[] WRAPPER_START = "<scalpel>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WRAPPER_END = "</scalpel>".getBytes(StandardCharsets.UTF_8);
+
+    private final long heapBudget;
+    private final File spillDirectory;
+
+    private final DocumentBuilderFactory dbf;
+    private final Transformer transformer;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong numProcessed = new AtomicLong();
+    private volatile long bytesTotal;
+
+    // Storage, guarded by this
+    private final List<Fragment> heapFragments = new ArrayList<>();
+    private long heapUsed = 0;
+    private final List<File> segments = new ArrayList<>();
+    private final List<Long> segmentCounts = new ArrayList<>();
+    private DataOutputStream segmentOutput;
+    private long segmentBytes;
+    private long numSpilled = 0;
+
+    /**
+     * Spill to the default temporary directory
+     *
+     * @param heapBudget Estimated number of bytes of heap to fill with fragments before spilling
+     * @throws ParserConfigurationException
+     * @throws TransformerConfigurationException
+     */
+    public SpillingXMLStreamProcessor(long heapBudget)
+            throws ParserConfigurationException, TransformerConfigurationException
+    {
+        this(heapBudget, null);
+    }
+
+    /**
+     * @param heapBudget     Estimated number of bytes of heap to fill with fragments before spilling
+     * @param spillDirectory Directory for the segment files, null for the default temporary directory
+     * @throws ParserConfigurationException
+     * @throws TransformerConfigurationException
+     */
+    public SpillingXMLStreamProcessor(long heapBudget, File spillDirectory)
+            throws ParserConfigurationException, TransformerConfigurationException
+    {
+        if (heapBudget < 0)
+        {
+            throw new IllegalArgumentException("heapBudget must not be negative");
+        }
+
+        this.heapBudget = heapBudget;
+        this.spillDirectory = spillDirectory;
+
+        dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+
+        // Fail now rather than on the first spill
+        dbf.newDocumentBuilder();
+
+        transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Keep the {@link com.thirdpartylabs.xmlscalpel.entity.Fragment Fragment} on the heap if it fits in the budget,
+     * otherwise spill it, and update the progress
+     *
+     * @param fragment Wrapper object that contains a {@link org.w3c.dom.DocumentFragment DocumentFragment} and an
+     *                 {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} object
+     * @throws UncheckedIOException If the fragment can not be written to a segment file
+     */
+    @Override
+    public void process(Fragment fragment)
+    {
+        XMLByteLocation location = fragment.getXmlByteLocation();
+
+        synchronized (this)
+        {
+            long cost = location.getLength() * HEAP_BYTES_PER_SOURCE_BYTE;
+            if (numSpilled == 0 && heapUsed + cost <= heapBudget)
+            {
+                heapFragments.add(fragment);
+                heapUsed += cost;
+            }
+            else
+            {
+                spill(fragment);
+            }
+        }
+
+        bytesRead.accumulateAndGet(location.getOffset() + location.getLength(), Math::max);
+        numProcessed.incrementAndGet();
+    }
+
+    /**
+     * Serialize a fragment to the current segment, starting a new segment if it is full
+     */
+    private void spill(Fragment fragment)
+    {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try
+        {
+            transformer.transform(new DOMSource(fragment.getDocumentFragment()), new StreamResult(xml));
+        }
+        catch (TransformerException e)
+        {
+            throw new IllegalStateException("Unable to serialize fragment " + fragment.getXmlByteLocation(), e);
+        }
+
+        XMLByteLocation location = fragment.getXmlByteLocation();
+        try
+        {
+            if (segmentOutput == null || segmentBytes >= SEGMENT_SIZE)
+            {
+                startSegment();
+            }
+
+            segmentOutput.writeInt(location.getIndex());
+            segmentOutput.writeLong(location.getOffset());
+            segmentOutput.writeLong(location.getLength());
+            segmentOutput.writeInt(xml.size());
+            xml.writeTo(segmentOutput);
+
+            segmentBytes += 24 + xml.size();
+            segmentCounts.set(segmentCounts.size() - 1, segmentCounts.get(segmentCounts.size() - 1) + 1);
+            numSpilled++;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void startSegment() throws IOException
+    {
+        if (segmentOutput != null)
+        {
+            segmentOutput.close();
+        }
+
+        File segment = spillDirectory == null
+                ? Files.createTempFile("xmlscalpel-spill-", ".seg").toFile()
+                : Files.createTempFile(spillDirectory.toPath(), "xmlscalpel-spill-", ".seg").toFile();
+
+        segments.add(segment);
+        segmentCounts.add(0L);
+        segmentOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment), 65536));
+        segmentBytes = 0;
+    }
+
+    /**
+     * Iterate the fragments in the order they were processed. Spilled fragments are read back and parsed as the
+     * iterator reaches them.
+     *
+     * @return {@link java.util.Iterator Iterator} over all fragments
+     * @throws UncheckedIOException If a segment file can not be read
+     */
+    @Override
+    public synchronized Iterator<Fragment> iterator()
+    {
+        // Make everything written so far readable
+        if (segmentOutput != null)
+        {
+            try
+            {
+                segmentOutput.flush();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return new FragmentIterator(new ArrayList<>(heapFragments), new ArrayList<>(segments),
+                                    new ArrayList<>(segmentCounts));
+    }
+
+    /**
+     * Delete the segment files, spilled fragments can no longer be iterated
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            if (segmentOutput != null)
+            {
+                segmentOutput.close();
+                segmentOutput = null;
+            }
+        }
+        finally
+        {
+            for (File segment : segments)
+            {
+                Files.deleteIfExists(segment.toPath());
+            }
+            segments.clear();
+            segmentCounts.clear();
+        }
+    }
+
+    /**
+     * Called by the {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} when the
+     * reading starts
+     *
+     * @param bytesTotal The total number of bytes in the file being processed
+     */
+    @Override
+    public void setBytesTotal(long bytesTotal)
+    {
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * @return The number of bytes left to process
+     */
+    public long getBytesRemaining()
+    {
+        return bytesTotal - bytesRead.get();
+    }
+
+    /**
+     * @return Total number of bytes in the XML file being parsed, as set by the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+     */
+    public long getBytesTotal()
+    {
+        return bytesTotal;
+    }
+
+    /**
+     * @return Number of bytes that have been read by the
+     * {@link com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader}
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return The number of nodes processed. Updated as each node is extracted
+     */
+    public long getNumProcessed()
+    {
+        return numProcessed.get();
+    }
+
+    /**
+     * @return The number of nodes that were written to segment files
+     */
+    public synchronized long getNumSpilled()
+    {
+        return numSpilled;
+    }
+
+    /**
+     * Returns the heap fragments, then reads each segment in turn
+     */
+    private class FragmentIterator implements Iterator<Fragment>
+    {
+        private final Iterator<Fragment> heapIterator;
+        private final List<File> segments;
+        private final List<Long> segmentCounts;
+        private final DocumentBuilder builder;
+
+        private int segment = -1;
+        private long remainingInSegment = 0;
+        private DataInputStream input;
+
+        FragmentIterator(List<Fragment> heapFragments, List<File> segments, List<Long> segmentCounts)
+        {
+            this.heapIterator = heapFragments.iterator();
+            this.segments = segments;
+            this.segmentCounts = segmentCounts;
+
+            try
+            {
+                builder = dbf.newDocumentBuilder();
+            }
+            catch (ParserConfigurationException e)
+            {
+                // Already created one in the constructor
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (heapIterator.hasNext())
+            {
+                return true;
+            }
+
+            while (remainingInSegment == 0)
+            {
+                closeInput();
+
+                if (segment + 1 >= segments.size())
+                {
+                    return false;
+                }
+
+                segment++;
+                remainingInSegment = segmentCounts.get(segment);
+                try
+                {
+                    input = new DataInputStream(new BufferedInputStream(new FileInputStream(segments.get(segment)),
+                                                                        65536));
+                }
+                catch (FileNotFoundException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public Fragment next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            if (heapIterator.hasNext())
+            {
+                return heapIterator.next();
+            }
+
+            try
+            {
+                XMLByteLocation location = new XMLByteLocation(input.readInt(), input.readLong(), input.readLong());
+                byte[] xml = new byte[input.readInt()];
+                input.readFully(xml);
+                remainingInSegment--;
+
+                return new Fragment(parse(xml), location);
+            }
+            catch (IOException e)
+            {
+                closeInput();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private DocumentFragment parse(byte[] xml) throws IOException
+        {
+            InputStream wrapped = new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream(WRAPPER_START),
+                    new ByteArrayInputStream(xml),
+                    new ByteArrayInputStream(WRAPPER_END))));
+
+            Document document;
+            try
+            {
+                document = builder.parse(wrapped);
+            }
+            catch (SAXException e)
+            {
+                throw new IOException("Corrupt spilled fragment", e);
+            }
+
+            DocumentFragment documentFragment = document.createDocumentFragment();
+            Node wrapper = document.getDocumentElement();
+            while (wrapper.getFirstChild() != null)
+            {
+                documentFragment.appendChild(wrapper.getFirstChild());
+            }
+
+            return documentFragment;
+        }
+
+        private void closeInput()
+        {
+            if (input != null)
+            {
+                try
+                {
+                    input.close();
+                }
+                catch (IOException e)
+                {
+                    // Only ever read, nothing to lose
+                }
+                input = null;
+            }
+        }
+    }
+}
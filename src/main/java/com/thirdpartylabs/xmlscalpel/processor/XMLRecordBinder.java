@@ -0,0 +1,50 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.processor;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * XMLRecordBinder instances are provided to
+ * {@link  com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} to unmarshall target elements
+ * straight from the stream, without building an intermediate DOM for each element.
+ *
+ * @param <T> Type of the objects created by the binder
+ */
+public interface XMLRecordBinder<T>
+{
+    /**
+     * Create an object from the element the reader is positioned on.
+     * <p>
+     * The reader is positioned on the start element of the target element when this method is called. It is scoped
+     * to that element: it reports no further events once the matching end element has been reached, and anything
+     * the binder does not read is skipped after this method returns.
+     * <p>
+     * The length of the {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} is not known
+     * until the whole element has been read, it is set on the same instance before the object is handed to the
+     * {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordProcessor XMLRecordProcessor}, so it is safe to keep a
+     * reference to it.
+     *
+     * @param reader   {@link javax.xml.stream.XMLStreamReader XMLStreamReader} positioned on the start element
+     * @param location {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of the element
+     * @return The object created from the element
+     * @throws XMLStreamException
+     */
+    T bind(XMLStreamReader reader, XMLByteLocation location) throws XMLStreamException;
+}
@@ -0,0 +1,48 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.processor;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+
+/**
+ * XMLRecordProcessor instances are provided to
+ * {@link  com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} along with an
+ * {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder XMLRecordBinder}, and will receive all of the
+ * objects created by the binder.
+ *
+ * @param <T> Type of the objects created by the binder
+ */
+public interface XMLRecordProcessor<T>
+{
+    /**
+     * Accept an object created by the {@link com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder XMLRecordBinder}.
+     * The reader will call this method as each target element is read from the XML file
+     *
+     * @param record   The object created from the element
+     * @param location {@link com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation XMLByteLocation} of the element
+     */
+    void process(T record, XMLByteLocation location);
+
+    /**
+     * {@link  com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader StreamingXMLReader} will set the total
+     * number of bytes in the file before it begins parsing the file.
+     *
+     * @param bytesTotal Total bytes in the file being processed
+     */
+    default void setBytesTotal(long bytesTotal)
+    {
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.MappedLocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.writer.FragmentFileSplitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Small HTTP server that serves the records of indexed XML files, built on the JDK's
+ * {@link com.sun.net.httpserver.HttpServer HttpServer}.
+ * <p>
+ * Each feed is an XML file and a {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} for it,
+ * usually a {@link com.thirdpartylabs.xmlscalpel.index.MappedLocationIndex MappedLocationIndex} loaded from disk.
+ * The following requests are supported:
+ * <ul>
+ * <li>{@code GET /feed/{name}/record/{n}} the record with ordinal n</li>
+ * <li>{@code GET /feed/{name}/key/{key}} the record with the key, for feeds registered with a key lookup</li>
+ * <li>{@code GET /feed/{name}/records?from={a}&to={b}} records a to b - 1, as a document</li>
+ * <li>{@code GET /feed/{name}/records?n={a},{b},{c}} the listed records, in the listed order, as a document</li>
+ * </ul>
+ * Single records are sent as they appear in the file. Multiple records are wrapped in the XML declaration and
+ * document element of the original file, so the response is a well-formed document. Record bytes are moved from the
+ * file channel to the response channel without being decoded, and every response has a Content-Length so
+ * connections are kept alive.
+ * <p>
+ * The JDK server writes the headers and the body of a response separately, so without TCP_NODELAY each small
+ * response can stall for up to 40ms on a delayed ACK. Start the JVM with {@code -Dsun.net.httpserver.nodelay=true}
+ * to avoid that. The property is read once by the JDK, so it must be set before the first server of any kind is
+ * created, and it applies to every server in the JVM.
+ * <p>
+ * A feed can be replaced while the server is running. Requests already streaming from the old feed finish, and the
+ * old file is closed once the last of them is done.
+ * <p>
+ * The module requires {@code jdk.httpserver} only when this class is used.
+ */
+public class FragmentServer
+{
+    private static final String CONTENT_TYPE = "application/xml";
+
+    // Upper bound on the number of records in a single response
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<>();
+
+    /**
+     * @param address Address to listen on, use port 0 to pick a free port
+     * @param threads Number of threads serving requests
+     * @throws IOException
+     */
+    public FragmentServer(InetSocketAddress address, int threads) throws IOException
+    {
+        server = HttpServer.create(address, 0);
+        executor = Executors.newFixedThreadPool(threads);
+
+        server.setExecutor(executor);
+        server.createContext("/feed/", this::handle);
+    }
+
+    /**
+     * Serve a feed using an index file written by
+     * {@link com.thirdpartylabs.xmlscalpel.index.MappedLocationIndex#write(LocationIndex, File)
+     * MappedLocationIndex.write}
+     *
+     * @param name      Name of the feed in request paths
+     * @param xmlFile   The indexed XML file
+     * @param indexFile Index file for the XML file
+     * @throws Exception
+     */
+    public void addFeed(String name, File xmlFile, File indexFile) throws Exception
+    {
+        addFeed(name, xmlFile, new MappedLocationIndex(indexFile), null);
+    }
+
+    /**
+     * Serve a feed, replacing any feed with the same name
+     *
+     * @param name      Name of the feed in request paths
+     * @param xmlFile   The indexed XML file
+     * @param index     {@link com.thirdpartylabs.xmlscalpel.index.LocationIndex LocationIndex} for the XML file
+     * @param keyLookup Returns the ordinal for a key, or -1 if there is no such key. May be null if the feed does
+     *                  not support key lookups.
+     * @throws Exception
+     */
+    public void addFeed(String name, File xmlFile, LocationIndex index, ToIntFunction<String> keyLookup)
+            throws Exception
+    {
+        Feed feed = new Feed(xmlFile, index, keyLookup);
+
+        Feed previous = feeds.put(name, feed);
+        if (previous != null)
+        {
+            previous.release();
+        }
+    }
+
+    /**
+     * Start accepting requests
+     */
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stop the server and close the feeds
+     *
+     * @param delay Maximum number of seconds to wait for requests in progress to finish
+     * @throws IOException
+     */
+    public void stop(int delay) throws IOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+
+        server.stop(delay);
+        executor.shutdown();
+
+        try
+        {
+            executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // Requests still running after the delay keep their feed open until they finish
+        for (Feed feed : feeds.values())
+        {
+            feed.release();
+        }
+        feeds.clear();
+    }
+
+    /**
+     * @return The address the server is listening on
+     */
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+
+            // feed, name, operation, argument
+            String[] parts = exchange.getRequestURI().getRawPath().substring(1).split("/", 4);
+            Feed feed = parts.length >= 3 ? acquireFeed(decode(parts[1])) : null;
+
+            if (feed == null)
+            {
+                sendError(exchange, 404, "No such feed");
+                return;
+            }
+
+            try
+            {
+                handle(exchange, feed, parts);
+            }
+            finally
+            {
+                feed.release();
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            sendError(exchange, 400, e.getMessage());
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The feed with the name, which stays open until it is released, or null if there is no such feed
+     */
+    private Feed acquireFeed(String name)
+    {
+        Feed feed = feeds.get(name);
+
+        // A feed that has just been replaced can not be acquired, the replacement can
+        while (feed != null && !feed.acquire())
+        {
+            feed = feeds.get(name);
+        }
+
+        return feed;
+    }
+
+    private void handle(HttpExchange exchange, Feed feed, String[] parts) throws IOException
+    {
+        switch (parts[2])
+        {
+            case "record":
+                sendRecord(exchange, feed, parts.length == 4 ? parseOrdinal(parts[3]) : -1);
+                break;
+
+            case "key":
+                int ordinal = -1;
+                if (feed.keyLookup != null && parts.length == 4)
+                {
+                    ordinal = feed.keyLookup.applyAsInt(decode(parts[3]));
+                }
+                sendRecord(exchange, feed, ordinal);
+                break;
+
+            case "records":
+                sendRecords(exchange, feed, parseQuery(exchange.getRequestURI().getRawQuery()));
+                break;
+
+            default:
+                sendError(exchange, 404, "Unknown operation");
+        }
+    }
+
+    private void sendRecord(HttpExchange exchange, Feed feed, int ordinal) throws IOException
+    {
+        if (ordinal < 0 || ordinal >= feed.index.size())
+        {
+            sendError(exchange, 404, "No such record");
+            return;
+        }
+
+        long length = feed.index.getLength(ordinal);
+
+        exchange.getResponseHeaders().set("Content-Type", feed.contentType);
+        exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+
+        try (WritableByteChannel target = Channels.newChannel(exchange.getResponseBody()))
+        {
+            FragmentFileSplitter.transferFully(feed.channel, feed.index.getOffset(ordinal), length, target);
+        }
+    }
+
+    private void sendRecords(HttpExchange exchange, Feed feed, Map<String, String> query) throws IOException
+    {
+        int[] ordinals;
+
+        if (query.containsKey("n"))
+        {
+            String[] values = query.get("n").split(",");
+            ordinals = new int[values.length];
+            for (int i = 0; i < values.length; i++)
+            {
+                ordinals[i] = parseOrdinal(values[i]);
+            }
+        }
+        else
+        {
+            int from = parseOrdinal(query.getOrDefault("from", "0"));
+            int to = query.containsKey("to") ? parseOrdinal(query.get("to")) : feed.index.size();
+            to = Math.min(to, feed.index.size());
+
+            ordinals = new int[Math.max(0, to - from)];
+            for (int i = 0; i < ordinals.length; i++)
+            {
+                ordinals[i] = from + i;
+            }
+        }
+
+        if (ordinals.length > MAX_BATCH_SIZE)
+        {
+            throw new IllegalArgumentException("At most " + MAX_BATCH_SIZE + " records may be requested at once");
+        }
+
+        // Work out the exact length up front, so the connection can be reused
+        long length = feed.header.length + feed.footer.length;
+        for (int i = 0; i < ordinals.length; i++)
+        {
+            if (ordinals[i] >= feed.index.size())
+            {
+                sendError(exchange, 404, "No such record " + ordinals[i]);
+                return;
+            }
+
+            length += feed.index.getLength(ordinals[i]);
+            if (i > 0)
+            {
+                length += feed.separator.length;
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", feed.contentType);
+        exchange.sendResponseHeaders(200, length);
+
+        try (WritableByteChannel target = Channels.newChannel(exchange.getResponseBody()))
+        {
+            FragmentFileSplitter.writeFully(ByteBuffer.wrap(feed.header), target);
+
+            for (int i = 0; i < ordinals.length; i++)
+            {
+                if (i > 0)
+                {
+                    FragmentFileSplitter.writeFully(ByteBuffer.wrap(feed.separator), target);
+                }
+
+                FragmentFileSplitter.transferFully(feed.channel, feed.index.getOffset(ordinals[i]),
+                        feed.index.getLength(ordinals[i]), target);
+            }
+
+            FragmentFileSplitter.writeFully(ByteBuffer.wrap(feed.footer), target);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+    {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    private static int parseOrdinal(String value)
+    {
+        try
+        {
+            int ordinal = Integer.parseInt(value.trim());
+            if (ordinal < 0)
+            {
+                throw new IllegalArgumentException("Invalid record number " + value);
+            }
+
+            return ordinal;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid record number " + value);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery)
+    {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null)
+        {
+            return query;
+        }
+
+        for (String pair : rawQuery.split("&"))
+        {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+            {
+                query.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+            }
+        }
+
+        return query;
+    }
+
+    private static String decode(String value)
+    {
+        try
+        {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        }
+        catch (IOException e)
+        {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An XML file, its index and the bytes needed to wrap its records in a document
+     */
+    private static class Feed
+    {
+        // One reference for the registration and one for each request in progress, the file is closed at zero
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private final FileChannel channel;
+        private final LocationIndex index;
+        private final ToIntFunction<String> keyLookup;
+        private final String contentType;
+        private final byte[] header;
+        private final byte[] footer;
+        private final byte[] separator;
+
+        private Feed(File xmlFile, LocationIndex index, ToIntFunction<String> keyLookup) throws Exception
+        {
+            OuterDocument outerDocument = new StreamingXMLReader().getOuterDocument(xmlFile);
+            Charset charset = Charset.forName(outerDocument.getCharacterEncoding());
+
+            this.index = index;
+            this.keyLookup = keyLookup;
+            this.contentType = CONTENT_TYPE + "; charset=" + charset.name();
+            this.header = outerDocument.getDocumentHeader().getBytes(charset);
+            this.footer = outerDocument.getDocumentFooter().getBytes(charset);
+            this.separator = outerDocument.getRecordSeparator().getBytes(charset);
+
+            // Positional transfers leave the channel position alone, so one channel serves every request
+            this.channel = FileChannel.open(xmlFile.toPath(), StandardOpenOption.READ);
+        }
+
+        /**
+         * @return False if the feed has already been closed
+         */
+        private boolean acquire()
+        {
+            int current;
+            do
+            {
+                current = references.get();
+                if (current == 0)
+                {
+                    return false;
+                }
+            }
+            while (!references.compareAndSet(current, current + 1));
+
+            return true;
+        }
+
+        private void release() throws IOException
+        {
+            if (references.decrementAndGet() == 0)
+            {
+                channel.close();
+            }
+        }
+    }
+}
@@ -1,7 +1,14 @@
 open module com.thirdpartylabs.xmlscalpel.core {
     requires com.ctc.wstx;
+    requires static jdk.httpserver;
 
+    exports com.thirdpartylabs.xmlscalpel.diff;
     exports com.thirdpartylabs.xmlscalpel.entity;
+    exports com.thirdpartylabs.xmlscalpel.index;
     exports com.thirdpartylabs.xmlscalpel.io.reader;
+    exports com.thirdpartylabs.xmlscalpel.io.source;
+    exports com.thirdpartylabs.xmlscalpel.io.writer;
+    exports com.thirdpartylabs.xmlscalpel.metrics;
     exports com.thirdpartylabs.xmlscalpel.processor;
+    exports com.thirdpartylabs.xmlscalpel.server;
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.diff;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FeedDiffTest
+{
+    /**
+     * Reorder, change, add and remove products between two versions of a feed, and key them both by element and by
+     * attribute
+     */
+    @Test
+    void testDiff(@TempDir File directory) throws Exception
+    {
+        File oldFile = new File(directory, "old.xml");
+        Files.write(oldFile.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<products>\n"
+                + "  <product id=\"1\"><sku>A</sku><price>1.00</price></product>\n"
+                + "  <product id=\"2\"><sku>B</sku><price>2.00</price></product>\n"
+                + "  <product id=\"3\"><sku>C</sku><price>3.00</price></product>\n"
+                + "  <product><price>9.99</price></product>\n"
+                + "</products>\n").getBytes(StandardCharsets.UTF_8));
+
+        File newFile = new File(directory, "new.xml");
+        Files.write(newFile.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<products>\n"
+                + "  <product id=\"3\"><sku>C</sku><price>3.00</price></product>\n"
+                + "  <product id=\"4\"><sku>D</sku><price>4.00</price></product>\n"
+                + "  <product id=\"1\"><sku>A</sku><price>1.50</price></product>\n"
+                + "</products>\n").getBytes(StandardCharsets.UTF_8));
+
+        List<String> targetPaths = Collections.singletonList("/products/product");
+
+        for (String keyPath : new String[]{"sku", "@id"})
+        {
+            List<String> events = new ArrayList<>();
+            FeedDiff.Summary summary = new FeedDiff(targetPaths, keyPath).diff(oldFile, newFile, new FeedDiffListener()
+            {
+                @Override
+                public void added(String key, XMLByteLocation newLocation)
+                {
+                    events.add("added " + key);
+                }
+
+                @Override
+                public void removed(String key, XMLByteLocation oldLocation)
+                {
+                    events.add("removed " + key);
+                }
+
+                @Override
+                public void changed(String key, XMLByteLocation oldLocation, XMLByteLocation newLocation)
+                {
+                    try
+                    {
+                        events.add("changed " + key + " " + RandomAccessXMLReader.read(newFile, newLocation));
+                    }
+                    catch (Exception e)
+                    {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+
+            String a = keyPath.equals("sku") ? "A" : "1";
+            String b = keyPath.equals("sku") ? "B" : "2";
+            String d = keyPath.equals("sku") ? "D" : "4";
+
+            List<String> expected = new ArrayList<>();
+            expected.add("added " + d);
+            expected.add("changed " + a + " <product id=\"1\"><sku>A</sku><price>1.50</price></product>");
+            expected.add("removed " + b);
+
+            assertEquals(expected, events, "Events keyed by " + keyPath);
+            assertEquals(1, summary.getAdded());
+            assertEquals(1, summary.getRemoved());
+            assertEquals(1, summary.getChanged());
+            assertEquals(1, summary.getUnchanged());
+            assertEquals(1, summary.getUnkeyed(), "The product without a key");
+        }
+    }
+
+    /**
+     * Records with a repeated key pair up in document order, and the extras are added or removed
+     */
+    @Test
+    void testRepeatedKeys(@TempDir File directory) throws Exception
+    {
+        File oldFile = new File(directory, "old.xml");
+        Files.write(oldFile.toPath(), ("<products>\n"
+                + "  <product><sku>A</sku><price>1.00</price></product>\n"
+                + "  <product><sku>B</sku><price>5.00</price></product>\n"
+                + "  <product><sku>A</sku><price>2.00</price></product>\n"
+                + "  <product><sku>B</sku><price>6.00</price></product>\n"
+                + "</products>\n").getBytes(StandardCharsets.UTF_8));
+
+        File newFile = new File(directory, "new.xml");
+        Files.write(newFile.toPath(), ("<products>\n"
+                + "  <product><sku>A</sku><price>1.00</price></product>\n"
+                + "  <product><sku>A</sku><price>2.50</price></product>\n"
+                + "  <product><sku>B</sku><price>5.00</price></product>\n"
+                + "  <product><sku>A</sku><price>3.00</price></product>\n"
+                + "</products>\n").getBytes(StandardCharsets.UTF_8));
+
+        List<String> events = new ArrayList<>();
+        FeedDiff.Summary summary = new FeedDiff(null, "sku").diff(oldFile, newFile, new FeedDiffListener()
+        {
+            @Override
+            public void added(String key, XMLByteLocation newLocation)
+            {
+                events.add("added " + key + " " + newLocation.getIndex());
+            }
+
+            @Override
+            public void removed(String key, XMLByteLocation oldLocation)
+            {
+                events.add("removed " + key + " " + oldLocation.getIndex());
+            }
+
+            @Override
+            public void changed(String key, XMLByteLocation oldLocation, XMLByteLocation newLocation)
+            {
+                events.add("changed " + key + " " + oldLocation.getIndex() + " " + newLocation.getIndex());
+            }
+        });
+
+        List<String> expected = new ArrayList<>();
+        expected.add("changed A 2 1");
+        expected.add("added A 3");
+        expected.add("removed B 3");
+
+        assertEquals(expected, events);
+        assertEquals(2, summary.getUnchanged());
+        assertEquals(1, summary.getChanged());
+        assertEquals(1, summary.getAdded());
+        assertEquals(1, summary.getRemoved());
+    }
+}
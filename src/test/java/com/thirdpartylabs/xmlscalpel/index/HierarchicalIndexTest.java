@@ -0,0 +1,151 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.source.ArrayByteSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HierarchicalIndexTest
+{
+    private static final String ORDER_PATH = "/aw:PurchaseOrders/aw:PurchaseOrder";
+    private static final String ITEM_PATH = "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item";
+
+    /**
+     * Index orders and their items in one pass, compare each level with a separate index of that level, and check
+     * that every item lies inside its parent order
+     */
+    @Test
+    void testOrdersAndItems() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        HierarchicalIndex index = reader.indexHierarchy(testFile, Arrays.asList(ORDER_PATH, ITEM_PATH));
+
+        assertEquals(2, index.getLevelCount());
+        assertEquals(ITEM_PATH, index.getLevelPath(1));
+
+        assertSameLocations(reader.indexFile(testFile, Collections.singletonList(ORDER_PATH)), index.getLevel(0));
+        assertSameLocations(reader.indexFile(testFile, Collections.singletonList(ITEM_PATH)), index.getLevel(1));
+
+        LocationIndex orders = index.getLevel(0);
+        LocationIndex items = index.getLevel(1);
+
+        int childTotal = 0;
+        for (int order = 0; order < orders.size(); order++)
+        {
+            int first = index.getFirstChild(0, order);
+            int count = index.getChildCount(0, order);
+            childTotal += count;
+
+            for (int item = first; item < first + count; item++)
+            {
+                assertEquals(order, index.getParent(1, item));
+                assertTrue(items.getOffset(item) > orders.getOffset(order));
+                assertTrue(items.getOffset(item) + items.getLength(item)
+                        < orders.getOffset(order) + orders.getLength(order));
+            }
+
+            // Page through the items one at a time
+            for (int page = 0; page <= count; page++)
+            {
+                LocationCursor cursor = index.children(0, order, page, page + 1);
+                if (page < count)
+                {
+                    assertTrue(cursor.next());
+                    assertEquals(first + page, cursor.getIndex());
+                    assertEquals(order, index.getParent(1, cursor.getIndex()));
+                }
+                assertFalse(cursor.next());
+            }
+        }
+
+        assertEquals(items.size(), childTotal, "Every item should belong to exactly one order");
+        assertEquals(-1, index.getParent(0, 0));
+        assertEquals(0, index.getChildCount(1, 0));
+    }
+
+    @Test
+    void testLevelsMustNest()
+    {
+        List<String> paths = Arrays.asList(ITEM_PATH, ORDER_PATH);
+        assertThrows(IllegalArgumentException.class, () -> new HierarchicalIndex(paths));
+    }
+
+    /**
+     * Sibling levels are rejected before the document is read rather than linked to unrelated parents
+     */
+    @Test
+    void testSiblingLevelsRejected() throws Exception
+    {
+        StreamingXMLReader reader = new StreamingXMLReader();
+        ArrayByteSource source = new ArrayByteSource("<a><b/><c/></a>".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> reader.indexHierarchy(source, Arrays.asList("/a/b", "/a/c")));
+        assertThrows(IllegalArgumentException.class,
+                () -> reader.indexHierarchy(source, Arrays.asList("/a/b", "/a/b")));
+        assertThrows(IllegalArgumentException.class,
+                () -> reader.indexHierarchy(source, Arrays.asList("/a/bc", "/a/b/c")));
+    }
+
+    /**
+     * Indexing from a byte source gives the same levels and parents as indexing the file
+     */
+    @Test
+    void testByteSource() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+        List<String> paths = Arrays.asList(ORDER_PATH, ITEM_PATH);
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        HierarchicalIndex expected = reader.indexHierarchy(testFile, paths);
+        HierarchicalIndex actual = reader.indexHierarchy(new ArrayByteSource(Files.readAllBytes(testFile.toPath())),
+                paths);
+
+        for (int level = 0; level < expected.getLevelCount(); level++)
+        {
+            assertSameLocations(expected.getLevel(level), actual.getLevel(level));
+            for (int i = 0; level > 0 && i < expected.getLevel(level).size(); i++)
+            {
+                assertEquals(expected.getParent(level, i), actual.getParent(level, i));
+            }
+        }
+    }
+
+    private static void assertSameLocations(LocationIndex expected, LocationIndex actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.getOffset(i), actual.getOffset(i));
+            assertEquals(expected.getLength(i), actual.getLength(i));
+        }
+    }
+}
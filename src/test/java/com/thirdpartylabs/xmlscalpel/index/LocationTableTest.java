@@ -0,0 +1,111 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationTableTest
+{
+    /**
+     * Indexing straight into a table should find the same locations as a full read
+     */
+    @Test
+    void testIndexFileMatchesReadFile() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Fragment> fragments = new ArrayList<>();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(fragments), targetNodes);
+
+        LocationTable table = reader.indexFile(testFile, targetNodes);
+
+        assertEquals(fragments.size(), table.size());
+        for (Fragment fragment : fragments)
+        {
+            XMLByteLocation expected = fragment.getXmlByteLocation();
+            XMLByteLocation actual = table.getLocation(expected.getIndex());
+
+            assertEquals(expected.getOffset(), actual.getOffset());
+            assertEquals(expected.getLength(), actual.getLength());
+        }
+    }
+
+    /**
+     * A packed table should return exactly what was put in the table it was packed from, by ordinal and by cursor
+     */
+    @Test
+    void testPackedTableMatchesTable()
+    {
+        Random random = new Random(42);
+        LocationTable table = new LocationTable(0);
+
+        long offset = 38;
+        for (int i = 0; i < 10_000; i++)
+        {
+            long length = 1 + random.nextInt(5000);
+
+            // Mostly back to back, with the occasional nested or huge jump
+            int shape = random.nextInt(20);
+            long start = shape == 0 ? offset - length / 2 : shape == 1 ? offset + (1L << 40) : offset + random.nextInt(8);
+            start = Math.max(0, start);
+
+            assertEquals(i, table.add(start, length));
+            offset = start + length;
+        }
+
+        PackedLocationTable packed = table.pack();
+        assertEquals(table.size(), packed.size());
+        assertTrue(packed.getEncodedSize() < table.size() * 12);
+
+        for (int i = table.size() - 1; i >= 0; i--)
+        {
+            assertEquals(table.getOffset(i), packed.getOffset(i));
+            assertEquals(table.getLength(i), packed.getLength(i));
+        }
+
+        LocationCursor expected = table.cursor();
+        LocationCursor actual = packed.cursor();
+        while (expected.next())
+        {
+            assertTrue(actual.next());
+            assertEquals(expected.getIndex(), actual.getIndex());
+            assertEquals(expected.getOffset(), actual.getOffset());
+            assertEquals(expected.getLength(), actual.getLength());
+        }
+        assertFalse(actual.next());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> packed.getOffset(table.size()));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedLocationIndexTest
+{
+    /**
+     * Write an index, map it back, and look up the records containing offsets inside, between and around them
+     */
+    @Test
+    void testFindContainingOnMappedIndex(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        LocationTable table = new StreamingXMLReader().indexFile(testFile, null);
+
+        File indexFile = new File(directory, "people.idx");
+        MappedLocationIndex.write(table, indexFile);
+
+        MappedLocationIndex index = new MappedLocationIndex(indexFile);
+        assertEquals(table.size(), index.size());
+
+        for (int i = 0; i < table.size(); i++)
+        {
+            long offset = table.getOffset(i);
+            long end = offset + table.getLength(i);
+
+            assertEquals(offset, index.getOffset(i));
+            assertEquals(table.getLength(i), index.getLength(i));
+
+            assertEquals(i, index.findContaining(offset));
+            assertEquals(i, index.findContaining((offset + end) / 2));
+            assertEquals(i, index.findContaining(end - 1));
+
+            // The whitespace between records belongs to no record
+            assertEquals(-1, index.findContaining(end));
+        }
+
+        assertEquals(-1, index.findContaining(0));
+        assertEquals(-1, index.findContaining(testFile.length()));
+    }
+
+    @Test
+    void testRejectsForeignFile(@TempDir File directory) throws Exception
+    {
+        File notAnIndex = new File(directory, "not.idx");
+        Files.write(notAnIndex.toPath(), "<?xml version=\"1.0\"?><root/>".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IOException.class, () -> new MappedLocationIndex(notAnIndex));
+    }
+}
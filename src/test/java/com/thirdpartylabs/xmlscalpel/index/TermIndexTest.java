@@ -0,0 +1,181 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TermIndexTest
+{
+    /**
+     * Queries over all of the text should find exactly the records a scan of every record finds
+     */
+    @Test
+    void testFindMatchesScan(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null);
+        TermIndex index = reader.indexTerms(testFile, null, null, new File(directory, "people.terms"));
+
+        assertEquals(table.size(), index.size());
+        assertTrue(index.getTermCount() > 100);
+
+        for (String query : Arrays.asList("lorem", "Curabitur SED", "saint barthélemy", "Egypt", "ac", "55963",
+                "nowhere-to-be-found", ""))
+        {
+            List<XMLByteLocation> expected = new ArrayList<>();
+            for (int i = 0; i < table.size(); i++)
+            {
+                String text = RandomAccessXMLReader.read(testFile, table.getLocation(i)).replaceAll("<[^>]+>", " ");
+                if (terms(text).containsAll(terms(query)) && !terms(query).isEmpty())
+                {
+                    expected.add(table.getLocation(i));
+                }
+            }
+
+            List<XMLByteLocation> actual = index.find(query);
+
+            assertEquals(expected.size(), actual.size(), query);
+            for (int i = 0; i < expected.size(); i++)
+            {
+                assertEquals(expected.get(i).getIndex(), actual.get(i).getIndex());
+                assertEquals(expected.get(i).getOffset(), actual.get(i).getOffset());
+                assertEquals(expected.get(i).getLength(), actual.get(i).getLength());
+            }
+        }
+
+        assertEquals(index.findOrdinals("egypt").length, index.getDocumentFrequency("Egypt"));
+    }
+
+    /**
+     * Text paths limit the indexed text to some elements and attributes
+     */
+    @Test
+    void testTextPaths(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        TermIndex index = reader.indexTerms(testFile, null, Collections.singletonList("city"),
+                new File(directory, "cities.terms"));
+
+        assertEquals(0, index.find("lorem").size());
+        assertEquals(0, index.getDocumentFrequency("Egypt"));
+        assertArrayEquals(new int[]{0}, index.findOrdinals("Lehrte"));
+
+        fileUrl = getClass().getResource("/data/po_namespace.xml");
+        testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        index = reader.indexTerms(testFile,
+                Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"),
+                Arrays.asList("@aw:PartNumber", "aw:ProductName"), new File(directory, "items.terms"));
+
+        List<XMLByteLocation> found = index.find("872-AA");
+        assertEquals(1, found.size());
+        assertTrue(RandomAccessXMLReader.read(testFile, found.get(0)).contains("aw:PartNumber=\"872-AA\""));
+
+        assertEquals(1, index.find("baby monitor").size());
+
+        // Comments are not in the text paths
+        assertEquals(0, index.find("electric").size());
+    }
+
+    /**
+     * A word that the parser reports in several pieces stays one word, words on either side of markup stay apart
+     */
+    @Test
+    void testWordsAcrossTextEvents(@TempDir File directory) throws Exception
+    {
+        File file = new File(directory, "split.xml");
+        Files.write(file.toPath(), ("<records>\n"
+                + "  <r code=\"alpha\"><t>foo<![CDATA[bar]]>baz</t><u>one</u>two</r>\n"
+                + "  <r><t>foo</t><u>bar</u></r>\n"
+                + "</records>\n").getBytes(StandardCharsets.UTF_8));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        TermIndex index = reader.indexTerms(file, null, null, new File(directory, "split.terms"));
+
+        assertArrayEquals(new int[]{0}, index.findOrdinals("foobarbaz"));
+        assertArrayEquals(new int[]{1}, index.findOrdinals("foo"));
+        assertArrayEquals(new int[]{0}, index.findOrdinals("one two"));
+        assertEquals(0, index.find("onetwo").size());
+
+        index = reader.indexTerms(file, null, Arrays.asList("@code", "t"), new File(directory, "code.terms"));
+        assertArrayEquals(new int[]{0}, index.findOrdinals("alpha foobarbaz"));
+        assertEquals(0, index.find("alphafoobarbaz").size());
+    }
+
+    /**
+     * Postings survive the round trip through the file for records far apart
+     */
+    @Test
+    void testWriterRoundTrip(@TempDir File directory) throws Exception
+    {
+        TermIndexWriter writer = new TermIndexWriter();
+        for (int i = 0; i < 100_000; i++)
+        {
+            writer.addText(i, (i % 3 == 0 ? "fizz " : "") + (i % 5 == 0 ? "Buzz" : "") + " n" + i);
+            writer.addRecord(i * 10L, 10);
+        }
+
+        File file = new File(directory, "fizzbuzz.terms");
+        writer.write(file);
+        TermIndex index = new TermIndex(file);
+
+        assertEquals(100_000, index.size());
+        assertEquals(33_334, index.getDocumentFrequency("fizz"));
+        assertEquals(20_000, index.getDocumentFrequency("buzz"));
+
+        int[] both = index.findOrdinals("buzz FIZZ");
+        assertEquals(6_667, both.length);
+        for (int ordinal : both)
+        {
+            assertEquals(0, ordinal % 15);
+        }
+
+        assertArrayEquals(new int[]{99_990}, index.findOrdinals("n99990 fizz"));
+        assertEquals(999_900, index.getLocations().getOffset(99_990));
+
+        assertThrows(IllegalArgumentException.class, () -> writer.addText(10, "fizz"));
+    }
+
+    private static Set<String> terms(String text)
+    {
+        Set<String> terms = new HashSet<>();
+        TermIndex.tokenize(text, terms::add);
+        return terms;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class XXHash64Test
+{
+    /**
+     * Compare against the reference implementation, and check that feeding the input in pieces of every size produces
+     * the same value as hashing it in one go
+     */
+    @Test
+    void testKnownValues()
+    {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+
+        byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+
+        long expected = XXHash64.hash(bytes, 0, bytes.length);
+        XXHash64 hasher = new XXHash64();
+        for (int piece = 1; piece <= 70; piece++)
+        {
+            hasher.reset();
+            for (int offset = 0; offset < bytes.length; offset += piece)
+            {
+                hasher.update(bytes, offset, Math.min(piece, bytes.length - offset));
+            }
+
+            assertEquals(expected, hasher.getValue(), "Pieces of " + piece + " bytes");
+        }
+    }
+
+    private static long hash(String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        return XXHash64.hash(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationCursor;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncRandomAccessXMLReaderTest
+{
+    /**
+     * Many more reads than slots should all complete with the same strings as the blocking reader
+     */
+    @Test
+    void testReadsMatchBlockingReader() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        LocationTable table = new StreamingXMLReader().indexFile(testFile,
+                Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"));
+
+        List<XMLByteLocation> locations = new ArrayList<>();
+        LocationCursor cursor = table.cursor();
+        while (cursor.next())
+        {
+            locations.add(cursor.toLocation());
+        }
+
+        // Read everything backwards, so the batch has to reorder its reads
+        Collections.reverse(locations);
+
+        try (AsyncRandomAccessXMLReader reader = new AsyncRandomAccessXMLReader(testFile, 2))
+        {
+            List<CompletableFuture<String>> singles = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+            {
+                for (XMLByteLocation location : locations)
+                {
+                    singles.add(reader.read(location));
+                }
+            }
+
+            List<String> batch = reader.readAll(locations).get(30, TimeUnit.SECONDS);
+
+            for (int i = 0; i < singles.size(); i++)
+            {
+                XMLByteLocation location = locations.get(i % locations.size());
+                assertEquals(RandomAccessXMLReader.read(testFile, location), singles.get(i).get(30, TimeUnit.SECONDS));
+            }
+
+            for (int i = 0; i < locations.size(); i++)
+            {
+                assertEquals(RandomAccessXMLReader.read(testFile, locations.get(i)), batch.get(i));
+            }
+
+            ByteBuffer bytes = reader.readBytes(locations.get(0)).get(30, TimeUnit.SECONDS);
+            assertEquals(locations.get(0).getLength(), bytes.remaining());
+
+            // A location past the end of the file fails the future rather than hanging
+            XMLByteLocation pastEnd = new XMLByteLocation(0, testFile.length() - 4, 16);
+            ExecutionException thrown = assertThrows(ExecutionException.class,
+                    () -> reader.read(pastEnd).get(30, TimeUnit.SECONDS));
+            assertTrue(thrown.getCause() instanceof EOFException);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.metrics.MetricsSink;
+import com.thirdpartylabs.xmlscalpel.metrics.XMLScalpelMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointedIndexTest
+{
+    /**
+     * An index resumed after a failure is identical to one built in a single run, and the records committed before
+     * the failure are not parsed again
+     */
+    @Test
+    void testResumePeople(@TempDir File directory) throws Exception
+    {
+        File testFile = getTestFile("/data/people.xml");
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        LocationTable expected = reader.indexFile(testFile, null, true, "uid");
+        assertTrue(expected.size() > 4);
+
+        File checkpoint = new File(directory, "people.checkpoint");
+        int extracted = assertResumes(reader, testFile, null, "uid", checkpoint, expected, 3);
+
+        assertTrue(extracted < expected.size());
+    }
+
+    /**
+     * Namespace declarations on the document element are restored when parsing resumes inside it
+     */
+    @Test
+    void testResumeNamespaced(@TempDir File directory) throws Exception
+    {
+        File testFile = getTestFile("/data/po_namespace.xml");
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<String> targetPaths = Arrays.asList(
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Address",
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"
+        );
+
+        LocationTable expected = reader.indexFile(testFile, targetPaths, true, "aw:ProductName");
+
+        for (int failAfter = 1; failAfter < expected.size(); failAfter++)
+        {
+            File checkpoint = new File(directory, "po-" + failAfter + ".checkpoint");
+            assertResumes(reader, testFile, targetPaths, "aw:ProductName", checkpoint, expected, failAfter);
+        }
+    }
+
+    /**
+     * A checkpoint for different parameters is discarded rather than mixed into the new index
+     */
+    @Test
+    void testMismatchedCheckpointIgnored(@TempDir File directory) throws Exception
+    {
+        File testFile = getTestFile("/data/people.xml");
+        StreamingXMLReader reader = new StreamingXMLReader();
+        File checkpoint = new File(directory, "people.checkpoint");
+
+        failAfter(reader, testFile, null, "uid", checkpoint, 3);
+        assertTrue(checkpoint.exists());
+
+        LocationTable expected = reader.indexFile(testFile, null, false, null);
+        LocationTable actual = reader.indexFile(testFile, null, false, null, checkpoint, 1);
+
+        assertTablesEqual(expected, actual);
+        assertFalse(checkpoint.exists());
+    }
+
+    /**
+     * Fail the first run after the given number of records, resume it and compare the result
+     *
+     * @return Number of records extracted by the resumed run
+     */
+    private int assertResumes(StreamingXMLReader reader, File file, List<String> targetPaths, String keyPath,
+                              File checkpoint, LocationTable expected, int failAfter) throws Exception
+    {
+        failAfter(reader, file, targetPaths, keyPath, checkpoint, failAfter);
+        assertTrue(checkpoint.exists());
+
+        int[] extracted = new int[1];
+        XMLScalpelMetrics.setSink(new MetricsSink()
+        {
+            @Override
+            public void fragmentExtracted(XMLByteLocation location, long nanos)
+            {
+                extracted[0]++;
+            }
+        });
+
+        try
+        {
+            LocationTable actual = reader.indexFile(file, targetPaths, true, keyPath, checkpoint, 1);
+
+            assertTablesEqual(expected, actual);
+            assertFalse(checkpoint.exists());
+        }
+        finally
+        {
+            XMLScalpelMetrics.setSink(null);
+        }
+
+        return extracted[0];
+    }
+
+    private void failAfter(StreamingXMLReader reader, File file, List<String> targetPaths, String keyPath,
+                           File checkpoint, int count)
+    {
+        int[] extracted = new int[1];
+        XMLScalpelMetrics.setSink(new MetricsSink()
+        {
+            @Override
+            public void fragmentExtracted(XMLByteLocation location, long nanos)
+            {
+                if (++extracted[0] > count)
+                {
+                    throw new IllegalStateException("Simulated failure");
+                }
+            }
+        });
+
+        try
+        {
+            assertThrows(IllegalStateException.class,
+                    () -> reader.indexFile(file, targetPaths, true, keyPath, checkpoint, 1));
+        }
+        finally
+        {
+            XMLScalpelMetrics.setSink(null);
+        }
+    }
+
+    private void assertTablesEqual(LocationTable expected, LocationTable actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.hasHashes(), actual.hasHashes());
+        assertEquals(expected.hasKeys(), actual.hasKeys());
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.getOffset(i), actual.getOffset(i));
+            assertEquals(expected.getLength(i), actual.getLength(i));
+
+            if (expected.hasHashes())
+            {
+                assertEquals(expected.getHash(i), actual.getHash(i));
+            }
+
+            if (expected.hasKeys())
+            {
+                assertEquals(expected.getKey(i), actual.getKey(i));
+            }
+        }
+    }
+
+    private File getTestFile(String name) throws Exception
+    {
+        URL fileUrl = getClass().getResource(name);
+        return new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+    }
+}
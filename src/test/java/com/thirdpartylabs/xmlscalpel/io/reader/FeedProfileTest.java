@@ -0,0 +1,108 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FeedProfileTest
+{
+    /**
+     * Counts, sizes, attributes and namespaces of the purchase order file
+     */
+    @Test
+    void testProfilePurchaseOrders() throws Exception
+    {
+        File testFile = getTestFile("/data/po_namespace.xml");
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        FeedProfile profile = reader.profileFile(testFile);
+
+        assertEquals(testFile.length(), profile.getBytes());
+        assertEquals(5, profile.getMaxDepth());
+        assertEquals(0, profile.getUntrackedElementCount());
+        assertEquals("/aw:PurchaseOrders", profile.getPaths().get(0).getPath());
+
+        FeedProfile.PathProfile orders = profile.getPath("/aw:PurchaseOrders/aw:PurchaseOrder");
+        assertEquals(3, orders.getCount());
+        assertEquals(3, orders.getMaxPerParent());
+        assertEquals(2, orders.getDepth());
+        assertEquals(Long.valueOf(3), orders.getAttributeCounts().get("aw:PurchaseOrderNumber"));
+
+        // Sizes match the lengths of the same elements when they are indexed
+        LocationTable table = reader.indexFile(testFile,
+                Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"));
+
+        FeedProfile.PathProfile items = profile.getPath("aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item/");
+        assertEquals(table.size(), items.getCount());
+        assertEquals(2, items.getMaxPerParent());
+
+        long maxLength = 0;
+        long totalLength = 0;
+        for (int i = 0; i < table.size(); i++)
+        {
+            maxLength = Math.max(maxLength, table.getLength(i));
+            totalLength += table.getLength(i);
+        }
+
+        assertEquals(maxLength, items.getSizes().getMax());
+        assertEquals((double) totalLength / table.size(), items.getSizes().getMean(), 0.001);
+
+        // Every element and attribute name in the file is prefixed
+        long names = profile.getElementCount();
+        for (FeedProfile.PathProfile path : profile.getPaths())
+        {
+            for (long count : path.getAttributeCounts().values())
+            {
+                names += count;
+            }
+        }
+
+        assertEquals(Collections.singletonMap("http://www.adventure-works.com", names), profile.getNamespaceUsage());
+        assertNull(profile.getPath("/aw:PurchaseOrders/aw:Missing"));
+    }
+
+    /**
+     * The record element of a flat feed repeats under the document element
+     */
+    @Test
+    void testProfilePeople() throws Exception
+    {
+        File testFile = getTestFile("/data/people.xml");
+        FeedProfile profile = new StreamingXMLReader().profileFile(testFile);
+
+        FeedProfile.PathProfile people = profile.getPath("/people/person");
+        assertEquals(people.getCount(), people.getMaxPerParent());
+        assertEquals(1, profile.getPath("/people/person/uid").getMaxPerParent());
+        assertEquals(people.getCount(), profile.getPath("/people/person/uid").getCount());
+        assertEquals(3, profile.getMaxDepth());
+        assertEquals(Collections.emptyMap(), profile.getNamespaceUsage());
+    }
+
+    private File getTestFile(String name) throws Exception
+    {
+        URL fileUrl = getClass().getResource(name);
+        return new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultiDocumentIndexTest
+{
+    /**
+     * Concatenated documents, each with an XML declaration, index the same as the single document repeated
+     */
+    @Test
+    void testConcatenatedDocuments(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File original = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+        byte[] document = (new String(Files.readAllBytes(original.toPath()), StandardCharsets.UTF_8) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        File file = new File(directory, "concatenated.xml");
+        Files.write(file.toPath(), repeat(document, 5));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable single = reader.indexFile(original, null, true, "uid");
+        List<String> targetPaths = Collections.singletonList("/people/person");
+
+        LocationTable sequential = reader.indexDocuments(file, targetPaths, true, "uid", 1);
+        assertEquals(single.size() * 5, sequential.size());
+        for (int i = 0; i < sequential.size(); i++)
+        {
+            int ordinal = i % single.size();
+            assertEquals(single.getOffset(ordinal) + (long) document.length * (i / single.size()),
+                    sequential.getOffset(i));
+            assertEquals(single.getLength(ordinal), sequential.getLength(i));
+            assertEquals(single.getHash(ordinal), sequential.getHash(i));
+            assertEquals(single.getKey(ordinal), sequential.getKey(i));
+        }
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            long[] starts = new DocumentBoundaryScanner(source, "people").split(4);
+            assertEquals(5, starts.length);
+            for (int i = 0; i < 4; i++)
+            {
+                assertEquals(0, starts[i] % document.length);
+            }
+        }
+
+        assertTablesEqual(sequential, reader.indexDocuments(file, targetPaths, true, "uid", 4));
+
+        // Every document element
+        assertEquals(5, reader.indexDocuments(file, null, 3).size());
+    }
+
+    /**
+     * Root-less records, one per line, are split and indexed in parallel
+     */
+    @Test
+    void testRootlessRecords(@TempDir File directory) throws Exception
+    {
+        StringBuilder xml = new StringBuilder();
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+        {
+            String record = "<aw:rec xmlns:aw=\"http://www.adventure-works.com\" id=\"" + i + "\"><v>été " + i
+                    + "</v></aw:rec>";
+            records.add(record);
+            xml.append(record).append(i % 7 == 0 ? "\n<!-- comment -->\n" : "\n");
+        }
+
+        File file = new File(directory, "records.xml");
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            long[] starts = new DocumentBoundaryScanner(source, "aw:rec").split(8);
+
+            assertEquals(9, starts.length);
+            assertEquals(bytes.length, starts[8]);
+            for (int i = 1; i < 8; i++)
+            {
+                assertEquals("<aw:rec ", new String(bytes, (int) starts[i], 8, StandardCharsets.UTF_8));
+            }
+        }
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        for (int threads : new int[]{1, 2, 8})
+        {
+            LocationTable table = reader.indexDocuments(file, null, false, "@id", threads);
+
+            assertEquals(records.size(), table.size());
+            for (int i = 0; i < records.size(); i++)
+            {
+                assertEquals(records.get(i), RandomAccessXMLReader.read(file, table.getLocation(i)));
+                assertEquals(String.valueOf(i), table.getKey(i));
+            }
+        }
+    }
+
+    /**
+     * Lines that look like boundaries inside records make the parallel ranges fail, the result must still be right
+     */
+    @Test
+    void testFalseBoundaries(@TempDir File directory) throws Exception
+    {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            xml.append("<rec n=\"").append(i).append("\">\n<rec>inner</rec>\n<![CDATA[\n<rec>\n]]>\n</rec>\n");
+        }
+
+        File file = new File(directory, "nested.xml");
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable sequential = reader.indexDocuments(file, null, true, "@n", 1);
+
+        assertEquals(500, sequential.size());
+        assertTablesEqual(sequential, reader.indexDocuments(file, null, true, "@n", 6));
+
+        // Genuinely broken input still fails
+        File broken = new File(directory, "broken.xml");
+        Files.write(broken.toPath(), (xml + "<rec>\n</oops>\n").getBytes(StandardCharsets.UTF_8));
+        assertThrows(Exception.class, () -> reader.indexDocuments(broken, null, 4));
+    }
+
+    private static byte[] repeat(byte[] bytes, int count)
+    {
+        byte[] output = new byte[bytes.length * count];
+        for (int i = 0; i < count; i++)
+        {
+            System.arraycopy(bytes, 0, output, bytes.length * i, bytes.length);
+        }
+
+        return output;
+    }
+
+    private static void assertTablesEqual(LocationTable expected, LocationTable actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.getOffset(i), actual.getOffset(i));
+            assertEquals(expected.getLength(i), actual.getLength(i));
+            assertEquals(expected.hasHashes() ? expected.getHash(i) : 0, actual.hasHashes() ? actual.getHash(i) : 0);
+            assertEquals(expected.getKey(i), actual.getKey(i));
+        }
+    }
+}
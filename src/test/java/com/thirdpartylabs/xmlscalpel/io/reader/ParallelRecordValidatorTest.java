@@ -0,0 +1,137 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelRecordValidatorTest
+{
+    private static final String PERSON_SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+            + "<xs:element name=\"person\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"uid\" type=\"xs:string\"/><xs:element name=\"name\" type=\"xs:string\"/>"
+            + "<xs:element name=\"phone\" type=\"xs:string\"/><xs:element name=\"email\" type=\"xs:string\"/>"
+            + "<xs:element name=\"address\" type=\"xs:string\"/><xs:element name=\"city\" type=\"xs:string\"/>"
+            + "<xs:element name=\"postcode\" type=\"xs:string\"/><xs:element name=\"country\" type=\"xs:string\"/>"
+            + "<xs:element name=\"description\" type=\"xs:string\"/>"
+            + "</xs:sequence></xs:complexType></xs:element></xs:schema>";
+
+    private static final String ITEM_SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\""
+            + " targetNamespace=\"http://www.adventure-works.com\" elementFormDefault=\"qualified\""
+            + " attributeFormDefault=\"qualified\">"
+            + "<xs:element name=\"Item\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"ProductName\" type=\"xs:string\"/>"
+            + "<xs:element name=\"Quantity\" type=\"xs:positiveInteger\"/>"
+            + "<xs:element name=\"USPrice\" type=\"xs:decimal\"/>"
+            + "<xs:element name=\"Comment\" type=\"xs:string\" minOccurs=\"0\"/>"
+            + "<xs:element name=\"ShipDate\" type=\"xs:date\" minOccurs=\"0\"/>"
+            + "</xs:sequence><xs:attribute name=\"PartNumber\" type=\"xs:string\" use=\"required\"/>"
+            + "</xs:complexType></xs:element></xs:schema>";
+
+    /**
+     * Errors are reported against the right records, at byte offsets just past the offending markup
+     */
+    @Test
+    void testErrorsAtByteOffsets(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File original = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        ParallelRecordValidator validator = new ParallelRecordValidator(compile(PERSON_SCHEMA),
+                reader.getOuterDocument(original), 4, 8);
+
+        assertEquals(Collections.emptyList(), validator.validate(original, reader.indexFile(original, null)));
+
+        // Break a few records, one after multi-byte characters so char and byte positions differ
+        String xml = new String(Files.readAllBytes(original.toPath()), StandardCharsets.UTF_8);
+        String[] records = xml.split("<person>", -1);
+        records[6] = records[6].replaceFirst("<postcode>(.*)</postcode>", "<zip>$1</zip>");
+        records[41] = records[41].replaceFirst("</description>", "<b>bold</b></description>");
+        records[80] = records[80].replaceFirst("<phone>", "<phone>éé<extra/>");
+
+        File broken = new File(directory, "broken.xml");
+        Files.write(broken.toPath(), String.join("<person>", records).getBytes(StandardCharsets.UTF_8));
+
+        LocationTable table = reader.indexFile(broken, null);
+        List<RecordValidationError> errors = validator.validate(broken, table);
+
+        assertEquals(3, errors.size());
+        assertEquals(5, errors.get(0).getOrdinal());
+        assertEquals(40, errors.get(1).getOrdinal());
+        assertEquals(79, errors.get(2).getOrdinal());
+
+        byte[] bytes = Files.readAllBytes(broken.toPath());
+        String[] expectedEnds = {"<zip>", "<b>bold</b></description>", "</phone>"};
+        for (int i = 0; i < errors.size(); i++)
+        {
+            RecordValidationError error = errors.get(i);
+            assertEquals(error.getOrdinal(), table.findContaining(error.getByteOffset()));
+
+            String before = new String(bytes, (int) error.getLocation().getOffset(),
+                    (int) (error.getByteOffset() - error.getLocation().getOffset()), StandardCharsets.UTF_8);
+            assertTrue(before.endsWith(expectedEnds[i]), error.toString());
+        }
+
+        try (FileByteSource source = new FileByteSource(broken))
+        {
+            assertEquals(errors.subList(0, 1).toString(), validator.validate(source, table, 1).toString());
+        }
+    }
+
+    /**
+     * Prefixed records validate against a schema for their namespace
+     */
+    @Test
+    void testNamespacedRecords() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile,
+                Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"));
+
+        ParallelRecordValidator validator = new ParallelRecordValidator(compile(ITEM_SCHEMA),
+                reader.getOuterDocument(testFile));
+
+        assertTrue(table.size() > 2);
+        assertEquals(Collections.emptyList(), validator.validate(testFile, table));
+    }
+
+    private static Schema compile(String schema) throws Exception
+    {
+        return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                .newSchema(new StreamSource(new StringReader(schema)));
+    }
+}
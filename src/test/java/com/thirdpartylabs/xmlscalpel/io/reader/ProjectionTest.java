@@ -0,0 +1,146 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.Person;
+import com.thirdpartylabs.xmlscalpel.entity.PurchaseOrderItem;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.mapper.PersonStreamBinder;
+import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderItemMapper;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProjectionTest
+{
+    /**
+     * Rows hold the same values and locations as the full records bound from the stream
+     */
+    @Test
+    void testProjectPeople() throws Exception
+    {
+        File testFile = getTestFile("/data/people.xml");
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Person> people = new ArrayList<>();
+        List<XMLByteLocation> controlLocations = new ArrayList<>();
+        reader.bindFile(testFile, new PersonStreamBinder(), (person, location) -> {
+            people.add(person);
+            controlLocations.add(location);
+        }, null);
+
+        Projection projection = new Projection("uid", "name", "city");
+        List<String[]> rows = new ArrayList<>();
+        List<XMLByteLocation> locations = new ArrayList<>();
+        reader.bindFile(testFile, projection, (row, location) -> {
+            rows.add(row);
+            locations.add(location);
+        }, null);
+
+        assertEquals(people.size(), rows.size());
+        for (int i = 0; i < people.size(); i++)
+        {
+            Person person = people.get(i);
+            assertArrayEquals(new String[]{person.getUid(), person.getName(), person.getCity()}, rows.get(i));
+            assertEquals(controlLocations.get(i).getOffset(), locations.get(i).getOffset());
+            assertEquals(controlLocations.get(i).getLength(), locations.get(i).getLength());
+        }
+
+        assertEquals(1, projection.indexOf("name"));
+    }
+
+    /**
+     * Prefixed names, attributes and missing fields
+     */
+    @Test
+    void testProjectItemsWithNamespace() throws Exception
+    {
+        File testFile = getTestFile("/data/po_namespace.xml");
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Fragment> fragments = new ArrayList<>();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(fragments), targetNodes);
+
+        List<String[]> rows = new ArrayList<>();
+        reader.bindFile(testFile, new Projection("@aw:PartNumber", "aw:ProductName", "aw:ShipDate"),
+                (row, location) -> rows.add(row), targetNodes);
+
+        assertEquals(fragments.size(), rows.size());
+        for (int i = 0; i < fragments.size(); i++)
+        {
+            PurchaseOrderItem item = PurchaseOrderItemMapper.fromDomNode(
+                    fragments.get(i).getDocumentFragment().getFirstChild());
+
+            assertArrayEquals(new String[]{item.getPartNumber(), item.getProductName(), item.getShipDate()},
+                    rows.get(i));
+        }
+
+        // Fields nested in several levels of the record, from the first match in document order
+        List<String[]> orders = new ArrayList<>();
+        reader.bindFile(testFile, new Projection("@aw:PurchaseOrderNumber", "aw:Address/@aw:Type",
+                        "aw:Address/aw:City", "aw:Items/aw:Item/aw:ProductName", "aw:Missing"),
+                (row, location) -> orders.add(row),
+                Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder"));
+
+        assertArrayEquals(new String[]{"99503", "Shipping", "Mill Valley", "Lawnmower", null}, orders.get(0));
+    }
+
+    /**
+     * An element that matches a field but lacks its attribute must not use up the field, a later match fills it
+     */
+    @Test
+    void testMissingAttributeOnEarlierMatch(@TempDir File directory) throws Exception
+    {
+        XMLStreamReader streamReader = XMLInputFactory.newInstance().createXMLStreamReader(
+                new StringReader("<r><info/><info id=\"1\"/><name>x</name></r>"));
+        streamReader.nextTag();
+
+        assertArrayEquals(new String[]{"1", "x"}, new Projection("info/@id", "name").capture(streamReader));
+
+        // Keys are captured the same way while indexing
+        File file = new File(directory, "keys.xml");
+        Files.write(file.toPath(), ("<records>\n  <r><info/><info id=\"1\"/></r>\n  <r><info id=\"2\"/></r>\n"
+                + "</records>\n").getBytes(StandardCharsets.UTF_8));
+
+        LocationTable table = new StreamingXMLReader().indexFile(file, null, false, "info/@id");
+        assertEquals(2, table.size());
+        assertEquals("1", table.getKey(0));
+        assertEquals("2", table.getKey(1));
+    }
+
+    private File getTestFile(String name) throws Exception
+    {
+        URL fileUrl = getClass().getResource(name);
+        return new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+    }
+}
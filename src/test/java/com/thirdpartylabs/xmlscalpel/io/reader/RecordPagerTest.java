@@ -0,0 +1,247 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.source.ArrayByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.ByteSource;
+import com.thirdpartylabs.xmlscalpel.io.source.FileByteSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordPagerTest
+{
+    /**
+     * Pages and samples read the same records as reading each location on its own
+     */
+    @Test
+    void testPageAndSample() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File file = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        LocationTable table = new StreamingXMLReader().indexFile(file, null);
+        assertEquals(100, table.size());
+
+        try (FileByteSource source = new FileByteSource(file))
+        {
+            RecordPager pager = new RecordPager(source, table);
+            assertEquals(100, pager.size());
+
+            List<String> page = pager.page(40, 10);
+            assertEquals(10, page.size());
+            for (int i = 0; i < page.size(); i++)
+            {
+                assertEquals(RandomAccessXMLReader.read(file, table.getLocation(40 + i)), page.get(i));
+            }
+
+            assertEquals(5, pager.page(95, 10).size());
+            assertTrue(pager.page(100, 10).isEmpty());
+
+            List<String> sample = pager.sample(0.1, 42);
+            assertEquals(pager.read(RecordPager.sampleOrdinals(100, 10, 42)), sample);
+            assertEquals(sample, pager.sample(0.1, 42));
+
+            int[] ordinals = RecordPager.stratifiedOrdinals(100, 10, 7);
+            List<String> stratified = pager.sampleStratified(0.1, 7);
+            for (int i = 0; i < ordinals.length; i++)
+            {
+                assertEquals(RandomAccessXMLReader.read(file, table.getLocation(ordinals[i])), stratified.get(i));
+            }
+        }
+    }
+
+    /**
+     * Samples are distinct, sorted and fixed by the seed, whichever way they are drawn
+     */
+    @Test
+    void testSampleOrdinals()
+    {
+        // Sparse samples use Floyd's algorithm, dense ones selection sampling
+        for (int[] sizeAndCount : new int[][]{{1000000, 100}, {1000, 500}, {50, 50}, {10, 0}})
+        {
+            int size = sizeAndCount[0];
+            int count = sizeAndCount[1];
+
+            int[] ordinals = RecordPager.sampleOrdinals(size, count, 1234);
+            assertEquals(count, ordinals.length);
+            assertArrayEquals(ordinals, RecordPager.sampleOrdinals(size, count, 1234));
+
+            for (int i = 0; i < ordinals.length; i++)
+            {
+                assertTrue(ordinals[i] >= 0 && ordinals[i] < size);
+                assertTrue(i == 0 || ordinals[i] > ordinals[i - 1]);
+            }
+        }
+
+        assertFalse(Arrays.equals(RecordPager.sampleOrdinals(1000000, 100, 1),
+                RecordPager.sampleOrdinals(1000000, 100, 2)));
+
+        int[] stratified = RecordPager.stratifiedOrdinals(1003, 10, 99);
+        for (int i = 0; i < stratified.length; i++)
+        {
+            assertTrue(stratified[i] >= 1003 * i / 10 && stratified[i] < 1003 * (i + 1) / 10);
+        }
+    }
+
+    /**
+     * Without an index, pages and samples resync onto records and step over look-alike tags
+     */
+    @Test
+    void testSeekWithoutIndex(@TempDir File directory) throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed>\n")
+                .append("  <header><entry>not a record</entry></header>\n");
+        for (int i = 0; i < 5000; i++)
+        {
+            xml.append("  <entry id=\"").append(String.format("%05d", i)).append("\"><title>Entrée ").append(i % 10)
+                    .append("</title><!-- <entry> --><![CDATA[<entry>]]></entry>\n");
+        }
+        xml.append("</feed>\n");
+
+        File file = new File(directory, "feed.xml");
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        List<String> targetPaths = Collections.singletonList("/feed/entry");
+
+        LocationTable table = reader.indexFile(file, targetPaths);
+        assertEquals(5000, table.size());
+
+        Map<Long, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < table.size(); i++)
+        {
+            ordinals.put(table.getOffset(i), i);
+        }
+
+        LocationTable page = reader.pageFile(file, 2500, 20, targetPaths);
+        assertEquals(20, page.size());
+
+        // Records are close to the same size, so the estimate is close
+        int first = ordinals.get(page.getOffset(0));
+        assertTrue(Math.abs(first - 2500) < 25, "Page starts at " + first);
+        for (int i = 0; i < page.size(); i++)
+        {
+            assertEquals(table.getOffset(first + i), page.getOffset(i));
+            assertEquals(table.getLength(first + i), page.getLength(i));
+        }
+
+        assertEquals(0, ordinals.get(reader.pageFile(file, 0, 1, targetPaths).getOffset(0)).intValue());
+        assertEquals(0, reader.pageFile(file, 100000, 10, targetPaths).size());
+
+        // The record name is taken from the first child of the document element when there are no target paths
+        LocationTable header = reader.pageFile(file, 0, 2, Collections.emptyList());
+        assertEquals(1, header.size());
+        assertEquals(xml.indexOf("<header>"), header.getOffset(0));
+
+        LocationTable sample = reader.sampleFile(file, 50, 5, targetPaths);
+        assertTrue(sample.size() > 40, "Sampled " + sample.size());
+        assertEquals(offsets(sample), offsets(reader.sampleFile(file, 50, 5, targetPaths)));
+
+        int previous = -1;
+        for (int i = 0; i < sample.size(); i++)
+        {
+            Integer ordinal = ordinals.get(sample.getOffset(i));
+            assertTrue(ordinal != null && ordinal > previous);
+            assertEquals(table.getLength(ordinal), sample.getLength(i));
+            previous = ordinal;
+        }
+    }
+
+    /**
+     * Sequences that close comments and processing instructions are legal in text, and only reject a record when
+     * the seek landed inside an open comment or processing instruction
+     */
+    @Test
+    void testSeekOverClosersInText() throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed>\n");
+        for (int i = 0; i < 2000; i++)
+        {
+            if (i % 100 == 50)
+            {
+                xml.append("  <!-- <entry id=\"x\"> -->\n  <?pi <entry id=\"y\"> ?>\n");
+            }
+            xml.append("  <entry id=\"").append(String.format("%05d", i)).append("\">if a --> b then c ?> d</entry>\n");
+        }
+        xml.append("</feed>\n");
+        byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        List<String> targetPaths = Collections.singletonList("/feed/entry");
+
+        try (ByteSource source = new ArrayByteSource(bytes))
+        {
+            LocationTable table = reader.indexFile(source, targetPaths, false, null);
+            assertEquals(2000, table.size());
+
+            Map<Long, Integer> ordinals = new HashMap<>();
+            for (int i = 0; i < table.size(); i++)
+            {
+                ordinals.put(table.getOffset(i), i);
+            }
+
+            for (long offset : new long[]{0, 49, 50, 1000, 1990})
+            {
+                LocationTable page = reader.pageFile(source, offset, 10, targetPaths);
+                assertEquals(10, page.size(), "Page at " + offset);
+
+                int first = ordinals.get(page.getOffset(0));
+                for (int i = 0; i < page.size(); i++)
+                {
+                    assertEquals(table.getOffset(first + i), page.getOffset(i));
+                    assertEquals(table.getLength(first + i), page.getLength(i));
+                }
+            }
+
+            LocationTable sample = reader.sampleFile(source, 200, 3, targetPaths);
+            assertTrue(sample.size() > 150, "Sampled " + sample.size());
+            for (int i = 0; i < sample.size(); i++)
+            {
+                Integer ordinal = ordinals.get(sample.getOffset(i));
+                assertTrue(ordinal != null, "Sampled a record at " + sample.getOffset(i) + " that is not indexed");
+                assertEquals(table.getLength(ordinal), sample.getLength(i));
+            }
+        }
+    }
+
+    private static List<Long> offsets(LocationTable table)
+    {
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++)
+        {
+            offsets.add(table.getOffset(i));
+        }
+
+        return offsets;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordWorkerPoolTest
+{
+    /**
+     * Results come back in the order the tasks were submitted, and each thread creates one worker
+     */
+    @Test
+    void testOrderAndWorkers() throws Exception
+    {
+        AtomicInteger created = new AtomicInteger();
+        Set<StringBuilder> workers = Collections.synchronizedSet(new HashSet<>());
+        List<Integer> results = new ArrayList<>();
+
+        try (RecordWorkerPool<StringBuilder, Integer, IOException> pool = new RecordWorkerPool<>(3, 6, () -> {
+            created.incrementAndGet();
+            return new StringBuilder();
+        }, IOException.class))
+        {
+            for (int i = 0; i < 200; i++)
+            {
+                int value = i;
+                if (pool.isFull())
+                {
+                    results.add(pool.next());
+                }
+
+                pool.submit(worker -> {
+                    workers.add(worker);
+
+                    // Later tasks tend to finish first
+                    Thread.sleep(value % 3);
+                    return value;
+                });
+            }
+
+            assertThrows(IllegalStateException.class, () -> pool.submit(worker -> -1));
+
+            while (pool.hasPending())
+            {
+                results.add(pool.next());
+            }
+        }
+
+        for (int i = 0; i < 200; i++)
+        {
+            assertEquals(i, results.get(i));
+        }
+
+        assertTrue(created.get() <= 3);
+        assertEquals(created.get(), workers.size());
+    }
+
+    /**
+     * Failures of the failure type and IOExceptions are rethrown as they are, anything else checked is wrapped
+     */
+    @Test
+    void testFailures()
+    {
+        try (RecordWorkerPool<Void, String, XMLStreamException> pool = new RecordWorkerPool<>(2, 4, () -> null,
+                XMLStreamException.class))
+        {
+            pool.submit(worker -> {
+                throw new XMLStreamException("parse");
+            });
+            pool.submit(worker -> {
+                throw new IOException("read");
+            });
+            pool.submit(worker -> {
+                throw new InterruptedException("other");
+            });
+            pool.submit(worker -> "ok");
+
+            assertEquals("parse", assertThrows(XMLStreamException.class, pool::next).getMessage());
+            assertEquals("read", assertThrows(IOException.class, pool::next).getMessage());
+            assertTrue(assertThrows(IOException.class, pool::next).getCause() instanceof InterruptedException);
+            assertDoesNotThrow(pool::next);
+        }
+    }
+}
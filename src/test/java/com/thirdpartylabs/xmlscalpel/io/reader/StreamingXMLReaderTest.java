@@ -0,0 +1,235 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.reader;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingXMLReaderTest
+{
+    /**
+     * A single reader shared by several threads should produce the same locations as a sequential read
+     */
+    @Test
+    void testSharedReaderConcurrentReads() throws Exception
+    {
+        File peopleFile = getTestFile("/data/people.xml");
+        File purchaseOrderFile = getTestFile("/data/po_namespace.xml");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Fragment> controlPeople = read(reader, peopleFile);
+        List<Fragment> controlPurchaseOrders = read(reader, purchaseOrderFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<List<Fragment>>> peopleResults = new ArrayList<>();
+            List<Future<List<Fragment>>> purchaseOrderResults = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++)
+            {
+                peopleResults.add(executor.submit(() -> read(reader, peopleFile)));
+                purchaseOrderResults.add(executor.submit(() -> read(reader, purchaseOrderFile)));
+            }
+
+            for (Future<List<Fragment>> result : peopleResults)
+            {
+                assertSameLocations(controlPeople, result.get(30, TimeUnit.SECONDS));
+            }
+
+            for (Future<List<Fragment>> result : purchaseOrderResults)
+            {
+                assertSameLocations(controlPurchaseOrders, result.get(30, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The skip-scan fast path should find the same elements at the same locations as the full parse
+     */
+    @Test
+    void testScanFileMatchesReadFile() throws Exception
+    {
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<String> targetNodes = Arrays.asList(
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Address",
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"
+        );
+
+        assertScanMatchesRead(reader, getTestFile("/data/people.xml"), null);
+        assertScanMatchesRead(reader, getTestFile("/data/test_cdata.xml"), null);
+        assertScanMatchesRead(reader, getTestFile("/data/po_namespace.xml"), null);
+        assertScanMatchesRead(reader, getTestFile("/data/po_namespace.xml"), targetNodes);
+        assertScanMatchesRead(reader, getTestFile("/data/po_namespace_flat.xml"), targetNodes);
+    }
+
+    /**
+     * Reading the tail backwards should find the same last elements as a full read, skipping over markup in comments
+     * and CDATA sections, but not over text that only looks like the end of one
+     */
+    @Test
+    void testTailMatchesReadFile(@TempDir File directory) throws Exception
+    {
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<String> targetNodes = Arrays.asList(
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Address",
+                "/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item"
+        );
+
+        File commented = new File(directory, "commented.xml");
+        Files.write(commented.toPath(), ("<?xml version=\"1.0\"?>\n<log>\n  <entry n=\"1\">a</entry>\n"
+                + "  <entry n=\"2\"><![CDATA[</entry><entry>]]></entry>\n"
+                + "  <!-- <entry n=\"x\">commented out</entry> -->\n"
+                + "  <entry n=\"3\" note=\"a > b\"/>\n"
+                + "</log>\n").getBytes(StandardCharsets.UTF_8));
+
+        // --> and ?> are legal in character data and attribute values
+        File arrows = new File(directory, "arrows.xml");
+        Files.write(arrows.toPath(), ("<?xml version=\"1.0\"?>\n<log>\n  <!-- first -->\n"
+                + "  <entry n=\"1\">a --> b</entry>\n"
+                + "  <entry n=\"2\" note=\"x ?> y\">why?></entry>\n"
+                + "  <entry n=\"3\">-- c --></entry>\n"
+                + "</log>\n").getBytes(StandardCharsets.UTF_8));
+
+        for (int count = 0; count <= 4; count++)
+        {
+            assertTailMatchesRead(reader, getTestFile("/data/people.xml"), null, count);
+            assertTailMatchesRead(reader, getTestFile("/data/test_cdata.xml"), null, count);
+            assertTailMatchesRead(reader, getTestFile("/data/po_namespace.xml"), targetNodes, count);
+            assertTailMatchesRead(reader, getTestFile("/data/po_namespace_flat.xml"), targetNodes, count);
+            assertTailMatchesRead(reader, commented, null, count);
+            assertTailMatchesRead(reader, arrows, null, count);
+        }
+    }
+
+    /**
+     * Characters outside the basic multilingual plane are four bytes in UTF-8 but two chars in Java, offsets after
+     * them must still land on the right bytes
+     */
+    @Test
+    void testSupplementaryCharacterOffsets(@TempDir File directory) throws Exception
+    {
+        String first = "<item>\uD83D\uDE00 grinning</item>";
+        String second = "<item>\u00E9t\u00E9 \uD834\uDD1E</item>";
+
+        File file = new File(directory, "emoji.xml");
+        Files.write(file.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<items>\n    " + first + "\n    "
+                + second + "\n</items>\n").getBytes(StandardCharsets.UTF_8));
+
+        List<Fragment> fragments = read(new StreamingXMLReader(), file);
+
+        assertEquals(2, fragments.size());
+        assertEquals(first, RandomAccessXMLReader.read(file, fragments.get(0).getXmlByteLocation()));
+        assertEquals(second, RandomAccessXMLReader.read(file, fragments.get(1).getXmlByteLocation()));
+    }
+
+    private void assertTailMatchesRead(StreamingXMLReader reader, File file, List<String> targetNodes, int count)
+            throws Exception
+    {
+        List<Fragment> all = new ArrayList<>();
+        reader.readFile(file, new CollectionPopulatingXMLStreamProcessor(all), targetNodes);
+        List<Fragment> expected = all.subList(Math.max(0, all.size() - count), all.size());
+
+        List<Fragment> actual = reader.tailFile(file, count, targetNodes);
+
+        assertEquals(expected.size(), actual.size(), "Tail of " + file.getName());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getXmlByteLocation().getOffset(),
+                         actual.get(i).getXmlByteLocation().getOffset(), "Offsets should match");
+            assertEquals(expected.get(i).getXmlByteLocation().getLength(),
+                         actual.get(i).getXmlByteLocation().getLength(), "Lengths should match");
+
+            Node expectedNode = expected.get(i).getDocumentFragment().getFirstChild();
+            Node actualNode = actual.get(i).getDocumentFragment().getFirstChild();
+
+            assertEquals(expectedNode.getNamespaceURI(), actualNode.getNamespaceURI(), "Namespaces should match");
+            assertEquals(expectedNode.getTextContent(), actualNode.getTextContent(), "Content should match");
+        }
+    }
+
+    private void assertScanMatchesRead(StreamingXMLReader reader, File file, List<String> targetNodes) throws Exception
+    {
+        List<Fragment> expected = new ArrayList<>();
+        reader.readFile(file, new CollectionPopulatingXMLStreamProcessor(expected), targetNodes);
+
+        List<Fragment> actual = new ArrayList<>();
+        reader.scanFile(file, new CollectionPopulatingXMLStreamProcessor(actual), targetNodes);
+
+        assertSameLocations(expected, actual);
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            Node expectedNode = expected.get(i).getDocumentFragment().getFirstChild();
+            Node actualNode = actual.get(i).getDocumentFragment().getFirstChild();
+
+            assertEquals(expectedNode.getNamespaceURI(), actualNode.getNamespaceURI(), "Namespaces should match");
+            assertEquals(expectedNode.getLocalName(), actualNode.getLocalName(), "Names should match");
+            assertEquals(expectedNode.getTextContent(), actualNode.getTextContent(), "Content should match");
+        }
+    }
+
+    private List<Fragment> read(StreamingXMLReader reader, File file) throws Exception
+    {
+        List<Fragment> fragments = new ArrayList<>();
+        reader.readFile(file, new CollectionPopulatingXMLStreamProcessor(fragments));
+
+        return fragments;
+    }
+
+    private void assertSameLocations(List<Fragment> expected, List<Fragment> actual)
+    {
+        assertEquals(expected.size(), actual.size(), "Fragment counts should match");
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getXmlByteLocation().getOffset(), actual.get(i).getXmlByteLocation().getOffset(),
+                    "Offsets should match");
+            assertEquals(expected.get(i).getXmlByteLocation().getLength(), actual.get(i).getXmlByteLocation().getLength(),
+                    "Lengths should match");
+        }
+    }
+
+    private File getTestFile(String name) throws Exception
+    {
+        URL fileUrl = getClass().getResource(name);
+        String decodedPath = URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString());
+
+        return new File(decodedPath);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ByteSourceTest
+{
+    /**
+     * Records read back through each kind of local source match the records read from the file
+     */
+    @Test
+    void testLocalSourcesMatchFile() throws Exception
+    {
+        File testFile = getTestFile();
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null);
+
+        List<ByteSource> sources = new ArrayList<>();
+        sources.add(new FileByteSource(testFile));
+        sources.add(new MappedByteSource(testFile));
+        sources.add(new ArrayByteSource(Files.readAllBytes(testFile.toPath())));
+
+        for (ByteSource source : sources)
+        {
+            try (source)
+            {
+                assertEquals(testFile.length(), source.size(), "Size of " + source.getClass().getSimpleName());
+
+                List<XMLByteLocation> locations = new ArrayList<>();
+                for (int i = table.size() - 1; i >= 0; i--)
+                {
+                    XMLByteLocation location = table.getLocation(i);
+                    locations.add(location);
+
+                    assertEquals(RandomAccessXMLReader.read(testFile, location),
+                            RandomAccessXMLReader.read(source, location));
+                }
+
+                // Locations come back in the order they were asked for, not in file order
+                List<String> records = RandomAccessXMLReader.readAll(source, locations, StandardCharsets.UTF_8);
+                for (int i = 0; i < locations.size(); i++)
+                {
+                    assertEquals(RandomAccessXMLReader.read(testFile, locations.get(i)), records.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Streaming reads from an in-memory source produce the same locations, hashes and fragments as from the file
+     */
+    @Test
+    void testStreamingFromArraySource() throws Exception
+    {
+        File testFile = getTestFile();
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        LocationTable control = reader.indexFile(testFile, null, true, "uid");
+
+        try (ByteSource source = new ArrayByteSource(Files.readAllBytes(testFile.toPath())))
+        {
+            LocationTable table = reader.indexFile(source, null, true, "uid");
+
+            assertEquals(control.size(), table.size());
+            for (int i = 0; i < control.size(); i++)
+            {
+                assertEquals(control.getOffset(i), table.getOffset(i));
+                assertEquals(control.getLength(i), table.getLength(i));
+                assertEquals(control.getHash(i), table.getHash(i));
+                assertEquals(control.getKey(i), table.getKey(i));
+            }
+
+            List<Fragment> fragments = new ArrayList<>();
+            reader.readFile(source, new CollectionPopulatingXMLStreamProcessor(fragments), null);
+
+            assertEquals(control.size(), fragments.size());
+            for (int i = 0; i < fragments.size(); i++)
+            {
+                XMLByteLocation location = fragments.get(i).getXmlByteLocation();
+                assertEquals(control.getOffset(i), location.getOffset());
+                assertEquals(control.getLength(i), location.getLength());
+            }
+        }
+    }
+
+    private File getTestFile() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        return new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.source;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HttpRangeByteSourceTest
+{
+    private File testFile;
+    private LocationTable table;
+    private HttpServer server;
+    private URL url;
+
+    // What the server is currently serving
+    private volatile byte[] content;
+    private volatile String etag = "\"v1\"";
+    private volatile boolean rangesSupported = true;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+        table = new StreamingXMLReader().indexFile(testFile, null);
+        content = Files.readAllBytes(testFile.toPath());
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/people.xml", this::serve);
+        server.start();
+
+        url = new URL("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                + "/people.xml");
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        server.stop(0);
+    }
+
+    /**
+     * One record costs one request, and neighbouring records are fetched together
+     */
+    @Test
+    void testRoundTrips() throws Exception
+    {
+        try (HttpRangeByteSource source = new HttpRangeByteSource(url, 256, 1 << 20))
+        {
+            XMLByteLocation location = table.getLocation(10);
+            assertEquals(RandomAccessXMLReader.read(testFile, location), RandomAccessXMLReader.read(source, location));
+            assertEquals(1, source.getRequestCount());
+
+            // Already cached
+            RandomAccessXMLReader.read(source, location);
+            assertEquals(1, source.getRequestCount());
+
+            List<XMLByteLocation> locations = new ArrayList<>();
+            for (int i = 30; i >= 20; i--)
+            {
+                locations.add(table.getLocation(i));
+            }
+
+            List<String> records = RandomAccessXMLReader.readAll(source, locations, StandardCharsets.UTF_8);
+            assertEquals(2, source.getRequestCount());
+
+            for (int i = 0; i < locations.size(); i++)
+            {
+                assertEquals(RandomAccessXMLReader.read(testFile, locations.get(i)), records.get(i));
+            }
+        }
+    }
+
+    /**
+     * A document that changes between requests is reported rather than read as a mix of two versions
+     */
+    @Test
+    void testChangedDocument() throws Exception
+    {
+        try (HttpRangeByteSource source = new HttpRangeByteSource(url, 256, 1 << 20))
+        {
+            RandomAccessXMLReader.read(source, table.getLocation(0));
+            assertEquals("\"v1\"", source.getVersion());
+
+            etag = "\"v2\"";
+
+            assertThrows(IOException.class, () -> RandomAccessXMLReader.read(source, table.getLocation(50)));
+        }
+    }
+
+    /**
+     * A server that ignores the Range header sends the whole document, only the requested range is kept
+     */
+    @Test
+    void testRangeIgnored() throws Exception
+    {
+        rangesSupported = false;
+
+        try (HttpRangeByteSource source = new HttpRangeByteSource(url, 256, 1024))
+        {
+            for (int i : new int[]{50, 3, table.size() - 1})
+            {
+                XMLByteLocation location = table.getLocation(i);
+                assertEquals(RandomAccessXMLReader.read(testFile, location),
+                             RandomAccessXMLReader.read(source, location));
+            }
+
+            assertEquals(testFile.length(), source.size());
+            assertEquals(-1, source.read(testFile.length(), ByteBuffer.allocate(16)));
+        }
+    }
+
+    /**
+     * Streaming over HTTP produces the same locations as streaming the file
+     */
+    @Test
+    void testReadFile() throws Exception
+    {
+        try (HttpRangeByteSource source = new HttpRangeByteSource(url))
+        {
+            List<Fragment> fragments = new ArrayList<>();
+            new StreamingXMLReader().readFile(source, new CollectionPopulatingXMLStreamProcessor(fragments), null);
+
+            assertEquals(table.size(), fragments.size());
+            for (int i = 0; i < table.size(); i++)
+            {
+                assertEquals(table.getOffset(i), fragments.get(i).getXmlByteLocation().getOffset());
+                assertEquals(table.getLength(i), fragments.get(i).getXmlByteLocation().getLength());
+            }
+        }
+    }
+
+    /**
+     * Minimal static file server with single range and If-Match support
+     */
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        byte[] bytes = content;
+        String currentTag = etag;
+
+        exchange.getResponseHeaders().set("ETag", currentTag);
+
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(currentTag))
+        {
+            exchange.sendResponseHeaders(412, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0;
+        int end = bytes.length - 1;
+        int status = 200;
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && rangesSupported)
+        {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Math.min(Integer.parseInt(bounds[1]), bytes.length - 1);
+
+            if (start >= bytes.length)
+            {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + bytes.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + bytes.length);
+            status = 206;
+        }
+
+        int length = end - start + 1;
+        if (exchange.getRequestMethod().equals("HEAD"))
+        {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream output = exchange.getResponseBody())
+        {
+            output.write(bytes, start, length);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedPatcherTest
+{
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<products>";
+    private static final String FOOTER = "\n</products>\n";
+
+    /**
+     * Insert, replace and delete records by ordinal and by key, then check the patched file and that the table that
+     * came with it matches a fresh index of the new file
+     */
+    @Test
+    void testPatch(@TempDir File directory) throws Exception
+    {
+        File source = new File(directory, "source.xml");
+        Files.write(source.toPath(), (HEADER
+                + "\n  <product><sku>A</sku></product>"
+                + "\n  <product><sku>B</sku></product>"
+                + "\n  <product><sku>C</sku></product>"
+                + "\n  <product><sku>D</sku></product>"
+                + FOOTER).getBytes(StandardCharsets.UTF_8));
+
+        List<String> targetPaths = Collections.singletonList("/products/product");
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable index = reader.indexFile(source, targetPaths, true, "sku");
+
+        File target = new File(directory, "target.xml");
+        LocationTable table = new FeedPatcher()
+                .insertBefore(0, "<product><sku>Z</sku></product>")
+                .replace("B", "<product><sku>B</sku><price>9.99</price></product>")
+                .delete(2)
+                .insertBefore(2, "<product><sku>W</sku></product>")
+                .insertBefore(4, "<product><sku>E</sku></product>")
+                .write(source, index, target);
+
+        assertEquals(HEADER
+                + "\n  <product><sku>Z</sku></product>"
+                + "\n  <product><sku>A</sku></product>"
+                + "\n  <product><sku>B</sku><price>9.99</price></product>"
+                + "\n  <product><sku>W</sku></product>"
+                + "\n  <product><sku>D</sku></product>"
+                + "\n  <product><sku>E</sku></product>"
+                + FOOTER, new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+
+        LocationTable control = reader.indexFile(target, targetPaths, true, "sku");
+        assertEquals(control.size(), table.size());
+        for (int i = 0; i < control.size(); i++)
+        {
+            assertEquals(control.getOffset(i), table.getOffset(i), "Offset of record " + i);
+            assertEquals(control.getLength(i), table.getLength(i), "Length of record " + i);
+            assertEquals(control.getHash(i), table.getHash(i), "Hash of record " + i);
+        }
+
+        // Replaced records keep their keys, inserted records have none
+        assertNull(table.getKey(0));
+        assertEquals("A", table.getKey(1));
+        assertEquals("B", table.getKey(2));
+        assertNull(table.getKey(3));
+        assertEquals("D", table.getKey(4));
+        assertNull(table.getKey(5));
+
+        // Deleting the first record takes the whitespace in front of it along
+        new FeedPatcher().delete("A").write(source, index, target);
+        assertEquals(HEADER
+                + "\n  <product><sku>B</sku></product>"
+                + "\n  <product><sku>C</sku></product>"
+                + "\n  <product><sku>D</sku></product>"
+                + FOOTER, new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> new FeedPatcher().replace(1, "<product/>").delete("B").write(source, index, target));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.entity.PurchaseOrderItem;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderItemMapper;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FragmentFileSplitterTest
+{
+    /**
+     * Split the purchase order items into files of two items each, then read the split files back and compare the
+     * items to the ones read from the original file
+     */
+    @Test
+    void testSplitWithNamespace(@TempDir File outputDirectory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Fragment> controlFragments = new ArrayList<>();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(controlFragments), targetNodes);
+
+        List<XMLByteLocation> locations = new ArrayList<>();
+        List<PurchaseOrderItem> controlItems = new ArrayList<>();
+        for (Fragment fragment : controlFragments)
+        {
+            locations.add(fragment.getXmlByteLocation());
+            controlItems.add(PurchaseOrderItemMapper.fromDomNode(fragment.getDocumentFragment().getFirstChild()));
+        }
+
+        OuterDocument outerDocument = reader.getOuterDocument();
+        FragmentFileSplitter splitter = new FragmentFileSplitter(outerDocument);
+        List<File> files = splitter.split(testFile, locations, 2, outputDirectory, "items");
+
+        assertEquals(3, files.size(), "Expected 3 files for 5 items");
+
+        // The split files have the same structure as the original with the items directly under the document element
+        List<String> splitTargetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:Item");
+        List<PurchaseOrderItem> testItems = new ArrayList<>();
+        for (File file : files)
+        {
+            List<Fragment> fragments = new ArrayList<>();
+            reader.readFile(file, new CollectionPopulatingXMLStreamProcessor(fragments), splitTargetNodes);
+
+            for (Fragment fragment : fragments)
+            {
+                testItems.add(PurchaseOrderItemMapper.fromDomNode(fragment.getDocumentFragment().getFirstChild()));
+            }
+        }
+
+        assertEquals(controlItems, testItems, "Items read from the split files should match the original items");
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.Projection;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelRecordTransformerTest
+{
+    private static final String ITEM_STYLESHEET = "<xsl:stylesheet version=\"1.0\""
+            + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" xmlns:aw=\"http://www.adventure-works.com\">"
+            + "<xsl:template match=\"/aw:Item\">"
+            + "<part id=\"{@aw:PartNumber}\"><xsl:value-of select=\"aw:ProductName\"/></part>"
+            + "</xsl:template></xsl:stylesheet>";
+
+    private static final String PERSON_STYLESHEET = "<xsl:stylesheet version=\"1.0\""
+            + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"><xsl:output method=\"text\"/>"
+            + "<xsl:template match=\"/person\"><xsl:value-of select=\"concat(uid, ',', city)\"/></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    /**
+     * Prefixed records are transformed with the namespaces of the document element bound, and written in order
+     * inside the document element
+     */
+    @Test
+    void testTransformWithNamespace(@TempDir File outputDirectory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, targetNodes);
+        OuterDocument outerDocument = reader.getOuterDocument(testFile);
+
+        List<String[]> expected = new ArrayList<>();
+        reader.bindFile(testFile, new Projection("@aw:PartNumber", "aw:ProductName"),
+                (row, location) -> expected.add(row), targetNodes);
+
+        ParallelRecordTransformer transformer = new ParallelRecordTransformer(compile(ITEM_STYLESHEET),
+                outerDocument, 3, 3);
+
+        File target = new File(outputDirectory, "parts.xml");
+        transformer.transform(testFile, table, target);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(target);
+
+        assertEquals("PurchaseOrders", document.getDocumentElement().getLocalName());
+
+        NodeList parts = document.getElementsByTagName("part");
+        assertEquals(expected.size(), parts.getLength());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            Element part = (Element) parts.item(i);
+            assertEquals(expected.get(i)[0], part.getAttribute("id"));
+            assertEquals(expected.get(i)[1], part.getTextContent());
+        }
+    }
+
+    /**
+     * Sharded text output holds one line per record, in order, with a small in-flight window
+     */
+    @Test
+    void testTransformToShards(@TempDir File outputDirectory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null);
+
+        List<String> expected = new ArrayList<>();
+        reader.bindFile(testFile, new Projection("uid", "city"),
+                (row, location) -> expected.add(row[0] + "," + row[1]), null);
+
+        ParallelRecordTransformer transformer = new ParallelRecordTransformer(compile(PERSON_STYLESHEET),
+                reader.getOuterDocument(testFile), 4, 6);
+        transformer.setWrapped(false);
+
+        List<File> files = transformer.transform(testFile, table, 30, outputDirectory, "people");
+
+        assertEquals(4, files.size());
+
+        List<String> actual = new ArrayList<>();
+        for (File file : files)
+        {
+            actual.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * A stylesheet failure for one record fails the run
+     */
+    @Test
+    void testFailure(@TempDir File outputDirectory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null);
+
+        String failing = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:template match=\"/person\"><xsl:if test=\"city = 'Lehrte'\">"
+                + "<xsl:message terminate=\"yes\">Lehrte</xsl:message></xsl:if></xsl:template></xsl:stylesheet>";
+
+        ParallelRecordTransformer transformer = new ParallelRecordTransformer(compile(failing),
+                reader.getOuterDocument(testFile), 2, 2);
+
+        assertThrows(TransformerException.class,
+                () -> transformer.transform(testFile, table, new File(outputDirectory, "failed.xml")));
+    }
+
+    private static Templates compile(String stylesheet) throws TransformerException
+    {
+        return TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(stylesheet)));
+    }
+}
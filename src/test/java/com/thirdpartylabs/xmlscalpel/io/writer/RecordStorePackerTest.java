@@ -0,0 +1,133 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.io.writer;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.entity.PurchaseOrderItem;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.io.reader.PackedRecordStore;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderItemMapper;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordStorePackerTest
+{
+    /**
+     * Every record read from the store matches the original bytes, in any order, with and without a dictionary
+     */
+    @Test
+    void testPackAndRead(@TempDir File directory) throws Exception
+    {
+        File testFile = getTestFile("/data/people.xml");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null, true, null);
+        OuterDocument outerDocument = reader.getOuterDocument();
+
+        byte[] dictionary = RecordStorePacker.buildDictionary(testFile, table, 16384);
+        assertTrue(dictionary.length > 0 && dictionary.length <= 16384);
+
+        File plain = new File(directory, "plain.xsps");
+        new RecordStorePacker(outerDocument, 1, null).pack(testFile, table, plain);
+
+        File withDictionary = new File(directory, "dictionary.xsps");
+        new RecordStorePacker(outerDocument, 1, dictionary).pack(testFile, table, withDictionary);
+
+        File blocked = new File(directory, "blocked.xsps");
+        new RecordStorePacker(outerDocument).pack(testFile, table, blocked);
+
+        // Single record blocks gain the most from a dictionary
+        assertTrue(withDictionary.length() < plain.length(), "The dictionary should improve compression");
+        assertTrue(blocked.length() * 3 < testFile.length(), "Blocks should compress at least 3x");
+
+        for (File file : new File[]{plain, withDictionary, blocked})
+        {
+            try (PackedRecordStore store = new PackedRecordStore(file))
+            {
+                assertEquals(table.size(), store.size());
+                assertEquals(outerDocument.getDocumentHeader(), store.getDocumentHeader());
+
+                LocationIndex index = store.getIndex();
+                for (int i = table.size() - 1; i >= 0; i--)
+                {
+                    assertEquals(table.getOffset(i), index.getOffset(i));
+                    assertEquals(table.getHash(i), index.getHash(i));
+                    assertEquals(RandomAccessXMLReader.read(testFile, table.getLocation(i)), store.read(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records hydrated through the outer document kept in the store have their namespaces bound
+     */
+    @Test
+    void testOuterDocument(@TempDir File directory) throws Exception
+    {
+        File testFile = getTestFile("/data/po_namespace.xml");
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        List<Fragment> fragments = new ArrayList<>();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(fragments), targetNodes);
+
+        LocationTable table = new LocationTable();
+        List<PurchaseOrderItem> controlItems = new ArrayList<>();
+        for (Fragment fragment : fragments)
+        {
+            table.add(fragment.getXmlByteLocation().getOffset(), fragment.getXmlByteLocation().getLength());
+            controlItems.add(PurchaseOrderItemMapper.fromDomNode(fragment.getDocumentFragment().getFirstChild()));
+        }
+
+        File packed = new File(directory, "po.xsps");
+        new RecordStorePacker(reader.getOuterDocument()).pack(testFile, table, packed);
+
+        try (PackedRecordStore store = new PackedRecordStore(packed))
+        {
+            OuterDocument outerDocument = store.getOuterDocument();
+
+            List<PurchaseOrderItem> items = new ArrayList<>();
+            for (int i = 0; i < store.size(); i++)
+            {
+                items.add(PurchaseOrderItemMapper.fromDomNode(
+                        outerDocument.getDocumentFragmentForXmlString(store.read(i)).getFirstChild()));
+            }
+
+            assertEquals(controlItems, items);
+        }
+    }
+
+    private File getTestFile(String name) throws Exception
+    {
+        URL fileUrl = getClass().getResource(name);
+        return new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+    }
+}
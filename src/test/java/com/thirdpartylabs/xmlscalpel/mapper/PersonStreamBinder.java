@@ -0,0 +1,81 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.mapper;
+
+import com.thirdpartylabs.xmlscalpel.entity.Person;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.processor.XMLRecordBinder;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Unmarshaller for Person that reads straight from the stream
+ */
+public class PersonStreamBinder implements XMLRecordBinder<Person>
+{
+    @Override
+    public Person bind(XMLStreamReader reader, XMLByteLocation location) throws XMLStreamException
+    {
+        if (!reader.getLocalName().equals("person"))
+        {
+            throw new XMLStreamException("This is not a person.");
+        }
+
+        Person person = new Person();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+        {
+            String name = reader.getLocalName();
+            String value = reader.getElementText();
+
+            switch (name)
+            {
+                case "uid":
+                    person.setUid(value);
+                    break;
+                case "name":
+                    person.setName(value);
+                    break;
+                case "address":
+                    person.setAddress(value);
+                    break;
+                case "city":
+                    person.setCity(value);
+                    break;
+                case "country":
+                    person.setCountry(value);
+                    break;
+                case "description":
+                    person.setDescription(value);
+                    break;
+                case "email":
+                    person.setEmail(value);
+                    break;
+                case "phone":
+                    person.setPhone(value);
+                    break;
+                case "postcode":
+                    person.setPostcode(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return person;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest
+{
+    /**
+     * Buckets are contiguous from zero to Long.MAX_VALUE, and values below 8 each have a bucket of their own
+     */
+    @Test
+    void testBucketBounds()
+    {
+        for (int value = 0; value < 8; value++)
+        {
+            assertEquals(value, Histogram.bucketIndex(value));
+            assertEquals(value, Histogram.bucketUpperBound(value));
+        }
+
+        int last = Histogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, Histogram.bucketUpperBound(last));
+
+        for (int i = 0; i < last; i++)
+        {
+            long upper = Histogram.bucketUpperBound(i);
+            assertEquals(i, Histogram.bucketIndex(upper), "Upper bound of bucket " + i);
+            assertEquals(i + 1, Histogram.bucketIndex(upper + 1), "Value after bucket " + i);
+        }
+    }
+
+    /**
+     * The upper bound of the bucket a value falls in is never more than 12.5% above the value
+     */
+    @Test
+    void testErrorBound()
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++)
+        {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long upper = Histogram.bucketUpperBound(Histogram.bucketIndex(value));
+
+            assertTrue(upper >= value, "Bucket of " + value + " ends at " + upper);
+            assertTrue(upper - value <= value / 8, "Bucket of " + value + " ends at " + upper);
+        }
+    }
+
+    @Test
+    void testPercentiles()
+    {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMean());
+
+        for (int value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean());
+
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(1000, histogram.getValueAtPercentile(150));
+
+        for (int percentile = 1; percentile < 100; percentile++)
+        {
+            long value = histogram.getValueAtPercentile(percentile);
+            long exact = percentile * 10;
+
+            assertTrue(value >= exact && value - exact <= exact / 8, percentile + "th percentile was " + value);
+        }
+
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+    }
+}
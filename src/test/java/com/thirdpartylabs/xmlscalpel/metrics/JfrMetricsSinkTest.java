@@ -0,0 +1,156 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The library and its tests target Java 9, so the recording is driven by reflection like the sink itself
+ */
+class JfrMetricsSinkTest
+{
+    private static final String PREFIX = "com.thirdpartylabs.xmlscalpel.";
+
+    /**
+     * Emit every event type inside a recording, read the recording back and check the names and field values
+     */
+    @Test
+    void testEventsAreRecorded(@TempDir File directory) throws Exception
+    {
+        if (!isJfrAvailable())
+        {
+            assertThrows(UnsupportedOperationException.class, JfrMetricsSink::new);
+            return;
+        }
+
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        JfrMetricsSink sink = new JfrMetricsSink();
+
+        // Nothing is enabled yet, so these are dropped
+        sink.randomRead(1, 1);
+        sink.offsetLookupMiss(1);
+
+        Object recording = Class.forName("jdk.jfr.Recording").getConstructor().newInstance();
+        for (String name : new String[]{"FileIndexed", "FragmentExtracted", "RandomRead", "FragmentHydrated",
+                "OffsetLookupMiss"})
+        {
+            recording.getClass().getMethod("enable", String.class).invoke(recording, PREFIX + name);
+        }
+
+        Path dump = new File(directory, "events.jfr").toPath();
+        List<?> events;
+        try
+        {
+            recording.getClass().getMethod("start").invoke(recording);
+
+            XMLScalpelMetrics.setSink(sink);
+            try
+            {
+                new StreamingXMLReader().indexFile(testFile, null);
+            }
+            finally
+            {
+                XMLScalpelMetrics.setSink(null);
+            }
+
+            sink.fragmentExtracted(new XMLByteLocation(7, 100, 20), 30);
+            sink.randomRead(4096, 500);
+            sink.fragmentHydrated(300, 600);
+            sink.offsetLookupMiss(12345);
+
+            recording.getClass().getMethod("stop").invoke(recording);
+            recording.getClass().getMethod("dump", Path.class).invoke(recording, dump);
+
+            events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Path.class).invoke(null, dump);
+        }
+        finally
+        {
+            recording.getClass().getMethod("close").invoke(recording);
+        }
+
+        Map<String, Object> lastByName = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Object event : events)
+        {
+            Object type = event.getClass().getMethod("getEventType").invoke(event);
+            String name = (String) type.getClass().getMethod("getName").invoke(type);
+            if (name.startsWith(PREFIX))
+            {
+                name = name.substring(PREFIX.length());
+                lastByName.put(name, event);
+                counts.merge(name, 1, Integer::sum);
+            }
+        }
+
+        assertEquals(1, (int) counts.get("FileIndexed"));
+        assertEquals(1, (int) counts.get("RandomRead"));
+        assertEquals(1, (int) counts.get("OffsetLookupMiss"));
+        assertTrue(counts.get("FragmentExtracted") > 1);
+
+        Object fileIndexed = lastByName.get("FileIndexed");
+        assertEquals(testFile.getPath(), value(fileIndexed, "source"));
+        assertEquals(testFile.length(), value(fileIndexed, "bytes"));
+        assertEquals((long) counts.get("FragmentExtracted") - 1, value(fileIndexed, "records"));
+        assertNotNull(value(fileIndexed, "elapsed"));
+
+        Object extracted = lastByName.get("FragmentExtracted");
+        assertEquals(7, value(extracted, "index"));
+        assertEquals(100L, value(extracted, "offset"));
+        assertEquals(20L, value(extracted, "bytes"));
+
+        assertEquals(4096L, value(lastByName.get("RandomRead"), "bytes"));
+        assertEquals(300L, value(lastByName.get("FragmentHydrated"), "chars"));
+        assertEquals(12345L, value(lastByName.get("OffsetLookupMiss"), "charOffset"));
+    }
+
+    private static boolean isJfrAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.EventFactory");
+            return true;
+        }
+        catch (ClassNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    private static Object value(Object event, String field) throws Exception
+    {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+}
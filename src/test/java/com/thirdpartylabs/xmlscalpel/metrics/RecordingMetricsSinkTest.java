@@ -0,0 +1,79 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thirdpartylabs.xmlscalpel.metrics;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.entity.OuterDocument;
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordingMetricsSinkTest
+{
+    /**
+     * Index a file and fetch a record back with the recording sink installed, every stage should be counted
+     */
+    @Test
+    void testReadAndRetrievalAreRecorded() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        RecordingMetricsSink sink = new RecordingMetricsSink();
+        XMLScalpelMetrics.setSink(sink);
+
+        try
+        {
+            StreamingXMLReader reader = new StreamingXMLReader();
+
+            List<Fragment> fragments = new ArrayList<>();
+            reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(fragments));
+
+            assertEquals(1, sink.getFilesIndexed());
+            assertEquals(testFile.length(), sink.getBytesIndexed());
+            assertEquals(fragments.size(), sink.getRecordsIndexed());
+            assertEquals(fragments.size(), sink.getExtractionLatency().getCount());
+            assertEquals(0, sink.getOffsetLookupMisses());
+
+            XMLByteLocation location = fragments.get(fragments.size() - 1).getXmlByteLocation();
+            String xml = RandomAccessXMLReader.read(testFile, location);
+
+            OuterDocument outerDocument = reader.getOuterDocument();
+            outerDocument.getDocumentFragmentForXmlString(xml);
+
+            assertEquals(location.getLength(), sink.getRandomReadBytes());
+            assertEquals(1, sink.getRandomReadLatency().getCount());
+            assertEquals(1, sink.getHydrationLatency().getCount());
+            assertTrue(sink.getBytesPerSecond() > 0);
+        }
+        finally
+        {
+            XMLScalpelMetrics.setSink(null);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.thirdpartylabs.xmlscalpel.entity.*;
 import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
 import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
 import com.thirdpartylabs.xmlscalpel.mapper.PersonMapper;
+import com.thirdpartylabs.xmlscalpel.mapper.PersonStreamBinder;
 import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderAddressMapper;
 import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderItemMapper;
 import com.thirdpartylabs.xmlscalpel.mapper.PurchaseOrderMapper;
@@ -447,4 +448,42 @@ class SmokeTest
             assertEquals(controlDescription, currPerson.getDescription(), "Description read from CDATA should match expected value");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Bind people straight from the stream and compare them, and their locations, to the people mapped from the
+     * DOM fragments
+     */
+    @Test
+    void testStreamBinderMatchesDomMapper() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        String decodedPath = URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString());
+
+        File testFile = new File(decodedPath);
+
+        List<Fragment> nodeEntities = new ArrayList<>();
+        StreamingXMLReader reader = new StreamingXMLReader();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(nodeEntities));
+
+        List<Person> boundPeople = new ArrayList<>();
+        List<XMLByteLocation> boundLocations = new ArrayList<>();
+        reader.bindFile(testFile, new PersonStreamBinder(), (person, location) -> {
+            boundPeople.add(person);
+            boundLocations.add(location);
+        }, null);
+
+        assertEquals(nodeEntities.size(), boundPeople.size(), "Expected the same number of people");
+
+        for (int i = 0; i < nodeEntities.size(); i++)
+        {
+            Fragment fragment = nodeEntities.get(i);
+
+            assertEquals(PersonMapper.fromDomNode(fragment.getDocumentFragment()), boundPeople.get(i),
+                    "Bound and mapped person entities should be equal");
+            assertEquals(fragment.getXmlByteLocation().getOffset(), boundLocations.get(i).getOffset(),
+                    "Bound and mapped offsets should be equal");
+            assertEquals(fragment.getXmlByteLocation().getLength(), boundLocations.get(i).getLength(),
+                    "Bound and mapped lengths should be equal");
+        }
+    }
+}
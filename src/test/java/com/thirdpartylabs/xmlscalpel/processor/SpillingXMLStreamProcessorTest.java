@@ -0,0 +1,96 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.processor;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpillingXMLStreamProcessorTest
+{
+    /**
+     * With no budget, a budget for part of the file and a budget for all of it, the fragments read back should match
+     * the ones collected on the heap, and the segment files should be gone once the processor is closed
+     */
+    @Test
+    void testSpilledFragmentsMatch(@TempDir File spillDirectory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/po_namespace.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        List<String> targetNodes = Collections.singletonList("/aw:PurchaseOrders/aw:PurchaseOrder/aw:Items/aw:Item");
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+
+        List<Fragment> expected = new ArrayList<>();
+        reader.readFile(testFile, new CollectionPopulatingXMLStreamProcessor(expected), targetNodes);
+
+        long firstTwo = (expected.get(0).getXmlByteLocation().getLength()
+                + expected.get(1).getXmlByteLocation().getLength())
+                * SpillingXMLStreamProcessor.HEAP_BYTES_PER_SOURCE_BYTE;
+
+        long[] budgets = {0, firstTwo, Long.MAX_VALUE / 16};
+        long[] spilled = {expected.size(), expected.size() - 2, 0};
+
+        for (int b = 0; b < budgets.length; b++)
+        {
+            try (SpillingXMLStreamProcessor processor = new SpillingXMLStreamProcessor(budgets[b], spillDirectory))
+            {
+                reader.readFile(testFile, processor, targetNodes);
+
+                assertEquals(expected.size(), processor.getNumProcessed());
+                assertEquals(spilled[b], processor.getNumSpilled(), "Spilled with a budget of " + budgets[b]);
+                assertEquals(testFile.length(), processor.getBytesTotal());
+
+                List<Fragment> actual = new ArrayList<>();
+                processor.forEach(actual::add);
+
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++)
+                {
+                    assertEquals(expected.get(i).getXmlByteLocation().getIndex(),
+                                 actual.get(i).getXmlByteLocation().getIndex());
+                    assertEquals(expected.get(i).getXmlByteLocation().getOffset(),
+                                 actual.get(i).getXmlByteLocation().getOffset());
+                    assertEquals(expected.get(i).getXmlByteLocation().getLength(),
+                                 actual.get(i).getXmlByteLocation().getLength());
+
+                    Node expectedNode = expected.get(i).getDocumentFragment().getFirstChild();
+                    Node actualNode = actual.get(i).getDocumentFragment().getFirstChild();
+
+                    assertEquals(expectedNode.getNamespaceURI(), actualNode.getNamespaceURI());
+                    assertEquals(expectedNode.getLocalName(), actualNode.getLocalName());
+                    assertEquals(expectedNode.getTextContent(), actualNode.getTextContent());
+                }
+            }
+
+            String[] leftOver = spillDirectory.list();
+            assertNotNull(leftOver);
+            assertEquals(0, leftOver.length, "Segment files should be deleted on close");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.server;
+
+import com.thirdpartylabs.xmlscalpel.entity.Fragment;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.index.MappedLocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.processor.CollectionPopulatingXMLStreamProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FragmentServerTest
+{
+    @Test
+    void testServeRecords(@TempDir File directory) throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        LocationTable table = reader.indexFile(testFile, null);
+
+        File indexFile = new File(directory, "people.idx");
+        MappedLocationIndex.write(table, indexFile);
+
+        Map<String, Integer> keys = new HashMap<>();
+        keys.put("last", table.size() - 1);
+
+        FragmentServer server = new FragmentServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.addFeed("people", testFile, new MappedLocationIndex(indexFile),
+                key -> keys.getOrDefault(key, -1));
+        server.start();
+
+        try
+        {
+            String base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/feed/people";
+
+            for (int i = 0; i < table.size(); i++)
+            {
+                assertEquals(RandomAccessXMLReader.read(testFile, table.getLocation(i)), get(base + "/record/" + i));
+            }
+
+            assertEquals(RandomAccessXMLReader.read(testFile, table.getLocation(table.size() - 1)),
+                    get(base + "/key/last"));
+
+            // A range comes back as a document that reads the same as the original
+            File rangeFile = new File(directory, "range.xml");
+            Files.write(rangeFile.toPath(),
+                    get(base + "/records?from=1&to=3").getBytes(StandardCharsets.UTF_8));
+
+            List<Fragment> fragments = new ArrayList<>();
+            reader.readFile(rangeFile, new CollectionPopulatingXMLStreamProcessor(fragments));
+
+            assertEquals(2, fragments.size());
+            assertEquals(RandomAccessXMLReader.read(testFile, table.getLocation(2)),
+                    RandomAccessXMLReader.read(rangeFile, fragments.get(1).getXmlByteLocation()));
+
+            assertEquals(404, status(base + "/record/" + table.size()));
+            assertEquals(404, status(base + "/key/nobody"));
+            assertEquals(400, status(base + "/record/x"));
+            assertEquals(404, status("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/feed/nothing/record/0"));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Replace a feed over and over while clients fetch it, every response should still be complete
+     */
+    @Test
+    void testReplaceFeedWhileServing() throws Exception
+    {
+        URL fileUrl = getClass().getResource("/data/people.xml");
+        File testFile = new File(URLDecoder.decode(fileUrl.getFile(), StandardCharsets.UTF_8.toString()));
+        LocationTable table = new StreamingXMLReader().indexFile(testFile, null);
+
+        FragmentServer server = new FragmentServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.addFeed("people", testFile, table, null);
+        server.start();
+
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        try
+        {
+            String url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                    + "/feed/people/records";
+            String expected = get(url);
+
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+            {
+                results.add(clients.submit(() -> {
+                    int requests = 0;
+                    while (running.get())
+                    {
+                        assertEquals(expected, get(url));
+                        requests++;
+                    }
+                    return requests;
+                }));
+            }
+
+            for (int i = 0; i < 50; i++)
+            {
+                server.addFeed("people", testFile, table, null);
+            }
+            running.set(false);
+
+            for (Future<Integer> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            running.set(false);
+            clients.shutdown();
+            server.stop(5);
+        }
+    }
+
+    private static String get(String url) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(200, connection.getResponseCode());
+
+        try (InputStream in = connection.getInputStream())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int red;
+            while ((red = in.read(buffer)) >= 0)
+            {
+                out.write(buffer, 0, red);
+            }
+
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int status(String url) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        connection.disconnect();
+
+        return status;
+    }
+}
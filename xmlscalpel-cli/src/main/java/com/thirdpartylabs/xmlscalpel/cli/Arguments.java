@@ -0,0 +1,196 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.cli;
+
+import java.util.*;
+
+/**
+ * Parsed command line: the command name, option values and positional arguments.
+ * <p>
+ * Every option takes a value, given either as the next argument or after an equals sign. Options may be repeated,
+ * and {@code --} ends option processing.
+ */
+class Arguments
+{
+    // Short forms of the long option names
+    private static final Map<String, String> SHORT_OPTIONS = new HashMap<>();
+
+    static
+    {
+        SHORT_OPTIONS.put("-p", "path");
+        SHORT_OPTIONS.put("-o", "output");
+        SHORT_OPTIONS.put("-i", "index");
+        SHORT_OPTIONS.put("-j", "threads");
+        SHORT_OPTIONS.put("-f", "format");
+        SHORT_OPTIONS.put("-n", "records");
+        SHORT_OPTIONS.put("-d", "directory");
+    }
+
+    private final String command;
+    private final Map<String, List<String>> options = new HashMap<>();
+    private final List<String> positional = new ArrayList<>();
+
+    private Arguments(String command)
+    {
+        this.command = command;
+    }
+
+    /**
+     * @param args Arguments passed to main
+     * @return Parsed arguments
+     * @throws UsageException If there is no command or an option has no value
+     */
+    static Arguments parse(String[] args) throws UsageException
+    {
+        if (args.length == 0)
+        {
+            throw new UsageException("No command given");
+        }
+
+        Arguments arguments = new Arguments(args[0]);
+
+        boolean optionsEnded = false;
+        for (int i = 1; i < args.length; i++)
+        {
+            String arg = args[i];
+
+            if (optionsEnded || !arg.startsWith("-") || arg.length() == 1)
+            {
+                arguments.positional.add(arg);
+                continue;
+            }
+
+            if (arg.equals("--"))
+            {
+                optionsEnded = true;
+                continue;
+            }
+
+            String name;
+            String value = null;
+
+            int equals = arg.indexOf('=');
+            if (equals > 0)
+            {
+                value = arg.substring(equals + 1);
+                arg = arg.substring(0, equals);
+            }
+
+            if (arg.startsWith("--"))
+            {
+                name = arg.substring(2);
+            }
+            else
+            {
+                name = SHORT_OPTIONS.get(arg);
+                if (name == null)
+                {
+                    throw new UsageException("Unknown option " + arg);
+                }
+            }
+
+            if (value == null)
+            {
+                if (i + 1 >= args.length)
+                {
+                    throw new UsageException("Option " + arg + " requires a value");
+                }
+                value = args[++i];
+            }
+
+            arguments.options.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+
+        return arguments;
+    }
+
+    String getCommand()
+    {
+        return command;
+    }
+
+    List<String> getPositional()
+    {
+        return positional;
+    }
+
+    /**
+     * Fail if any option other than the listed ones was given
+     *
+     * @param names Long names of the options the command accepts
+     * @throws UsageException If an option is not accepted
+     */
+    void allow(String... names) throws UsageException
+    {
+        Set<String> allowed = new HashSet<>(Arrays.asList(names));
+        for (String name : options.keySet())
+        {
+            if (!allowed.contains(name))
+            {
+                throw new UsageException("Option --" + name + " is not supported by " + command);
+            }
+        }
+    }
+
+    /**
+     * @param name Long name of the option
+     * @return Every value given for the option, or null if it was not given, for use as target paths
+     */
+    List<String> getAll(String name)
+    {
+        return options.get(name);
+    }
+
+    /**
+     * @param name         Long name of the option
+     * @param defaultValue Value to use if the option was not given
+     * @return The last value given for the option
+     */
+    String get(String name, String defaultValue)
+    {
+        List<String> values = options.get(name);
+        return values == null ? defaultValue : values.get(values.size() - 1);
+    }
+
+    /**
+     * @param name         Long name of the option
+     * @param defaultValue Value to use if the option was not given
+     * @return The last value given for the option as a positive int
+     * @throws UsageException If the value is not a positive number
+     */
+    int getInt(String name, int defaultValue) throws UsageException
+    {
+        String value = get(name, null);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0)
+            {
+                return parsed;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below
+        }
+
+        throw new UsageException("Option --" + name + " must be a positive number, not " + value);
+    }
+}
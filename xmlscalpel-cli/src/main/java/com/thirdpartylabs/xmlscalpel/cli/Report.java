@@ -0,0 +1,150 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.cli;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Ordered set of named values printed as the result of a command, either as aligned text or as a single line JSON
+ * object, so that output for several files can be consumed as JSON Lines
+ */
+class Report
+{
+    static final String TEXT = "text";
+    static final String JSON = "json";
+
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    Report put(String name, Object value)
+    {
+        values.put(name, value);
+        return this;
+    }
+
+    /**
+     * Add byte and record rates for a timed operation
+     *
+     * @param bytes   Bytes processed
+     * @param records Records processed
+     * @param nanos   Elapsed time
+     * @return this
+     */
+    Report putThroughput(long bytes, long records, long nanos)
+    {
+        double seconds = Math.max(nanos, 1) / 1e9;
+
+        put("seconds", round(seconds));
+        put("mbPerSecond", round(bytes / seconds / (1024 * 1024)));
+        put("recordsPerSecond", Math.round(records / seconds));
+
+        return this;
+    }
+
+    void print(PrintStream out, String format)
+    {
+        out.println(JSON.equals(format) ? toJson() : toText());
+    }
+
+    private String toText()
+    {
+        int width = 0;
+        for (String name : values.keySet())
+        {
+            width = Math.max(width, name.length());
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : values.entrySet())
+        {
+            if (text.length() > 0)
+            {
+                text.append(System.lineSeparator());
+            }
+
+            text.append(String.format("%-" + (width + 1) + "s %s", entry.getKey() + ":", entry.getValue()));
+        }
+
+        return text.toString();
+    }
+
+    private String toJson()
+    {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : values.entrySet())
+        {
+            if (json.length() > 1)
+            {
+                json.append(',');
+            }
+
+            json.append(quote(entry.getKey())).append(':');
+
+            Object value = entry.getValue();
+            json.append(value instanceof Number ? value.toString() : quote(String.valueOf(value)));
+        }
+
+        return json.append('}').toString();
+    }
+
+    /**
+     * @param value String to quote
+     * @return The string as a JSON string literal
+     */
+    static String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        quoted.append(c);
+                    }
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    private static Double round(double value)
+    {
+        return Double.valueOf(String.format(Locale.ROOT, "%.3f", value));
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.cli;
+
+import com.thirdpartylabs.xmlscalpel.entity.XMLByteLocation;
+import com.thirdpartylabs.xmlscalpel.index.LocationCursor;
+import com.thirdpartylabs.xmlscalpel.index.LocationIndex;
+import com.thirdpartylabs.xmlscalpel.index.LocationTable;
+import com.thirdpartylabs.xmlscalpel.index.MappedLocationIndex;
+import com.thirdpartylabs.xmlscalpel.io.reader.FeedProfile;
+import com.thirdpartylabs.xmlscalpel.io.reader.RandomAccessXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.reader.StreamingXMLReader;
+import com.thirdpartylabs.xmlscalpel.io.writer.FragmentFileSplitter;
+import com.thirdpartylabs.xmlscalpel.metrics.Histogram;
+import com.thirdpartylabs.xmlscalpel.server.FragmentServer;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command line entry point. Run without arguments for usage.
+ * <p>
+ * Commands that are given an index file use it. An index file found next to the XML file is used if it is newer than
+ * the XML file and no {@code --path} was given. Otherwise the XML file is indexed on the fly with the target paths
+ * given with {@code --path}. Reports are printed as text, or as one JSON object per file with {@code --format json}.
+ */
+public class XMLScalpelCli
+{
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: xmlscalpel <command> [options] <arguments>",
+            "",
+            "Commands:",
+            "  index [-p PATH]... [-o INDEX] [-j THREADS] [-f text|json] FILE...",
+            "        Index each file and write the index next to it, or to INDEX for a single file",
+            "  get   [-i INDEX] [-p PATH]... [-f xml|json] FILE ORDINAL...",
+            "        Print the records with the given ordinals, ranges like 10-19 are inclusive",
+            "  split [-i INDEX] [-p PATH]... -n RECORDS -d DIRECTORY [--name BASE] FILE",
+            "        Split the file into well-formed files of at most RECORDS records each",
+            "  count [-p PATH]... [-j THREADS] [-f text|json] FILE...",
+            "        Count the records in each file",
+            "  stats [-i INDEX] [-p PATH]... [-f text|json] FILE",
+            "        Report record size statistics",
+            "  profile [-f text|json] FILE",
+            "        Report the element paths in the file with their counts and sizes",
+            "  serve [--port PORT] [-j THREADS] NAME=FILE...",
+            "        Serve the records of indexed files over HTTP",
+            "",
+            "Options:",
+            "  -p, --path       Target path to extract, may be repeated, defaults to children of the root",
+            "  -i, --index      Index file, defaults to FILE.idx if it is newer than FILE and no PATH is given",
+            "  -o, --output     Index file to write",
+            "  -j, --threads    Number of files to process at once, or server threads",
+            "  -f, --format     Output format",
+            "  -n, --records    Records per file",
+            "  -d, --directory  Output directory");
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    XMLScalpelCli(PrintStream out, PrintStream err)
+    {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args)
+    {
+        int status = new XMLScalpelCli(System.out, System.err).run(args);
+
+        // serve keeps running on the server threads
+        if (status != 0)
+        {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * @param args Command line arguments
+     * @return Exit status, 0 on success, 1 on failure and 2 for usage errors
+     */
+    int run(String[] args)
+    {
+        try
+        {
+            Arguments arguments = Arguments.parse(args);
+
+            switch (arguments.getCommand())
+            {
+                case "index":
+                    index(arguments);
+                    break;
+                case "get":
+                    get(arguments);
+                    break;
+                case "split":
+                    split(arguments);
+                    break;
+                case "count":
+                    count(arguments);
+                    break;
+                case "stats":
+                    stats(arguments);
+                    break;
+                case "profile":
+                    profile(arguments);
+                    break;
+                case "serve":
+                    serve(arguments);
+                    break;
+                case "help":
+                    out.println(USAGE);
+                    break;
+                default:
+                    throw new UsageException("Unknown command " + arguments.getCommand());
+            }
+
+            out.flush();
+            return 0;
+        }
+        catch (UsageException e)
+        {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+        catch (Exception e)
+        {
+            err.println("xmlscalpel: " + e);
+            return 1;
+        }
+    }
+
+    private void index(Arguments arguments) throws Exception
+    {
+        arguments.allow("path", "output", "threads", "format");
+        List<File> files = requireFiles(arguments.getPositional(), 1);
+        String output = arguments.get("output", null);
+
+        if (output != null && files.size() > 1)
+        {
+            throw new UsageException("--output can only be used with a single file");
+        }
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        List<String> paths = arguments.getAll("path");
+
+        forEachFile(files, arguments, file -> {
+            long start = System.nanoTime();
+            LocationTable table = reader.indexFile(file, paths);
+            long nanos = System.nanoTime() - start;
+
+            File indexFile = output == null ? new File(file.getPath() + INDEX_SUFFIX) : new File(output);
+            MappedLocationIndex.write(table, indexFile);
+
+            return new Report()
+                    .put("file", file.getPath())
+                    .put("index", indexFile.getPath())
+                    .put("records", table.size())
+                    .put("bytes", file.length())
+                    .putThroughput(file.length(), table.size(), nanos);
+        });
+    }
+
+    private void get(Arguments arguments) throws Exception
+    {
+        arguments.allow("index", "path", "format");
+        List<String> positional = arguments.getPositional();
+        if (positional.size() < 2)
+        {
+            throw new UsageException("get needs a file and at least one ordinal");
+        }
+
+        File file = requireFiles(positional.subList(0, 1), 1).get(0);
+        LocationIndex index = loadIndex(file, arguments);
+        boolean json = Report.JSON.equals(arguments.get("format", "xml"));
+
+        for (String ordinals : positional.subList(1, positional.size()))
+        {
+            int dash = ordinals.indexOf('-', 1);
+            int first = parseOrdinal(dash < 0 ? ordinals : ordinals.substring(0, dash));
+            int last = dash < 0 ? first : parseOrdinal(ordinals.substring(dash + 1));
+
+            for (int i = first; i <= last; i++)
+            {
+                if (i >= index.size())
+                {
+                    throw new IllegalArgumentException("No record " + i + ", " + file + " has " + index.size());
+                }
+
+                XMLByteLocation location = index.getLocation(i);
+                String xml = RandomAccessXMLReader.read(file, location);
+
+                if (json)
+                {
+                    new Report()
+                            .put("index", i)
+                            .put("offset", location.getOffset())
+                            .put("length", location.getLength())
+                            .put("xml", xml)
+                            .print(out, Report.JSON);
+                }
+                else
+                {
+                    out.println(xml);
+                }
+            }
+        }
+    }
+
+    private void split(Arguments arguments) throws Exception
+    {
+        arguments.allow("index", "path", "records", "directory", "name", "format");
+        File file = requireFiles(arguments.getPositional(), 1).get(0);
+
+        String directoryName = arguments.get("directory", null);
+        if (directoryName == null)
+        {
+            throw new UsageException("split needs an output --directory");
+        }
+
+        int recordsPerFile = arguments.getInt("records", 0);
+        if (recordsPerFile == 0)
+        {
+            throw new UsageException("split needs the number of --records per file");
+        }
+
+        File directory = new File(directoryName);
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IllegalArgumentException("Unable to create " + directory);
+        }
+
+        long start = System.nanoTime();
+        LocationIndex index = loadIndex(file, arguments);
+
+        List<XMLByteLocation> locations = new ArrayList<>(index.size());
+        LocationCursor cursor = index.cursor();
+        while (cursor.next())
+        {
+            locations.add(cursor.toLocation());
+        }
+
+        String baseName = arguments.get("name", stripExtension(file.getName()));
+        FragmentFileSplitter splitter = new FragmentFileSplitter(new StreamingXMLReader().getOuterDocument(file));
+        List<File> written = splitter.split(file, locations, recordsPerFile, directory, baseName);
+
+        new Report()
+                .put("file", file.getPath())
+                .put("records", index.size())
+                .put("files", written.size())
+                .put("directory", directory.getPath())
+                .putThroughput(file.length(), index.size(), System.nanoTime() - start)
+                .print(out, arguments.get("format", Report.TEXT));
+    }
+
+    private void count(Arguments arguments) throws Exception
+    {
+        arguments.allow("path", "threads", "format");
+        List<File> files = requireFiles(arguments.getPositional(), 1);
+
+        StreamingXMLReader reader = new StreamingXMLReader();
+        List<String> paths = arguments.getAll("path");
+
+        forEachFile(files, arguments, file -> {
+            long start = System.nanoTime();
+            LocationTable table = reader.indexFile(file, paths);
+
+            return new Report()
+                    .put("file", file.getPath())
+                    .put("records", table.size())
+                    .putThroughput(file.length(), table.size(), System.nanoTime() - start);
+        });
+    }
+
+    private void stats(Arguments arguments) throws Exception
+    {
+        arguments.allow("index", "path", "format");
+        File file = requireFiles(arguments.getPositional(), 1).get(0);
+        LocationIndex index = loadIndex(file, arguments);
+
+        Histogram lengths = new Histogram();
+        long recordBytes = 0;
+        long minLength = index.size() == 0 ? 0 : Long.MAX_VALUE;
+
+        LocationCursor cursor = index.cursor();
+        while (cursor.next())
+        {
+            lengths.record(cursor.getLength());
+            recordBytes += cursor.getLength();
+            minLength = Math.min(minLength, cursor.getLength());
+        }
+
+        new Report()
+                .put("file", file.getPath())
+                .put("bytes", file.length())
+                .put("records", index.size())
+                .put("recordBytes", recordBytes)
+                .put("coveragePercent", file.length() == 0 ? 0 : Math.round(recordBytes * 1000.0 / file.length()) / 10.0)
+                .put("minLength", minLength)
+                .put("meanLength", Math.round(lengths.getMean()))
+                .put("p50Length", lengths.getValueAtPercentile(50))
+                .put("p99Length", lengths.getValueAtPercentile(99))
+                .put("maxLength", lengths.getMax())
+                .print(out, arguments.get("format", Report.TEXT));
+    }
+
+    private void profile(Arguments arguments) throws Exception
+    {
+        arguments.allow("format");
+        File file = requireFiles(arguments.getPositional(), 1).get(0);
+        String format = arguments.get("format", Report.TEXT);
+
+        long start = System.nanoTime();
+        FeedProfile profile = new StreamingXMLReader().profileFile(file);
+
+        new Report()
+                .put("file", file.getPath())
+                .put("bytes", profile.getBytes())
+                .put("elements", profile.getElementCount())
+                .put("paths", profile.getPaths().size())
+                .put("maxDepth", profile.getMaxDepth())
+                .put("namespaces", String.join(" ", profile.getNamespaceUsage().keySet()))
+                .putThroughput(profile.getBytes(), profile.getElementCount(), System.nanoTime() - start)
+                .print(out, format);
+
+        // One report per path, as JSON Lines or as blocks of text
+        for (FeedProfile.PathProfile path : profile.getPaths())
+        {
+            if (!Report.JSON.equals(format))
+            {
+                out.println();
+            }
+
+            Histogram sizes = path.getSizes();
+            new Report()
+                    .put("path", path.getPath())
+                    .put("count", path.getCount())
+                    .put("maxPerParent", path.getMaxPerParent())
+                    .put("attributes", String.join(" ", path.getAttributeCounts().keySet()))
+                    .put("meanLength", Math.round(sizes.getMean()))
+                    .put("p50Length", sizes.getValueAtPercentile(50))
+                    .put("p99Length", sizes.getValueAtPercentile(99))
+                    .put("maxLength", sizes.getMax())
+                    .print(out, format);
+        }
+    }
+
+    private void serve(Arguments arguments) throws Exception
+    {
+        arguments.allow("port", "threads", "path");
+        if (arguments.getPositional().isEmpty())
+        {
+            throw new UsageException("serve needs at least one NAME=FILE feed");
+        }
+
+        int port = arguments.getInt("port", 8080);
+        FragmentServer server = new FragmentServer(new InetSocketAddress(port),
+                arguments.getInt("threads", Runtime.getRuntime().availableProcessors() * 2));
+
+        for (String feed : arguments.getPositional())
+        {
+            int equals = feed.indexOf('=');
+            if (equals < 1)
+            {
+                throw new UsageException("Feeds are given as NAME=FILE, not " + feed);
+            }
+
+            String name = feed.substring(0, equals);
+            File file = requireFiles(List.of(feed.substring(equals + 1)), 1).get(0);
+
+            server.addFeed(name, file, loadIndex(file, arguments), null);
+            err.println("Serving " + file + " at /feed/" + name + "/");
+        }
+
+        server.start();
+        err.println("Listening on port " + server.getAddress().getPort());
+    }
+
+    /**
+     * Run a command for each file, several at once if --threads is given, and print the reports in file order
+     */
+    private void forEachFile(List<File> files, Arguments arguments, FileCommand command) throws Exception
+    {
+        String format = arguments.get("format", Report.TEXT);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(arguments.getInt("threads", 1), files.size()));
+
+        try
+        {
+            List<Future<Report>> reports = new ArrayList<>();
+            for (File file : files)
+            {
+                reports.add(executor.submit(() -> command.run(file)));
+            }
+
+            for (Future<Report> report : reports)
+            {
+                report.get().print(out, format);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Map the index given with --index, or the one next to the file if it can still be trusted, or index the file now
+     */
+    private static LocationIndex loadIndex(File file, Arguments arguments) throws Exception
+    {
+        String indexName = arguments.get("index", null);
+        if (indexName != null)
+        {
+            return new MappedLocationIndex(new File(indexName));
+        }
+
+        // The index file records neither the paths nor the version of the file it was built from, so the one next
+        // to the file is only used if no paths were asked for and the file has not been modified since
+        List<String> paths = arguments.getAll("path");
+        File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        if (paths == null && indexFile.lastModified() > file.lastModified())
+        {
+            return new MappedLocationIndex(indexFile);
+        }
+
+        return new StreamingXMLReader().indexFile(file, paths);
+    }
+
+    private static List<File> requireFiles(List<String> names, int minimum) throws UsageException
+    {
+        if (names.size() < minimum)
+        {
+            throw new UsageException("No file given");
+        }
+
+        List<File> files = new ArrayList<>();
+        for (String name : names)
+        {
+            File file = new File(name);
+            if (!file.isFile())
+            {
+                throw new UsageException("No such file " + name);
+            }
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    private static int parseOrdinal(String value) throws UsageException
+    {
+        try
+        {
+            int ordinal = Integer.parseInt(value);
+            if (ordinal >= 0)
+            {
+                return ordinal;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below
+        }
+
+        throw new UsageException("Invalid ordinal " + value);
+    }
+
+    private static String stripExtension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private interface FileCommand
+    {
+        Report run(File file) throws Exception;
+    }
+}
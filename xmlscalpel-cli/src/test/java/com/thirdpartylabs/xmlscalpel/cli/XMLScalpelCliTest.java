@@ -0,0 +1,116 @@
+/*
+ * XMLScalpel random access XML processor
+ *
+ * Copyright (c) 2020- Rob Ruchte, rob@thirdpartylabs.com
+ *
+ * Licensed under the License specified in file LICENSE, included with the source code.
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thirdpartylabs.xmlscalpel.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XMLScalpelCliTest
+{
+    /**
+     * Index a file, then fetch, count and split it using the index that was written next to it
+     */
+    @Test
+    void testIndexGetCountSplit(@TempDir File directory) throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed>\n");
+        for (int i = 0; i < 10; i++)
+        {
+            xml.append("    <product><sku>").append(i).append("</sku></product>\n");
+        }
+        xml.append("</feed>\n");
+
+        File file = new File(directory, "feed.xml");
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        String indexOutput = run(0, "index", "-f", "json", file.getPath());
+        assertTrue(indexOutput.contains("\"records\":10"), indexOutput);
+        assertTrue(new File(directory, "feed.xml.idx").isFile());
+
+        assertEquals("<product><sku>3</sku></product>\n<product><sku>4</sku></product>\n",
+                run(0, "get", file.getPath(), "3-4").replace(System.lineSeparator(), "\n"));
+
+        assertTrue(run(0, "count", file.getPath()).contains("10"));
+        assertTrue(run(0, "stats", "-f", "json", file.getPath()).contains("\"minLength\":31"));
+        assertTrue(run(0, "profile", "-f", "json", file.getPath())
+                .contains("{\"path\":\"/feed/product\",\"count\":10,\"maxPerParent\":10"));
+
+        File splitDirectory = new File(directory, "split");
+        run(0, "split", "-n", "4", "-d", splitDirectory.getPath(), file.getPath());
+        assertEquals(3, splitDirectory.listFiles().length);
+
+        run(2, "get", file.getPath());
+        run(2, "index", "--bogus", "1", file.getPath());
+        run(1, "get", file.getPath(), "10");
+        run(2, "count", "-j", "0", file.getPath());
+        run(2, "index", "--threads", "-1", file.getPath());
+        run(2, "serve", "-j", "0", "feed=" + file.getPath());
+    }
+
+    /**
+     * An index next to the file is not used once the file has changed, or when other paths are asked for
+     */
+    @Test
+    void testStaleIndexAndPaths(@TempDir File directory) throws Exception
+    {
+        File file = new File(directory, "feed.xml");
+        writeFeed(file, 10, "a");
+        run(0, "index", file.getPath());
+        File indexFile = new File(directory, "feed.xml.idx");
+
+        assertEquals("<sku>0a</sku>\n",
+                run(0, "get", "-p", "/feed/product/sku", file.getPath(), "0").replace(System.lineSeparator(), "\n"));
+
+        // Shorter records, the old index would point past them
+        writeFeed(file, 3, "");
+        assertTrue(file.setLastModified(indexFile.lastModified() + 2000));
+
+        assertEquals("<product><sku>2</sku></product>\n",
+                run(0, "get", file.getPath(), "2").replace(System.lineSeparator(), "\n"));
+        assertTrue(run(0, "stats", "-f", "json", file.getPath()).contains("\"records\":3"));
+        run(1, "get", file.getPath(), "3");
+    }
+
+    private static void writeFeed(File file, int records, String suffix) throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed>\n");
+        for (int i = 0; i < records; i++)
+        {
+            xml.append("    <product><sku>").append(i).append(suffix).append("</sku></product>\n");
+        }
+        xml.append("</feed>\n");
+
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String run(int expectedStatus, String... args)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int status = new XMLScalpelCli(new PrintStream(out, true), new PrintStream(err, true)).run(args);
+
+        assertEquals(expectedStatus, status, err.toString());
+        return out.toString();
+    }
+}